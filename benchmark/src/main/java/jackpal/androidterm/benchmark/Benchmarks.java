@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.benchmark;
+
+import org.junit.Assume;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Helpers for the benchmarks among the tests of the other modules.  They
+ * are skipped unless the build is run with -Pbenchmark, for example
+ * <pre>
+ * ./gradlew :emulatorview:testDebugUnitTest -Pbenchmark --tests '*Benchmark'
+ * </pre>
+ * and print their results to standard output, which Gradle keeps in the
+ * report of unit tests, and which goes to the log on a device.
+ */
+public final class Benchmarks {
+    public interface Body {
+        void run() throws Exception;
+    }
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skip the calling test unless the benchmark system property is set,
+     * as it is for the unit tests of a build run with -Pbenchmark.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+    }
+
+    /**
+     * Skip the calling test unless flag is "true".  Instrumented tests pass
+     * the benchmark instrumentation argument, which a build run with
+     * -Pbenchmark sets.
+     */
+    public static void assumeEnabled(String flag) {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", Boolean.parseBoolean(flag));
+    }
+
+    /**
+     * Run a body a few times to warm up, then some more times.
+     *
+     * @return The shortest time it took after warming up, in nanoseconds.
+     */
+    public static long best(int warmups, int runs, Body body) throws Exception {
+        return best(warmups, runs, null, body);
+    }
+
+    /**
+     * Like {@link #best(int, int, Body)}, with something to do before each
+     * run which isn't timed.
+     */
+    public static long best(int warmups, int runs, Body setUp, Body body) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < warmups + runs; i++) {
+            if (setUp != null) {
+                setUp.run();
+            }
+            long start = System.nanoTime();
+            body.run();
+            long time = System.nanoTime() - start;
+            if (i >= warmups) {
+                best = Math.min(best, time);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The number of bytes the current thread allocated while running
+     *         body, or -1 if the VM doesn't count them.
+     */
+    public static long allocatedBytes(Body body) throws Exception {
+        com.sun.management.ThreadMXBean allocations;
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                body.run();
+                return -1;
+            }
+            allocations = (com.sun.management.ThreadMXBean) bean;
+        } catch (LinkageError e) {
+            // No java.lang.management on Android
+            body.run();
+            return -1;
+        }
+        long thread = Thread.currentThread().getId();
+        long start = allocations.getThreadAllocatedBytes(thread);
+        body.run();
+        return allocations.getThreadAllocatedBytes(thread) - start;
+    }
+
+    /**
+     * @return The heap in use after collecting garbage, as well as can be
+     *         told.
+     */
+    public static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * @return A number from /proc/self/status, such as "Threads" or "VmRSS"
+     *         (in kB), or -1 if it isn't there.
+     */
+    public static long status(String field) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+            return -1;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Collect garbage and give the heap a moment to settle before reading
+     * the status of the process.
+     */
+    public static void settle() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            Runtime.getRuntime().gc();
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * @return The time which the given percentage of times are no longer
+     *         than.
+     */
+    public static long percentile(long[] times, int percent) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length * percent / 100, sorted.length - 1)];
+    }
+
+    public static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / (nanos / 1e9) / (1024 * 1024);
+    }
+
+    public static void report(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+}
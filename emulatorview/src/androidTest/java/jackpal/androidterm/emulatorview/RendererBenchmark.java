@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.HardwareRenderer;
+import android.graphics.PixelFormat;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Time to draw a screen full of 256-color text with {@link PaintRenderer}
+ * and with {@link GlyphAtlasRenderer}, every row each frame as EmulatorView
+ * does without its row cache.  Frames are drawn into a software bitmap
+ * canvas, and from API 29 on also through a HardwareRenderer into an
+ * ImageReader, which is closer to what a frame costs on screen.
+ *
+ * Skipped unless run with -Pbenchmark, for example
+ * <pre>
+ * ./gradlew :emulatorview:connectedDebugAndroidTest -Pbenchmark
+ * </pre>
+ * The results are printed to standard output, which ends up in the log with
+ * the tag System.out.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RendererBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int FONT_SIZE = 24;
+    private static final int WARMUP_FRAMES = 30;
+    private static final int FRAMES = 200;
+
+    private TerminalEmulator mEmulator;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled(InstrumentationRegistry.getArguments().getString("benchmark"));
+        // TermSession needs a looper to be created on
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mEmulator = newEmulator();
+            }
+        });
+        byte[] text = colorText();
+        mEmulator.append(text, 0, text.length);
+    }
+
+    @Test
+    public void software() {
+        for (TextRenderer renderer : newRenderers()) {
+            int width = (int) Math.ceil(renderer.getCharacterWidth() * COLUMNS);
+            int height = renderer.getCharacterHeight() * ROWS;
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            long[] times = new long[FRAMES];
+            for (int frame = -WARMUP_FRAMES; frame < FRAMES; frame++) {
+                long start = System.nanoTime();
+                drawFrame(canvas, renderer);
+                if (frame >= 0) {
+                    times[frame] = System.nanoTime() - start;
+                }
+            }
+            bitmap.recycle();
+            report("software", renderer, times);
+        }
+    }
+
+    @Test
+    public void hardware() {
+        Assume.assumeTrue("HardwareRenderer needs API 29", Build.VERSION.SDK_INT >= 29);
+        for (TextRenderer renderer : newRenderers()) {
+            int width = (int) Math.ceil(renderer.getCharacterWidth() * COLUMNS);
+            int height = renderer.getCharacterHeight() * ROWS;
+            ImageReader reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2,
+                    HardwareBuffer.USAGE_GPU_SAMPLED_IMAGE | HardwareBuffer.USAGE_GPU_COLOR_OUTPUT);
+            HardwareRenderer hardwareRenderer = new HardwareRenderer();
+            RenderNode node = new RenderNode("RendererBenchmark");
+            node.setPosition(0, 0, width, height);
+            hardwareRenderer.setContentRoot(node);
+            hardwareRenderer.setSurface(reader.getSurface());
+            long[] times = new long[FRAMES];
+            for (int frame = -WARMUP_FRAMES; frame < FRAMES; frame++) {
+                long start = System.nanoTime();
+                RecordingCanvas canvas = node.beginRecording();
+                drawFrame(canvas, renderer);
+                node.endRecording();
+                hardwareRenderer.createRenderRequest().setWaitForPresent(true).syncAndDraw();
+                if (frame >= 0) {
+                    times[frame] = System.nanoTime() - start;
+                }
+                Image image = reader.acquireLatestImage();
+                if (image != null) {
+                    image.close();
+                }
+            }
+            hardwareRenderer.destroy();
+            reader.close();
+            report("hardware", renderer, times);
+        }
+    }
+
+    private void drawFrame(Canvas canvas, TextRenderer renderer) {
+        TranscriptScreen screen = mEmulator.getScreen();
+        renderer.setTrueColors(mEmulator.getTrueColors());
+        renderer.setReverseVideo(false);
+        canvas.drawColor(BaseTextRenderer.defaultColorScheme.getBackColor());
+        float y = renderer.getCharacterHeight();
+        for (int row = 0; row < ROWS; row++) {
+            screen.drawText(row, canvas, 0, y, renderer, -1, -1, -1, "", 0, null);
+            y += renderer.getCharacterHeight();
+        }
+    }
+
+    private static TextRenderer[] newRenderers() {
+        ColorScheme scheme = BaseTextRenderer.defaultColorScheme;
+        return new TextRenderer[] {
+            new PaintRenderer(FONT_SIZE, scheme, null, 0),
+            new GlyphAtlasRenderer(FONT_SIZE, scheme, null, 0),
+        };
+    }
+
+    private static TerminalEmulator newEmulator() {
+        TermSession session = new TermSession() {
+            @Override
+            public void write(byte[] data, int offset, int count) {
+            }
+        };
+        ColorScheme scheme = BaseTextRenderer.defaultColorScheme;
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, ROWS, ROWS, scheme);
+        TerminalEmulator emulator = new TerminalEmulator(session, screen, COLUMNS, ROWS, scheme);
+        emulator.setKeyListener(new TermKeyListener(session));
+        emulator.setUTF8ModeUpdateCallback(new UpdateCallback() {
+            @Override
+            public void onUpdate() {
+            }
+        });
+        emulator.setDefaultUTF8Mode(true);
+        return emulator;
+    }
+
+    /**
+     * Words in random 256-color foregrounds and backgrounds, some bold or
+     * underlined, filling the screen.
+     */
+    private static byte[] colorText() {
+        Random random = new Random(5);
+        StringBuilder text = new StringBuilder("\033[H\033[2J");
+        for (int row = 0; row < ROWS; row++) {
+            text.append("\033[").append(row + 1).append(";1H");
+            for (int column = 0; column < COLUMNS; ) {
+                int word = Math.min(1 + random.nextInt(8), COLUMNS - column);
+                text.append("\033[38;5;").append(random.nextInt(256))
+                        .append(";48;5;").append(random.nextInt(256));
+                if (random.nextInt(4) == 0) {
+                    text.append(random.nextBoolean() ? ";1" : ";4");
+                }
+                text.append('m');
+                for (int i = 0; i < word; i++) {
+                    text.append((char) ('!' + random.nextInt(94)));
+                }
+                text.append("\033[0m");
+                column += word;
+            }
+        }
+        return text.toString().getBytes();
+    }
+
+    private static void report(String canvas, TextRenderer renderer, long[] times) {
+        Benchmarks.report("Renderer %s %-18s frame median %.2f ms, p90 %.2f ms",
+                canvas, renderer.getClass().getSimpleName(),
+                Benchmarks.millis(Benchmarks.percentile(times, 50)),
+                Benchmarks.millis(Benchmarks.percentile(times, 90)));
+    }
+}
@@ -30,6 +30,10 @@ abstract class BaseTextRenderer implements TextRenderer {
 
     protected int[] mPalette;
 
+    /* The RGB colors last copied into mPalette */
+    private TrueColorTable mTrueColors;
+    private int mTrueColorsGeneration;
+
     protected static final int[] sXterm256Paint = {
             // 16 original colors
             // First 8 are dim
@@ -384,6 +388,14 @@ public void setReverseVideo(boolean reverseVideo) {
         mReverseVideo = reverseVideo;
     }
 
+    public void setTrueColors(TrueColorTable trueColors) {
+        if (trueColors != mTrueColors || trueColors.getGeneration() != mTrueColorsGeneration) {
+            trueColors.copyTo(mPalette);
+            mTrueColors = trueColors;
+            mTrueColorsGeneration = trueColors.getGeneration();
+        }
+    }
+
     static float mCursorHeight = 1.0f;
     static int mCursorHeightMode = 0;
     static int mCursorHeightModeDefault = mCursorHeightMode;
@@ -408,11 +420,12 @@ private void setDefaultColors(ColorScheme scheme) {
         mPalette[TextStyle.ciBackground] = scheme.getBackColor();
         mPalette[TextStyle.ciCursorForeground] = scheme.getCursorForeColor();
         mPalette[TextStyle.ciCursorBackground] = scheme.getCursorBackColor();
+        mTrueColors = null;
     }
 
     private static int[] cloneDefaultColors() {
         int length = sXterm256Paint.length;
-        int[] clone = new int[TextStyle.ciColorLength];
+        int[] clone = new int[TextStyle.ciPaletteLength];
         System.arraycopy(sXterm256Paint, 0, clone, 0, length);
         return clone;
     }
@@ -25,25 +25,56 @@
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.graphics.Typeface;
 import android.text.TextPaint;
 
 
+/**
+ * Draws text with a 4 x 8 pixel bitmap font, for small screens and slow
+ * devices.
+ *
+ * The font sheet is tinted once for each (foreground, background) color
+ * pair into a small cache of tinted sheets, replacing the least recently
+ * used sheet when it's full, so drawing a run is just one bitmap copy per
+ * character from the same bitmap, with no allocation and no change of
+ * paint.  A tinted sheet is never modified after it's been drawn, since the
+ * display lists of rows drawn with it may still be in use.
+ *
+ * The font only covers ASCII; other characters are drawn with an ordinary
+ * monospace font scaled to fit their cells.
+ */
 class Bitmap4x8FontRenderer extends BaseTextRenderer {
     private final static int kCharacterWidth = 4;
     private final static int kCharacterHeight = 8;
+    private final static int TINT_CACHE_SIZE = 32;
     private final Bitmap mFont;
-    private int mCurrentForeColor;
-    private int mCurrentBackColor;
-    private float[] mColorMatrix;
     private final Paint mPaint;
+    private final Paint mTintPaint;
+    private final float[] mColorMatrix;
     private static final float BYTE_SCALE = 1.0f / 255.0f;
 
+    private final Bitmap[] mTintedFonts = new Bitmap[TINT_CACHE_SIZE];
+    private final int[] mTintedForeColor = new int[TINT_CACHE_SIZE];
+    private final int[] mTintedBackColor = new int[TINT_CACHE_SIZE];
+    private final long[] mTintedLastUse = new long[TINT_CACHE_SIZE];
+    private long mUseCount;
+    private int mLastTint = -1;
+
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDestRect = new Rect();
+
+    /** Used for characters the font doesn't have; initially null. */
+    private Paint mFallbackPaint;
+
     public Bitmap4x8FontRenderer(Resources resources, ColorScheme scheme) {
         super(scheme);
         int fontResource = R.drawable.atari_small_nodpi;
         mFont = BitmapFactory.decodeResource(resources,fontResource);
         mPaint = new Paint();
         mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
+        mTintPaint = new Paint();
+        mColorMatrix = new float[20];
+        mColorMatrix[18] = 1.0f; // Just copy Alpha
     }
 
     public float getCharacterWidth() {
@@ -96,6 +127,8 @@ public void drawTextRun(Canvas canvas, float x, float y,
         if (selectionStyle) {
             backColor = TextStyle.ciCursorBackground;
         }
+        if (backColor >= TextStyle.ciPaletteLength) backColor = TextStyle.ciBackground;
+        if (foreColor >= TextStyle.ciPaletteLength) foreColor = TextStyle.ciForeground;
 
         boolean invisible = (effect & TextStyle.fxInvisible) != 0;
 
@@ -106,59 +139,138 @@ public void drawTextRun(Canvas canvas, float x, float y,
         drawTextRunHelper(canvas, x, y, lineOffset, text, index, count, foreColor, backColor);
 
         // The cursor is too small to show the cursor mode.
-        if (lineOffset <= cursorOffset && cursorOffset < (lineOffset + count)) {
-          drawTextRunHelper(canvas, x, y, cursorOffset, text, cursorOffset-lineOffset, 1,
+        if (lineOffset <= cursorOffset && cursorOffset < (lineOffset + runWidth)) {
+          drawTextRunHelper(canvas, x, y, cursorOffset, text, cursorIndex, cursorIncr,
                   TextStyle.ciCursorForeground, TextStyle.ciCursorBackground);
         }
     }
 
     private void drawTextRunHelper(Canvas canvas, float x, float y, int lineOffset, char[] text,
             int index, int count, int foreColor, int backColor) {
-        setColorMatrix(mPalette[foreColor], mPalette[backColor]);
+        int foreground = mPalette[foreColor];
+        int background = mPalette[backColor];
+        Bitmap font = getTintedFont(foreground, background);
         int destX = (int) x + kCharacterWidth * lineOffset;
         int destY = (int) y;
-        Rect srcRect = new Rect();
-        Rect destRect = new Rect();
+        Rect srcRect = mSrcRect;
+        Rect destRect = mDestRect;
         destRect.top = (destY - kCharacterHeight);
         destRect.bottom = destY;
-        boolean drawSpaces = mPalette[backColor] != mPalette[TextStyle.ciBackground];
-        for (int i = 0; i < count; i++) {
-            // XXX No Unicode support in bitmap font
-            char c = text[i + index];
-            if ((c < 128) && ((c != 32) || drawSpaces)) {
-                int cellX = c & 31;
-                int cellY = (c >> 5) & 3;
-                int srcX = cellX * kCharacterWidth;
-                int srcY = cellY * kCharacterHeight;
-                srcRect.set(srcX, srcY,
-                        srcX + kCharacterWidth, srcY + kCharacterHeight);
-                destRect.left = destX;
-                destRect.right = destX + kCharacterWidth;
-                canvas.drawBitmap(mFont, srcRect, destRect, mPaint);
+        boolean drawSpaces = background != mPalette[TextStyle.ciBackground];
+        int lastX = destX;
+        int end = index + count;
+        for (int i = index; i < end; ) {
+            int c = Character.codePointAt(text, i, end);
+            int charCount = Character.charCount(c);
+            if (c < 128) {
+                if ((c != 32) || drawSpaces) {
+                    int cellX = c & 31;
+                    int cellY = (c >> 5) & 3;
+                    int srcX = cellX * kCharacterWidth;
+                    int srcY = cellY * kCharacterHeight;
+                    srcRect.set(srcX, srcY,
+                            srcX + kCharacterWidth, srcY + kCharacterHeight);
+                    destRect.left = destX;
+                    destRect.right = destX + kCharacterWidth;
+                    canvas.drawBitmap(font, srcRect, destRect, mPaint);
+                }
+                lastX = destX;
+                destX += kCharacterWidth;
+            } else {
+                int width = UnicodeTranscript.charWidth(c);
+                if (width == 0) {
+                    // Combining character, drawn over the one before
+                    drawFallback(canvas, text, i, charCount, lastX, destY, 1, foreground, 0);
+                } else {
+                    drawFallback(canvas, text, i, charCount, destX, destY, width, foreground, background);
+                    lastX = destX;
+                    destX += width * kCharacterWidth;
+                }
             }
-            destX += kCharacterWidth;
+            i += charCount;
         }
     }
 
-    private void setColorMatrix(int foreColor, int backColor) {
-        if ((foreColor != mCurrentForeColor)
-                || (backColor != mCurrentBackColor)
-                || (mColorMatrix == null)) {
-            mCurrentForeColor = foreColor;
-            mCurrentBackColor = backColor;
-            if (mColorMatrix == null) {
-                mColorMatrix = new float[20];
-                mColorMatrix[18] = 1.0f; // Just copy Alpha
+    /**
+     * Draw a character the bitmap font doesn't have in width cells, using
+     * a monospace font squeezed to fit.
+     *
+     * @param background The background color, or 0 to leave the background
+     *                   alone.
+     */
+    private void drawFallback(Canvas canvas, char[] text, int index, int count,
+            int destX, int destY, int width, int foreground, int background) {
+        Paint paint = mFallbackPaint;
+        if (paint == null) {
+            paint = mFallbackPaint = new Paint();
+            paint.setTypeface(Typeface.MONOSPACE);
+            paint.setAntiAlias(true);
+            paint.setTextSize(kCharacterHeight);
+        }
+        int cellsWidth = width * kCharacterWidth;
+        if (background != 0) {
+            paint.setColor(background);
+            canvas.drawRect(destX, destY - kCharacterHeight, destX + cellsWidth, destY, paint);
+        }
+        paint.setTextScaleX(1.0f);
+        float textWidth = paint.measureText(text, index, count);
+        if (textWidth > cellsWidth) {
+            paint.setTextScaleX(cellsWidth / textWidth);
+        }
+        paint.setColor(foreground);
+        canvas.drawText(text, index, count, destX, destY - paint.descent(), paint);
+    }
+
+    /**
+     * @return The font sheet tinted with the given colors, from the cache if
+     *         possible.
+     */
+    private Bitmap getTintedFont(int foreColor, int backColor) {
+        int tint = mLastTint;
+        if (tint < 0 || mTintedForeColor[tint] != foreColor
+                || mTintedBackColor[tint] != backColor || mTintedFonts[tint] == null) {
+            tint = findTintedFont(foreColor, backColor);
+            mLastTint = tint;
+        }
+        mTintedLastUse[tint] = ++mUseCount;
+        return mTintedFonts[tint];
+    }
+
+    private int findTintedFont(int foreColor, int backColor) {
+        int victim = 0;
+        for (int i = 0; i < TINT_CACHE_SIZE; i++) {
+            if (mTintedFonts[i] == null) {
+                victim = i;
+                break;
+            }
+            if (mTintedForeColor[i] == foreColor && mTintedBackColor[i] == backColor) {
+                return i;
             }
-            for (int component = 0; component < 3; component++) {
-                int rightShift = (2 - component) << 3;
-                int fore = 0xff & (foreColor >> rightShift);
-                int back = 0xff & (backColor >> rightShift);
-                int delta = back - fore;
-                mColorMatrix[component * 6] = delta * BYTE_SCALE;
-                mColorMatrix[component * 5 + 4] = fore;
+            if (mTintedLastUse[i] < mTintedLastUse[victim]) {
+                victim = i;
             }
-            mPaint.setColorFilter(new ColorMatrixColorFilter(mColorMatrix));
         }
+
+        // Always a new bitmap: the old one may still be used by a display list
+        Bitmap tinted = Bitmap.createBitmap(mFont.getWidth(), mFont.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        setColorMatrix(foreColor, backColor);
+        new Canvas(tinted).drawBitmap(mFont, 0, 0, mTintPaint);
+        mTintedFonts[victim] = tinted;
+        mTintedForeColor[victim] = foreColor;
+        mTintedBackColor[victim] = backColor;
+        return victim;
+    }
+
+    private void setColorMatrix(int foreColor, int backColor) {
+        for (int component = 0; component < 3; component++) {
+            int rightShift = (2 - component) << 3;
+            int fore = 0xff & (foreColor >> rightShift);
+            int back = 0xff & (backColor >> rightShift);
+            int delta = back - fore;
+            mColorMatrix[component * 6] = delta * BYTE_SCALE;
+            mColorMatrix[component * 5 + 4] = fore;
+        }
+        mTintPaint.setColorFilter(new ColorMatrixColorFilter(mColorMatrix));
     }
 }
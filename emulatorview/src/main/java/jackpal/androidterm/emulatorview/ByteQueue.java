@@ -16,22 +16,82 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * A multi-thread-safe produce-consumer byte array.
  * Only allows one producer and one consumer.
+ * <p>
+ * The queue is a lock-free ring buffer: the consumer owns mHead, the producer
+ * owns mTail, and each side only ever reads the other's index.  Both indices
+ * are free-running counters, so the number of stored bytes is simply
+ * mTail - mHead and the capacity is rounded up to a power of two so that a
+ * counter can be turned into an array index with a mask.
+ * <p>
+ * A thread which has to wait (reader on an empty queue, writer on a full
+ * one) publishes itself in mWaitingReader/mWaitingWriter before parking, and
+ * the other side unparks it after moving its index.  How eagerly a waiting
+ * thread gives up the CPU is selected with one of the PARK_* constants.
+ * <p>
+ * The producer calls close() when it has nothing more to write, which lets
+ * the consumer drain what is left and then see the end of the data.
+ * <p>
+ * Besides copying in and out with write() and read(), the producer can
+ * have a stream read straight into the free space with readFrom(), and the
+ * consumer can use the bytes where they are with peek() and skip(), or
+ * hand them straight to a stream or channel with writeTo().
  */
 
 class ByteQueue {
+    /**
+     * Park the waiting thread immediately.  Cheapest on CPU; best when the
+     * producer and consumer run at very different rates (the usual case for
+     * an interactive shell).
+     */
+    static final int PARK_BLOCK = 0;
+
+    /**
+     * Spin and then yield for a short while before parking.  Trades some CPU
+     * for lower hand-off latency when data is streaming in bursts.
+     */
+    static final int PARK_SPIN = 1;
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+
     public ByteQueue(int size) {
-        mBuffer = new byte[size];
+        this(size, PARK_BLOCK);
     }
 
-    public int getBytesAvailable() {
-        synchronized(this) {
-            return mStoredBytes;
+    public ByteQueue(int size, int parkMode) {
+        int capacity = Integer.highestOneBit(Math.max(size, 1));
+        if (capacity < size) {
+            capacity <<= 1;
         }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+        mParkMode = parkMode;
+    }
+
+    public int getBytesAvailable() {
+        return (int) (mTail - mHead);
+    }
+
+    public int getFreeSpace() {
+        return mBuffer.length - (int) (mTail - mHead);
     }
 
+    /**
+     * Read up to <code>length</code> bytes, waiting until there are some.
+     *
+     * @return The number of bytes read, or -1 if the queue is empty and has
+     *         been closed.
+     */
     public int read(byte[] buffer, int offset, int length)
         throws InterruptedException {
         if (length + offset > buffer.length) {
@@ -46,31 +106,27 @@ public int read(byte[] buffer, int offset, int length)
         if (length == 0) {
             return 0;
         }
-        synchronized(this) {
-            while (mStoredBytes == 0) {
-                wait();
-            }
-            int totalRead = 0;
-            int bufferLength = mBuffer.length;
-            boolean wasFull = bufferLength == mStoredBytes;
-            while (length > 0 && mStoredBytes > 0) {
-                int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-                int bytesToCopy = Math.min(length, oneRun);
-                System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-                mHead += bytesToCopy;
-                if (mHead >= bufferLength) {
-                    mHead = 0;
-                }
-                mStoredBytes -= bytesToCopy;
-                length -= bytesToCopy;
-                offset += bytesToCopy;
-                totalRead += bytesToCopy;
+        long head = mHead;
+        long tail = mTail;
+        if (tail == head) {
+            tail = awaitData(head, -1);
+            if (tail == head) {
+                return -1;
             }
-            if (wasFull) {
-                notify();
-            }
-            return totalRead;
         }
+        int bytesToCopy = (int) Math.min(length, tail - head);
+        int index = (int) head & mMask;
+        int oneRun = Math.min(mBuffer.length - index, bytesToCopy);
+        System.arraycopy(mBuffer, index, buffer, offset, oneRun);
+        if (oneRun < bytesToCopy) {
+            System.arraycopy(mBuffer, 0, buffer, offset + oneRun, bytesToCopy - oneRun);
+        }
+        mHead = head + bytesToCopy;
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return bytesToCopy;
     }
 
     /**
@@ -78,6 +134,9 @@ public int read(byte[] buffer, int offset, int length)
      * the queue.  Returns the number of bytes actually written to the queue;
      * it is the caller's responsibility to check whether all of the data
      * was written and repeat the call to write() if necessary.
+     *
+     * @throws InterruptedException If the thread is interrupted, or the
+     *         queue is closed, while waiting for space.
      */
     public int write(byte[] buffer, int offset, int length)
     throws InterruptedException {
@@ -93,32 +152,312 @@ public int write(byte[] buffer, int offset, int length)
         if (length == 0) {
             return 0;
         }
-        synchronized(this) {
-            int bufferLength = mBuffer.length;
-            boolean wasEmpty = mStoredBytes == 0;
-            while(bufferLength == mStoredBytes) {
-                wait();
+        int bufferLength = mBuffer.length;
+        long tail = mTail;
+        long head = mHead;
+        if (tail - head == bufferLength) {
+            head = awaitSpace(tail);
+        }
+        int bytesToCopy = (int) Math.min(length, bufferLength - (tail - head));
+        int index = (int) tail & mMask;
+        int oneRun = Math.min(bufferLength - index, bytesToCopy);
+        System.arraycopy(buffer, offset, mBuffer, index, oneRun);
+        if (oneRun < bytesToCopy) {
+            System.arraycopy(buffer, offset + oneRun, mBuffer, 0, bytesToCopy - oneRun);
+        }
+        mTail = tail + bytesToCopy;
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+        return bytesToCopy;
+    }
+
+    /**
+     * Read up to <code>maxLength</code> bytes from a stream straight into the
+     * queue, waiting for space if the queue is full.  Must only be called by
+     * the producer.  A read never wraps around the end of the ring, so it may
+     * be cut shorter than <code>maxLength</code> there.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws InterruptedException If the thread is interrupted, or the
+     *         queue is closed, while waiting for space.
+     */
+    public int readFrom(InputStream in, int maxLength)
+    throws IOException, InterruptedException {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("maxLength <= 0");
+        }
+        int bufferLength = mBuffer.length;
+        long tail = mTail;
+        long head = mHead;
+        if (tail - head == bufferLength) {
+            head = awaitSpace(tail);
+        }
+        int index = (int) tail & mMask;
+        int length = (int) Math.min(Math.min(maxLength, bufferLength - index),
+                bufferLength - (tail - head));
+        int read = in.read(mBuffer, index, length);
+        if (read <= 0) {
+            return read;
+        }
+        mTail = tail + read;
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+        return read;
+    }
+
+    /**
+     * Wait until there are bytes to read, like read(), but leave them in the
+     * queue.  They are in getBuffer() from getReadOffset() on, and stay
+     * there until the consumer calls skip().  Must only be called by the
+     * consumer.
+     *
+     * @return The number of bytes which can be used in place, at most
+     *         <code>maxLength</code>, or -1 if the queue is empty and has
+     *         been closed.
+     */
+    public int peek(int maxLength) throws InterruptedException {
+        long head = mHead;
+        long tail = mTail;
+        if (tail == head) {
+            tail = awaitData(head, -1);
+            if (tail == head) {
+                return -1;
             }
-            int tail = mHead + mStoredBytes;
-            int oneRun;
-            if (tail >= bufferLength) {
-                tail = tail - bufferLength;
-                oneRun = mHead - tail;
-            } else {
-                oneRun = bufferLength - tail;
+        }
+        int index = (int) head & mMask;
+        return (int) Math.min(Math.min(maxLength, mBuffer.length - index), tail - head);
+    }
+
+    /**
+     * @return The array holding the queue's bytes.
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return The index in getBuffer() of the next byte to be read.
+     */
+    int getReadOffset() {
+        return (int) mHead & mMask;
+    }
+
+    /**
+     * Drop the first <code>count</code> bytes, which the consumer has used
+     * in place, and let the producer have their space.
+     */
+    public void skip(int count) {
+        if (count < 0 || count > mTail - mHead) {
+            throw new IllegalArgumentException("count out of range");
+        }
+        mHead += count;
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Write everything in the queue to a stream, without waiting for more.
+     * Must only be called by the consumer.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeTo(OutputStream out) throws IOException {
+        long head = mHead;
+        int count = (int) (mTail - head);
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) head & mMask;
+        int oneRun = Math.min(mBuffer.length - index, count);
+        out.write(mBuffer, index, oneRun);
+        if (oneRun < count) {
+            out.write(mBuffer, 0, count - oneRun);
+        }
+        skip(count);
+        return count;
+    }
+
+    /**
+     * Write everything in the queue to a channel, without waiting for more.
+     * Bytes which wrap around the end of the ring go out in the same
+     * gathered write as the rest.  Must only be called by the consumer.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeTo(GatheringByteChannel channel) throws IOException {
+        long head = mHead;
+        int count = (int) (mTail - head);
+        if (count == 0) {
+            return 0;
+        }
+        ByteBuffer[] runs = mRuns;
+        if (runs == null) {
+            runs = new ByteBuffer[] { ByteBuffer.wrap(mBuffer), ByteBuffer.wrap(mBuffer) };
+            mRuns = runs;
+        }
+        int index = (int) head & mMask;
+        int oneRun = Math.min(mBuffer.length - index, count);
+        runs[0].clear();
+        runs[0].position(index);
+        runs[0].limit(index + oneRun);
+        runs[1].clear();
+        runs[1].limit(count - oneRun);
+        long written = 0;
+        while (written < count) {
+            written += channel.write(runs);
+        }
+        skip(count);
+        return count;
+    }
+
+    /**
+     * Say that nothing more will be written.  Wakes the consumer, which gets
+     * -1 from read() once it has read what is left, and any producer still
+     * waiting for space.
+     */
+    public void close() {
+        mClosed = true;
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Wait up to <code>timeoutNanos</code> nanoseconds for something to read.
+     * Must only be called by the consumer.
+     *
+     * @return true if there is something to read or the queue has been
+     *         closed, false if the time ran out.
+     */
+    public boolean waitForData(long timeoutNanos) throws InterruptedException {
+        long head = mHead;
+        return awaitData(head, timeoutNanos) != head || mClosed;
+    }
+
+    /**
+     * Wait until the producer has moved mTail past head, or closed the
+     * queue, or <code>timeoutNanos</code> nanoseconds have passed.
+     *
+     * @param timeoutNanos How long to wait, or -1 to wait for as long as
+     *        it takes.
+     * @return The new value of mTail, which is head if the queue was closed
+     *         or the time ran out.
+     */
+    private long awaitData(long head, long timeoutNanos) throws InterruptedException {
+        long deadline = timeoutNanos >= 0 ? System.nanoTime() + timeoutNanos : 0;
+        long tail;
+        int tries = 0;
+        while ((tail = mTail) == head) {
+            if (mClosed) {
+                break;
             }
-            int bytesToCopy = Math.min(oneRun, length);
-            System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-            offset += bytesToCopy;
-            mStoredBytes += bytesToCopy;
-            if (wasEmpty) {
-                notify();
+            if (pause(tries++)) {
+                continue;
+            }
+            long remaining = 0;
+            if (timeoutNanos >= 0) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+            }
+            mWaitingReader = Thread.currentThread();
+            try {
+                // Re-check after publishing ourselves, or we could miss the
+                // unpark() for a write which landed in between.
+                if ((tail = mTail) != head || mClosed) {
+                    break;
+                }
+                if (timeoutNanos >= 0) {
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+            } finally {
+                mWaitingReader = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Wait until the consumer has freed some space.
+     *
+     * @return The new value of mHead.
+     */
+    private long awaitSpace(long tail) throws InterruptedException {
+        long head;
+        int bufferLength = mBuffer.length;
+        int tries = 0;
+        while (tail - (head = mHead) == bufferLength) {
+            if (mClosed) {
+                throw new InterruptedException();
+            }
+            if (pause(tries++)) {
+                continue;
+            }
+            mWaitingWriter = Thread.currentThread();
+            try {
+                if (tail - (head = mHead) != bufferLength || mClosed) {
+                    continue;
+                }
+                LockSupport.park(this);
+            } finally {
+                mWaitingWriter = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
-            return bytesToCopy;
         }
+        return head;
+    }
+
+    /**
+     * Back off according to the park mode.
+     *
+     * @return true if the caller should check again before parking.
+     */
+    private boolean pause(int tries) throws InterruptedException {
+        if (mParkMode != PARK_SPIN || tries >= SPIN_TRIES + YIELD_TRIES) {
+            return false;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tries >= SPIN_TRIES) {
+            Thread.yield();
+        }
+        return true;
     }
 
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
+    private final int mMask;
+    private final int mParkMode;
+
+    /** Read position; written only by the consumer. */
+    private volatile long mHead;
+    /** Write position; written only by the producer. */
+    private volatile long mTail;
+
+    private volatile boolean mClosed;
+
+    private volatile Thread mWaitingReader;
+    private volatile Thread mWaitingWriter;
+
+    // Views of mBuffer for writeTo(GatheringByteChannel); consumer only
+    private ByteBuffer[] mRuns;
 }
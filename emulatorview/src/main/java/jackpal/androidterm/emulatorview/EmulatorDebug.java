@@ -43,6 +43,11 @@ class EmulatorDebug {
      */
     public static final boolean LOG_UNKNOWN_ESCAPE_SEQUENCES = DEBUG & false;
 
+    /**
+     * Set to true to log the session's PerformanceCounter once a second.
+     */
+    public static final boolean LOG_PERFORMANCE = DEBUG & false;
+
     /**
      * The tag we use when logging, so that our messages can be distinguished
      * from other messages in the log. Public because it's used by several
@@ -58,7 +58,11 @@
 import androidx.preference.PreferenceManager;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Hashtable;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jackpal.androidterm.emulatorview.compat.AndroidCompat;
 import jackpal.androidterm.emulatorview.compat.ClipboardManagerCompat;
@@ -123,6 +127,7 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     private int mTextSize = 10;
     private int mTextLeading = 0;
     private String mTextFont;
+    private boolean mUseGlyphAtlas = false;
 
     static private int mCursorBlink = 0;
     static private int mCursorBlinkDefault = 0;
@@ -136,6 +141,39 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private Paint mBackgroundPaint;
 
+    /**
+     * Display lists of the rows drawn in the last frame, or null if they
+     * can't be kept on this platform.
+     */
+    private RowRenderCache mRowCache;
+    private int[] mRowVersions;
+
+    /**
+     * The rows being drawn, copied from the screen at the start of each
+     * frame so that the emulator thread can go on while they are drawn.
+     */
+    private final ScreenSnapshot mSnapshot = new ScreenSnapshot();
+
+    /*
+     * What the rows in mRowCache were drawn with; if any of these change,
+     * every row has to be drawn again.
+     */
+    private TranscriptScreen mCachedScreen;
+    private TextRenderer mCachedRenderer;
+    private boolean mCachedReverseVideo;
+    private float mCachedX;
+    private int mCachedWidth;
+
+    /**
+     * Whether to show the rows repainted counter; see setShowRowsDrawn().
+     */
+    private boolean mShowRowsDrawn = false;
+
+    /**
+     * Used to draw the rows repainted counter, if enabled.
+     */
+    private Paint mRowsDrawnPaint;
+
     private boolean mUseCookedIme;
     private boolean mUseDirectCookedIme;
 
@@ -174,6 +212,10 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private static final int CURSOR_BLINK_PERIOD = 1000;
 
+    // Text committed by an IME which is at least this long is pasted instead
+    // of being typed a char at a time, see TermSession#paste
+    private static final int IME_PASTE_LENGTH = 1024;
+
     private boolean mCursorVisible = true;
 
     private boolean mIsSelectingText = false;
@@ -197,6 +239,9 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     private int mSelX2 = -1;
     private int mSelY2 = -1;
 
+    /** The search of the transcript in progress, or null. */
+    private TranscriptSearch mSearch;
+
     /**
      * Routing alt and meta keyCodes away from the IME allows Alt key processing to work on
      * the Asus Transformer TF101.
@@ -367,19 +412,34 @@ public void run() {
      */
     private final Handler mHandler = new Handler();
 
+    /**
+     * Scratch buffer for draining the emulator's DroidVim control codes
+     */
+    private final int[] mEscCtrlModes = new int[16];
+
     /**
      * Called by the TermSession when the contents of the view need updating
      */
     private final UpdateCallback mUpdateNotify = new UpdateCallback() {
         public void onUpdate() {
             doEscCtrl();
+            int rowShift;
+            ReentrantLock lock = mTermSession.getEmulatorLock();
+            lock.lock();
+            try {
+                rowShift = mEmulator.getScrollCounter();
+                mEmulator.clearScrollCounter();
+            } finally {
+                lock.unlock();
+            }
             if (mIsSelectingText) {
-                int rowShift = mEmulator.getScrollCounter();
                 mSelY1 -= rowShift;
                 mSelY2 -= rowShift;
                 mSelYAnchor -= rowShift;
             }
-            mEmulator.clearScrollCounter();
+            if (mSearch != null) {
+                mSearch.shiftRows(rowShift);
+            }
             ensureCursorVisible();
             invalidate();
         }
@@ -430,6 +490,9 @@ private void commonConstructor(Context context) {
         mScroller = new Scroller(context);
         mMouseTrackingFlingRunner.mScroller = new Scroller(context);
         setHwAcceleration(mHardwareAcceleration);
+        if (AndroidCompat.SDK >= Build.VERSION_CODES.Q) {
+            mRowCache = new RowRenderCache();
+        }
         mHaveFullHwKeyboard = checkHaveFullHwKeyboard(getResources().getConfiguration());
     }
 
@@ -763,7 +826,12 @@ public boolean commitText(CharSequence text, int newCursorPosition) {
                     Log.w(TAG, "commitText(\"" + text + "\", " + newCursorPosition + ")");
                 }
                 clearComposingText();
-                sendText(text);
+                if (text.length() >= IME_PASTE_LENGTH) {
+                    // Most likely from the IME's clipboard
+                    mTermSession.paste(text, null);
+                } else {
+                    sendText(text);
+                }
                 setImeBuffer("");
                 mCursor = 0;
                 if ((mIme == IME_ID_SWIFT) && text.toString().matches("[-']")) {
@@ -1161,6 +1229,32 @@ public void setTextFont(String fontFile) {
         updateText();
     }
 
+    /**
+     * Sets whether text is drawn from an atlas of pre-rendered glyphs
+     * instead of being laid out with Canvas.drawText() on every frame.
+     * Has no effect when the 4 x 8 bitmap font is in use.
+     *
+     * @param useGlyphAtlas Whether to use the glyph atlas.
+     */
+    public void setUseGlyphAtlas(boolean useGlyphAtlas) {
+        if (mUseGlyphAtlas == useGlyphAtlas) return;
+        mUseGlyphAtlas = useGlyphAtlas;
+        updateText();
+    }
+
+    /**
+     * Sets whether to show, in the corner of the view, how many rows of text
+     * were repainted for the last frame and on average, and the average time
+     * taken to draw a frame (to compare text renderers, for instance).
+     *
+     * @param showRowsDrawn Whether to show the counter.
+     */
+    public void setShowRowsDrawn(boolean showRowsDrawn) {
+        if (mShowRowsDrawn == showRowsDrawn) return;
+        mShowRowsDrawn = showRowsDrawn;
+        invalidate();
+    }
+
     /**
      * Sets the IME mode ("cooked" or "raw").
      *
@@ -1566,7 +1660,7 @@ private void pasteClipboard() {
             return;
         }
         CharSequence paste = clip.getText();
-        mTermSession.write(paste.toString());
+        mTermSession.paste(paste, null);
     }
 
     public void setIMECtrlBeginBatchEditDisable(boolean mode) {
@@ -1584,11 +1678,28 @@ private boolean IMECtrlBeginBatchEditDisable() {
         return flag && mIMECtrlBeginBatchEditDisable;
     }
 
+    /**
+     * Handle the DroidVim control codes queued by the emulator, a batch at a
+     * time.
+     */
     @SuppressLint("NewApi")
     private void doEscCtrl() {
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        int count = 0;
+        int index = 0;
         while (true) {
-            int ctrl = mEmulator.getEscCtrlMode();
-            if (ctrl == -1) return;
+            if (index == count) {
+                // Not held while the commands run, as some of them write to the session
+                lock.lock();
+                try {
+                    count = mEmulator.getEscCtrlModes(mEscCtrlModes);
+                } finally {
+                    lock.unlock();
+                }
+                index = 0;
+                if (count <= 0) return;
+            }
+            int ctrl = mEscCtrlModes[index++];
             if ((mHaveFullHwKeyboard == false) && (ctrl <= 2)) {
                 continue;
             }
@@ -2251,7 +2362,9 @@ private void clearSpecialKeyStatus() {
 
     private void updateText() {
         ColorScheme scheme = mColorScheme;
-        if (mTextSize > 0) {
+        if (mTextSize > 0 && mUseGlyphAtlas) {
+            mTextRenderer = new GlyphAtlasRenderer(mTextSize, scheme, mTextFont, (int) Math.ceil(mTextLeading * mTextScale));
+        } else if (mTextSize > 0) {
             mTextRenderer = new PaintRenderer(mTextSize, scheme, mTextFont, (int) Math.ceil(mTextLeading * mTextScale));
         } else {
             mTextRenderer = new Bitmap4x8FontRenderer(getResources(), scheme);
@@ -2259,6 +2372,9 @@ private void updateText() {
 
         mForegroundPaint.setColor(scheme.getForeColor());
         mBackgroundPaint.setColor(scheme.getBackColor());
+        if (mRowCache != null) {
+            mRowCache.invalidate();
+        }
         mCharacterWidth = mTextRenderer.getCharacterWidth();
         mCharacterHeight = mTextRenderer.getCharacterHeight();
 
@@ -2338,11 +2454,22 @@ protected void onDraw(Canvas canvas) {
             // Not ready yet
             return;
         }
+        long drawStart = System.nanoTime();
 
         int w = getWidth();
         int h = getHeight();
 
-        boolean reverseVideo = mEmulator.getReverseVideo();
+        ScreenSnapshot snapshot = mSnapshot;
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        lock.lock();
+        try {
+            snapshot.update(mEmulator, mTopRow, mRows);
+            mTextRenderer.setTrueColors(mEmulator.getTrueColors());
+        } finally {
+            lock.unlock();
+        }
+
+        boolean reverseVideo = snapshot.getReverseVideo();
         mTextRenderer.setReverseVideo(reverseVideo);
 
         Paint backgroundPaint =
@@ -2350,10 +2477,7 @@ protected void onDraw(Canvas canvas) {
         canvas.drawRect(0, 0, w, h, backgroundPaint);
         float x = -mLeftColumn * mCharacterWidth;
         float y = mCharacterHeight + mTopOfScreenMargin;
-        int endLine = mTopRow + mRows;
-        int cx = mEmulator.getCursorCol();
-        int cy = mEmulator.getCursorRow();
-        boolean cursorVisible = mCursorVisible && mEmulator.getShowCursor();
+        boolean cursorVisible = mCursorVisible && snapshot.getShowCursor();
         String effectiveImeBuffer = mImeBuffer;
         int combiningAccent = mKeyListener.getCombiningAccent();
         if (combiningAccent != 0) {
@@ -2364,26 +2488,133 @@ protected void onDraw(Canvas canvas) {
             ((AppCompatActivity) this.getContext()).onKeyUp(EscCmd.VKEYCODE_1364, null);
         }
 
-        for (int i = mTopRow; i < endLine; i++) {
-            int cursorX = -1;
-            if (i == cy && cursorVisible) {
-                cursorX = cx;
+        int rowsDrawn;
+        if (mRowCache != null && canvas.isHardwareAccelerated()) {
+            rowsDrawn = drawCachedRows(canvas, x, w, reverseVideo, cursorVisible, effectiveImeBuffer, cursorStyle);
+        } else {
+            for (int i = 0; i < mRows; i++) {
+                drawRow(canvas, i, x, y, cursorVisible, effectiveImeBuffer, cursorStyle);
+                y += mCharacterHeight;
             }
-            int selx1 = -1;
-            int selx2 = -1;
-            if (i >= mSelY1 && i <= mSelY2) {
-                if (i == mSelY1) {
-                    selx1 = mSelX1;
-                }
-                if (i == mSelY2) {
-                    selx2 = mSelX2;
-                } else {
-                    selx2 = mColumns;
-                }
+            rowsDrawn = mRows;
+        }
+        PerformanceCounter counter = mTermSession.getPerformanceCounter();
+        counter.countFrame(System.nanoTime() - drawStart, rowsDrawn);
+        if (mShowRowsDrawn) {
+            drawRowsDrawn(canvas, w, counter);
+        }
+    }
+
+    /**
+     * Draw the rows of text, reusing the display lists of rows which haven't
+     * changed since the last frame.  The rows with the cursor, a selection or
+     * a search match on them are always drawn again.
+     *
+     * @return The number of rows drawn.
+     */
+    private int drawCachedRows(Canvas canvas, float x, int w, boolean reverseVideo,
+            boolean cursorVisible, String imeBuffer, int cursorStyle) {
+        RowRenderCache cache = mRowCache;
+        ScreenSnapshot snapshot = mSnapshot;
+        TranscriptScreen screen = snapshot.getScreen();
+        if (screen != mCachedScreen || mTextRenderer != mCachedRenderer
+                || reverseVideo != mCachedReverseVideo || x != mCachedX
+                || w != mCachedWidth) {
+            cache.invalidate();
+            mCachedScreen = screen;
+            mCachedRenderer = mTextRenderer;
+            mCachedReverseVideo = reverseVideo;
+            mCachedX = x;
+            mCachedWidth = w;
+        }
+
+        int rows = mRows;
+        int cy = snapshot.getCursorRow();
+        cache.startFrame(rows);
+        int[] versions = mRowVersions;
+        if (versions == null || versions.length < rows) {
+            versions = mRowVersions = new int[rows];
+        }
+        for (int i = 0; i < rows; i++) {
+            int row = mTopRow + i;
+            if ((row == cy && cursorVisible) || (row >= mSelY1 && row <= mSelY2)
+                    || isSearchMatchRow(row)) {
+                versions[i] = 0;
+            } else {
+                versions[i] = snapshot.getRowVersion(i);
+            }
+            cache.reuse(i, versions[i]);
+        }
+
+        int rowsDrawn = 0;
+        int charHeight = mCharacterHeight;
+        for (int i = 0; i < rows; i++) {
+            if (!cache.isReused(i)) {
+                Canvas rowCanvas = cache.startRecording(i, versions[i], w, charHeight);
+                drawRow(rowCanvas, i, x, charHeight, cursorVisible, imeBuffer, cursorStyle);
+                cache.endRecording(i);
+                rowsDrawn++;
+            }
+            cache.draw(canvas, i, mTopOfScreenMargin + i * charHeight);
+        }
+        cache.endFrame();
+        return rowsDrawn;
+    }
+
+    /**
+     * Draw the row in slot i of the snapshot, which is row mTopRow + i.
+     */
+    private void drawRow(Canvas canvas, int i, float x, float y,
+            boolean cursorVisible, String imeBuffer, int cursorStyle) {
+        ScreenSnapshot snapshot = mSnapshot;
+        int row = snapshot.getTopRow() + i;
+        int cursorX = -1;
+        if (row == snapshot.getCursorRow() && cursorVisible) {
+            cursorX = snapshot.getCursorCol();
+        }
+        int selx1 = -1;
+        int selx2 = -1;
+        if (row >= mSelY1 && row <= mSelY2) {
+            if (row == mSelY1) {
+                selx1 = mSelX1;
+            }
+            if (row == mSelY2) {
+                selx2 = mSelX2;
+            } else {
+                selx2 = mColumns;
+            }
+        } else if (isSearchMatchRow(row)) {
+            // Show the search match as if it were selected
+            TranscriptSearch search = mSearch;
+            if (row == search.getMatchStartRow()) {
+                selx1 = search.getMatchStartColumn();
+            }
+            if (row == search.getMatchEndRow()) {
+                selx2 = search.getMatchEndColumn();
+            } else {
+                selx2 = mColumns;
             }
-            mEmulator.getScreen().drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, effectiveImeBuffer, cursorStyle, mImeSpannableString);
-            y += mCharacterHeight;
         }
+        snapshot.drawRow(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, imeBuffer, cursorStyle, mImeSpannableString);
+    }
+
+    /**
+     * Show how many rows the last frame repainted, and the average rows and
+     * frame time since the performance counter was last reset, in the top
+     * right corner.
+     */
+    private void drawRowsDrawn(Canvas canvas, int w, PerformanceCounter counter) {
+        if (mRowsDrawnPaint == null) {
+            mRowsDrawnPaint = new Paint();
+            mRowsDrawnPaint.setAntiAlias(true);
+            mRowsDrawnPaint.setTextAlign(Paint.Align.RIGHT);
+            mRowsDrawnPaint.setColor(0xffff00ff);
+            mRowsDrawnPaint.setTextSize(mCharacterHeight);
+        }
+        String text = String.format("%d/%d rows (avg %.1f) %.2f ms",
+                counter.getLastRowsDrawn(), mRows, counter.getAverageRowsDrawn(),
+                counter.getAverageFrameMillis());
+        canvas.drawText(text, w, mCharacterHeight, mRowsDrawnPaint);
     }
 
     private void ensureCursorVisible() {
@@ -2413,6 +2644,97 @@ public void toggleSelectingText() {
         }
     }
 
+    /**
+     * Start searching the transcript for text, from the bottom of the
+     * screen upwards, and scroll to show the first match found.
+     *
+     * @param query The text to look for.
+     * @param regex Whether the query is a regular expression (see
+     *              {@link java.util.regex.Pattern}) rather than literal text.
+     * @param ignoreCase Whether to ignore differences of case.
+     * @return Whether a match was found.
+     * @throws java.util.regex.PatternSyntaxException If the query is not a
+     *         valid regular expression.
+     */
+    public boolean startSearch(String query, boolean regex, boolean ignoreCase) {
+        mSearch = new TranscriptSearch(query, regex, ignoreCase);
+        return findSearchMatch(false);
+    }
+
+    /**
+     * Move to the next match of the search towards the bottom of the
+     * transcript, wrapping around to the top.
+     *
+     * @return Whether a match was found.
+     */
+    public boolean findNext() {
+        return findSearchMatch(true);
+    }
+
+    /**
+     * Move to the next match of the search towards the top of the
+     * transcript, wrapping around to the bottom.
+     *
+     * @return Whether a match was found.
+     */
+    public boolean findPrevious() {
+        return findSearchMatch(false);
+    }
+
+    /**
+     * Stop searching, and stop showing the match.
+     */
+    public void endSearch() {
+        mSearch = null;
+        invalidate();
+    }
+
+    private boolean findSearchMatch(boolean forward) {
+        TranscriptSearch search = mSearch;
+        if (search == null || mEmulator == null) {
+            return false;
+        }
+        TranscriptScreen screen = mEmulator.getScreen();
+        int end = forward ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        boolean found;
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        lock.lock();
+        try {
+            if (search.hasMatch()) {
+                found = screen.search(search, search.getMatchStartRow(),
+                        search.getMatchStartColumn(), forward);
+                if (!found) {
+                    // Wrap around
+                    found = screen.search(search, end, 0, forward);
+                }
+            } else {
+                found = screen.search(search, end, 0, forward);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (found) {
+            int row = search.getMatchStartRow();
+            if (row < mTopRow || row >= mTopRow + mRows) {
+                mTopRow = Math.min(0, Math.max(-screen.getActiveTranscriptRows(), row - mRows / 2));
+            }
+            if (mVisibleColumns > 0) {
+                int column = search.getMatchStartColumn();
+                if (column < mLeftColumn || column >= mLeftColumn + mVisibleColumns) {
+                    mLeftColumn = Math.max(0, Math.min(column, mColumns - mVisibleColumns));
+                }
+            }
+        }
+        invalidate();
+        return found;
+    }
+
+    private boolean isSearchMatchRow(int row) {
+        TranscriptSearch search = mSearch;
+        return search != null && search.hasMatch()
+                && row >= search.getMatchStartRow() && row <= search.getMatchEndRow();
+    }
+
     /**
      * Whether the view is currently in text selection mode.
      */
@@ -2426,7 +2748,13 @@ public boolean getSelectingText() {
      * @return A {@link String} with the selected text.
      */
     public String getSelectedText() {
-        return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        lock.lock();
+        try {
+            return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -2519,24 +2847,69 @@ public String getTranscriptScreenText() {
         if (mEmulator == null) return null;
         TranscriptScreen ts = mEmulator.getScreen();
         if (ts == null) return null;
-        return ts.getTranscriptScreenText();
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        lock.lock();
+        try {
+            return ts.getTranscriptScreenText();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String getTranscriptText() {
         if (mEmulator == null) return null;
         TranscriptScreen ts = mEmulator.getScreen();
         if (ts == null) return null;
-        return ts.getTranscriptText();
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        lock.lock();
+        try {
+            return ts.getTranscriptText();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the text of the whole transcript to a stream as UTF-8, without
+     * copying it out as one String first.  The emulator lock is only held
+     * while rows are copied, a slice at a time, not while they're written.
+     *
+     * @param format TranscriptExporter.FORMAT_TEXT, FORMAT_ANSI or FORMAT_HTML.
+     */
+    public void exportTranscript(OutputStream out, int format) throws IOException {
+        exportTranscript(Channels.newChannel(out), format);
+    }
+
+    public void exportTranscript(WritableByteChannel channel, int format) throws IOException {
+        if (mEmulator == null) return;
+        TranscriptScreen ts = mEmulator.getScreen();
+        if (ts == null) return;
+        ts.exportTranscript(new TranscriptExporter(format, mColorScheme),
+                mTermSession.getEmulatorLock(), channel);
+    }
+
+    public void exportTranscript(Appendable out, int format) throws IOException {
+        if (mEmulator == null) return;
+        TranscriptScreen ts = mEmulator.getScreen();
+        if (ts == null) return;
+        ts.exportTranscript(new TranscriptExporter(format, mColorScheme),
+                mTermSession.getEmulatorLock(), out);
     }
 
     public String getTranscriptCurrentText() {
         if (mEmulator == null) return null;
         TranscriptScreen ts = mEmulator.getScreen();
         if (ts == null) return null;
-        String str = ts.getSelectedText(0, mTopRow, mVisibleColumns, mTopRow);
-        for (int i = mTopRow + 1; i < mVisibleRows + mTopRow; i++) {
-            str = str + "\n" + ts.getSelectedText(0, i, mVisibleColumns, i);
+        ReentrantLock lock = mTermSession.getEmulatorLock();
+        lock.lock();
+        try {
+            String str = ts.getSelectedText(0, mTopRow, mVisibleColumns, mTopRow);
+            for (int i = mTopRow + 1; i < mVisibleRows + mTopRow; i++) {
+                str = str + "\n" + ts.getSelectedText(0, i, mVisibleColumns, i);
+            }
+            return str;
+        } finally {
+            lock.unlock();
         }
-        return str;
     }
 }
@@ -0,0 +1,362 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.text.TextPaint;
+
+/**
+ * A text renderer which draws each glyph once into an atlas of bitmaps, and
+ * then draws text by copying glyphs out of the atlas, tinted with the text
+ * color.
+ *
+ * PaintRenderer lays out and rasterizes every run of text with
+ * Canvas.drawText() on every frame.  Here a (code point, bold) pair is only
+ * laid out once; after that, a run is a background rectangle computed from
+ * the cell geometry alone plus one bitmap copy per cell, all from a handful
+ * of bitmaps, which the hardware renderer can batch together.  Wide
+ * characters don't need a run of their own either, since every glyph is
+ * placed in its own cells.
+ *
+ * The atlas is made of pages, square ALPHA_8 bitmaps of ATLAS_PAGE_SIZE
+ * pixels (more for large fonts, so that a page holds a useful number of
+ * glyphs) divided into slots two cells wide, so that East Asian wide glyphs
+ * fit.  New glyphs go into the newest page; when that's full, a new page is
+ * started, and once there are MAX_PAGES pages the oldest one is dropped.
+ * A glyph which is drawn from the oldest page while it's due to be dropped
+ * is copied into the newest page, so glyphs which are still in use survive
+ * and eviction is roughly least recently used.
+ * A slot is never redrawn once it holds a glyph, so display lists which
+ * still refer to a dropped page keep drawing correctly.
+ */
+class GlyphAtlasRenderer extends BaseTextRenderer {
+    private static final int ATLAS_PAGE_SIZE = 1024;
+    private static final int MAX_ATLAS_PAGE_SIZE = 2048;
+    private static final int MIN_SLOTS_PER_SIDE = 16;
+    private static final int MAX_PAGES = 4;
+
+    private final Paint mTextPaint;
+    /** Draws glyphs into the atlas, as alpha only. */
+    private final Paint mGlyphPaint;
+    /** Draws glyphs out of the atlas, in the text color. */
+    private final Paint mTintPaint;
+    private final Paint mBackgroundPaint;
+    private TextPaint mImePaint = null;
+
+    private final float mCharWidth;
+    private final int mCharHeight;
+    private final int mCharDescent;
+    private final int mUnderlineTop;
+    private final int mUnderlineHeight;
+
+    private final int mSlotWidth;
+    private final int mSlotsPerRow;
+    private final int mSlotsPerPage;
+
+    /*
+     * Pages are numbered in the order they were started; page n is kept in
+     * mPages[n % MAX_PAGES] until it's dropped.
+     */
+    private final Bitmap[] mPages = new Bitmap[MAX_PAGES];
+    private Canvas mNewestPageCanvas;
+    private int mNewestPage = -1;
+    private int mOldestPage = 0;
+    /** Slots used in the newest page. */
+    private int mUsedSlots;
+
+    /*
+     * Open-addressed hash table from glyph key (see findGlyph()) to the page
+     * and slot holding the glyph.  Entries for dropped pages are left in
+     * place until the table is rebuilt.
+     */
+    private int[] mKeys = new int[1024];
+    private int[] mEntryPage = new int[1024];
+    private int[] mEntrySlot = new int[1024];
+    private int mEntryCount;
+
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+    private final char[] mGlyphChars = new char[2];
+
+    public GlyphAtlasRenderer(int fontSize, ColorScheme scheme, String fontFile, int textLeading) {
+        super(scheme);
+        mTextPaint = new Paint();
+        mTextPaint.setTypeface(PaintRenderer.loadTypeface(fontFile));
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setTextSize(fontSize);
+
+        // Same cell geometry as PaintRenderer
+        int charHeight = (int) Math.ceil(mTextPaint.getFontSpacing());
+        int charAscent = (int) Math.ceil(mTextPaint.ascent());
+        int charDescent = charHeight + charAscent;
+        mCharHeight = charHeight + textLeading * 2;
+        mCharDescent = charDescent + textLeading;
+        mCharWidth = mTextPaint.measureText(EXAMPLE_CHAR, 0, 1);
+
+        // Where Skia puts underlines: 1/9 of the text size below the
+        // baseline, 1/18 of the text size thick
+        mUnderlineTop = mCharHeight - mCharDescent + Math.max(1, fontSize / 9);
+        mUnderlineHeight = Math.max(1, fontSize / 18);
+
+        mGlyphPaint = new Paint(mTextPaint);
+        mGlyphPaint.setColor(0xffffffff);
+        mTintPaint = new Paint();
+        mBackgroundPaint = new Paint();
+
+        mSlotWidth = 2 * (int) Math.ceil(mCharWidth);
+        int pageSize = Math.min(MAX_ATLAS_PAGE_SIZE, Math.max(ATLAS_PAGE_SIZE,
+                MIN_SLOTS_PER_SIDE * Math.max(mSlotWidth, mCharHeight)));
+        mSlotsPerRow = Math.max(1, pageSize / mSlotWidth);
+        mSlotsPerPage = mSlotsPerRow * Math.max(1, pageSize / mCharHeight);
+    }
+
+    public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
+                            int runWidth, char[] text, int index, int count,
+                            boolean selectionStyle, int textStyle,
+                            int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode) {
+        int foreColor = TextStyle.decodeForeColor(textStyle);
+        int backColor = TextStyle.decodeBackColor(textStyle);
+        int effect = TextStyle.decodeEffect(textStyle);
+
+        boolean inverse = mReverseVideo ^
+                (effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0;
+        if (inverse) {
+            int temp = foreColor;
+            foreColor = backColor;
+            backColor = temp;
+        }
+
+        if (selectionStyle) {
+            backColor = TextStyle.ciCursorBackground;
+        }
+
+        boolean blink = (effect & TextStyle.fxBlink) != 0;
+        if (blink && backColor < 8) {
+            backColor += 8;
+        }
+        if (backColor >= TextStyle.ciPaletteLength) backColor = TextStyle.ciBackground;
+        if (foreColor >= TextStyle.ciPaletteLength) foreColor = TextStyle.ciForeground;
+        int backPaintColor = mPalette[backColor];
+        if ((effect & TextStyle.fxIme) != 0) {
+            backPaintColor = mImePaint.bgColor;
+        } else if ((effect & TextStyle.fxImeBackground) != 0) {
+            backPaintColor = mPalette[foreColor];
+        }
+
+        float left = x + lineOffset * mCharWidth;
+        mBackgroundPaint.setColor(backPaintColor);
+        canvas.drawRect(left, y - mCharHeight, left + runWidth * mCharWidth, y,
+                mBackgroundPaint);
+
+        boolean cursorVisible = lineOffset <= cursorOffset && cursorOffset < (lineOffset + runWidth);
+        float cursorX = 0;
+        if (cursorVisible) {
+            cursorX = x + cursorOffset * mCharWidth;
+            if (mCursorHeightMode == 3) {
+                drawCursorImp(canvas, cursorX, y, cursorWidth * mCharWidth, mCharHeight, cursorMode);
+                cursorVisible = false;
+            }
+        }
+
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            return;
+        }
+        boolean bold = (effect & TextStyle.fxBold) != 0;
+        boolean underline = (effect & TextStyle.fxUnderline) != 0;
+        int textPaintColor;
+        if (foreColor < 8 && bold) {
+            // In 16-color mode, bold also implies bright foreground colors
+            textPaintColor = mPalette[foreColor + 8];
+        } else {
+            textPaintColor = mPalette[foreColor];
+        }
+        if ((effect & TextStyle.fxIme) != 0) {
+            textPaintColor = mImePaint.getColor();
+        }
+
+        int end = index + count;
+        if (!cursorVisible) {
+            drawGlyphs(canvas, text, index, end, left, y, textPaintColor, bold, underline);
+        } else if (mCursorHeightMode == 2) {
+            drawGlyphs(canvas, text, index, end, left, y, textPaintColor, bold, underline);
+            drawCursorImp(canvas, cursorX, y, cursorWidth * mCharWidth, mCharHeight, cursorMode);
+            drawGlyphs(canvas, text, cursorIndex, cursorIndex + cursorIncr, cursorX, y,
+                    mPalette[TextStyle.ciCursorForeground], bold, underline);
+        } else {
+            drawGlyphs(canvas, text, index, cursorIndex, left, y, textPaintColor, bold, underline);
+            drawCursorImp(canvas, cursorX, y, cursorWidth * mCharWidth, mCharHeight, cursorMode);
+            int cursorColor = mCursorHeightMode == 0
+                    ? mPalette[TextStyle.ciCursorForeground] : textPaintColor;
+            drawGlyphs(canvas, text, cursorIndex, cursorIndex + cursorIncr, cursorX, y,
+                    cursorColor, bold, underline);
+            drawGlyphs(canvas, text, cursorIndex + cursorIncr, end,
+                    cursorX + cursorWidth * mCharWidth, y, textPaintColor, bold, underline);
+        }
+    }
+
+    /**
+     * Draw the characters text[start..end), starting in the cell whose left
+     * edge is at left.
+     */
+    private void drawGlyphs(Canvas canvas, char[] text, int start, int end, float left, float y,
+            int color, boolean bold, boolean underline) {
+        if (start >= end) {
+            return;
+        }
+        mTintPaint.setColor(color);
+        float cellX = left;
+        float lastCellX = left;
+        int i = start;
+        while (i < end) {
+            int codePoint = Character.codePointAt(text, i, end);
+            int charCount = Character.charCount(codePoint);
+            int width = UnicodeTranscript.charWidth(codePoint);
+            if (width == 0) {
+                // A combining character; leave it to the font to place it
+                // over the character before
+                mTextPaint.setColor(color);
+                mTextPaint.setFakeBoldText(bold);
+                canvas.drawText(text, i, charCount, lastCellX, y - mCharDescent, mTextPaint);
+            } else {
+                if (codePoint != ' ') {
+                    Bitmap page = findGlyph(codePoint, bold);
+                    mDst.set(cellX, y - mCharHeight, cellX + mSlotWidth, y);
+                    canvas.drawBitmap(page, mSrc, mDst, mTintPaint);
+                }
+                lastCellX = cellX;
+                cellX += width * mCharWidth;
+            }
+            i += charCount;
+        }
+        if (underline) {
+            float top = y - mCharHeight + mUnderlineTop;
+            canvas.drawRect(left, top, cellX, top + mUnderlineHeight, mTintPaint);
+        }
+    }
+
+    /**
+     * Find a glyph in the atlas, drawing it there first if needed.
+     *
+     * @return The page holding the glyph; the glyph's slot in the page is
+     *         left in mSrc.
+     */
+    private Bitmap findGlyph(int codePoint, boolean bold) {
+        // Keys are never 0, which marks an empty entry
+        int key = (codePoint << 1 | (bold ? 1 : 0)) + 1;
+        int[] keys = mKeys;
+        int mask = keys.length - 1;
+        int i = (key * 0x9e3779b9 >>> 16) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == key) {
+            int page = mEntryPage[i];
+            boolean dropping = page == mOldestPage && mNewestPage - mOldestPage == MAX_PAGES - 1;
+            if (page >= mOldestPage && !dropping) {
+                setSrc(mEntrySlot[i]);
+                return mPages[page % MAX_PAGES];
+            }
+            // Dropped, or about to be; draw it again in the newest page
+        } else {
+            if ((mEntryCount + 1) * 2 > keys.length) {
+                rebuildTable();
+                return findGlyph(codePoint, bold);
+            }
+            keys[i] = key;
+            mEntryCount++;
+        }
+
+        if (mNewestPage < 0 || mUsedSlots == mSlotsPerPage) {
+            startPage();
+        }
+        int slot = mUsedSlots++;
+        setSrc(slot);
+        Canvas canvas = mNewestPageCanvas;
+        canvas.save();
+        canvas.clipRect(mSrc);
+        int charCount = Character.toChars(codePoint, mGlyphChars, 0);
+        mGlyphPaint.setFakeBoldText(bold);
+        canvas.drawText(mGlyphChars, 0, charCount, mSrc.left, mSrc.bottom - mCharDescent, mGlyphPaint);
+        canvas.restore();
+        mEntryPage[i] = mNewestPage;
+        mEntrySlot[i] = slot;
+        return mPages[mNewestPage % MAX_PAGES];
+    }
+
+    private void setSrc(int slot) {
+        int left = (slot % mSlotsPerRow) * mSlotWidth;
+        int top = (slot / mSlotsPerRow) * mCharHeight;
+        mSrc.set(left, top, left + mSlotWidth, top + mCharHeight);
+    }
+
+    private void startPage() {
+        mNewestPage++;
+        if (mNewestPage - mOldestPage == MAX_PAGES) {
+            mOldestPage++;
+        }
+        int rows = mSlotsPerPage / mSlotsPerRow;
+        Bitmap page = Bitmap.createBitmap(mSlotsPerRow * mSlotWidth, rows * mCharHeight,
+                Bitmap.Config.ALPHA_8);
+        mPages[mNewestPage % MAX_PAGES] = page;
+        mNewestPageCanvas = new Canvas(page);
+        mUsedSlots = 0;
+    }
+
+    /**
+     * Rebuild the hash table without the entries for dropped pages, growing
+     * it if it would still be more than a quarter full.
+     */
+    private void rebuildTable() {
+        int[] keys = mKeys;
+        int[] entryPage = mEntryPage;
+        int[] entrySlot = mEntrySlot;
+        int live = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && entryPage[i] >= mOldestPage) {
+                live++;
+            }
+        }
+        int size = live * 4 > keys.length ? keys.length * 2 : keys.length;
+        mKeys = new int[size];
+        mEntryPage = new int[size];
+        mEntrySlot = new int[size];
+        mEntryCount = live;
+        int mask = size - 1;
+        for (int i = 0; i < keys.length; i++) {
+            int key = keys[i];
+            if (key != 0 && entryPage[i] >= mOldestPage) {
+                int j = (key * 0x9e3779b9 >>> 16) & mask;
+                while (mKeys[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                mKeys[j] = key;
+                mEntryPage[j] = entryPage[i];
+                mEntrySlot[j] = entrySlot[i];
+            }
+        }
+    }
+
+    public int getCharacterHeight() {
+        return mCharHeight;
+    }
+
+    public float getCharacterWidth() {
+        return mCharWidth;
+    }
+
+    public float getMeasureText(String text) {
+        return mTextPaint.measureText(text);
+    }
+
+    public void setImePaint(TextPaint paint) {
+        mImePaint = paint;
+    }
+
+    public int getTopMargin() {
+        return mCharDescent;
+    }
+
+    private static final char[] EXAMPLE_CHAR = {'M'};
+}
@@ -34,6 +34,23 @@ public PaintRenderer(int fontSize, ColorScheme scheme, String fontFile, int text
         super(scheme);
         mTextPaint = new Paint();
         mTextLeading = textLeading;
+        mTextPaint.setTypeface(loadTypeface(fontFile));
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setTextSize(fontSize);
+
+        mCharHeight = (int) Math.ceil(mTextPaint.getFontSpacing());
+        mCharAscent = (int) Math.ceil(mTextPaint.ascent());
+        mCharDescent = mCharHeight + mCharAscent;
+        mCharHeight += mTextLeading * 2;
+        mCharDescent += mTextLeading;
+        mCharWidth = mTextPaint.measureText(EXAMPLE_CHAR, 0, 1);
+    }
+
+    /**
+     * @return The typeface in fontFile, or in default.ttf in the fonts
+     *         directory if fontFile is null, falling back to monospace.
+     */
+    static Typeface loadTypeface(String fontFile) {
         String fontPath;
         if (fontFile == null) {
             fontPath = String.format("%s/%s", FONTPATH, (fontFile != null ? fontFile : "default.ttf"));
@@ -43,22 +60,13 @@ public PaintRenderer(int fontSize, ColorScheme scheme, String fontFile, int text
         File file = new File(fontPath);
         if (file.canRead()) {
             try {
-                mTextPaint.setTypeface(Typeface.createFromFile(file));
+                return Typeface.createFromFile(file);
             } catch (Exception e) {
-                mTextPaint.setTypeface(Typeface.MONOSPACE);
+                return Typeface.MONOSPACE;
             }
         } else {
-            mTextPaint.setTypeface(Typeface.MONOSPACE);
+            return Typeface.MONOSPACE;
         }
-        mTextPaint.setAntiAlias(true);
-        mTextPaint.setTextSize(fontSize);
-
-        mCharHeight = (int) Math.ceil(mTextPaint.getFontSpacing());
-        mCharAscent = (int) Math.ceil(mTextPaint.ascent());
-        mCharDescent = mCharHeight + mCharAscent;
-        mCharHeight += mTextLeading * 2;
-        mCharDescent += mTextLeading;
-        mCharWidth = mTextPaint.measureText(EXAMPLE_CHAR, 0, 1);
     }
 
     public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
@@ -85,8 +93,8 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
         if (blink && backColor < 8) {
             backColor += 8;
         }
-        if (backColor >= TextStyle.ciColorLength) backColor = TextStyle.ciBackground;
-        if (foreColor >= TextStyle.ciColorLength) foreColor = TextStyle.ciForeground;
+        if (backColor >= TextStyle.ciPaletteLength) backColor = TextStyle.ciBackground;
+        if (foreColor >= TextStyle.ciPaletteLength) foreColor = TextStyle.ciForeground;
         mTextPaint.setColor(mPalette[backColor]);
         if ((effect & TextStyle.fxIme) != 0) {
             mTextPaint.setColor(mImePaint.bgColor);
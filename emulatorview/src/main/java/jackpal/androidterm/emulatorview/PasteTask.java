@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+
+/**
+ * Text being pasted into a {@link TermSession}, started with {@link
+ * TermSession#paste}.
+ * <p>
+ * Text which fits in the session's write queue is written at once.  Longer
+ * text is encoded to UTF-8 a buffer at a time on a thread of its own, and
+ * each buffer is queued for the session's writer thread only as fast as the
+ * process reads it, so that a paste of any size neither holds up the main
+ * thread nor needs all of its bytes in memory at once.  Pastes into a
+ * session go out one after another, in the order they were started, and
+ * what else is written to the session while one is being written goes out
+ * after it.
+ * <p>
+ * While the application has bracketed paste mode on, the text goes out
+ * between ESC [ 200 ~ and ESC [ 201 ~, and any ESC [ 201 ~ in the text
+ * itself is left out, so that the text can't end the paste early.
+ */
+public final class PasteTask {
+    private static final String TAG = "PasteTask";
+
+    /**
+     * Receives the progress of a paste.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread now and then while the text is written.
+         *
+         * @param task The paste.
+         * @param written The number of chars of the text written so far.
+         * @param total The number of chars in the text.
+         */
+        void onPasteProgress(PasteTask task, int written, int total);
+
+        /**
+         * Called on the main thread once the paste is over.
+         *
+         * @param task The paste.
+         * @param cancelled Whether the paste was cancelled, or the session
+         *        finished, before all of the text was written.
+         */
+        void onPasteFinished(PasteTask task, boolean cancelled);
+    }
+
+    private static final String BRACKET_START = "\033[200~";
+    private static final String BRACKET_END = "\033[201~";
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    // Encoding buffers left over from earlier pastes
+    private static final ArrayDeque<ByteBuffer> sBufferPool = new ArrayDeque<>();
+
+    // Least time between progress reports
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final TermSession mSession;
+    // Dropped once written, as the session keeps the last paste
+    private String mText;
+    private final int mLength;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Thread mThread;
+    // The paste started before this one, which has to be over first
+    private final Thread mPrevious;
+
+    // What was written to the session while this was the last paste being
+    // written, to go out after it; guarded by the session's write lock
+    private ByteArrayOutputStream mHeldWrites;
+
+    private volatile boolean mCancelled;
+    private volatile int mWritten;
+    private long mLastProgressTime;
+
+    private final Runnable mProgress = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onPasteProgress(PasteTask.this, mWritten, mLength);
+        }
+    };
+
+    PasteTask(TermSession session, CharSequence text, Listener listener, PasteTask previous) {
+        mSession = session;
+        mText = text.toString();
+        mLength = mText.length();
+        mListener = listener;
+        mPrevious = previous != null ? previous.mThread : null;
+        mThread = new Thread() {
+            @Override
+            public void run() {
+                paste();
+            }
+        };
+        mThread.setName("TermSession paste");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stop writing the text.  What has already been queued for the process
+     * still goes out, and so do the end of a bracketed paste and what was
+     * written to the session after the paste started.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mSession.wakePasteWriter();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The number of chars in the text.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Encode the whole paste, markers and all, if it's no longer than
+     * maxBytes.  Called on the thread starting the paste.
+     *
+     * @return The bytes to write, or null if there are too many.
+     */
+    byte[] encodeAll(int maxBytes) {
+        // Every char takes at least a byte
+        if (mLength > maxBytes) {
+            return null;
+        }
+        TerminalEmulator emulator = mSession.getEmulator();
+        String text = mText;
+        if (emulator != null && emulator.getBracketedPasteMode()) {
+            text = BRACKET_START + text.replace(BRACKET_END, "") + BRACKET_END;
+        }
+        byte[] bytes = text.getBytes(UTF_8);
+        if (bytes.length > maxBytes) {
+            return null;
+        }
+        mText = null;
+        return bytes;
+    }
+
+    /* Called with the session's write lock held */
+    void holdWrite(byte[] data, int offset, int count) {
+        if (mHeldWrites == null) {
+            mHeldWrites = new ByteArrayOutputStream();
+        }
+        mHeldWrites.write(data, offset, count);
+    }
+
+    /* Called with the session's write lock held */
+    byte[] takeHeldWrites() {
+        if (mHeldWrites == null) {
+            return null;
+        }
+        byte[] held = mHeldWrites.toByteArray();
+        mHeldWrites = null;
+        return held;
+    }
+
+    private void paste() {
+        boolean cancelled = true;
+        ByteBuffer buffer = obtainBuffer();
+        try {
+            if (mPrevious != null) {
+                mPrevious.join();
+            }
+            TerminalEmulator emulator = mSession.getEmulator();
+            boolean bracketed = emulator != null && emulator.getBracketedPasteMode();
+            if (bracketed && !writeMarker(BRACKET_START, buffer)) {
+                return;
+            }
+            cancelled = !writeText(bracketed, buffer);
+            if (bracketed) {
+                // Even if cancelled, so that the application leaves the paste
+                writeMarker(BRACKET_END, buffer);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Paste interrupted");
+        } finally {
+            recycleBuffer(buffer);
+            mText = null;
+            mSession.pasteWritten(this);
+            finished(cancelled);
+        }
+    }
+
+    /**
+     * @return false if cancelled before all of the text was written.
+     */
+    private boolean writeText(boolean bracketed, ByteBuffer buffer) throws InterruptedException {
+        CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        String text = mText;
+        int length = text.length();
+        int start = 0;
+        while (true) {
+            int end = bracketed ? text.indexOf(BRACKET_END, start) : -1;
+            boolean last = end < 0;
+            if (last) {
+                end = length;
+            }
+            if (!encode(encoder, text, start, end, buffer)) {
+                return false;
+            }
+            if (last) {
+                return true;
+            }
+            start = end + BRACKET_END.length();
+        }
+    }
+
+    /**
+     * Encode and write the chars from start to end of the text.
+     */
+    private boolean encode(CharsetEncoder encoder, String text, int start, int end, ByteBuffer buffer)
+            throws InterruptedException {
+        CharBuffer in = CharBuffer.wrap(text, start, end);
+        encoder.reset();
+        boolean flushing = false;
+        while (true) {
+            CoderResult result = flushing ? encoder.flush(buffer) : encoder.encode(in, buffer, true);
+            if (!flush(buffer)) {
+                return false;
+            }
+            mWritten = in.position();
+            reportProgress();
+            if (result.isUnderflow()) {
+                if (flushing) {
+                    return true;
+                }
+                flushing = true;
+            }
+        }
+    }
+
+    private boolean writeMarker(String marker, ByteBuffer buffer) throws InterruptedException {
+        buffer.clear();
+        for (int i = 0; i < marker.length(); i++) {
+            buffer.put((byte) marker.charAt(i));
+        }
+        buffer.flip();
+        return mSession.writePasted(buffer.array(), 0, buffer.limit(), null);
+    }
+
+    /**
+     * Write what has been encoded into the buffer, and empty it.
+     */
+    private boolean flush(ByteBuffer buffer) throws InterruptedException {
+        boolean written = mSession.writePasted(buffer.array(), 0, buffer.position(), this);
+        buffer.clear();
+        return written;
+    }
+
+    private void reportProgress() {
+        if (mListener == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastProgressTime >= PROGRESS_INTERVAL) {
+            mLastProgressTime = now;
+            mHandler.removeCallbacks(mProgress);
+            mHandler.post(mProgress);
+        }
+    }
+
+    void finished(final boolean cancelled) {
+        if (mListener == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mProgress);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPasteFinished(PasteTask.this, cancelled);
+            }
+        });
+    }
+
+    private static ByteBuffer obtainBuffer() {
+        synchronized (sBufferPool) {
+            ByteBuffer buffer = sBufferPool.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static void recycleBuffer(ByteBuffer buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+}
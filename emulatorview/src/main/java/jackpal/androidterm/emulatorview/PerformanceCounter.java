@@ -0,0 +1,148 @@
+package jackpal.androidterm.emulatorview;
+
+import android.util.Log;
+
+/**
+ * Running counters for a {@link TermSession}: how fast output from the
+ * process is being pushed through the emulator, how long the frames
+ * showing it take to draw, and how many rows of text each frame had to
+ * repaint rather than reuse from the previous frame.
+ * <p>
+ * Input is counted on the session's emulator thread and frames on the main
+ * thread, so the methods are synchronized.
+ */
+public class PerformanceCounter {
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+    private static final long NANOS_PER_MILLI = 1000L * 1000;
+
+    private long mWindowStart;
+    private long mInputBytes;
+    private long mInputNanos;
+    private int mFrames;
+    private long mDrawNanos;
+    private long mMaxDrawNanos;
+    private long mRowsDrawn;
+    private int mLastRowsDrawn;
+
+    public PerformanceCounter() {
+        reset();
+    }
+
+    /**
+     * Clear all counters and start a new measuring window.
+     */
+    public synchronized void reset() {
+        mWindowStart = System.nanoTime();
+        mInputBytes = 0;
+        mInputNanos = 0;
+        mFrames = 0;
+        mDrawNanos = 0;
+        mMaxDrawNanos = 0;
+        mRowsDrawn = 0;
+    }
+
+    /**
+     * Record that <code>bytes</code> bytes of process output were run
+     * through the emulator, taking <code>nanos</code> nanoseconds.
+     */
+    synchronized void countInput(int bytes, long nanos) {
+        mInputBytes += bytes;
+        mInputNanos += nanos;
+    }
+
+    /**
+     * Record that a frame took <code>nanos</code> nanoseconds to draw, and
+     * repainted <code>rows</code> rows of text.
+     */
+    synchronized void countFrame(long nanos, int rows) {
+        mFrames++;
+        mRowsDrawn += rows;
+        mLastRowsDrawn = rows;
+        mDrawNanos += nanos;
+        if (nanos > mMaxDrawNanos) {
+            mMaxDrawNanos = nanos;
+        }
+        if (EmulatorDebug.LOG_PERFORMANCE
+                && System.nanoTime() - mWindowStart >= NANOS_PER_SECOND) {
+            Log.d(EmulatorDebug.LOG_TAG, toString());
+            reset();
+        }
+    }
+
+    /**
+     * @return Bytes of process output consumed per second of wall time
+     *         since the last {@link #reset}.
+     */
+    public synchronized long getInputBytesPerSecond() {
+        long elapsed = System.nanoTime() - mWindowStart;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return mInputBytes * NANOS_PER_SECOND / elapsed;
+    }
+
+    /**
+     * @return Bytes of process output the emulator can consume per second
+     *         of emulator thread time.
+     */
+    public synchronized long getEmulationBytesPerSecond() {
+        if (mInputNanos <= 0) {
+            return 0;
+        }
+        return mInputBytes * NANOS_PER_SECOND / mInputNanos;
+    }
+
+    /**
+     * @return Frames drawn per second of wall time since the last
+     *         {@link #reset}.
+     */
+    public synchronized float getFramesPerSecond() {
+        long elapsed = System.nanoTime() - mWindowStart;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (float) mFrames * NANOS_PER_SECOND / elapsed;
+    }
+
+    /**
+     * @return The average time to draw one frame, in milliseconds.
+     */
+    public synchronized float getAverageFrameMillis() {
+        if (mFrames == 0) {
+            return 0;
+        }
+        return (float) mDrawNanos / mFrames / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return The longest time taken to draw one frame, in milliseconds.
+     */
+    public synchronized float getMaxFrameMillis() {
+        return (float) mMaxDrawNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return The number of rows repainted by the most recent frame.
+     */
+    public synchronized int getLastRowsDrawn() {
+        return mLastRowsDrawn;
+    }
+
+    /**
+     * @return The average number of rows repainted per frame.
+     */
+    public synchronized float getAverageRowsDrawn() {
+        if (mFrames == 0) {
+            return 0;
+        }
+        return (float) mRowsDrawn / mFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("in %d KB/s (emu %d KB/s), %.1f fps, frame avg %.2f ms max %.2f ms, %.1f rows/frame",
+                getInputBytesPerSecond() / 1024, getEmulationBytesPerSecond() / 1024,
+                getFramesPerSecond(), getAverageFrameMillis(), getMaxFrameMillis(),
+                getAverageRowsDrawn());
+    }
+}
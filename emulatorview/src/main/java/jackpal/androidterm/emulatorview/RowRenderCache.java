@@ -0,0 +1,157 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Canvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.Arrays;
+
+/**
+ * Display lists for the rows of text shown by an EmulatorView, so that a
+ * frame only needs to draw the rows which have changed since the last one.
+ *
+ * Each display list is tagged with the version of the row it was recorded
+ * from (see TranscriptScreen.getRowVersion()).  At the start of a frame,
+ * the view asks for each row to be reused; a display list recorded from a
+ * row with the same version is taken, even if the row has since moved on
+ * the screen, as it does when the screen scrolls.  The remaining rows are
+ * then recorded again, reusing the display lists nobody asked for.
+ *
+ * Only used on API 29 and later, where RenderNode is public; the class is
+ * never loaded on earlier platforms.
+ */
+@RequiresApi(Build.VERSION_CODES.Q)
+class RowRenderCache {
+    private RenderNode[] mNodes = new RenderNode[0];
+    private int[] mVersions = new int[0];
+    private int mRows;
+
+    /* The display lists from the last frame which haven't been reused yet */
+    private RenderNode[] mOldNodes = new RenderNode[0];
+    private int[] mOldVersions = new int[0];
+    private int mOldRows;
+    /** Where to start looking for the next row to reuse. */
+    private int mHint;
+
+    /**
+     * Forget what every row looked like, so that all of them are drawn again
+     * in the next frame.
+     */
+    void invalidate() {
+        Arrays.fill(mVersions, 0);
+    }
+
+    /**
+     * Start a frame showing rows rows.
+     */
+    void startFrame(int rows) {
+        RenderNode[] nodes = mOldNodes;
+        int[] versions = mOldVersions;
+        mOldNodes = mNodes;
+        mOldVersions = mVersions;
+        mOldRows = mRows;
+        if (nodes.length < rows) {
+            nodes = new RenderNode[rows];
+            versions = new int[rows];
+        }
+        mNodes = nodes;
+        mVersions = versions;
+        mRows = rows;
+        mHint = 0;
+    }
+
+    /**
+     * Reuse the last frame's display list for a row, if there is one.
+     *
+     * @param row The row, from 0 at the top of the view.
+     * @param version The row's version; 0 means it must be drawn again.
+     * @return Whether a display list was found.
+     */
+    boolean reuse(int row, int version) {
+        mNodes[row] = null;
+        mVersions[row] = 0;
+        if (version == 0) {
+            return false;
+        }
+        int oldRows = mOldRows;
+        int[] oldVersions = mOldVersions;
+        for (int i = 0; i < oldRows; i++) {
+            int old = mHint + i;
+            if (old >= oldRows) {
+                old -= oldRows;
+            }
+            if (oldVersions[old] == version && mOldNodes[old] != null) {
+                mNodes[row] = mOldNodes[old];
+                mVersions[row] = version;
+                mOldNodes[old] = null;
+                oldVersions[old] = 0;
+                // Rows which moved together are likely to be found together
+                mHint = old + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether reuse() found a display list for the row.
+     */
+    boolean isReused(int row) {
+        return mNodes[row] != null;
+    }
+
+    /**
+     * Start recording a row which couldn't be reused.  Must be called after
+     * reuse() has been called for every row in the frame.
+     *
+     * @return A canvas to draw the row into, with its origin at the row's
+     *         top left corner.
+     */
+    Canvas startRecording(int row, int version, int width, int height) {
+        RenderNode node = null;
+        for (int old = 0; old < mOldRows; old++) {
+            if (mOldNodes[old] != null) {
+                node = mOldNodes[old];
+                mOldNodes[old] = null;
+                mOldVersions[old] = 0;
+                break;
+            }
+        }
+        if (node == null) {
+            node = new RenderNode("EmulatorView row");
+        }
+        mNodes[row] = node;
+        mVersions[row] = version;
+        node.setPosition(0, 0, width, height);
+        return node.beginRecording(width, height);
+    }
+
+    void endRecording(int row) {
+        mNodes[row].endRecording();
+    }
+
+    /**
+     * Draw a row's display list with its top left corner at (0, top).
+     */
+    void draw(Canvas canvas, int row, int top) {
+        RenderNode node = mNodes[row];
+        node.setTranslationY(top);
+        canvas.drawRenderNode(node);
+    }
+
+    /**
+     * Drop the display lists which weren't used in this frame.
+     */
+    void endFrame() {
+        for (int old = 0; old < mOldRows; old++) {
+            if (mOldNodes[old] != null) {
+                mOldNodes[old].discardDisplayList();
+                mOldNodes[old] = null;
+            }
+            mOldVersions[old] = 0;
+        }
+        mOldRows = 0;
+    }
+}
@@ -49,6 +49,19 @@ interface Screen {
      */
     void set(int x, int y, byte b, int style);
 
+    /**
+     * Store a run of printable ASCII characters into the screen, starting at
+     * location (x, y).  The run must fit on the row.
+     *
+     * @param x X coordinate of the first character
+     * @param y Y coordinate (also known as row)
+     * @param codePoints array holding the ASCII characters to store
+     * @param offset index of the first character in codePoints
+     * @param count number of characters to store
+     * @param style the text style
+     */
+    void set(int x, int y, int[] codePoints, int offset, int count, int style);
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -142,16 +155,20 @@ interface Screen {
      * @param cursor An int[2] containing the current cursor position
      *               { col, row }.  If the resize succeeds, the array will be
      *               updated to reflect the new location.
-     * @return Whether the resize succeeded. If the operation fails, save the
-     *         contents of the screen and then use the standard resize.
+     * @return Whether the resize succeeded. If the operation fails, use the
+     *         standard resize.
      */
     boolean fastResize(int columns, int rows, int[] cursor);
 
     /**
-     * Resize the screen
+     * Resize the screen, rewrapping its lines to the new width.
      * @param columns
      * @param rows
      * @param style
+     * @param cursor An int[2] containing the current cursor position
+     *               { col, row }, which will be updated to the new location,
+     *               or { -1, -1 } if it's no longer on the screen.  May be
+     *               null.
      */
-    void resize(int columns, int rows, int style);
+    void resize(int columns, int rows, int style, int[] cursor);
 }
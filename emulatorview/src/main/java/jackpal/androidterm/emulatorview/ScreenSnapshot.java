@@ -0,0 +1,171 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Canvas;
+import android.text.SpannableString;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the rows of a screen an EmulatorView is showing, and of the
+ * cursor, so that a frame can be drawn without holding the session's
+ * emulator lock while the emulator thread goes on changing the screen.
+ *
+ * The snapshot is taken with the lock held.  A row whose version hasn't
+ * changed since it was last copied into the same slot is left as it is,
+ * so a frame usually copies only the rows the emulator has written to.
+ * Rows from the transcript have no version and are always copied.
+ */
+final class ScreenSnapshot {
+    private TranscriptScreen mScreen;
+    private int mTopRow;
+    private int mRowCount;
+
+    /* Per slot: the characters (null if the row is blank), the styles, the
+       version copied (0 if unknown) and whether the row exists at all */
+    private char[][] mLines = new char[0][];
+    private StyleRow[] mColors = new StyleRow[0];
+    private int[] mVersions = new int[0];
+    private boolean[] mValid = new boolean[0];
+
+    private int mDefaultStyle;
+    private int mCursorRow;
+    private int mCursorCol;
+    private boolean mShowCursor;
+    private boolean mReverseVideo;
+
+    /**
+     * Copy rows topRow to topRow + rows - 1 of the emulator's screen, and
+     * its cursor and modes.  Must be called with the emulator lock held.
+     */
+    void update(TerminalEmulator emulator, int topRow, int rows) {
+        TranscriptScreen screen = emulator.getScreen();
+        if (screen != mScreen || topRow != mTopRow) {
+            // The slots hold other rows now
+            Arrays.fill(mVersions, 0);
+        }
+        mScreen = screen;
+        mTopRow = topRow;
+        ensureCapacity(rows);
+        mRowCount = rows;
+
+        mCursorRow = emulator.getCursorRow();
+        mCursorCol = emulator.getCursorCol();
+        mShowCursor = emulator.getShowCursor();
+        mReverseVideo = emulator.getReverseVideo();
+
+        if (screen == null || screen.isFinished()) {
+            // A finished transcript has nothing to draw
+            Arrays.fill(mValid, false);
+            Arrays.fill(mVersions, 0);
+            return;
+        }
+        int defaultStyle = screen.getDefaultStyle();
+        if (defaultStyle != mDefaultStyle) {
+            // Blank cells of every row look different now
+            Arrays.fill(mVersions, 0);
+            mDefaultStyle = defaultStyle;
+        }
+        for (int i = 0; i < rows; i++) {
+            copyRow(screen, topRow + i, i);
+        }
+    }
+
+    private void copyRow(TranscriptScreen screen, int row, int slot) {
+        int version = screen.getRowVersion(row);
+        if (version != 0 && version == mVersions[slot] && mValid[slot]) {
+            return;
+        }
+        char[] line;
+        StyleRow color;
+        try {
+            line = screen.getLine(row);
+            color = screen.getLineColor(row);
+        } catch (IllegalArgumentException e) {
+            // Out-of-bounds rows are blank.
+            mValid[slot] = false;
+            mVersions[slot] = 0;
+            return;
+        }
+
+        if (line == null) {
+            mLines[slot] = null;
+        } else {
+            char[] copy = mLines[slot];
+            if (copy == null || copy.length != line.length) {
+                copy = new char[line.length];
+            }
+            System.arraycopy(line, 0, copy, 0, line.length);
+            mLines[slot] = copy;
+        }
+        StyleRow colorCopy = mColors[slot];
+        if (colorCopy == null || colorCopy.getColumns() != color.getColumns()) {
+            colorCopy = new StyleRow(mDefaultStyle, color.getColumns());
+            mColors[slot] = colorCopy;
+        }
+        color.copy(0, colorCopy, 0, color.getColumns());
+        mVersions[slot] = version;
+        mValid[slot] = true;
+    }
+
+    private void ensureCapacity(int rows) {
+        if (mLines.length >= rows) {
+            return;
+        }
+        mLines = Arrays.copyOf(mLines, rows);
+        mColors = Arrays.copyOf(mColors, rows);
+        mVersions = Arrays.copyOf(mVersions, rows);
+        mValid = Arrays.copyOf(mValid, rows);
+    }
+
+    /**
+     * @return The screen the rows were copied from.
+     */
+    TranscriptScreen getScreen() {
+        return mScreen;
+    }
+
+    int getTopRow() {
+        return mTopRow;
+    }
+
+    int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * @return The version of the row in a slot, as
+     *         TranscriptScreen.getRowVersion() gave it.
+     */
+    int getRowVersion(int slot) {
+        return mVersions[slot];
+    }
+
+    int getCursorRow() {
+        return mCursorRow;
+    }
+
+    int getCursorCol() {
+        return mCursorCol;
+    }
+
+    boolean getShowCursor() {
+        return mShowCursor;
+    }
+
+    boolean getReverseVideo() {
+        return mReverseVideo;
+    }
+
+    /**
+     * Draw the row in a slot, as TranscriptScreen.drawText() does.
+     */
+    void drawRow(int slot, Canvas canvas, float x, float y,
+            TextRenderer renderer, int curx, int selx1, int selx2, String imeText,
+            int cursorMode, SpannableString imeSpannableString) {
+        if (slot < 0 || slot >= mRowCount || !mValid[slot]) {
+            return;
+        }
+        mScreen.drawText(mLines[slot], mColors[slot], mDefaultStyle, canvas, x, y, renderer,
+                curx, selx1, selx2, imeText, cursorMode, imeSpannableString);
+    }
+}
@@ -0,0 +1,516 @@
+package jackpal.androidterm.emulatorview;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed storage for transcript rows which have scrolled out of a
+ * UnicodeTranscript's circular buffer.
+ *
+ * Rows arrive already encoded as bytes (see UnicodeTranscript) and are
+ * collected into blocks of BLOCK_BYTES bytes, or BLOCK_ROWS rows if those
+ * come first, so that blocks of short or blank rows aren't any more
+ * numerous than others.  A full block is deflated and appended to a direct
+ * ByteBuffer, which grows as needed up to MAX_CAPACITY bytes and is then
+ * reused as a ring, dropping the oldest blocks to make room.  The Java heap
+ * only holds the block being filled, the most recently decompressed block,
+ * and a few ints and a 256 byte filter for each of at most MAX_BLOCKS
+ * blocks; past that, the oldest blocks are dropped too.
+ *
+ * The filter is a Bloom filter of the pairs of adjacent characters (folded
+ * to lower case) in the block's rows, including the pairs which span a
+ * wrapped row, so that a search can skip the blocks which can't contain
+ * what it's looking for without decompressing them.  A logical line may
+ * span several blocks, so blocks joined by a wrapped row are only skipped
+ * together.
+ *
+ * Rows are numbered from 0 (the oldest row still stored) to
+ * getRowCount()-1 (the most recently added row).
+ */
+class ScrollbackArchive {
+    private static final int BLOCK_ROWS = 4096;
+    private static final int BLOCK_BYTES = 16 * 1024;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_CAPACITY = 16 * 1024 * 1024;
+    /* Enough for MAX_CAPACITY bytes of text deflated to a quarter of its
+       size */
+    private static final int MAX_BLOCKS = 4096;
+    /* The most blocks the arrays below have room for; the slack past
+       MAX_BLOCKS is used up before the dropped blocks' space is reclaimed,
+       which keeps the arrays to about 1.4 MB */
+    private static final int MAX_BLOCK_SLOTS = MAX_BLOCKS + MAX_BLOCKS / 4;
+
+    /** The size of a block's filter, in longs. */
+    static final int FILTER_WORDS = 32;
+    private static final int FILTER_SHIFT = 32 - 11; // 2048 bits
+
+    /** The block's first row continues a wrapped row. */
+    private static final int BLOCK_CONTINUED = 1;
+    /** The block's last row is wrapped. */
+    private static final int BLOCK_WRAPS = 2;
+
+    private ByteBuffer mStore;
+    private int mWritePosition;
+
+    /* Blocks in mStore, oldest first, starting at index mFirstBlock */
+    private int[] mBlockOffset = new int[16];
+    private int[] mBlockLength = new int[16];
+    private int[] mBlockRawLength = new int[16];
+    private long[] mBlockFirstRow = new long[16];
+    private int[] mBlockFlags = new int[16];
+    private long[] mBlockFilter = new long[16 * FILTER_WORDS];
+    private int mFirstBlock;
+    private int mBlockCount;
+
+    /** Absolute number of the oldest row stored. */
+    private long mFirstRow;
+    /** Absolute number of the next row to be added. */
+    private long mNextRow;
+
+    /* The block being filled.  A raw block starts with the number of rows
+       in it and the offset of each row from the end of this header;
+       mPendingHeader holds the header and mPending the rows. */
+    private final byte[] mPendingHeader = new byte[4 + 4 * BLOCK_ROWS];
+    private byte[] mPending = new byte[BLOCK_BYTES + 4096];
+    private int mPendingLength;
+    private int mPendingRows;
+    private final long[] mPendingFilter = new long[FILTER_WORDS];
+    private int mPendingFlags;
+
+    /* The end of the most recently added row */
+    private boolean mLastWrap;
+    private char mLastChar;
+
+    private final long[] mFilterScratch = new long[FILTER_WORDS];
+
+    /* The most recently decompressed block */
+    private byte[] mDecoded = new byte[0];
+    private int mDecodedBlock = -1;
+    private long mDecodedFirstRow = -1;
+
+    private byte[] mCompressed = new byte[4096];
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+
+    int getRowCount() {
+        return (int) (mNextRow - mFirstRow);
+    }
+
+    /**
+     * @return The absolute number of the next row to be added, which is the
+     *         number of rows ever added.
+     */
+    long getNextRow() {
+        return mNextRow;
+    }
+
+    /**
+     * Add a row to the end of the archive.
+     *
+     * @param text The row's text, for the filter, or null if it's blank.
+     * @param textLength The length of the text; for a wrapped row, this
+     *                   should include any trailing spaces.
+     * @param wrap Whether the row is wrapped.
+     */
+    void add(byte[] row, int offset, int length, char[] text, int textLength, boolean wrap) {
+        if (mPendingRows == 0) {
+            mPendingFlags = mLastWrap ? BLOCK_CONTINUED : 0;
+        }
+        addToFilter(text, textLength, wrap);
+
+        if (mPendingLength + length > mPending.length) {
+            byte[] pending = new byte[Math.max(mPending.length * 2, mPendingLength + length)];
+            System.arraycopy(mPending, 0, pending, 0, mPendingLength);
+            mPending = pending;
+        }
+        putInt(mPendingHeader, 4 + 4 * mPendingRows, mPendingLength);
+        System.arraycopy(row, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+        mPendingRows++;
+        mNextRow++;
+        mLastWrap = wrap;
+        if (wrap) {
+            mPendingFlags |= BLOCK_WRAPS;
+        } else {
+            mPendingFlags &= ~BLOCK_WRAPS;
+        }
+        if (mPendingRows == BLOCK_ROWS || mPendingLength >= BLOCK_BYTES) {
+            flush();
+        }
+    }
+
+    private void addToFilter(char[] text, int length, boolean wrap) {
+        long[] filter = mPendingFilter;
+        if (text == null) {
+            if (wrap) {
+                // A blank wrapped row is as good as a row of spaces
+                if (mLastWrap) {
+                    addToFilter(filter, mLastChar, ' ');
+                }
+                addToFilter(filter, ' ', ' ');
+                mLastChar = ' ';
+            }
+            return;
+        }
+        if (length == 0) {
+            return;
+        }
+        char last = Character.toLowerCase(text[0]);
+        if (mLastWrap) {
+            addToFilter(filter, mLastChar, last);
+        }
+        for (int i = 1; i < length; i++) {
+            char c = Character.toLowerCase(text[i]);
+            addToFilter(filter, last, c);
+            last = c;
+        }
+        mLastChar = last;
+    }
+
+    /**
+     * Add a pair of characters, already folded to lower case, to a filter.
+     */
+    static void addToFilter(long[] filter, char first, char second) {
+        int bit = ((first * 31 + second) * 0x9e3779b9) >>> FILTER_SHIFT;
+        filter[bit >> 6] |= 1L << bit;
+    }
+
+    /**
+     * Find the rows which a search for text whose filter is query can skip,
+     * going forwards.
+     *
+     * @param index The first row of a logical line.
+     * @return The last row of the blocks which can be skipped, if index is
+     *         the first row of a block and the blocks up to the next block
+     *         which doesn't continue a wrapped row can't contain a match;
+     *         otherwise -1.
+     */
+    int skipForward(int index, long[] query) {
+        long row = mFirstRow + index;
+        int block = findBlock(row);
+        if (block < 0 || mBlockFirstRow[block] != row
+                || (block > mFirstBlock && (mBlockFlags[block] & BLOCK_CONTINUED) != 0)) {
+            return -1;
+        }
+        int end = mFirstBlock + mBlockCount;
+        long[] filter = mFilterScratch;
+        System.arraycopy(mBlockFilter, block * FILTER_WORDS, filter, 0, FILTER_WORDS);
+        int last = block;
+        while ((mBlockFlags[last] & BLOCK_WRAPS) != 0) {
+            if (++last == end) {
+                // Joined to the block being filled
+                return -1;
+            }
+            unionFilter(filter, last);
+        }
+        if (mayContain(filter, query)) {
+            return -1;
+        }
+        long nextRow = last + 1 < end ? mBlockFirstRow[last + 1] : mNextRow - mPendingRows;
+        return (int) (nextRow - 1 - mFirstRow);
+    }
+
+    /**
+     * Find the rows which a search for text whose filter is query can skip,
+     * going backwards.
+     *
+     * @param index The last row of a logical line.
+     * @return The first row of the blocks which can be skipped, if index is
+     *         the last row of a block and the blocks back to the previous
+     *         block which doesn't end with a wrapped row can't contain a
+     *         match; otherwise -1.
+     */
+    int skipBackward(int index, long[] query) {
+        long row = mFirstRow + index;
+        int block = findBlock(row);
+        if (block < 0 || (mBlockFlags[block] & BLOCK_WRAPS) != 0) {
+            return -1;
+        }
+        int end = mFirstBlock + mBlockCount;
+        long nextRow = block + 1 < end ? mBlockFirstRow[block + 1] : mNextRow - mPendingRows;
+        if (row != nextRow - 1) {
+            return -1;
+        }
+        long[] filter = mFilterScratch;
+        System.arraycopy(mBlockFilter, block * FILTER_WORDS, filter, 0, FILTER_WORDS);
+        int first = block;
+        while (first > mFirstBlock && (mBlockFlags[first - 1] & BLOCK_WRAPS) != 0) {
+            unionFilter(filter, --first);
+        }
+        if (mayContain(filter, query)) {
+            return -1;
+        }
+        return (int) (mBlockFirstRow[first] - mFirstRow);
+    }
+
+    private void unionFilter(long[] filter, int block) {
+        long[] blockFilter = mBlockFilter;
+        int base = block * FILTER_WORDS;
+        for (int i = 0; i < FILTER_WORDS; i++) {
+            filter[i] |= blockFilter[base + i];
+        }
+    }
+
+    private static boolean mayContain(long[] filter, long[] query) {
+        for (int i = 0; i < FILTER_WORDS; i++) {
+            if ((filter[i] & query[i]) != query[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The block holding a row, or -1 if it's in the block being
+     *         filled.
+     */
+    private int findBlock(long row) {
+        if (row >= mNextRow - mPendingRows) {
+            return -1;
+        }
+        int bot = 0;
+        int top = mBlockCount - 1;
+        while (bot < top) {
+            int mid = (bot + top + 1) >>> 1;
+            if (mBlockFirstRow[mFirstBlock + mid] <= row) {
+                bot = mid;
+            } else {
+                top = mid - 1;
+            }
+        }
+        return mFirstBlock + bot;
+    }
+
+    /**
+     * Find a row.  The row's encoding starts at the returned offset in the
+     * array returned by getData(), and stays there until the next call to
+     * add() or find().
+     *
+     * @param index The row to find, from 0 to getRowCount()-1.
+     */
+    int find(int index) {
+        long row = mFirstRow + index;
+        int block = findBlock(row);
+        if (block < 0) {
+            mDecodedBlock = -1;
+            return getInt(mPendingHeader, 4 + 4 * (int) (row - (mNextRow - mPendingRows)));
+        }
+        if (block != mDecodedBlock || mBlockFirstRow[block] != mDecodedFirstRow) {
+            decode(block);
+        }
+        int header = 4 + 4 * getInt(mDecoded, 0);
+        return header + getInt(mDecoded, 4 + 4 * (int) (row - mBlockFirstRow[block]));
+    }
+
+    byte[] getData() {
+        return mDecodedBlock == -1 ? mPending : mDecoded;
+    }
+
+    /**
+     * Release the compressor and decompressor.  The archive can't be used
+     * afterwards.
+     */
+    void release() {
+        mDeflater.end();
+        mInflater.end();
+        mStore = null;
+    }
+
+    private void flush() {
+        putInt(mPendingHeader, 0, mPendingRows);
+        int headerLength = 4 + 4 * mPendingRows;
+        Deflater deflater = mDeflater;
+        deflater.reset();
+        deflater.setInput(mPendingHeader, 0, headerLength);
+        int length = deflate(0, false);
+        deflater.setInput(mPending, 0, mPendingLength);
+        deflater.finish();
+        length = deflate(length, true);
+
+        int offset = allocate(length);
+        ByteBuffer store = mStore.duplicate();
+        store.position(offset);
+        store.put(mCompressed, 0, length);
+
+        if (mBlockCount == MAX_BLOCKS) {
+            dropFirstBlock();
+        }
+        if (mFirstBlock + mBlockCount == mBlockOffset.length) {
+            growBlocks();
+        }
+        int block = mFirstBlock + mBlockCount++;
+        mBlockOffset[block] = offset;
+        mBlockLength[block] = length;
+        mBlockRawLength[block] = headerLength + mPendingLength;
+        mBlockFirstRow[block] = mNextRow - mPendingRows;
+        mBlockFlags[block] = mPendingFlags;
+        System.arraycopy(mPendingFilter, 0, mBlockFilter, block * FILTER_WORDS, FILTER_WORDS);
+        Arrays.fill(mPendingFilter, 0);
+
+        mPendingLength = 0;
+        mPendingRows = 0;
+    }
+
+    /**
+     * Run the deflater on the input it's been given, appending to the
+     * length bytes already in mCompressed.
+     *
+     * @param finish Whether finish() has been called, and the deflater
+     *        should be run until it's finished rather than until it needs
+     *        more input.
+     * @return The length of mCompressed now in use.
+     */
+    private int deflate(int length, boolean finish) {
+        Deflater deflater = mDeflater;
+        while (finish ? !deflater.finished() : !deflater.needsInput()) {
+            if (length == mCompressed.length) {
+                byte[] compressed = new byte[mCompressed.length * 2];
+                System.arraycopy(mCompressed, 0, compressed, 0, length);
+                mCompressed = compressed;
+            }
+            length += deflater.deflate(mCompressed, length, mCompressed.length - length);
+        }
+        return length;
+    }
+
+    private void dropFirstBlock() {
+        mFirstBlock++;
+        mBlockCount--;
+        mFirstRow = mBlockCount > 0 ? mBlockFirstRow[mFirstBlock] : mNextRow - mPendingRows;
+    }
+
+    /**
+     * Find room for a compressed block of length bytes in mStore, growing it
+     * or dropping the oldest blocks as needed.
+     */
+    private int allocate(int length) {
+        if (mStore == null) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < length) {
+                capacity *= 2;
+            }
+            mStore = ByteBuffer.allocateDirect(capacity);
+        }
+        while (mWritePosition + length > mStore.capacity()
+                && mStore.capacity() < MAX_CAPACITY && !isWrapped()) {
+            ByteBuffer store = ByteBuffer.allocateDirect(
+                    Math.min(mStore.capacity() * 2, MAX_CAPACITY));
+            ByteBuffer old = mStore.duplicate();
+            old.position(0);
+            old.limit(mWritePosition);
+            store.put(old);
+            mStore = store;
+        }
+        if (mWritePosition + length > mStore.capacity()) {
+            mWritePosition = 0;
+        }
+        int start = mWritePosition;
+        int end = start + length;
+        // Drop blocks which would be overwritten
+        while (mBlockCount > 0) {
+            int first = mFirstBlock;
+            int blockStart = mBlockOffset[first];
+            int blockEnd = blockStart + mBlockLength[first];
+            if (blockStart >= end || blockEnd <= start) {
+                break;
+            }
+            dropFirstBlock();
+        }
+        if (mBlockCount == 0) {
+            mFirstBlock = 0;
+        }
+        mWritePosition = end;
+        return start;
+    }
+
+    /**
+     * @return Whether the blocks in mStore have wrapped around to the start.
+     */
+    private boolean isWrapped() {
+        return mBlockCount > 0 && mBlockOffset[mFirstBlock] > 0
+                && mBlockOffset[mFirstBlock] >= mWritePosition;
+    }
+
+    private void growBlocks() {
+        if (mFirstBlock > 0) {
+            // Reclaim the space used by dropped blocks first
+            System.arraycopy(mBlockOffset, mFirstBlock, mBlockOffset, 0, mBlockCount);
+            System.arraycopy(mBlockLength, mFirstBlock, mBlockLength, 0, mBlockCount);
+            System.arraycopy(mBlockRawLength, mFirstBlock, mBlockRawLength, 0, mBlockCount);
+            System.arraycopy(mBlockFirstRow, mFirstBlock, mBlockFirstRow, 0, mBlockCount);
+            System.arraycopy(mBlockFlags, mFirstBlock, mBlockFlags, 0, mBlockCount);
+            System.arraycopy(mBlockFilter, mFirstBlock * FILTER_WORDS, mBlockFilter, 0,
+                    mBlockCount * FILTER_WORDS);
+            mFirstBlock = 0;
+            mDecodedBlock = -1;
+            mDecodedFirstRow = -1;
+            if (mBlockCount < mBlockOffset.length / 2
+                    || mBlockOffset.length == MAX_BLOCK_SLOTS) {
+                return;
+            }
+        }
+        int size = Math.min(mBlockOffset.length * 2, MAX_BLOCK_SLOTS);
+        int[] offset = new int[size];
+        int[] length = new int[size];
+        int[] rawLength = new int[size];
+        long[] firstRow = new long[size];
+        int[] flags = new int[size];
+        long[] filter = new long[size * FILTER_WORDS];
+        System.arraycopy(mBlockOffset, 0, offset, 0, mBlockCount);
+        System.arraycopy(mBlockLength, 0, length, 0, mBlockCount);
+        System.arraycopy(mBlockRawLength, 0, rawLength, 0, mBlockCount);
+        System.arraycopy(mBlockFirstRow, 0, firstRow, 0, mBlockCount);
+        System.arraycopy(mBlockFlags, 0, flags, 0, mBlockCount);
+        System.arraycopy(mBlockFilter, 0, filter, 0, mBlockCount * FILTER_WORDS);
+        mBlockOffset = offset;
+        mBlockLength = length;
+        mBlockRawLength = rawLength;
+        mBlockFirstRow = firstRow;
+        mBlockFlags = flags;
+        mBlockFilter = filter;
+    }
+
+    private void decode(int block) {
+        int length = mBlockLength[block];
+        if (mCompressed.length < length) {
+            mCompressed = new byte[length];
+        }
+        ByteBuffer store = mStore.duplicate();
+        store.position(mBlockOffset[block]);
+        store.get(mCompressed, 0, length);
+
+        int rawLength = mBlockRawLength[block];
+        if (mDecoded.length < rawLength) {
+            mDecoded = new byte[rawLength];
+        }
+        Inflater inflater = mInflater;
+        inflater.reset();
+        inflater.setInput(mCompressed, 0, length);
+        try {
+            int decoded = 0;
+            while (decoded < rawLength && !inflater.finished()) {
+                decoded += inflater.inflate(mDecoded, decoded, rawLength - decoded);
+            }
+        } catch (DataFormatException e) {
+            // Can't happen -- we compressed this block ourselves
+            throw new IllegalStateException(e);
+        }
+        mDecodedBlock = block;
+        mDecodedFirstRow = mBlockFirstRow[block];
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16
+                | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+    }
+}
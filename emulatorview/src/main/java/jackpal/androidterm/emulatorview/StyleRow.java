@@ -1,97 +1,374 @@
 package jackpal.androidterm.emulatorview;
 
+import java.util.Arrays;
+
 /**
  * Utility class for dealing with text style lines.
  *
  * We pack color and formatting information for a particular character into an
- * int -- see the TextStyle class for details.  The simplest way of storing
- * that information for a screen row would be to use an array of int -- but
- * given that we only use the lower three bytes of the int to store information,
- * that effectively wastes one byte per character -- nearly 8 KB per 100 lines
- * with an 80-column transcript.
+ * int -- see the TextStyle class for details.  Most rows don't need an int
+ * per column, though: a row is usually either a single style (blank lines,
+ * plain output) or a handful of spans (a prompt, syntax-highlighted code).
+ * A row is therefore stored in one of three ways:
+ * - "solid", with just the one style in mStyle;
+ * - "runs", as up to MAX_RUNS spans, each given by the column it starts at
+ *   and its style; a span ends where the next one starts; and
+ * - "cells", an int[] with one style per column, for rows with too many
+ *   style changes to be worth storing as runs.
  *
- * Instead, we use an array of bytes and store the bytes of each int
- * consecutively in big-endian order.
+ * Rows are converted from solid to runs to cells as needed, and back to solid
+ * when the whole row is set to a single style.
  */
 final class StyleRow {
+    /** Number of runs a row may have before it's stored as cells. */
+    private static final int MAX_RUNS = 16;
+
     private int mStyle;
     private final int mColumns;
+
     /** Initially null, will be allocated when needed. */
-    private byte[] mData;
+    private int[] mRunStarts;
+    private int[] mRunStyles;
+    /** Number of runs in use; 0 when the row is solid or stored as cells. */
+    private int mRunCount;
+    /** The run found by the last lookup, since columns are mostly visited in order. */
+    private int mLastRun;
+
+    /** Non-null when the row is stored as cells. */
+    private int[] mCells;
+
+    /**
+     * Whether the column past the end of the row reads as 0 instead of
+     * mStyle.  Rows used to be kept in a byte array with a spare column at
+     * the end, which was allocated, zeroed, once the row was first given a
+     * second style or copied, and never written to.  A combining character
+     * stored after a character in the last column is looked up there.
+     */
+    private boolean mPastEndBlank;
 
     StyleRow(int style, int columns) {
         mStyle = style;
         mColumns = columns;
     }
 
+    /**
+     * Make this row as a new one with the given style.
+     */
+    void reset(int style) {
+        mStyle = style;
+        mRunCount = 0;
+        mCells = null;
+        mPastEndBlank = false;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
     void set(int column, int style) {
-        if (style == mStyle && mData == null) {
+        set(column, 1, style);
+    }
+
+    void set(int column, int count, int style) {
+        if (count <= 0) {
             return;
         }
-        ensureData();
-        setStyle(column, style);
+        if (column == 0 && count >= mColumns) {
+            if (style != mStyle) {
+                mPastEndBlank = true;
+            }
+            mStyle = style;
+            mRunCount = 0;
+            mCells = null;
+            return;
+        }
+        if (mCells != null) {
+            Arrays.fill(mCells, column, column + count, style);
+            return;
+        }
+        if (mRunCount == 0) {
+            if (style == mStyle) {
+                return;
+            }
+            mPastEndBlank = true;
+            ensureRunCapacity(1);
+            mRunStarts[0] = 0;
+            mRunStyles[0] = mStyle;
+            mRunCount = 1;
+            mLastRun = 0;
+        }
+        setRuns(column, column + count, style);
     }
 
+    /**
+     * Columns past the end of the row (a combining character may be stored
+     * after a character in the last column) have the row's style while it
+     * has only ever had the one, and 0 after that; see mPastEndBlank.
+     */
     int get(int column) {
-        if (mData == null) {
+        if (column >= mColumns) {
+            return mPastEndBlank ? 0 : mStyle;
+        }
+        if (mCells != null) {
+            return mCells[column];
+        }
+        if (mRunCount == 0) {
             return mStyle;
         }
-        return getStyle(column);
+        return mRunStyles[findRun(column)];
     }
 
     boolean isSolidStyle() {
-        return mData == null;
+        return mCells == null && mRunCount == 0;
     }
 
     int getSolidStyle() {
-        if (mData != null) {
+        if (!isSolidStyle()) {
             throw new IllegalArgumentException("Not a solid style");
         }
         return mStyle;
     }
 
     void copy(int start, StyleRow dst, int offset, int len) {
-        // fast case
-        if (mData == null && dst.mData == null && start == 0 && offset == 0
-                && len == mColumns) {
-            dst.mStyle = mStyle;
+        // fast cases
+        if (start == 0 && offset == 0 && len == mColumns && dst.mColumns == mColumns) {
+            if (dst != this) {
+                dst.assign(this);
+            }
+            return;
+        }
+        mPastEndBlank = true;
+        dst.mPastEndBlank = true;
+        if (mCells != null && dst.mCells != null) {
+            System.arraycopy(mCells, start, dst.mCells, offset, len);
             return;
         }
-        // There are other potentially fast cases, but let's just treat them
-        // all the same for simplicity.
-        ensureData();
-        dst.ensureData();
-        System.arraycopy(mData, 3*start, dst.mData, 3*offset, 3*len);
 
+        /* Copy span by span.  When copying within the same row, go in the
+           direction which never overwrites a span that's still to be read. */
+        int end = start + len;
+        if (dst == this && offset > start) {
+            int column = end;
+            while (column > start) {
+                int spanStart = spanStart(column - 1, start);
+                dst.set(offset + spanStart - start, column - spanStart, get(spanStart));
+                column = spanStart;
+            }
+        } else {
+            int column = start;
+            while (column < end) {
+                int spanEnd = spanEnd(column, end);
+                dst.set(offset + column - start, spanEnd - column, get(column));
+                column = spanEnd;
+            }
+        }
+    }
+
+    /**
+     * @return One after the last column, no later than limit, which has the
+     *         same style as column in an unbroken span.
+     */
+    int spanEnd(int column, int limit) {
+        int end;
+        if (mCells != null) {
+            int[] cells = mCells;
+            int style = cells[column];
+            end = column + 1;
+            while (end < limit && cells[end] == style) {
+                end++;
+            }
+            return end;
+        } else if (mRunCount == 0) {
+            return limit;
+        }
+        int run = findRun(column);
+        end = run + 1 == mRunCount ? mColumns : mRunStarts[run + 1];
+        return Math.min(end, limit);
+    }
+
+    /**
+     * @return The first column, no earlier than limit, which has the same
+     *         style as column in an unbroken span.
+     */
+    private int spanStart(int column, int limit) {
+        if (mCells != null) {
+            int[] cells = mCells;
+            int style = cells[column];
+            int start = column;
+            while (start > limit && cells[start - 1] == style) {
+                start--;
+            }
+            return start;
+        } else if (mRunCount == 0) {
+            return limit;
+        }
+        return Math.max(mRunStarts[findRun(column)], limit);
+    }
+
+    /**
+     * Count the references to RGB colors from each run or cell of the row;
+     * see TrueColorTable.countReferences().
+     */
+    void countTrueColors(int[] refs) {
+        if (mCells != null) {
+            for (int style : mCells) {
+                TrueColorTable.countReferences(style, refs);
+            }
+        } else if (mRunCount == 0) {
+            TrueColorTable.countReferences(mStyle, refs);
+        } else {
+            for (int run = 0; run < mRunCount; run++) {
+                TrueColorTable.countReferences(mRunStyles[run], refs);
+            }
+        }
     }
 
-    void ensureData() {
-        if (mData == null) {
-            allocate();
+    private void assign(StyleRow src) {
+        mPastEndBlank |= src.mPastEndBlank;
+        mStyle = src.mStyle;
+        mRunCount = src.mRunCount;
+        mLastRun = 0;
+        if (src.mRunCount > 0) {
+            ensureRunCapacity(src.mRunCount);
+            System.arraycopy(src.mRunStarts, 0, mRunStarts, 0, src.mRunCount);
+            System.arraycopy(src.mRunStyles, 0, mRunStyles, 0, src.mRunCount);
+        }
+        if (src.mCells != null) {
+            if (mCells == null) {
+                mCells = new int[mColumns];
+            }
+            System.arraycopy(src.mCells, 0, mCells, 0, mColumns);
+        } else {
+            mCells = null;
         }
     }
 
-    private void allocate() {
-        mData = new byte[4*(mColumns+1)];
-        for (int i = 0; i < mColumns; i++) {
-            setStyle(i, mStyle);
+    /**
+     * @return The index of the run containing column.
+     */
+    private int findRun(int column) {
+        int[] starts = mRunStarts;
+        int count = mRunCount;
+        int run = mLastRun;
+        if (run < count && starts[run] <= column) {
+            if (run + 1 == count || column < starts[run + 1]) {
+                return run;
+            }
+            run++;
+            if (run + 1 == count || column < starts[run + 1]) {
+                mLastRun = run;
+                return run;
+            }
+        }
+
+        // Binary search
+        int bot = 0;
+        int top = count - 1;
+        while (bot < top) {
+            int mid = (bot + top + 1) >>> 1;
+            if (starts[mid] <= column) {
+                bot = mid;
+            } else {
+                top = mid - 1;
+            }
         }
+        mLastRun = bot;
+        return bot;
     }
 
-    private int getStyle(int column) {
-        int index = 3 * column;
-        byte[] line = mData;
-        return line[index] & 0xff | (line[index+1] & 0xff) << 8
-                | (line[index+2] & 0xff) << 16;
+    /**
+     * Set columns start (inclusive) to end (exclusive) to style, splitting and
+     * merging runs as needed.
+     */
+    private void setRuns(int start, int end, int style) {
+        int first = findRun(start);
+        int firstEnd = first + 1 == mRunCount ? mColumns : mRunStarts[first + 1];
+        if (end < firstEnd) {
+            if (mRunStyles[first] == style) {
+                return;
+            }
+            // Characters written left to right extend the previous run
+            if (start == mRunStarts[first] && first > 0 && mRunStyles[first - 1] == style) {
+                mRunStarts[first] = end;
+                mLastRun = first - 1;
+                return;
+            }
+        } else if (end == firstEnd && mRunStyles[first] == style) {
+            return;
+        }
+        int last = end <= firstEnd ? first : findRun(end - 1);
+        int lastStyle = mRunStyles[last];
+
+        // The runs first..last are replaced by the part of first before start,
+        // the new run, and the part of last after end.
+        boolean head = mRunStarts[first] < start;
+        boolean tail = end < mColumns
+                && (last + 1 == mRunCount || mRunStarts[last + 1] != end);
+        int index = head ? first + 1 : first;
+        int rest = last + 1;
+        int restIndex = index + (tail ? 2 : 1);
+        int count = restIndex + mRunCount - rest;
+        if (count > MAX_RUNS) {
+            toCells();
+            Arrays.fill(mCells, start, end, style);
+            return;
+        }
+        ensureRunCapacity(count);
+        int[] starts = mRunStarts;
+        int[] styles = mRunStyles;
+        System.arraycopy(starts, rest, starts, restIndex, mRunCount - rest);
+        System.arraycopy(styles, rest, styles, restIndex, mRunCount - rest);
+        starts[index] = start;
+        styles[index] = style;
+        if (tail) {
+            starts[index + 1] = end;
+            styles[index + 1] = lastStyle;
+        }
+        mRunCount = count;
+
+        // Merge the new run with its neighbors if they have the same style
+        if (index + 1 < mRunCount && styles[index + 1] == style) {
+            removeRun(index + 1);
+        }
+        if (index > 0 && styles[index - 1] == style) {
+            removeRun(index);
+            index--;
+        }
+        mLastRun = index;
+        if (mRunCount == 1) {
+            mStyle = styles[0];
+            mRunCount = 0;
+        }
     }
 
-    private void setStyle(int column, int value) {
-        int index = 3 * column;
-        byte[] line = mData;
-        line[index] = (byte) (value & 0xff);
-        line[index+1] = (byte) ((value >> 8) & 0xff);
-        line[index+2] = (byte) ((value >> 16) & 0xff);
+    private void removeRun(int run) {
+        int moved = mRunCount - run - 1;
+        System.arraycopy(mRunStarts, run + 1, mRunStarts, run, moved);
+        System.arraycopy(mRunStyles, run + 1, mRunStyles, run, moved);
+        mRunCount--;
     }
 
+    private void ensureRunCapacity(int count) {
+        if (mRunStarts == null || mRunStarts.length < count) {
+            int capacity = mRunStarts == null ? 4 : mRunStarts.length;
+            while (capacity < count) {
+                capacity *= 2;
+            }
+            capacity = Math.min(capacity, MAX_RUNS);
+            mRunStarts = mRunStarts == null ? new int[capacity]
+                    : Arrays.copyOf(mRunStarts, capacity);
+            mRunStyles = mRunStyles == null ? new int[capacity]
+                    : Arrays.copyOf(mRunStyles, capacity);
+        }
+    }
 
+    private void toCells() {
+        int[] cells = new int[mColumns];
+        for (int run = 0; run < mRunCount; run++) {
+            int end = run + 1 == mRunCount ? mColumns : mRunStarts[run + 1];
+            Arrays.fill(cells, mRunStarts[run], end, mRunStyles[run]);
+        }
+        mCells = cells;
+        mRunCount = 0;
+    }
 }
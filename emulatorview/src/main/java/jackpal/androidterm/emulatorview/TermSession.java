@@ -16,19 +16,25 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.view.Choreographer;
 
 /**
  * A terminal session, consisting of a VT100 terminal emulator and its
@@ -38,9 +44,32 @@
  * provide input and output to the terminal.  For a locally running
  * program, these would typically point to a tty; for a telnet program
  * they might point to a network socket.  Reader and writer threads will be
- * spawned to do I/O to these streams.  All other operations, including
- * processing of input and output in {@link #processInput processInput} and
- * {@link #write(byte[], int, int) write}, will be performed on the main thread.
+ * spawned to do I/O to these streams (a subclass can instead have the input
+ * read by someone who polls many streams at once, see {@link
+ * #setInputPolled}), and an emulator thread runs the
+ * terminal emulator on the input, through {@link #processInput
+ * processInput}, so that a flood of output never holds up the main thread.
+ * All other operations, including {@link #write(byte[], int, int) write},
+ * are performed on the main thread.
+ * <p>
+ * The reader thread reads straight into the buffer the emulator thread
+ * processes the input in, and the writer thread writes straight from the
+ * buffer {@link #write(byte[], int, int) write} puts the output in, with a
+ * gathered write if the output stream is a {@link FileOutputStream}, so no
+ * byte is copied on its way between the streams and the emulator.  Reads
+ * are small while the process writes a little at a time and grow to up to
+ * 64 KB while it floods.
+ * <p>
+ * When the process writes faster than the emulator can keep up with, the
+ * session goes into overload mode: screen updates are suspended, and the
+ * emulator fast-forwards, keeping only the last few rows that scroll off,
+ * until the output stops; see {@link #setOverloadThreshold}.
+ * <p>
+ * The emulator thread holds the session's emulator lock while it runs the
+ * emulator.  Everything else which reads or changes the emulator's screens
+ * takes the lock too; an {@link EmulatorView} copies what it needs to draw a
+ * frame while holding it (see ScreenSnapshot), and draws after letting it
+ * go.
  * <p>
  * Call {@link #setTermIn} and {@link #setTermOut} to connect the input and
  * output streams to the emulator.  When all of your initialization is
@@ -67,9 +96,11 @@ public void setKeyListener(TermKeyListener l) {
     private UpdateCallback mNotify;
 
     private OutputStream mTermOut;
+    // mTermOut's channel if it has one, for gathered writes
+    private GatheringByteChannel mTermOutChannel;
     private InputStream mTermIn;
 
-    private String mTitle;
+    private volatile String mTitle;
 
     private TranscriptScreen mTranscriptScreen;
     private TerminalEmulator mEmulator;
@@ -78,23 +109,85 @@ public void setKeyListener(TermKeyListener l) {
 
     private final Thread mReaderThread;
     private final ByteQueue mByteQueue;
-    private final byte[] mReceiveBuffer;
+    private final Thread mEmulatorThread;
+
+    /* The reader thread reads straight into mByteQueue, as much as it can
+       up to a read size which grows from MIN_READ_SIZE to MAX_READ_SIZE
+       while reads keep filling it, and shrinks again once they don't */
+    private static final int MIN_READ_SIZE = 4 * 1024;
+    private static final int MAX_READ_SIZE = 64 * 1024;
+    // Most bytes the emulator thread processes in place per turn of the lock
+    private static final int EMULATOR_CHUNK = 4 * 1024;
+    // Used only by whoever reads the input stream
+    private int mReadSize = MIN_READ_SIZE;
+    // Whether the input is read by someone else through readInput()
+    private boolean mInputPolled;
+    // Whether readInput() found mByteQueue full and onInputSpace() is due
+    private final AtomicBoolean mInputStalled = new AtomicBoolean();
+    // By SystemClock.elapsedRealtime(), 0 until there has been some input
+    private volatile long mLastInputTime;
+
+    /**
+     * Held while the emulator or its screens are used.  The lock is fair, so
+     * that the main thread gets its turn between two chunks of input however
+     * fast the process is writing.
+     */
+    private final ReentrantLock mEmulatorLock = new ReentrantLock(true);
+
+    private volatile boolean mFramePacing = true;
+    // Whether a screen update is already on its way to the main thread
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean();
+    private final PerformanceCounter mPerformanceCounter = new PerformanceCounter();
+
+    private volatile int mOverloadThreshold = DEFAULT_OVERLOAD_THRESHOLD;
+    private volatile int mFastForwardRows = DEFAULT_FAST_FORWARD_ROWS;
+    /* Used only by the emulator thread: the bytes emulated since the input
+       queue was last empty, whether the session is overloaded, and when the
+       screen was last updated while it was */
+    private int mFloodBytes;
+    private boolean mOverloaded;
+    private long mOverloadUpdateTime;
+
+    // Serializes writers to mWriteQueue, which allows only one producer
+    private final Object mWriteLock = new Object();
 
     private final Thread mWriterThread;
     private final ByteQueue mWriteQueue;
     private Handler mWriterHandler;
 
+    // The last paste started, see paste()
+    private PasteTask mLastPaste;
+    // The last paste started which is still being written, behind which
+    // other writes are held; guarded by mWriteLock
+    private PasteTask mPendingPaste;
+    // Waited on by a paste for the writer thread to make room in mWriteQueue
+    private final Object mPasteWriteLock = new Object();
+    private volatile boolean mPasteWaiting;
+
     private final CharBuffer mWriteCharBuffer;
     private final ByteBuffer mWriteByteBuffer;
     private final CharsetEncoder mUTF8Encoder;
 
-    // Number of rows in the transcript
+    // Number of rows kept as objects in the transcript; older rows are
+    // compressed into the transcript's ScrollbackArchive
     private static final int TRANSCRIPT_ROWS = 10000;
 
+    private static final int WRITE_QUEUE_SIZE = 4096;
+
     private static final int NEW_INPUT = 1;
     private static final int NEW_OUTPUT = 2;
     private static final int FINISH = 3;
     private static final int EOF = 4;
+    private static final int TITLE_CHANGED = 5;
+
+    public static final int DEFAULT_OVERLOAD_THRESHOLD = 256 * 1024;
+    public static final int DEFAULT_FAST_FORWARD_ROWS = 2000;
+    // How long output must pause for an overload to be over
+    private static final long OVERLOAD_IDLE_NANOS = 20 * 1000 * 1000;
+    // How often the screen is still updated while overloaded
+    private static final long OVERLOAD_UPDATE_NANOS = 500 * 1000 * 1000;
+    // Longest a paste waits for room before looking for a cancel or finish
+    private static final long PASTE_WAIT_MILLIS = 100;
 
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
@@ -111,7 +204,7 @@ public interface FinishCallback {
     }
     private FinishCallback mFinishCallback;
 
-    private boolean mIsRunning = false;
+    private volatile boolean mIsRunning = false;
     private final Handler mMsgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -119,7 +212,13 @@ public void handleMessage(Message msg) {
                 return;
             }
             if (msg.what == NEW_INPUT) {
-                readFromProcess();
+                if (mFramePacing) {
+                    Choreographer.getInstance().postFrameCallback(mFrameCallback);
+                } else {
+                    notifyUpdate();
+                }
+            } else if (msg.what == TITLE_CHANGED) {
+                notifyTitleChanged();
             } else if (msg.what == EOF) {
                 new Handler(Looper.getMainLooper()).post(new Runnable() {
                     @Override
@@ -144,43 +243,82 @@ public TermSession(final boolean exitOnEOF) {
         mUTF8Encoder.onMalformedInput(CodingErrorAction.REPLACE);
         mUTF8Encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mByteQueue = new ByteQueue(MAX_READ_SIZE);
         mReaderThread = new Thread() {
-            private final byte[] mBuffer = new byte[4096];
-
             @Override
             public void run() {
                 try {
                     while(true) {
-                        int read = mTermIn.read(mBuffer);
+                        int read = readFromTermIn();
                         if (read == -1) {
                             // EOF -- process exited
                             break;
                         }
-                        int offset = 0;
-                        while (read > 0) {
-                            int written = mByteQueue.write(mBuffer,
-                                    offset, read);
-                            offset += written;
-                            read -= written;
-                            mMsgHandler.sendMessage(
-                                    mMsgHandler.obtainMessage(NEW_INPUT));
-                        }
                     }
                 } catch (IOException e) {
                 } catch (InterruptedException e) {
                 }
 
-                if (exitOnEOF) mMsgHandler.sendMessage(mMsgHandler.obtainMessage(EOF));
+                // Let the emulator thread finish off the queue and stop
+                mByteQueue.close();
             }
         };
         mReaderThread.setName("TermSession input reader");
 
-        mWriteQueue = new ByteQueue(4096);
-        mWriterThread = new Thread() {
-            private final byte[] mBuffer = new byte[4096];
+        mEmulatorThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        if (mOverloaded && !mByteQueue.waitForData(OVERLOAD_IDLE_NANOS)) {
+                            endOverload();
+                        }
+                        ByteQueue queue = mByteQueue;
+                        int bytesRead = queue.peek(EMULATOR_CHUNK);
+                        if (bytesRead < 0) {
+                            break;
+                        }
+                        long start = System.nanoTime();
+                        ReentrantLock lock = mEmulatorLock;
+                        lock.lock();
+                        try {
+                            if (!mIsRunning) {
+                                return;
+                            }
+                            // Give subclasses a chance to process the read
+                            // data, where the reader thread put it
+                            processInput(queue.getBuffer(), queue.getReadOffset(), bytesRead);
+                            queue.skip(bytesRead);
+                            checkOverload(bytesRead);
+                        } finally {
+                            lock.unlock();
+                        }
+                        if (mInputStalled.get() && mInputStalled.compareAndSet(true, false)) {
+                            onInputSpace();
+                        }
+                        mPerformanceCounter.countInput(bytesRead, System.nanoTime() - start);
+                        if (!mOverloaded) {
+                            signalUpdate();
+                        } else if (start - mOverloadUpdateTime >= OVERLOAD_UPDATE_NANOS) {
+                            mOverloadUpdateTime = start;
+                            signalUpdate();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                }
+                if (mOverloaded) {
+                    endOverload();
+                }
+
+                if (exitOnEOF && mIsRunning) {
+                    mMsgHandler.sendMessage(mMsgHandler.obtainMessage(EOF));
+                }
+            }
+        };
+        mEmulatorThread.setName("TermSession emulator");
 
+        mWriteQueue = new ByteQueue(WRITE_QUEUE_SIZE);
+        mWriterThread = new Thread() {
             @Override
             public void run() {
                 Looper.prepare();
@@ -204,27 +342,29 @@ public void handleMessage(Message msg) {
 
             private void writeToOutput() {
                 ByteQueue writeQueue = mWriteQueue;
-                byte[] buffer = mBuffer;
-                OutputStream termOut = mTermOut;
-
-                int bytesAvailable = writeQueue.getBytesAvailable();
-                int bytesToWrite = Math.min(bytesAvailable, buffer.length);
-
-                if (bytesToWrite == 0) {
+                if (writeQueue.getBytesAvailable() == 0) {
                     return;
                 }
 
                 try {
-                    writeQueue.read(buffer, 0, bytesToWrite);
-                    termOut.write(buffer, 0, bytesToWrite);
-                    termOut.flush();
+                    // Straight from the queue, with no copy in between
+                    GatheringByteChannel channel = mTermOutChannel;
+                    if (channel != null) {
+                        writeQueue.writeTo(channel);
+                    } else {
+                        OutputStream termOut = mTermOut;
+                        writeQueue.writeTo(termOut);
+                        termOut.flush();
+                    }
                 } catch (IOException e) {
                     // Ignore exception
                     // We don't really care if the receiver isn't listening.
                     // We just make a best effort to answer the query.
                     e.printStackTrace();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    writeQueue.skip(writeQueue.getBytesAvailable());
+                }
+                if (mPasteWaiting) {
+                    wakePasteWriter();
                 }
             }
         };
@@ -249,7 +389,10 @@ public void initializeEmulator(int columns, int rows) {
         mEmulator.setKeyListener(mKeyListener);
 
         mIsRunning = true;
-        mReaderThread.start();
+        if (!mInputPolled) {
+            mReaderThread.start();
+        }
+        mEmulatorThread.start();
         mWriterThread.start();
     }
 
@@ -261,7 +404,8 @@ static public int getTranscriptRows() {
      * Write data to the terminal output.  The written data will be consumed by
      * the emulation client as input.
      * <p>
-     * <code>write</code> itself runs on the main thread.  The default
+     * <code>write</code> itself runs on the main thread, or on the emulator
+     * thread for the emulator's replies to queries.  The default
      * implementation writes the data into a circular buffer and signals the
      * writer thread to copy it from there to the {@link OutputStream}.
      * <p>
@@ -274,6 +418,19 @@ static public int getTranscriptRows() {
      * @param count The number of bytes to be written.
      */
     public void write(byte[] data, int offset, int count) {
+        synchronized (mWriteLock) {
+            if (mPendingPaste != null) {
+                // Goes out after the paste, as it came after it
+                mPendingPaste.holdWrite(data, offset, count);
+                return;
+            }
+            writeQueued(data, offset, count);
+        }
+    }
+
+    /* Queue bytes for the writer thread, waiting for room if need be.
+       Called with mWriteLock held. */
+    private void writeQueued(byte[] data, int offset, int count) {
         try {
             while (count > 0) {
                 int written = mWriteQueue.write(data, offset, count);
@@ -364,6 +521,111 @@ private void writeCodePointUTF8(int codePoint) {
         write(mUtf8InputBuffer, 0, bufferPosition);
     }
 
+    /**
+     * Paste text into the terminal output, without holding up the calling
+     * thread however long the text is.  The text goes out between bracketed
+     * paste markers if the application has asked for them.  Text which fits
+     * in the write queue is written before this returns; longer text is
+     * written by a {@link PasteTask} as fast as the process reads it, and
+     * anything written to the session meanwhile, such as keys typed, is held
+     * back until it's over, so that it can't go out in the middle of the
+     * paste or ahead of it.
+     *
+     * @param text The text to paste.
+     * @param listener Told on the main thread of the progress of the paste,
+     *        or null.
+     * @return The paste, which can be cancelled.
+     */
+    public PasteTask paste(CharSequence text, PasteTask.Listener listener) {
+        PasteTask task = new PasteTask(this, text, listener, mLastPaste);
+        synchronized (mWriteLock) {
+            // Behind a paste still being written, it only has to fit in the
+            // queue once that paste is over
+            int room = mPendingPaste != null ? WRITE_QUEUE_SIZE : mWriteQueue.getFreeSpace();
+            byte[] bytes = task.encodeAll(room);
+            if (bytes != null) {
+                if (mPendingPaste != null) {
+                    mPendingPaste.holdWrite(bytes, 0, bytes.length);
+                } else {
+                    writeQueued(bytes, 0, bytes.length);
+                }
+                task.finished(false);
+                return task;
+            }
+            mPendingPaste = task;
+        }
+        mLastPaste = task;
+        task.start();
+        return task;
+    }
+
+    /**
+     * Let the writes held back by a paste go out, once all of it has been
+     * queued or it's been cancelled.  Called on the paste's thread.
+     */
+    void pasteWritten(PasteTask task) {
+        synchronized (mWriteLock) {
+            if (mPendingPaste == task) {
+                mPendingPaste = null;
+            }
+            byte[] held = task.takeHeldWrites();
+            if (held != null && mIsRunning) {
+                writeQueued(held, 0, held.length);
+            }
+        }
+    }
+
+    /**
+     * Queue bytes of a paste, only as many at a time as fit in the write
+     * queue.  Unlike {@link #write(byte[], int, int)}, this waits for room
+     * without holding the write lock, so that the main thread's writes,
+     * which are held back while the paste is written, never wait for it.
+     * Called on the paste's thread.
+     *
+     * @param task The paste, whose cancellation stops the write, or null to
+     *        write everything anyway.
+     * @return false if the paste was cancelled, or the session finished,
+     *         before all of the bytes were queued.
+     */
+    boolean writePasted(byte[] data, int offset, int count, PasteTask task)
+            throws InterruptedException {
+        while (count > 0) {
+            if (!mIsRunning || (task != null && task.isCancelled())) {
+                return false;
+            }
+            int written = 0;
+            synchronized (mWriteLock) {
+                int room = mWriteQueue.getFreeSpace();
+                if (room > 0) {
+                    // Fits, so this doesn't wait
+                    written = mWriteQueue.write(data, offset, Math.min(room, count));
+                }
+            }
+            if (written > 0) {
+                offset += written;
+                count -= written;
+                notifyNewOutput();
+                continue;
+            }
+            synchronized (mPasteWriteLock) {
+                mPasteWaiting = true;
+                // Checked after saying so, so that a wakeup can't be missed
+                if (mWriteQueue.getFreeSpace() == 0) {
+                    mPasteWriteLock.wait(PASTE_WAIT_MILLIS);
+                }
+                mPasteWaiting = false;
+            }
+        }
+        return true;
+    }
+
+    /* Wake a paste waiting for room in the write queue */
+    void wakePasteWriter() {
+        synchronized (mPasteWriteLock) {
+            mPasteWriteLock.notifyAll();
+        }
+    }
+
     /* Notify the writer thread that there's new output waiting */
     private void notifyNewOutput() {
         Handler writerHandler = mWriterHandler;
@@ -390,6 +652,8 @@ public OutputStream getTermOut() {
      */
     public void setTermOut(OutputStream termOut) {
         mTermOut = termOut;
+        mTermOutChannel = termOut instanceof FileOutputStream
+                ? ((FileOutputStream) termOut).getChannel() : null;
     }
 
     /**
@@ -425,6 +689,14 @@ TerminalEmulator getEmulator() {
         return mEmulator;
     }
 
+    /**
+     * Get the lock to hold while using the emulator or its screens from
+     * outside the emulator thread.
+     */
+    ReentrantLock getEmulatorLock() {
+        return mEmulatorLock;
+    }
+
     /**
      * Set an {@link UpdateCallback} to be invoked when the terminal emulator's
      * screen is changed.
@@ -453,11 +725,16 @@ public String getTitle() {
     }
 
     /**
-     * Change the terminal session's title.
+     * Change the terminal session's title.  The title changed listener is
+     * always called on the main thread.
      */
     public void setTitle(String title) {
         mTitle = title;
-        notifyTitleChanged();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notifyTitleChanged();
+        } else {
+            mMsgHandler.sendEmptyMessage(TITLE_CHANGED);
+        }
     }
 
     /**
@@ -498,7 +775,12 @@ public void updateSize(int columns, int rows) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            mEmulator.updateSize(columns, rows);
+            mEmulatorLock.lock();
+            try {
+                mEmulator.updateSize(columns, rows);
+            } finally {
+                mEmulatorLock.unlock();
+            }
         }
     }
 
@@ -509,35 +791,225 @@ public void updateSize(int columns, int rows) {
      *         scrollback buffer.
      */
     public String getTranscriptText() {
-        return mTranscriptScreen.getTranscriptText();
+        mEmulatorLock.lock();
+        try {
+            return mTranscriptScreen.getTranscriptText();
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /**
+     * Set whether screen updates are paced to the display refresh.
+     * <p>
+     * When enabled (the default), the {@link UpdateCallback} is invoked at
+     * most once per display frame, however many chunks of input the
+     * emulator thread has run through the emulator since the last one.
+     * When disabled, it is invoked for every chunk.
+     *
+     * @param framePacing Whether to pace updates.
+     */
+    public void setFramePacing(boolean framePacing) {
+        mFramePacing = framePacing;
+    }
+
+    /**
+     * Get the counters tracking this session's output throughput and frame
+     * times.
+     */
+    public PerformanceCounter getPerformanceCounter() {
+        return mPerformanceCounter;
+    }
+
+    /**
+     * Set how far output from the process may run ahead of the emulator
+     * before the session goes into overload mode.  Output runs ahead while
+     * the input queue is never empty after the emulator has taken a chunk
+     * from it.
+     * <p>
+     * While overloaded, the {@link UpdateCallback} is invoked only twice a
+     * second, and the emulator fast-forwards: of the rows which scroll out
+     * of the transcript, only enough are kept to leave the number set with
+     * {@link #setFastForwardRows} rows of scrollback.  The overload ends when
+     * the process stops writing for a moment, and the screen is then
+     * brought up to date at once.
+     *
+     * @param bytes The number of bytes, or 0 never to go into overload mode.
+     */
+    public void setOverloadThreshold(int bytes) {
+        mOverloadThreshold = bytes;
+    }
+
+    /**
+     * Set the number of rows of scrollback kept through an overload; see
+     * {@link #setOverloadThreshold}.
+     */
+    public void setFastForwardRows(int rows) {
+        mFastForwardRows = rows;
+    }
+
+    /**
+     * Have the input stream read by someone else, who waits for input on it
+     * along with other streams and calls {@link #readInput} when there is
+     * some, instead of by a reader thread of the session's own.  Must be
+     * called before the emulator is initialized.
+     */
+    protected void setInputPolled(boolean polled) {
+        mInputPolled = polled;
     }
 
     /**
-     * Look for new input from the ptty, send it to the terminal emulator.
+     * Go back to reading the input stream with a reader thread of the
+     * session's own, after it has been polled, because whoever polled it
+     * can't any more.  Must be called where {@link #readInput} would have
+     * been, as the reader thread takes over from it.
+     */
+    protected void stopInputPolling() {
+        if (!mInputPolled || !mIsRunning) {
+            return;
+        }
+        mInputPolled = false;
+        mReaderThread.start();
+    }
+
+    /**
+     * Read what the input stream has for the emulator, in a session whose
+     * input is polled (see {@link #setInputPolled}).  Call this when the
+     * stream can be read without blocking; it doesn't wait for the emulator.
+     *
+     * @return The number of bytes read; 0 if the emulator has all the input
+     *         it can hold, in which case stop polling the stream until
+     *         {@link #onInputSpace} is called; or -1 at the end of the input.
      */
-    private void readFromProcess() {
-        int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
-        int bytesRead = 0;
+    protected final int readInput() {
+        ByteQueue queue = mByteQueue;
+        if (queue.getFreeSpace() == 0) {
+            mInputStalled.set(true);
+            // The emulator thread may have made space before it could see
+            // the flag; if it has seen the flag, onInputSpace() is on its way
+            if (queue.getFreeSpace() == 0 || !mInputStalled.compareAndSet(true, false)) {
+                return 0;
+            }
+        }
         try {
-            bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
+            int read = readFromTermIn();
+            if (read >= 0) {
+                return read;
+            }
+        } catch (IOException e) {
         } catch (InterruptedException e) {
+        }
+        // Let the emulator thread finish off the queue and stop
+        queue.close();
+        return -1;
+    }
+
+    /**
+     * @return When input from the process was last read, whether by the
+     *         session's reader thread or through {@link #readInput}, by
+     *         {@link SystemClock#elapsedRealtime}; or 0 if none has been.
+     */
+    public long getLastInputTime() {
+        return mLastInputTime;
+    }
+
+    /**
+     * Called on the emulator thread once there is room for more input after
+     * {@link #readInput} has said there was none.
+     */
+    protected void onInputSpace() {
+    }
+
+    /**
+     * Read from the input stream into mByteQueue, as much as there is up to
+     * the current read size, and adjust the size to what came.
+     */
+    private int readFromTermIn() throws IOException, InterruptedException {
+        int readSize = mReadSize;
+        int read = mByteQueue.readFrom(mTermIn, readSize);
+        if (read > 0) {
+            mLastInputTime = SystemClock.elapsedRealtime();
+        }
+        if (read == readSize) {
+            // There may well be more where that came from
+            mReadSize = Math.min(readSize * 2, MAX_READ_SIZE);
+        } else if (read >= 0 && read < readSize / 4) {
+            mReadSize = Math.max(readSize / 2, MIN_READ_SIZE);
+        }
+        return read;
+    }
+
+    /**
+     * Go into overload mode if output has run too far ahead of the
+     * emulator.  Called on the emulator thread, with the emulator lock held.
+     */
+    private void checkOverload(int bytesRead) {
+        if (mByteQueue.getBytesAvailable() == 0) {
+            // The emulator has caught up
+            mFloodBytes = 0;
             return;
         }
+        mFloodBytes += bytesRead;
+        int threshold = mOverloadThreshold;
+        if (!mOverloaded && threshold > 0 && mFloodBytes >= threshold) {
+            mOverloaded = true;
+            mOverloadUpdateTime = System.nanoTime();
+            mEmulator.setFastForward(true, mFastForwardRows);
+        }
+    }
 
-        // Give subclasses a chance to process the read data
-        processInput(mReceiveBuffer, 0, bytesRead);
-        notifyUpdate();
+    /**
+     * Leave overload mode and show where the output ended up.  Called on
+     * the emulator thread.
+     */
+    private void endOverload() {
+        mOverloaded = false;
+        mFloodBytes = 0;
+        mEmulatorLock.lock();
+        try {
+            if (mIsRunning) {
+                mEmulator.setFastForward(false, 0);
+            }
+        } finally {
+            mEmulatorLock.unlock();
+        }
+        signalUpdate();
+    }
+
+    /**
+     * Tell the main thread that the emulator thread has changed the screen.
+     * Called on the emulator thread.
+     */
+    private void signalUpdate() {
+        if (!mFramePacing || mUpdatePending.compareAndSet(false, true)) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(NEW_INPUT));
+        }
     }
 
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Clear the flag first, so that changes from here on get their
+            // own update.
+            mUpdatePending.set(false);
+            if (mIsRunning) {
+                notifyUpdate();
+            }
+        }
+    };
+
     /**
      * Process input and send it to the terminal emulator.  This method is
-     * invoked on the main thread whenever new data is read from the
-     * InputStream.
+     * invoked on the emulator thread, with the emulator lock held, whenever
+     * new data is read from the InputStream.
      * <p>
      * The default implementation sends the data straight to the terminal
      * emulator without modifying it in any way.  Subclasses can override it to
      * modify the data before giving it to the terminal.
+     * <p>
+     * <code>data</code> is the session's input buffer itself, which the
+     * reader thread goes on filling after this method returns, so an
+     * implementation which wants to keep any of the data must copy it.
      *
      * @param data A byte array containing the data read.
      * @param offset The offset into the buffer where the read data begins.
@@ -557,7 +1029,12 @@ protected void processInput(byte[] data, int offset, int count) {
      * @param count The length of the data to be written.
      */
     protected final void appendToEmulator(byte[] data, int offset, int count) {
-        mEmulator.append(data, offset, count);
+        mEmulatorLock.lock();
+        try {
+            mEmulator.append(data, offset, count);
+        } finally {
+            mEmulatorLock.unlock();
+        }
     }
 
     /**
@@ -574,7 +1051,12 @@ public void setColorScheme(ColorScheme scheme) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setColorScheme(scheme);
+        mEmulatorLock.lock();
+        try {
+            mEmulator.setColorScheme(scheme);
+        } finally {
+            mEmulatorLock.unlock();
+        }
     }
 
     public void setIMEColor(int color) {
@@ -601,7 +1083,12 @@ public void setDefaultUTF8Mode(boolean utf8ByDefault) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        mEmulatorLock.lock();
+        try {
+            mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        } finally {
+            mEmulatorLock.unlock();
+        }
     }
 
     /**
@@ -619,7 +1106,9 @@ public boolean getUTF8Mode() {
 
     /**
      * Set an {@link UpdateCallback} to be invoked when the terminal emulator
-     * goes into or out of UTF-8 mode.
+     * goes into or out of UTF-8 mode.  When an escape sequence from the
+     * process changes the mode, the callback is invoked on the emulator
+     * thread.
      *
      * @param utf8ModeNotify The {@link UpdateCallback} to be invoked.
      */
@@ -633,7 +1122,14 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
      * Reset the terminal emulator's state.
      */
     public void reset() {
-        if (mEmulator != null) mEmulator.reset();
+        if (mEmulator != null) {
+            mEmulatorLock.lock();
+            try {
+                mEmulator.reset();
+            } finally {
+                mEmulatorLock.unlock();
+            }
+        }
         notifyUpdate();
     }
 
@@ -654,12 +1150,20 @@ public void setFinishCallback(FinishCallback callback) {
      */
     public void finish() {
         mIsRunning = false;
-        if (mEmulator != null) mEmulator.finish();
-        if (mTranscriptScreen != null) {
-            mTranscriptScreen.finish();
+        mEmulatorLock.lock();
+        try {
+            if (mEmulator != null) mEmulator.finish();
+            if (mTranscriptScreen != null) {
+                mTranscriptScreen.finish();
+            }
+        } finally {
+            mEmulatorLock.unlock();
         }
 
-        // Stop the reader and writer threads, and close the I/O streams
+        // Stop the reader, emulator and writer threads, and close the I/O
+        // streams
+        mByteQueue.close();
+        wakePasteWriter();
         if (mWriterHandler != null) {
             mWriterHandler.sendEmptyMessage(FINISH);
         }
@@ -17,14 +17,8 @@
 package jackpal.androidterm.emulatorview;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import android.util.Log;
 
@@ -243,6 +237,12 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mMouseTrackingMode;
 
+    /**
+     * True if the application has asked, with DECSET 2004, for pasted text
+     * to be marked as such.
+     */
+    private boolean mBracketedPasteMode;
+
     // Modes set with Set Mode / Reset Mode
 
     /**
@@ -293,22 +293,38 @@ public void setKeyListener(TermKeyListener l) {
     private boolean mJustWrapped = false;
 
     /**
-     * Used for debugging, counts how many chars have been processed.
+     * Used for debugging, counts how many code points have been processed.
      */
     private int mProcessedCharCount;
 
     /**
-     * Foreground color, 0..255
+     * Foreground color index; see TextStyle
      */
     private int mForeColor;
     private int mDefaultForeColor;
 
     /**
-     * Background color, 0..255
+     * Background color index; see TextStyle
      */
     private int mBackColor;
     private int mDefaultBackColor;
 
+    /**
+     * The colors given as RGB values, shared by both screens
+     */
+    private final TrueColorTable mTrueColors = new TrueColorTable();
+
+    /**
+     * Scratch space for counting references to mTrueColors; initially null
+     */
+    private int[] mTrueColorRefs;
+
+    /**
+     * The number of RGB colors to approximate before trying to make room in
+     * a full mTrueColors again
+     */
+    private int mTrueColorMisses;
+
     /**
      * Current TextStyle effect
      */
@@ -389,16 +405,24 @@ public void setKeyListener(TermKeyListener l) {
     /**
      * UTF-8 support
      */
-    private static final int UNICODE_REPLACEMENT_CHAR = 0xfffd;
     private boolean mDefaultUTF8Mode = false;
     private boolean mUTF8Mode = false;
     private boolean mUTF8EscapeUsed = false;
-    private int mUTF8ToFollow = 0;
-    private final ByteBuffer mUTF8ByteBuffer;
-    private final CharBuffer mInputCharBuffer;
-    private final CharsetDecoder mUTF8Decoder;
+    private final UTF8Decoder mUTF8Decoder = new UTF8Decoder();
+    /**
+     * Set when the UTF-8 mode changes or the terminal is reset, so that the
+     * input still to be processed is decoded again from that point on.
+     */
+    private boolean mUTF8DecoderReset;
     private UpdateCallback mUTF8ModeNotify;
 
+    /**
+     * The input being processed, decoded into code points (in UTF-8 mode) or
+     * widened a byte at a time (otherwise).
+     */
+    private static final int CODE_POINT_BUFFER_SIZE = 4096;
+    private final int[] mCodePoints = new int[CODE_POINT_BUFFER_SIZE];
+
     /** This is not accurate, but it makes the terminal more useful on
      * small screens.
      */
@@ -419,18 +443,14 @@ public TerminalEmulator(TermSession session, TranscriptScreen screen, int column
         mScreen = mMainBuffer;
         int tsRows = mSession.getTranscriptRows();
         mAltBuffer = new TranscriptScreen(columns, tsRows, rows, scheme);
+        mMainBuffer.setTrueColors(mTrueColors);
+        mAltBuffer.setTrueColors(mTrueColors);
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
 
         setColorScheme(scheme);
 
-        mUTF8ByteBuffer = ByteBuffer.allocate(4);
-        mInputCharBuffer = CharBuffer.allocate(2);
-        mUTF8Decoder = Charset.forName("UTF-8").newDecoder();
-        mUTF8Decoder.onMalformedInput(CodingErrorAction.REPLACE);
-        mUTF8Decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-
         reset();
     }
 
@@ -458,38 +478,16 @@ public void updateSize(int columns, int rows) {
             altScreen = mAltBuffer;
         }
 
-        // Try to resize the screen without getting the transcript
+        // Try to resize the screen without rewrapping its lines
         int[] cursor = { mCursorCol, mCursorRow };
         boolean fastResize = screen.fastResize(columns, rows, cursor);
-
-        GrowableIntArray cursorColor = null;
-        String charAtCursor = null;
-        GrowableIntArray colors = null;
-        String transcriptText = null;
         if (!fastResize) {
-            /* Save the character at the cursor (if one exists) and store an
-             * ASCII ESC character at the cursor's location
-             * This is an epic hack that lets us restore the cursor later...
-             */
-            cursorColor = new GrowableIntArray(1);
-            charAtCursor = screen.getSelectedText(cursorColor, mCursorCol, mCursorRow, mCursorCol, mCursorRow);
-            screen.set(mCursorCol, mCursorRow, 27, 0);
-
-            colors = new GrowableIntArray(1024);
-            transcriptText = screen.getTranscriptText(colors);
-            screen.resize(columns, rows, getStyle());
+            screen.resize(columns, rows, getStyle(), cursor);
         }
 
-        boolean altFastResize = true;
-        GrowableIntArray altColors = null;
-        String altTranscriptText = null;
         if (altScreen != null) {
-            altFastResize = altScreen.fastResize(columns, rows, null);
-
-            if (!altFastResize) {
-                altColors = new GrowableIntArray(1024);
-                altTranscriptText = altScreen.getTranscriptText(altColors);
-                altScreen.resize(columns, rows, getStyle());
+            if (!altScreen.fastResize(columns, rows, null)) {
+                altScreen.resize(columns, rows, getStyle(), null);
             }
         }
 
@@ -507,109 +505,16 @@ public void updateSize(int columns, int rows) {
             System.arraycopy(oldTabStop, 0, mTabStop, 0, toTransfer);
         }
 
-        if (!altFastResize) {
-            boolean wasAboutToAutoWrap = mAboutToAutoWrap;
-
-            // Restore the contents of the inactive screen's buffer
-            mScreen = altScreen;
-            mCursorRow = 0;
-            mCursorCol = 0;
+        if (!fastResize) {
             mAboutToAutoWrap = false;
-
-            int end = altTranscriptText.length()-1;
-            /* Unlike for the main transcript below, don't trim off trailing
-             * newlines -- the alternate transcript lacks a cursor marking, so
-             * we might introduce an unwanted vertical shift in the screen
-             * contents this way */
-            char c, cLow;
-            int colorOffset = 0;
-            for (int i = 0; i <= end; i++) {
-                c = altTranscriptText.charAt(i);
-                int style = altColors.at(i-colorOffset);
-                if (Character.isHighSurrogate(c)) {
-                    cLow = altTranscriptText.charAt(++i);
-                    emit(Character.toCodePoint(c, cLow), style);
-                    ++colorOffset;
-                } else if (c == '\n') {
-                    setCursorCol(0);
-                    doLinefeed();
-                } else {
-                    emit(c, style);
-                }
-            }
-
-            mScreen = screen;
-            mAboutToAutoWrap = wasAboutToAutoWrap;
-        }
-
-        if (fastResize) {
-            // Only need to make sure the cursor is in the right spot
-            if (cursor[0] >= 0 && cursor[1] >= 0) {
-                mCursorCol = cursor[0];
-                mCursorRow = cursor[1];
-            } else {
-                // Cursor scrolled off screen, reset the cursor to top left
-                mCursorCol = 0;
-                mCursorRow = 0;
-            }
-
-            return;
         }
-
-        mCursorRow = 0;
-        mCursorCol = 0;
-        mAboutToAutoWrap = false;
-
-        int newCursorRow = -1;
-        int newCursorCol = -1;
-        int newCursorTranscriptPos = -1;
-        int end = transcriptText.length()-1;
-        while ((end >= 0) && transcriptText.charAt(end) == '\n') {
-            end--;
-        }
-        char c, cLow;
-        int colorOffset = 0;
-        for(int i = 0; i <= end; i++) {
-            c = transcriptText.charAt(i);
-            int style = colors.at(i-colorOffset);
-            if (Character.isHighSurrogate(c)) {
-                cLow = transcriptText.charAt(++i);
-                emit(Character.toCodePoint(c, cLow), style);
-                ++colorOffset;
-            } else if (c == '\n') {
-                setCursorCol(0);
-                doLinefeed();
-            } else if (c == 27) {
-                /* We marked the cursor location with ESC earlier, so this
-                   is the place to restore the cursor to */
-                newCursorRow = mCursorRow;
-                newCursorCol = mCursorCol;
-                newCursorTranscriptPos = screen.getActiveRows();
-                if (charAtCursor != null && charAtCursor.length() > 0) {
-                    // Emit the real character that was in this spot
-                    int encodedCursorColor = cursorColor.at(0);
-                    emit(charAtCursor.toCharArray(), 0, charAtCursor.length(), encodedCursorColor);
-                }
-            } else {
-                emit(c, style);
-            }
-        }
-
-        // If we marked a cursor location, move the cursor there now
-        if (newCursorRow != -1 && newCursorCol != -1) {
-            mCursorRow = newCursorRow;
-            mCursorCol = newCursorCol;
-
-            /* Adjust for any scrolling between the time we marked the cursor
-               location and now */
-            int scrollCount = screen.getActiveRows() - newCursorTranscriptPos;
-            if (scrollCount > 0 && scrollCount <= newCursorRow) {
-                mCursorRow -= scrollCount;
-            } else if (scrollCount > newCursorRow) {
-                // Cursor scrolled off screen -- reset to top left corner
-                mCursorRow = 0;
-                mCursorCol = 0;
-            }
+        if (cursor[0] >= 0 && cursor[1] >= 0) {
+            mCursorCol = cursor[0];
+            mCursorRow = cursor[1];
+        } else {
+            // Cursor scrolled off screen, reset the cursor to top left
+            mCursorCol = 0;
+            mCursorRow = 0;
         }
     }
 
@@ -652,6 +557,16 @@ public final int getMouseTrackingMode() {
         return mMouseTrackingMode;
     }
 
+    /**
+     * Get whether the application has turned on bracketed paste mode, in
+     * which pasted text is to be sent between ESC [ 200 ~ and ESC [ 201 ~.
+     *
+     * @return true if bracketed paste mode is on.
+     */
+    public final boolean getBracketedPasteMode() {
+        return mBracketedPasteMode;
+    }
+
     private void setDefaultTabStops() {
         for (int i = 0; i < mColumns; i++) {
             mTabStop[i] = (i & 7) == 0 && i != 0;
@@ -669,24 +584,159 @@ public void append(byte[] buffer, int base, int length) {
         if (EmulatorDebug.LOG_CHARACTERS_FLAG) {
             Log.d(EmulatorDebug.LOG_TAG, "In: '" + EmulatorDebug.bytesToString(buffer, base, length) + "'");
         }
-        for (int i = 0; i < length; i++) {
-            byte b = buffer[base + i];
+        int end = base + length;
+        while (base < end) {
+            if (mUTF8DecoderReset) {
+                mUTF8DecoderReset = false;
+                mUTF8Decoder.reset();
+            }
+
+            // Decode as much as fits in mCodePoints, then process it
+            boolean utf8 = mUTF8Mode;
+            int[] codePoints = mCodePoints;
+            int count;
+            int consumed;
+            if (utf8) {
+                count = mUTF8Decoder.decode(buffer, base, end - base, codePoints,
+                        codePoints.length);
+                consumed = mUTF8Decoder.getBytesConsumed();
+            } else {
+                count = Math.min(end - base, codePoints.length);
+                for (int i = 0; i < count; i++) {
+                    codePoints[i] = buffer[base + i] & 0xff;
+                }
+                consumed = count;
+            }
+            int processed = process(codePoints, count, utf8);
+
+            if (mUTF8DecoderReset) {
+                // Decode the rest of the input again, from where it stopped
+                if (utf8) {
+                    mUTF8Decoder.rewind();
+                    mUTF8Decoder.decode(buffer, base, end - base, codePoints, processed);
+                    consumed = mUTF8Decoder.getBytesConsumed();
+                } else {
+                    consumed = processed;
+                }
+            }
+            base += consumed;
+        }
+    }
+
+    /**
+     * Process decoded input, stopping early if the UTF-8 mode changes or the
+     * terminal is reset, since the input after that point must be decoded
+     * again.
+     *
+     * @param utf8 Whether the code points were decoded from UTF-8, rather
+     *             than widened a byte at a time.
+     * @return The number of code points processed.
+     */
+    private int process(int[] codePoints, int count, boolean utf8) {
+        for (int i = 0; i < count; i++) {
+            int c = codePoints[i];
             try {
-                process(b);
+                if (c >= 32 && c < 127) {
+                    int run;
+                    if (canEmitAsciiRun()) {
+                        run = emitAsciiRun(codePoints, i, count - i);
+                    } else {
+                        run = collectParameters(codePoints, i, count - i);
+                    }
+                    if (run > 0) {
+                        i += run - 1;
+                        mProcessedCharCount += run;
+                        continue;
+                    }
+                }
+                if (!utf8 || c < 0xa0) {
+                    /* A byte, or a code point which is ASCII or a C1 control
+                       character */
+                    process((byte) c);
+                } else {
+                    emit(c);
+                }
                 mProcessedCharCount++;
             } catch (Exception e) {
                 Log.e(EmulatorDebug.LOG_TAG, "Exception while processing character "
                         + mProcessedCharCount + " code "
-                        + Integer.toString(b), e);
+                        + Integer.toString(c), e);
+            }
+            if (mUTF8DecoderReset) {
+                return i + 1;
             }
         }
+        return count;
     }
 
-    private void process(byte b) {
-        process(b, true);
+    /**
+     * Whether a printable ASCII character arriving now would go straight to
+     * emit() as itself, so that emitAsciiRun() can handle it.
+     */
+    private boolean canEmitAsciiRun() {
+        return mEscapeState == ESC_NONE && !mUseAlternateCharSet && !mInsertMode;
     }
 
-    private static final Queue<Integer> mEscSeq = new LinkedList<Integer>();
+    /**
+     * Fast path for plain text: emit the run of printable ASCII characters
+     * (0x20-0x7e) starting at codePoints[base], writing each stretch that
+     * fits on the current row in one go.  Equivalent to calling process() on
+     * every character of the run.
+     *
+     * @return The number of characters consumed, at least 1.
+     */
+    private int emitAsciiRun(int[] codePoints, int base, int length) {
+        int runLength = 1;
+        while (runLength < length) {
+            int c = codePoints[base + runLength];
+            if (c < 32 || c >= 127) {
+                break;
+            }
+            runLength++;
+        }
+
+        boolean autoWrap = autoWrapEnabled();
+        int style = getStyle();
+        int i = 0;
+        while (i < runLength) {
+            if (autoWrap && mCursorCol == mColumns - 1 && mAboutToAutoWrap) {
+                wrapLine();
+            }
+            int col = mCursorCol;
+            if (!autoWrap && col == mColumns - 1) {
+                // Every remaining character lands in the last column; only
+                // the final one will be visible.
+                i = runLength - 1;
+            }
+            int count = Math.min(mColumns - col, runLength - i);
+            mScreen.set(col, mCursorRow, codePoints, base + i, count, style);
+            mJustWrapped = false;
+            i += count;
+
+            int lastCol = col + count - 1;
+            if (autoWrap) {
+                mAboutToAutoWrap = (lastCol == mColumns - 1);
+                if (mAboutToAutoWrap) {
+                    mScreen.setLineWrap(mCursorRow);
+                }
+            }
+            mCursorCol = Math.min(lastCol + 1, mColumns - 1);
+        }
+        mLastEmittedCharWidth = 1;
+        mContinueSequence = false;
+        return runLength;
+    }
+
+    /**
+     * DroidVim control codes (CSI Ps t and OSC 99 ; Ps) waiting for the view,
+     * in a ring of ESC_CTRL_QUEUE_SIZE entries.  If the view falls behind,
+     * the oldest codes are dropped.
+     */
+    private static final int ESC_CTRL_QUEUE_SIZE = 256;
+    private final int[] mEscCtrlQueue = new int[ESC_CTRL_QUEUE_SIZE];
+    private int mEscCtrlHead;
+    private int mEscCtrlCount;
+
     public void setEscCtrlMode() {
         int esc = 0;
         for (int i = 0; i <= mArgIndex; i++) {
@@ -696,43 +746,294 @@ public void setEscCtrlMode() {
     }
 
     public void setOSCMode(int esc) {
-        mEscSeq.offer(esc);
-        mUTF8ModeNotify.onUpdate();
+        if (esc < 0) {
+            // No parameter; -1 would read as an empty queue
+            return;
+        }
+        if (mEscCtrlCount == ESC_CTRL_QUEUE_SIZE) {
+            mEscCtrlHead = (mEscCtrlHead + 1) % ESC_CTRL_QUEUE_SIZE;
+            mEscCtrlCount--;
+        }
+        mEscCtrlQueue[(mEscCtrlHead + mEscCtrlCount) % ESC_CTRL_QUEUE_SIZE] = esc;
+        mEscCtrlCount++;
     }
 
+    /**
+     * Take the oldest pending DroidVim control code.
+     *
+     * @return The control code, or -1 if there is none.
+     */
     public int getEscCtrlMode() {
-        if (mEscSeq.size() == 0) return -1;
-        return mEscSeq.poll();
+        if (mEscCtrlCount == 0) return -1;
+        int esc = mEscCtrlQueue[mEscCtrlHead];
+        mEscCtrlHead = (mEscCtrlHead + 1) % ESC_CTRL_QUEUE_SIZE;
+        mEscCtrlCount--;
+        return esc;
     }
 
-    private void process(byte b, boolean doUTF8) {
-        // Let the UTF-8 decoder try to handle it if we're in UTF-8 mode
-        if (doUTF8 && mUTF8Mode && handleUTF8Sequence(b)) {
-            return;
+    /**
+     * Take up to <code>modes.length</code> pending DroidVim control codes,
+     * oldest first.
+     *
+     * @param modes Array to receive the control codes.
+     * @return The number of control codes stored in <code>modes</code>.
+     */
+    public int getEscCtrlModes(int[] modes) {
+        int count = Math.min(mEscCtrlCount, modes.length);
+        int firstRun = Math.min(count, ESC_CTRL_QUEUE_SIZE - mEscCtrlHead);
+        System.arraycopy(mEscCtrlQueue, mEscCtrlHead, modes, 0, firstRun);
+        System.arraycopy(mEscCtrlQueue, 0, modes, firstRun, count - firstRun);
+        mEscCtrlHead = (mEscCtrlHead + count) % ESC_CTRL_QUEUE_SIZE;
+        mEscCtrlCount -= count;
+        return count;
+    }
+
+    // Parser actions, stored in the low bits of a TRANSITIONS entry.
+
+    /** Do nothing. */
+    private static final int ACTION_IGNORE = 0;
+
+    /** Display the byte. */
+    private static final int ACTION_PRINT = 1;
+
+    /** Execute a C0 control character; the escape state is unchanged. */
+    private static final int ACTION_EXECUTE = 2;
+
+    /** CAN or SUB inside an escape sequence: abort it. */
+    private static final int ACTION_CANCEL = 3;
+
+    /** ESC: start a new escape sequence. */
+    private static final int ACTION_ESCAPE = 4;
+
+    /** Move to the state stored in the entry, continuing the sequence. */
+    private static final int ACTION_ENTER = 5;
+
+    /** Accumulate a decimal digit into the current CSI parameter. */
+    private static final int ACTION_PARAM = 6;
+
+    /** ';': move on to the next CSI parameter. */
+    private static final int ACTION_PARAM_NEXT = 7;
+
+    /** Hand the byte to the handler for the current escape state. */
+    private static final int ACTION_DISPATCH = 8;
+
+    /** ESC ]: start collecting an OSC string. */
+    private static final int ACTION_OSC_START = 9;
+
+    /** Append the byte to the OSC string. */
+    private static final int ACTION_OSC_PUT = 10;
+
+    /** BEL terminating an OSC string. */
+    private static final int ACTION_OSC_END = 11;
+
+    private static final int ACTION_MASK = 0xf;
+    private static final int NEXT_STATE_SHIFT = 4;
+    private static final int ESCAPE_STATE_COUNT = 11;
+
+    /**
+     * The parser state machine, after the model of the DEC ANSI parser:
+     * TRANSITIONS[(state << 8) | (b & 0xff)] holds the action to take for
+     * byte b in escape state <code>state</code>, and for ACTION_ENTER the
+     * state to move to.  Bytes which finish (or break) a sequence are
+     * dispatched to the doEsc... handlers below, which may still continue
+     * the sequence.
+     */
+    private static final byte[] TRANSITIONS = new byte[ESCAPE_STATE_COUNT << 8];
+    static {
+        for (int state = 0; state < ESCAPE_STATE_COUNT; state++) {
+            for (int b = 0; b < 256; b++) {
+                TRANSITIONS[(state << 8) | b] = (byte) computeTransition(state, b);
+            }
         }
+    }
+
+    private static int transition(int action, int nextState) {
+        return action | (nextState << NEXT_STATE_SHIFT);
+    }
+
+    private static int computeTransition(int state, int b) {
+        switch (b) {
+        case 0: // NUL
+            return ACTION_IGNORE;
+
+        case 7: // BEL
+            /* If in an OSC sequence, BEL may terminate a string; otherwise do
+             * nothing */
+            return state == ESC_RIGHT_SQUARE_BRACKET ? ACTION_OSC_END : ACTION_IGNORE;
+
+        case 8: // BS
+        case 9: // HT
+        case 10: // LF
+        case 11: // VT
+        case 12: // FF
+        case 13: // CR
+        case 14: // SO
+        case 15: // SI
+            return ACTION_EXECUTE;
+
+        case 24: // CAN
+        case 26: // SUB
+            return state != ESC_NONE ? ACTION_CANCEL : ACTION_IGNORE;
+
+        case 27: // ESC
+            // Starts an escape sequence unless we're parsing a string
+            if (state == ESC_RIGHT_SQUARE_BRACKET) {
+                return transition(ACTION_ENTER, ESC_RIGHT_SQUARE_BRACKET_ESC);
+            }
+            return ACTION_ESCAPE;
+        }
+
+        switch (state) {
+        case ESC_NONE:
+            return (b >= 32 && b < 128) ? ACTION_PRINT : ACTION_IGNORE;
+
+        case ESC:
+            switch (b) {
+            case '#':
+                return transition(ACTION_ENTER, ESC_POUND);
+            case '(':
+                return transition(ACTION_ENTER, ESC_SELECT_LEFT_PAREN);
+            case ')':
+                return transition(ACTION_ENTER, ESC_SELECT_RIGHT_PAREN);
+            case '[':
+                return transition(ACTION_ENTER, ESC_LEFT_SQUARE_BRACKET);
+            case ']': // OSC
+                return ACTION_OSC_START;
+            }
+            break;
+
+        case ESC_LEFT_SQUARE_BRACKET:
+            switch (b) {
+            case '?': // Esc [ ? -- start of a private mode set
+                return transition(ACTION_ENTER, ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK);
+            case '>': // Esc [ >
+                return transition(ACTION_ENTER, ESC_LEFT_SQUARE_BRACKET_LARGER_THAN);
+            }
+            // fall through
+        case ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK:
+        case ESC_LEFT_SQUARE_BRACKET_LARGER_THAN:
+            if (b >= '0' && b <= '9') {
+                return ACTION_PARAM;
+            } else if (b == ';') {
+                return ACTION_PARAM_NEXT;
+            }
+            break;
+
+        case ESC_RIGHT_SQUARE_BRACKET:
+            return ACTION_OSC_PUT;
+        }
+        return ACTION_DISPATCH;
+    }
+
+    /**
+     * Fast path for CSI parameters: accumulate the run of digits and ';'
+     * starting at codePoints[base], if the current state takes parameters.
+     *
+     * @return The number of characters consumed, possibly 0.
+     */
+    private int collectParameters(int[] codePoints, int base, int length) {
+        int state = mEscapeState << 8;
+        int[] args = mArgs;
+        int argIndex = mArgIndex;
+        int i = 0;
+        for (; i < length; i++) {
+            int c = codePoints[base + i];
+            if (c >= 0x80) {
+                break;
+            }
+            int action = TRANSITIONS[state | c] & ACTION_MASK;
+            if (action == ACTION_PARAM) {
+                if (argIndex < MAX_ESCAPE_PARAMETERS) {
+                    args[argIndex] = Math.max(args[argIndex], 0) * 10 + (c - '0');
+                }
+            } else if (action == ACTION_PARAM_NEXT) {
+                if (argIndex < MAX_ESCAPE_PARAMETERS) {
+                    argIndex++;
+                }
+            } else {
+                break;
+            }
+        }
+        mArgIndex = argIndex;
+        return i;
+    }
 
+    private void process(byte b) {
         // Handle C1 control characters
         if ((b & 0x80) == 0x80 && (b & 0x7f) <= 0x1f) {
             /* ESC ((code & 0x7f) + 0x40) is the two-byte escape sequence
                corresponding to a particular C1 code */
-            process((byte) 27, false);
-            process((byte) ((b & 0x7f) + 0x40), false);
+            process((byte) 27);
+            process((byte) ((b & 0x7f) + 0x40));
             return;
         }
 
-        switch (b) {
-        case 0: // NUL
-            // Do nothing
+        int transition = TRANSITIONS[(mEscapeState << 8) | (b & 0xff)] & 0xff;
+        switch (transition & ACTION_MASK) {
+        case ACTION_IGNORE:
             break;
 
-        case 7: // BEL
-            /* If in an OSC sequence, BEL may terminate a string; otherwise do
-             * nothing */
-            if (mEscapeState == ESC_RIGHT_SQUARE_BRACKET) {
-                doEscRightSquareBracket(b);
+        case ACTION_PRINT:
+            emit(b);
+            break;
+
+        case ACTION_EXECUTE:
+            execute(b);
+            break;
+
+        case ACTION_CANCEL:
+            mEscapeState = ESC_NONE;
+            emit((byte) 127);
+            break;
+
+        case ACTION_ESCAPE:
+            startEscapeSequence(ESC);
+            break;
+
+        case ACTION_ENTER:
+            mEscapeState = transition >> NEXT_STATE_SHIFT;
+            break;
+
+        case ACTION_PARAM:
+            if (mArgIndex < MAX_ESCAPE_PARAMETERS) {
+                mArgs[mArgIndex] = Math.max(mArgs[mArgIndex], 0) * 10 + (b - '0');
             }
             break;
 
+        case ACTION_PARAM_NEXT:
+            if (mArgIndex < MAX_ESCAPE_PARAMETERS) {
+                mArgIndex++;
+            }
+            break;
+
+        case ACTION_OSC_START:
+            startCollectingOSCArgs();
+            mEscapeState = ESC_RIGHT_SQUARE_BRACKET;
+            break;
+
+        case ACTION_OSC_PUT:
+            if (mOSCArgLength < MAX_OSC_STRING_LENGTH) {
+                mOSCArg[mOSCArgLength++] = b;
+            } else {
+                unknownSequence(b);
+            }
+            break;
+
+        case ACTION_OSC_END:
+            doOSC();
+            break;
+
+        default:
+            dispatch(b);
+            break;
+        }
+    }
+
+    /**
+     * Execute a C0 control character.
+     */
+    private void execute(byte b) {
+        switch (b) {
         case 8: // BS
             setCursorCol(Math.max(0, mCursorCol - 1));
             break;
@@ -759,146 +1060,60 @@ private void process(byte b, boolean doUTF8) {
         case 15: // SI:
             setAltCharSet(false);
             break;
+        }
+    }
 
-
-        case 24: // CAN
-        case 26: // SUB
-            if (mEscapeState != ESC_NONE) {
-                mEscapeState = ESC_NONE;
-                emit((byte) 127);
-            }
+    /**
+     * Hand a byte which ends (or doesn't belong in) the current escape
+     * sequence to the handler for the current state.  The handler ends the
+     * sequence unless it calls continueSequence().
+     */
+    private void dispatch(byte b) {
+        mContinueSequence = false;
+        switch (mEscapeState) {
+        case ESC:
+            doEsc(b);
             break;
 
-        case 27: // ESC
-            // Starts an escape sequence unless we're parsing a string
-            if (mEscapeState != ESC_RIGHT_SQUARE_BRACKET) {
-                startEscapeSequence(ESC);
-            } else {
-                doEscRightSquareBracket(b);
-            }
+        case ESC_POUND:
+            doEscPound(b);
             break;
 
-        default:
-            mContinueSequence = false;
-            switch (mEscapeState) {
-            case ESC_NONE:
-                if (b >= 32) {
-                    emit(b);
-                }
-                break;
-
-            case ESC:
-                doEsc(b);
-                break;
-
-            case ESC_POUND:
-                doEscPound(b);
-                break;
-
-            case ESC_SELECT_LEFT_PAREN:
-                doEscSelectLeftParen(b);
-                break;
-
-            case ESC_SELECT_RIGHT_PAREN:
-                doEscSelectRightParen(b);
-                break;
-
-            case ESC_LEFT_SQUARE_BRACKET:
-                doEscLeftSquareBracket(b); // CSI
-                break;
+        case ESC_SELECT_LEFT_PAREN:
+            doEscSelectLeftParen(b);
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET_LARGER_THAN:
-                parseArg(b);
-                break;
+        case ESC_SELECT_RIGHT_PAREN:
+            doEscSelectRightParen(b);
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK:
-                doEscLSBQuest(b); // CSI ?
-                break;
+        case ESC_LEFT_SQUARE_BRACKET:
+            doEscLeftSquareBracket(b); // CSI
+            break;
 
-            case ESC_PERCENT:
-                doEscPercent(b);
-                break;
+        case ESC_LEFT_SQUARE_BRACKET_LARGER_THAN:
+            parseArg(b);
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET:
-                doEscRightSquareBracket(b);
-                break;
+        case ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK:
+            doEscLSBQuest(b); // CSI ?
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET_ESC:
-                doEscRightSquareBracketEsc(b);
-                break;
+        case ESC_PERCENT:
+            doEscPercent(b);
+            break;
 
-            default:
-                unknownSequence(b);
-                break;
-            }
-            if (!mContinueSequence) {
-                mEscapeState = ESC_NONE;
-            }
+        case ESC_RIGHT_SQUARE_BRACKET_ESC:
+            doEscRightSquareBracketEsc(b);
             break;
-        }
-    }
 
-    private boolean handleUTF8Sequence(byte b) {
-        if (mUTF8ToFollow == 0 && (b & 0x80) == 0) {
-            // ASCII character -- we don't need to handle this
-            return false;
+        default:
+            unknownSequence(b);
+            break;
         }
-
-        if (mUTF8ToFollow > 0) {
-            if ((b & 0xc0) != 0x80) {
-                /* Not a UTF-8 continuation byte (doesn't begin with 0b10)
-                   Replace the entire sequence with the replacement char */
-                mUTF8ToFollow = 0;
-                mUTF8ByteBuffer.clear();
-                emit(UNICODE_REPLACEMENT_CHAR);
-
-                /* The Unicode standard (section 3.9, definition D93) requires
-                 * that we now attempt to process this byte as though it were
-                 * the beginning of another possibly-valid sequence */
-                return handleUTF8Sequence(b);
-            }
-
-            mUTF8ByteBuffer.put(b);
-            if (--mUTF8ToFollow == 0) {
-                // Sequence complete -- decode and emit it
-                ByteBuffer byteBuf = mUTF8ByteBuffer;
-                CharBuffer charBuf = mInputCharBuffer;
-                CharsetDecoder decoder = mUTF8Decoder;
-
-                byteBuf.rewind();
-                decoder.reset();
-                decoder.decode(byteBuf, charBuf, true);
-                decoder.flush(charBuf);
-
-                char[] chars = charBuf.array();
-                if (chars[0] >= 0x80 && chars[0] <= 0x9f) {
-                    /* Sequence decoded to a C1 control character which needs
-                       to be sent through process() again */
-                    process((byte) chars[0], false);
-                } else {
-                    emit(chars);
-                }
-
-                byteBuf.clear();
-                charBuf.clear();
-            }
-        } else {
-            if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
-                mUTF8ToFollow = 1;
-            } else if ((b & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
-                mUTF8ToFollow = 2;
-            } else if ((b & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
-                mUTF8ToFollow = 3;
-            } else {
-                // Not a valid UTF-8 sequence start -- replace this char
-                emit(UNICODE_REPLACEMENT_CHAR);
-                return true;
-            }
-
-            mUTF8ByteBuffer.put(b);
+        if (!mContinueSequence) {
+            mEscapeState = ESC_NONE;
         }
-
-        return true;
     }
 
     private void setAltCharSet(boolean alternateCharSet) {
@@ -966,6 +1181,9 @@ private void doEscLSBQuest(byte b) {
                     mScreen = mAltBuffer;
                 }
                 break;
+            case 2004:
+                mBracketedPasteMode = true;
+                break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = arg;
@@ -993,6 +1211,9 @@ private void doEscLSBQuest(byte b) {
                  * implement an escape sequence that does that. */
                 mScreen = mMainBuffer;
                 break;
+            case 2004:
+                mBracketedPasteMode = false;
+                break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = 0;
@@ -1040,10 +1261,10 @@ private int getDecFlagsMask(int argument) {
 
     private void startEscapeSequence(int escapeState) {
         mEscapeState = escapeState;
+        // Parameters past mArgIndex haven't been touched since they were
+        // last cleared.
+        Arrays.fill(mArgs, 0, Math.min(mArgIndex + 1, MAX_ESCAPE_PARAMETERS), -1);
         mArgIndex = 0;
-        for (int j = 0; j < MAX_ESCAPE_PARAMETERS; j++) {
-            mArgs[j] = -1;
-        }
     }
 
     private void doLinefeed() {
@@ -1112,19 +1333,8 @@ private void doEscPound(byte b) {
     }
 
     private void doEsc(byte b) {
+        // ESC # ( ) [ ] are state transitions handled by TRANSITIONS
         switch (b) {
-        case '#':
-            continueSequence(ESC_POUND);
-            break;
-
-        case '(':
-            continueSequence(ESC_SELECT_LEFT_PAREN);
-            break;
-
-        case ')':
-            continueSequence(ESC_SELECT_RIGHT_PAREN);
-            break;
-
         case '7': // DECSC save cursor
             doSaveCursor();
             break;
@@ -1177,19 +1387,10 @@ private void doEsc(byte b) {
             sendDeviceAttributes();
             break;
 
-        case '[':
-            continueSequence(ESC_LEFT_SQUARE_BRACKET);
-            break;
-
         case '=': // DECKPAM
             mbKeypadApplicationMode = true;
             break;
 
-        case ']': // OSC
-            startCollectingOSCArgs();
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET);
-            break;
-
         case '>' : // DECKPNM
             mbKeypadApplicationMode = false;
             break;
@@ -1215,7 +1416,7 @@ private void doRestoreCursor() {
     }
 
     private void doEscLeftSquareBracket(byte b) {
-        // CSI
+        // CSI (parameters, ? and > are handled by TRANSITIONS)
         switch (b) {
         case '@': // ESC [ Pn @ - ICH Insert Characters
         {
@@ -1341,14 +1542,6 @@ private void doEscLeftSquareBracket(byte b) {
             setCursorCol(prevTabStop(mCursorCol));
             break;
 
-        case '?': // Esc [ ? -- start of a private mode set
-            continueSequence(ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK);
-            break;
-
-        case '>': // Esc [ >
-            continueSequence(ESC_LEFT_SQUARE_BRACKET_LARGER_THAN);
-            break;
-
         case 'c': // Send device attributes
             sendDeviceAttributes();
             break;
@@ -1548,6 +1741,12 @@ private void selectGraphicRendition() {
                     mForeColor = color;
                 }
                 i += 2;
+            } else if (code == 38 && i+4 <= mArgIndex && mArgs[i+1] == 2) { // foreground RGB color
+                int color = getTrueColor(i + 2);
+                if (color >= 0) {
+                    mForeColor = color;
+                }
+                i += 4;
             } else if (code == 39) { // set default text color
                 mForeColor = mDefaultForeColor;
             } else if (code >= 40 && code <= 47) { // background color
@@ -1559,6 +1758,12 @@ private void selectGraphicRendition() {
                     mBackColor = color;
                 }
                 i += 2;
+            } else if (code == 48 && i+4 <= mArgIndex && mArgs[i+1] == 2) { // background RGB color
+                int color = getTrueColor(i + 2);
+                if (color >= 0) {
+                    mBackColor = color;
+                }
+                i += 4;
             } else if (code == 49) { // set default background color
                 mBackColor = mDefaultBackColor;
             } else if (code >= 90 && code <= 97) { // bright foreground color
@@ -1588,18 +1793,62 @@ private boolean isValidColor(int color) {
         return color >= 0 && color < TextStyle.ciColorLength;
     }
 
-    private void doEscRightSquareBracket(byte b) {
-        switch (b) {
-        case 0x7:
-            doOSC();
-            break;
-        case 0x1b: // Esc, probably start of Esc \ sequence
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET_ESC);
-            break;
-        default:
-            collectOSCArgs(b);
-            break;
+    /**
+     * @param arg The index in mArgs of the red, green and blue components
+     *            of an RGB color.
+     * @return The color index for the color, or -1 if it's invalid.
+     */
+    private int getTrueColor(int arg) {
+        int rgb = 0;
+        for (int i = arg; i < arg + 3; i++) {
+            int component = Math.max(mArgs[i], 0);
+            if (component > 255) {
+                if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+                    Log.w(EmulatorDebug.LOG_TAG,
+                            String.format("Invalid color component %d", component));
+                }
+                return -1;
+            }
+            rgb = (rgb << 8) | component;
+        }
+
+        TrueColorTable trueColors = mTrueColors;
+        int color = trueColors.intern(rgb);
+        if (color < 0 && mTrueColorMisses == 0) {
+            // Free the colors which are no longer on either screen
+            int[] refs = mTrueColorRefs;
+            if (refs == null) {
+                refs = mTrueColorRefs = new int[TrueColorTable.SIZE];
+            } else {
+                Arrays.fill(refs, 0);
+            }
+            mMainBuffer.countTrueColors(refs);
+            if (mAltBuffer != null) {
+                mAltBuffer.countTrueColors(refs);
+            }
+            TrueColorTable.countReferences(getStyle(), refs);
+            if (trueColors.compact(refs) > 0) {
+                color = trueColors.intern(rgb);
+            } else {
+                // Everything is still in use; don't count again for a while
+                mTrueColorMisses = TrueColorTable.SIZE;
+            }
+        }
+        if (color < 0) {
+            if (mTrueColorMisses > 0) {
+                mTrueColorMisses--;
+            }
+            color = TrueColorTable.toPaletteColor(rgb);
         }
+        return color;
+    }
+
+    /**
+     * @return The colors given as RGB values, which a renderer needs to draw
+     *         styles using them.
+     */
+    TrueColorTable getTrueColors() {
+        return mTrueColors;
     }
 
     private void doEscRightSquareBracketEsc(byte b) {
@@ -1917,14 +2166,7 @@ private void emit(int c, int style) {
 
         if (autoWrap) {
             if (mCursorCol == mColumns - 1 && (mAboutToAutoWrap || width == 2)) {
-                mScreen.setLineWrap(mCursorRow);
-                mCursorCol = 0;
-                mJustWrapped = true;
-                if (mCursorRow + 1 < mBottomMargin) {
-                    mCursorRow++;
-                } else {
-                    scroll();
-                }
+                wrapLine();
             }
         }
 
@@ -1962,6 +2204,21 @@ private void emit(int c, int style) {
         }
     }
 
+    /**
+     * Move the cursor to the start of the next line for an automatic wrap,
+     * scrolling if needed.
+     */
+    private void wrapLine() {
+        mScreen.setLineWrap(mCursorRow);
+        mCursorCol = 0;
+        mJustWrapped = true;
+        if (mCursorRow + 1 < mBottomMargin) {
+            mCursorRow++;
+        } else {
+            scroll();
+        }
+    }
+
     private void emit(int c) {
         emit(c, getStyle());
     }
@@ -1974,19 +2231,6 @@ private void emit(byte b) {
         }
     }
 
-    /**
-     * Send a UTF-16 char or surrogate pair to the screen.
-     *
-     * @param c A char[2] containing either a single UTF-16 char or a surrogate pair to be sent to the screen.
-     */
-    private void emit(char[] c) {
-        if (Character.isHighSurrogate(c[0])) {
-            emit(Character.toCodePoint(c[0], c[1]));
-        } else {
-            emit(c[0]);
-        }
-    }
-
     /**
      * Send an array of UTF-16 chars to the screen.
      *
@@ -2037,6 +2281,7 @@ public void reset() {
         mCursorRow = 0;
         mCursorCol = 0;
         mArgIndex = 0;
+        Arrays.fill(mArgs, -1);
         mContinueSequence = false;
         mEscapeState = ESC_NONE;
         mSavedCursorRow = 0;
@@ -2056,6 +2301,7 @@ public void reset() {
         mForeColor = mDefaultForeColor;
         mBackColor = mDefaultBackColor;
         mbKeypadApplicationMode = false;
+        mBracketedPasteMode = false;
         mAlternateCharSet = false;
         mCharSet[0] = CHAR_SET_ASCII;
         mCharSet[1] = CHAR_SET_SPECIAL_GRAPHICS;
@@ -2066,9 +2312,7 @@ public void reset() {
 
         setUTF8Mode(mDefaultUTF8Mode);
         mUTF8EscapeUsed = false;
-        mUTF8ToFollow = 0;
-        mUTF8ByteBuffer.clear();
-        mInputCharBuffer.clear();
+        mUTF8DecoderReset = true;
     }
 
     public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
@@ -2079,10 +2323,8 @@ public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
     }
 
     public void setUTF8Mode(boolean utf8Mode) {
-        if (utf8Mode && !mUTF8Mode) {
-            mUTF8ToFollow = 0;
-            mUTF8ByteBuffer.clear();
-            mInputCharBuffer.clear();
+        if (utf8Mode != mUTF8Mode) {
+            mUTF8DecoderReset = true;
         }
         mUTF8Mode = utf8Mode;
         if (mUTF8ModeNotify != null) {
@@ -2111,6 +2353,18 @@ public String getSelectedText(int x1, int y1, int x2, int y2) {
         return mScreen.getSelectedText(x1, y1, x2, y2);
     }
 
+    /**
+     * Start or stop fast-forwarding through a flood of output: while
+     * fast-forwarding, rows scrolled off the screens are kept only as far as
+     * the last <code>keepRows</code> rows of scrollback.
+     */
+    void setFastForward(boolean fastForward, int keepRows) {
+        mMainBuffer.setFastForward(fastForward, keepRows);
+        if (mAltBuffer != null) {
+            mAltBuffer.setFastForward(fastForward, keepRows);
+        }
+    }
+
     public void finish() {
         if (mAltBuffer != null) {
             mAltBuffer.finish();
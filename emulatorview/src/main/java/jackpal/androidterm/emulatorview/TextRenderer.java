@@ -35,6 +35,8 @@ interface TextRenderer {
     int MODE_FN_SHIFT = 6;
 
     void setReverseVideo(boolean reverseVideo);
+    /** Set the table of RGB colors used by the styles to be drawn. */
+    void setTrueColors(TrueColorTable trueColors);
     float getCharacterWidth();
     int getCharacterHeight();
     /** @return pixels above top row of text to avoid looking cramped. */
@@ -21,6 +21,11 @@ final class TextStyle {
 
     final static int ciColorLength = ciCursorBackground + 1;
 
+    // Colors given as RGB values use the indices left over after the special
+    // colors; see TrueColorTable
+    final static int ciTrueColorBase = ciColorLength;
+    final static int ciPaletteLength = 1 << 9;
+
     final static int kNormalTextStyle = encode(ciForeground, ciBackground, fxNormal);
 
     static int encode(int foreColor, int backColor, int effect) {
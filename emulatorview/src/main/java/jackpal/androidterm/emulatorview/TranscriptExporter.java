@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Writes the text of a transcript a row at a time, without building it up
+ * as one String first; see TranscriptScreen.exportTranscript().
+ *
+ * The text can be written as plain text, as text with ANSI escape sequences
+ * giving its colors and effects, or as HTML to go inside a pre element.
+ * Rows are joined into lines as in TranscriptScreen.getTranscriptText(),
+ * and blank lines at the start and the end are left out.
+ *
+ * Text is collected in a fixed size buffer, and encoded as UTF-8 into
+ * another when it fills up, so the memory used for it doesn't depend on the
+ * size of the transcript.
+ *
+ * The emulator lock is only held while rows are copied out of the
+ * transcript, not while they are encoded and written, so that a slow
+ * channel doesn't hold up the emulator or the view.  Archived rows keep
+ * their numbers as more rows scroll by, so they are copied SLICE_ROWS at a
+ * time.  The rows of the circular buffer and the screen move with every
+ * scroll, and are copied all together once the archived rows are written.
+ */
+public class TranscriptExporter {
+    public static final int FORMAT_TEXT = 0;
+    public static final int FORMAT_ANSI = 1;
+    public static final int FORMAT_HTML = 2;
+
+    private static final int BUFFER_SIZE = 8192;
+    // Most archived rows copied per turn of the emulator lock
+    private static final int SLICE_ROWS = 256;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int mFormat;
+    private final ColorScheme mScheme;
+
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+    /* Where the text goes: encoded into mBytes and written to mChannel, or
+       appended as it is to mAppendable */
+    private CharsetEncoder mEncoder;
+    private ByteBuffer mBytes;
+    private WritableByteChannel mChannel;
+    private Appendable mAppendable;
+
+    /* The rows copied for writing: the characters (null if the row is
+       blank), the styles (only for the formats which show them), and
+       whether each row is wrapped */
+    private char[][] mLines = new char[0][];
+    private StyleRow[] mColors = new StyleRow[0];
+    private boolean[] mWraps = new boolean[0];
+    private int mRowCount;
+    /** The absolute number of the next archived row to copy. */
+    private long mNextArchivedRow;
+    /** The RGB colors the rows may refer to, by color index, or null. */
+    private int[] mTrueColors;
+    private int mRowsDefaultStyle;
+
+    private int mDefaultStyle;
+    /** The style of the text written so far. */
+    private int mStyle;
+    /** Whether any text has been written yet. */
+    private boolean mStarted;
+    /** Line breaks due before the next text. */
+    private int mNewlines;
+
+    /**
+     * @param format FORMAT_TEXT, FORMAT_ANSI or FORMAT_HTML.
+     * @param scheme The colors to use for the default foreground and
+     *               background colors in HTML.
+     */
+    public TranscriptExporter(int format, ColorScheme scheme) {
+        mFormat = format;
+        mScheme = scheme;
+    }
+
+    void export(TranscriptScreen screen, Lock lock, WritableByteChannel channel)
+            throws IOException {
+        if (mEncoder == null) {
+            mEncoder = Charset.forName("UTF-8").newEncoder();
+            mEncoder.onMalformedInput(CodingErrorAction.REPLACE);
+            mEncoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+            mBytes = ByteBuffer.allocateDirect(BUFFER_SIZE * 2);
+        }
+        mEncoder.reset();
+        mChannel = channel;
+        try {
+            export(screen, lock);
+        } finally {
+            mChannel = null;
+        }
+    }
+
+    void export(TranscriptScreen screen, Lock lock, Appendable out) throws IOException {
+        mAppendable = out;
+        try {
+            export(screen, lock);
+        } finally {
+            mAppendable = null;
+        }
+    }
+
+    private void export(TranscriptScreen screen, Lock lock) throws IOException {
+        mChars.clear();
+        mNextArchivedRow = 0;
+        mTrueColors = null;
+        mStarted = false;
+        mNewlines = 0;
+        boolean first = true;
+        boolean more = true;
+        try {
+            while (more) {
+                lock.lock();
+                try {
+                    more = screen.copyRowsForExport(this);
+                } finally {
+                    lock.unlock();
+                }
+                if (first) {
+                    first = false;
+                    mDefaultStyle = mRowsDefaultStyle;
+                    mStyle = mDefaultStyle;
+                    if (mFormat == FORMAT_HTML) {
+                        writeHtmlStyle(mDefaultStyle);
+                    }
+                }
+                for (int i = 0; i < mRowCount; ++i) {
+                    writeRow(mLines[i], mColors[i], mWraps[i]);
+                }
+            }
+            setStyle(mDefaultStyle);
+            if (mFormat == FORMAT_HTML) {
+                write("</span>");
+            }
+            flush(true);
+        } finally {
+            clearRows();
+        }
+    }
+
+    /**
+     * Copy the next slice of rows to write: up to SLICE_ROWS archived rows
+     * from the one after the last copied, or, once there are none left, the
+     * rest of the transcript and the screen.  Called with the emulator lock
+     * held.
+     *
+     * @param lastRow The last row of the screen.
+     * @return Whether there are rows left after these.
+     */
+    boolean copyRows(UnicodeTranscript data, int lastRow, TrueColorTable trueColors) {
+        mRowsDefaultStyle = data.getDefaultStyle();
+        int archived = data.getArchivedRows();
+        long archiveEnd = data.getArchiveEnd();
+        // Rows may have been dropped from the archive since the last slice
+        long next = Math.max(mNextArchivedRow, archiveEnd - archived);
+        int firstRow = -data.getActiveTranscriptRows();
+        boolean more;
+        if (next < archiveEnd) {
+            firstRow += (int) (next - (archiveEnd - archived));
+            int count = (int) Math.min(SLICE_ROWS, archiveEnd - next);
+            lastRow = firstRow + count - 1;
+            mNextArchivedRow = next + count;
+            more = true;
+        } else {
+            firstRow += archived;
+            more = false;
+        }
+
+        int count = lastRow - firstRow + 1;
+        ensureCapacity(count);
+        for (int i = 0; i < count; ++i) {
+            copyRow(data, firstRow + i, i);
+        }
+        mRowCount = count;
+
+        if (trueColors != null && mFormat != FORMAT_TEXT) {
+            if (mTrueColors == null) {
+                mTrueColors = new int[TextStyle.ciPaletteLength];
+            }
+            trueColors.copyTo(mTrueColors);
+        }
+        return more;
+    }
+
+    /**
+     * Let go of the rows copied, so that an exporter kept for later doesn't
+     * hold on to a transcript's worth of them.
+     */
+    void clearRows() {
+        mLines = new char[0][];
+        mColors = new StyleRow[0];
+        mWraps = new boolean[0];
+        mRowCount = 0;
+    }
+
+    private void copyRow(UnicodeTranscript data, int row, int slot) {
+        char[] line = data.getLine(row);
+        if (line == null) {
+            mLines[slot] = null;
+        } else {
+            char[] copy = mLines[slot];
+            if (copy == null || copy.length != line.length) {
+                copy = new char[line.length];
+            }
+            System.arraycopy(line, 0, copy, 0, line.length);
+            mLines[slot] = copy;
+        }
+        mWraps[slot] = data.getLineWrap(row);
+
+        // Colors only matter to the formats which show them
+        if (mFormat == FORMAT_TEXT) {
+            return;
+        }
+        StyleRow color = data.getLineColor(row);
+        StyleRow colorCopy = mColors[slot];
+        if (colorCopy == null || colorCopy.getColumns() != color.getColumns()) {
+            colorCopy = new StyleRow(mRowsDefaultStyle, color.getColumns());
+            mColors[slot] = colorCopy;
+        }
+        color.copy(0, colorCopy, 0, color.getColumns());
+    }
+
+    private void ensureCapacity(int rows) {
+        if (mLines.length >= rows) {
+            return;
+        }
+        mLines = Arrays.copyOf(mLines, rows);
+        mColors = Arrays.copyOf(mColors, rows);
+        mWraps = Arrays.copyOf(mWraps, rows);
+    }
+
+    private void writeRow(char[] line, StyleRow color, boolean wrap) throws IOException {
+        if (line == null) {
+            if (!wrap) {
+                ++mNewlines;
+            }
+            return;
+        }
+        int defaultStyle = mDefaultStyle;
+
+        // Leave out trailing spaces, unless they're colored or wrapped
+        int length = 0;
+        int column = 0;
+        int end;
+        for (end = 0; end < line.length && line[end] != 0; ++end) {
+            char c = line[end];
+            int style = color != null ? color.get(column) : defaultStyle;
+            if (c != ' ' || style != defaultStyle) {
+                length = end + 1;
+            }
+            if (!Character.isLowSurrogate(c)) {
+                column += UnicodeTranscript.charWidth(line, end);
+            }
+        }
+        if (wrap && length > 0) {
+            length = end;
+        }
+
+        if (length > 0) {
+            if (mStarted) {
+                writeNewlines(mNewlines);
+            }
+            mStarted = true;
+            mNewlines = 0;
+            column = 0;
+            for (int i = 0; i < length; ++i) {
+                char c = line[i];
+                if (color != null) {
+                    setStyle(color.get(column));
+                }
+                writeChar(c);
+                if (!Character.isLowSurrogate(c)) {
+                    column += UnicodeTranscript.charWidth(line, i);
+                }
+            }
+        }
+        if (!wrap) {
+            ++mNewlines;
+        }
+    }
+
+    private void writeNewlines(int count) throws IOException {
+        // Styles don't carry over from one line to the next
+        setStyle(mDefaultStyle);
+        for (int i = 0; i < count; ++i) {
+            write('\n');
+        }
+    }
+
+    private void writeChar(char c) throws IOException {
+        if (mFormat == FORMAT_HTML) {
+            switch (c) {
+            case '&':
+                write("&amp;");
+                return;
+            case '<':
+                write("&lt;");
+                return;
+            case '>':
+                write("&gt;");
+                return;
+            case '"':
+                write("&quot;");
+                return;
+            }
+        }
+        write(c);
+    }
+
+    private void setStyle(int style) throws IOException {
+        if (style == mStyle) {
+            return;
+        }
+        if (mFormat == FORMAT_ANSI) {
+            writeSgr(style);
+        } else if (mFormat == FORMAT_HTML) {
+            if (mStyle != mDefaultStyle) {
+                write("</span>");
+            }
+            if (style != mDefaultStyle) {
+                writeHtmlStyle(style);
+            }
+        }
+        mStyle = style;
+    }
+
+    /**
+     * Write an SGR escape sequence which resets the style and then sets the
+     * effects and colors of style.
+     */
+    private void writeSgr(int style) throws IOException {
+        int effect = TextStyle.decodeEffect(style);
+        write("\033[0");
+        if ((effect & TextStyle.fxBold) != 0) {
+            write(";1");
+        }
+        if ((effect & TextStyle.fxItalic) != 0) {
+            write(";3");
+        }
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            write(";4");
+        }
+        if ((effect & TextStyle.fxBlink) != 0) {
+            write(";5");
+        }
+        if ((effect & TextStyle.fxInverse) != 0) {
+            write(";7");
+        }
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            write(";8");
+        }
+        writeSgrColor(TextStyle.decodeForeColor(style), 30, 90);
+        writeSgrColor(TextStyle.decodeBackColor(style), 40, 100);
+        write('m');
+    }
+
+    /**
+     * @param base The SGR code for color 0 (30 for the foreground, 40 for
+     *             the background).
+     * @param brightBase The SGR code for color 8.
+     */
+    private void writeSgrColor(int color, int base, int brightBase) throws IOException {
+        if (color < 8) {
+            write(';');
+            writeInt(base + color);
+        } else if (color < 16) {
+            write(';');
+            writeInt(brightBase + color - 8);
+        } else if (color < 256) {
+            write(';');
+            writeInt(base + 8);
+            write(";5;");
+            writeInt(color);
+        } else if (color >= TextStyle.ciTrueColorBase && mTrueColors != null) {
+            int rgb = mTrueColors[color];
+            write(';');
+            writeInt(base + 8);
+            write(";2;");
+            writeInt((rgb >> 16) & 0xff);
+            write(';');
+            writeInt((rgb >> 8) & 0xff);
+            write(';');
+            writeInt(rgb & 0xff);
+        }
+        // Otherwise it's the default color, which the reset already set
+    }
+
+    /**
+     * Open a span with the colors and effects of style, drawn the way
+     * the renderers draw them.
+     */
+    private void writeHtmlStyle(int style) throws IOException {
+        int foreColor = TextStyle.decodeForeColor(style);
+        int backColor = TextStyle.decodeBackColor(style);
+        int effect = TextStyle.decodeEffect(style);
+        if ((effect & TextStyle.fxBold) != 0 && foreColor < 8) {
+            // In 16-color mode, bold also implies bright foreground colors
+            foreColor += 8;
+        }
+        int foreground = getColor(foreColor);
+        int background = getColor(backColor);
+        if ((effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0) {
+            int temp = foreground;
+            foreground = background;
+            background = temp;
+        }
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            foreground = background;
+        }
+        write("<span style=\"color:");
+        writeHtmlColor(foreground);
+        write(";background-color:");
+        writeHtmlColor(background);
+        if ((effect & TextStyle.fxBold) != 0) {
+            write(";font-weight:bold");
+        }
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            write(";text-decoration:underline");
+        }
+        write("\">");
+    }
+
+    private int getColor(int color) {
+        if (color < 256) {
+            return BaseTextRenderer.sXterm256Paint[color];
+        } else if (color == TextStyle.ciBackground || color == TextStyle.ciCursorBackground) {
+            return mScheme.getBackColor();
+        } else if (color >= TextStyle.ciTrueColorBase && mTrueColors != null) {
+            return mTrueColors[color];
+        }
+        return mScheme.getForeColor();
+    }
+
+    private void writeHtmlColor(int color) throws IOException {
+        write('#');
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            write(HEX_DIGITS[(color >> shift) & 0xf]);
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        if (value >= 10) {
+            writeInt(value / 10);
+        }
+        write((char) ('0' + value % 10));
+    }
+
+    private void write(String s) throws IOException {
+        for (int i = 0; i < s.length(); ++i) {
+            write(s.charAt(i));
+        }
+    }
+
+    private void write(char c) throws IOException {
+        if (!mChars.hasRemaining()) {
+            flush(false);
+        }
+        mChars.put(c);
+    }
+
+    private void flush(boolean endOfInput) throws IOException {
+        CharBuffer chars = mChars;
+        chars.flip();
+        if (mAppendable != null) {
+            mAppendable.append(chars);
+            chars.clear();
+            return;
+        }
+        CharsetEncoder encoder = mEncoder;
+        // A high surrogate at the end of the buffer is kept for next time
+        while (encoder.encode(chars, mBytes, endOfInput).isOverflow()) {
+            writeBytes();
+        }
+        if (endOfInput) {
+            while (encoder.flush(mBytes).isOverflow()) {
+                writeBytes();
+            }
+        }
+        writeBytes();
+        chars.compact();
+    }
+
+    private void writeBytes() throws IOException {
+        ByteBuffer bytes = mBytes;
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            mChannel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
@@ -16,7 +16,10 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
 
 import android.graphics.Canvas;
 import android.text.SpannableString;
@@ -48,6 +51,11 @@ class TranscriptScreen implements Screen {
 
     private UnicodeTranscript mData;
 
+    private TrueColorTable mTrueColors;
+
+    private boolean mFastForward;
+    private int mFastForwardRows;
+
     /**
      * Create a transcript screen.
      *
@@ -59,15 +67,17 @@ class TranscriptScreen implements Screen {
      */
     public TranscriptScreen(int columns, int totalRows, int screenRows,
             ColorScheme scheme) {
-        init(columns, totalRows, screenRows, TextStyle.kNormalTextStyle);
+        init(columns, totalRows, screenRows, TextStyle.kNormalTextStyle, 0);
     }
 
-    private void init(int columns, int totalRows, int screenRows, int style) {
+    private void init(int columns, int totalRows, int screenRows, int style, int version) {
         mColumns = columns;
         mTotalRows = totalRows;
         mScreenRows = screenRows;
 
         mData = new UnicodeTranscript(columns, totalRows, screenRows, style);
+        mData.setVersion(version);
+        mData.setTrueColors(mTrueColors);
         mData.blockSet(0, 0, mColumns, mScreenRows, ' ', style);
     }
 
@@ -79,6 +89,34 @@ public void setColorScheme(ColorScheme scheme) {
         mData.setDefaultStyle(TextStyle.kNormalTextStyle);
     }
 
+    /**
+     * Set the table of RGB colors used by the styles written to this screen.
+     */
+    void setTrueColors(TrueColorTable trueColors) {
+        mTrueColors = trueColors;
+        mData.setTrueColors(trueColors);
+    }
+
+    /**
+     * Start or stop fast-forwarding through a flood of output; see
+     * UnicodeTranscript.setFastForward().
+     */
+    void setFastForward(boolean fastForward, int keepRows) {
+        mFastForward = fastForward;
+        mFastForwardRows = keepRows;
+        if (mData != null) {
+            mData.setFastForward(fastForward, keepRows);
+        }
+    }
+
+    /**
+     * Count the references to RGB colors from the rows of this screen; see
+     * TrueColorTable.countReferences().
+     */
+    void countTrueColors(int[] refs) {
+        mData.countTrueColors(refs);
+    }
+
     public void finish() {
         /*
          * The Android InputMethodService will sometimes hold a reference to
@@ -87,9 +125,20 @@ public void finish() {
          * get rid of our references to this data to help keep the amount of
          * memory being leaked down.
          */
+        if (mData != null) {
+            mData.finish();
+        }
         mData = null;
     }
 
+    /**
+     * @return Whether finish() has been called, after which the screen has
+     *         no rows left.
+     */
+    boolean isFinished() {
+        return mData == null;
+    }
+
     public void setLineWrap(int row) {
         mData.setLineWrap(row);
     }
@@ -109,6 +158,10 @@ public void set(int x, int y, byte b, int style) {
         mData.setChar(x, y, b, style);
     }
 
+    public void set(int x, int y, int[] codePoints, int offset, int count, int style) {
+        mData.setChars(x, y, codePoints, offset, count, style);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -155,6 +208,40 @@ public void blockSet(int sx, int sy, int w, int h, int val,
         mData.blockSet(sx, sy, w, h, val, style);
     }
 
+    /**
+     * Get the version of a row, which changes whenever the row's contents
+     * do.  A view may reuse whatever it last drew for a row with the same
+     * version, wherever on the screen the row has since moved to.
+     *
+     * @param row The row to query.
+     * @return The version of the row, or 0 if the row must always be redrawn.
+     */
+    public int getRowVersion(int row) {
+        if (mData == null) {
+            return 0;
+        }
+        return mData.getRowVersion(row);
+    }
+
+    /**
+     * @return The text of a row, as UnicodeTranscript.getLine() returns it.
+     */
+    char[] getLine(int row) {
+        return mData.getLine(row);
+    }
+
+    /**
+     * @return The styles of a row, as UnicodeTranscript.getLineColor()
+     *         returns them.
+     */
+    StyleRow getLineColor(int row) {
+        return mData.getLineColor(row);
+    }
+
+    int getDefaultStyle() {
+        return mData.getDefaultStyle();
+    }
+
     static private int mForceFlush = 128;
     static public final void setForceFlush(int chr) {
         mForceFlush = chr;
@@ -177,9 +264,7 @@ static public final void setForceFlush(int chr) {
     public final void drawText(int row, Canvas canvas, float x, float y,
             TextRenderer renderer, int curx, int selx1, int selx2, String imeText, int cursorMode, SpannableString imeSpannableString) {
         char[] line;
-        int cx = imeText.length() > 0 ? -1 : curx;
         StyleRow color;
-        int cursorWidth = 1;
         try {
             line = mData.getLine(row);
             color = mData.getLineColor(row);
@@ -191,7 +276,23 @@ public final void drawText(int row, Canvas canvas, float x, float y,
             // XXX Figure out why this happens on Honeycomb
             return;
         }
-        int defaultStyle = mData.getDefaultStyle();
+        drawText(line, color, mData.getDefaultStyle(), canvas, x, y, renderer,
+                curx, selx1, selx2, imeText, cursorMode, imeSpannableString);
+    }
+
+    /**
+     * Draw a row of text given its characters and styles, such as a row
+     * copied into a ScreenSnapshot.
+     *
+     * @param line The characters of the row, or null if it is blank.
+     * @param color The styles of the row.
+     * @param defaultStyle The style of blank cells.
+     * @see #drawText(int, Canvas, float, float, TextRenderer, int, int, int, String, int, SpannableString)
+     */
+    final void drawText(char[] line, StyleRow color, int defaultStyle, Canvas canvas, float x, float y,
+            TextRenderer renderer, int curx, int selx1, int selx2, String imeText, int cursorMode, SpannableString imeSpannableString) {
+        int cx = imeText.length() > 0 ? -1 : curx;
+        int cursorWidth = 1;
 
         if (line == null) {
             // Line is blank.
@@ -455,6 +556,54 @@ public String getTranscriptText(GrowableIntArray colors) {
         return internalGetTranscriptText(colors, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
     }
 
+    /**
+     * Find the next match for a search, without copying the transcript's
+     * text out as a whole.  See TranscriptSearch.
+     *
+     * @param row The row to search from; rows outside the transcript are
+     *            taken to be just before the first row or after the last.
+     * @param column The column to search from.
+     * @param forward Whether to look for the first match starting after the
+     *                position, rather than the last match starting before it.
+     * @return Whether a match was found; if so, the search holds it.
+     */
+    public boolean search(TranscriptSearch search, int row, int column, boolean forward) {
+        return mData.search(search, row, column, forward);
+    }
+
+    /**
+     * Write the text of the whole transcript to a channel, encoded as UTF-8,
+     * a buffer at a time rather than as one String.  The rows are copied a
+     * slice at a time with the emulator lock held, and written out with it
+     * released.  See TranscriptExporter.
+     *
+     * @param lock The emulator lock, which must not be held by the caller.
+     */
+    public void exportTranscript(TranscriptExporter exporter, Lock lock,
+            WritableByteChannel channel) throws IOException {
+        exporter.export(this, lock, channel);
+    }
+
+    public void exportTranscript(TranscriptExporter exporter, Lock lock, Appendable out)
+            throws IOException {
+        exporter.export(this, lock, out);
+    }
+
+    /**
+     * Copy the next slice of rows for an export.  Must be called with the
+     * emulator lock held.
+     *
+     * @return Whether there are rows left after these.
+     */
+    boolean copyRowsForExport(TranscriptExporter exporter) {
+        if (mData == null) {
+            // Finished
+            exporter.clearRows();
+            return false;
+        }
+        return exporter.copyRows(mData, mScreenRows - 1, mTrueColors);
+    }
+
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
         return internalGetTranscriptText(null, selX1, selY1, selX2, selY2);
     }
@@ -579,12 +728,18 @@ public boolean fastResize(int columns, int rows, int[] cursor) {
         }
     }
 
-    public void resize(int columns, int rows, int style) {
+    public void resize(int columns, int rows, int style, int[] cursor) {
         // Ensure backing store will be large enough to hold the whole screen 
         if (rows > mTotalRows) {
             mTotalRows = rows;
         }
-        init(columns, mTotalRows, rows, style);
+        UnicodeTranscript oldData = mData;
+        // Archive the rows a fast-forward has kept, so that they're reflowed
+        oldData.setFastForward(false, 0);
+        init(columns, mTotalRows, rows, style, oldData.getVersion());
+        mData.reflow(oldData, cursor);
+        oldData.finish();
+        mData.setFastForward(mFastForward, mFastForwardRows);
     }
 
     /**
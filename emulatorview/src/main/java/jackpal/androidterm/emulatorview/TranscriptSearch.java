@@ -0,0 +1,211 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search for text in a transcript, and the match it found last; see
+ * TranscriptScreen.search().
+ *
+ * The transcript is searched one logical line (a row and the rows it wraps
+ * onto) at a time, so a match may span several rows but never a line
+ * break.  Only the logical line being searched is copied out of the
+ * transcript, along with the cell each of its chars came from, to map a
+ * match back to rows and columns.
+ *
+ * A match is given by the cells of its first and last characters; rows are
+ * numbered as in TranscriptScreen, from -getActiveTranscriptRows() to the
+ * last row of the screen.
+ */
+public class TranscriptSearch {
+    private final Matcher mMatcher;
+    /**
+     * The filter of pairs of characters a match must contain (see
+     * ScrollbackArchive), or null if there's no such filter.
+     */
+    private final long[] mFilter;
+
+    /* The logical line being searched, and where each of its chars is */
+    private final StringBuilder mText = new StringBuilder();
+    private int[] mCharRow = new int[256];
+    private int[] mCharColumn = new int[256];
+    private int[] mCharLastColumn = new int[256];
+
+    private boolean mHasMatch;
+    private int mStartRow;
+    private int mStartColumn;
+    private int mEndRow;
+    private int mEndColumn;
+
+    /**
+     * @param query The text to look for.
+     * @param regex Whether the query is a regular expression (see
+     *              java.util.regex.Pattern) rather than literal text.
+     * @param ignoreCase Whether to ignore differences of case.
+     * @throws java.util.regex.PatternSyntaxException If the query is not a
+     *         valid regular expression.
+     */
+    public TranscriptSearch(String query, boolean regex, boolean ignoreCase) {
+        int flags = regex ? 0 : Pattern.LITERAL;
+        if (ignoreCase) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        mMatcher = Pattern.compile(query, flags).matcher(mText);
+        mFilter = regex ? null : makeFilter(query, ignoreCase);
+    }
+
+    private static long[] makeFilter(String query, boolean ignoreCase) {
+        int length = query.length();
+        if (length < 2) {
+            return null;
+        }
+        long[] filter = new long[ScrollbackArchive.FILTER_WORDS];
+        char last = 0;
+        for (int i = 0; i < length; i++) {
+            char c = query.charAt(i);
+            if (ignoreCase && c >= 0x80) {
+                // Case folding may not agree with Character.toLowerCase()
+                return null;
+            }
+            c = Character.toLowerCase(c);
+            if (i > 0) {
+                ScrollbackArchive.addToFilter(filter, last, c);
+            }
+            last = c;
+        }
+        return filter;
+    }
+
+    public boolean hasMatch() {
+        return mHasMatch;
+    }
+
+    public int getMatchStartRow() {
+        return mStartRow;
+    }
+
+    public int getMatchStartColumn() {
+        return mStartColumn;
+    }
+
+    public int getMatchEndRow() {
+        return mEndRow;
+    }
+
+    /**
+     * @return The last column of the last character of the match.
+     */
+    public int getMatchEndColumn() {
+        return mEndColumn;
+    }
+
+    /**
+     * Move the match up by shift rows, as the rows of the transcript move
+     * when the screen scrolls.
+     */
+    void shiftRows(int shift) {
+        mStartRow -= shift;
+        mEndRow -= shift;
+    }
+
+    long[] getFilter() {
+        return mFilter;
+    }
+
+    void startLine() {
+        mText.setLength(0);
+    }
+
+    /**
+     * Add a char of the logical line being searched.
+     *
+     * @param lastColumn The last column of the cell(s) the char is drawn in.
+     */
+    void append(char c, int row, int column, int lastColumn) {
+        int index = mText.length();
+        if (index == mCharRow.length) {
+            int size = index * 2;
+            mCharRow = Arrays.copyOf(mCharRow, size);
+            mCharColumn = Arrays.copyOf(mCharColumn, size);
+            mCharLastColumn = Arrays.copyOf(mCharLastColumn, size);
+        }
+        mText.append(c);
+        mCharRow[index] = row;
+        mCharColumn[index] = column;
+        mCharLastColumn[index] = lastColumn;
+    }
+
+    void trimTrailingSpaces() {
+        int length = mText.length();
+        while (length > 0 && mText.charAt(length - 1) == ' ') {
+            --length;
+        }
+        mText.setLength(length);
+    }
+
+    /**
+     * Look for a match in the logical line.
+     *
+     * @param forward Whether to look for the first match after the limit,
+     *                rather than the last match before it.
+     * @param limited Whether there is a limit; if not, any match will do.
+     * @return Whether a match was found.
+     */
+    boolean findInLine(boolean forward, boolean limited, int limitRow, int limitColumn) {
+        Matcher matcher = mMatcher;
+        matcher.reset();
+        int length = mText.length();
+        if (forward) {
+            int from = 0;
+            if (limited) {
+                while (from < length && !isAfter(from, limitRow, limitColumn)) {
+                    ++from;
+                }
+            }
+            while (from <= length && matcher.find(from)) {
+                if (matcher.end() > matcher.start()) {
+                    setMatch(matcher.start(), matcher.end());
+                    return true;
+                }
+                // Empty matches don't count
+                from = matcher.start() + 1;
+            }
+            return false;
+        }
+
+        int start = -1;
+        int end = -1;
+        while (matcher.find()) {
+            int matchStart = matcher.start();
+            if (limited && !isBefore(matchStart, limitRow, limitColumn)) {
+                break;
+            }
+            if (matcher.end() > matchStart) {
+                start = matchStart;
+                end = matcher.end();
+            }
+        }
+        if (start < 0) {
+            return false;
+        }
+        setMatch(start, end);
+        return true;
+    }
+
+    private boolean isAfter(int index, int row, int column) {
+        return mCharRow[index] > row || (mCharRow[index] == row && mCharColumn[index] > column);
+    }
+
+    private boolean isBefore(int index, int row, int column) {
+        return mCharRow[index] < row || (mCharRow[index] == row && mCharColumn[index] < column);
+    }
+
+    private void setMatch(int start, int end) {
+        mHasMatch = true;
+        mStartRow = mCharRow[start];
+        mStartColumn = mCharColumn[start];
+        mEndRow = mCharRow[end - 1];
+        mEndColumn = mCharLastColumn[end - 1];
+    }
+}
@@ -0,0 +1,198 @@
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+/**
+ * The colors a terminal session has given as RGB values (SGR 38;2 and 48;2).
+ *
+ * A style (see TextStyle) has 9 bits for each of its colors, most of which
+ * are taken by the 256-color palette and the special colors.  Each distinct
+ * RGB color is given one of the SIZE indices left over, from
+ * TextStyle.ciTrueColorBase on, so a style with RGB colors is no bigger than
+ * any other.
+ *
+ * When every index has been handed out, the emulator counts the references
+ * to each index from the rows of its screens and from its current colors,
+ * and calls compact() to free the indices nobody refers to any more.  If
+ * that doesn't make room, the color is approximated by the nearest color in
+ * the 256-color palette instead.  Rows moved into a transcript's
+ * ScrollbackArchive are always approximated, so that they don't hold on to
+ * indices forever.
+ */
+final class TrueColorTable {
+    static final int SIZE = TextStyle.ciPaletteLength - TextStyle.ciTrueColorBase;
+
+    /* Open addressed hash table of the colors in use: entry + 1, or 0 */
+    private static final int HASH_SIZE = 512;
+    private final short[] mHash = new short[HASH_SIZE];
+
+    /** The colors, as ARGB; 0 for a free entry. */
+    private final int[] mColors = new int[SIZE];
+    private int mCount;
+    /** Where to start looking for a free entry. */
+    private int mNextFree;
+    /** Incremented whenever a color is added. */
+    private int mGeneration;
+
+    /**
+     * @param rgb The color, as 0xRRGGBB.
+     * @return The color index for rgb, or -1 if the table is full.
+     */
+    int intern(int rgb) {
+        int color = 0xff000000 | rgb;
+        int slot = hash(color);
+        while (mHash[slot] != 0) {
+            int entry = mHash[slot] - 1;
+            if (mColors[entry] == color) {
+                return TextStyle.ciTrueColorBase + entry;
+            }
+            slot = (slot + 1) & (HASH_SIZE - 1);
+        }
+        if (mCount == SIZE) {
+            return -1;
+        }
+        int entry = mNextFree;
+        while (mColors[entry] != 0) {
+            entry = entry + 1 == SIZE ? 0 : entry + 1;
+        }
+        mColors[entry] = color;
+        mHash[slot] = (short) (entry + 1);
+        mCount++;
+        mNextFree = entry + 1 == SIZE ? 0 : entry + 1;
+        mGeneration++;
+        return TextStyle.ciTrueColorBase + entry;
+    }
+
+    boolean isFull() {
+        return mCount == SIZE;
+    }
+
+    /**
+     * @return The color, as ARGB, for a color index from intern().
+     */
+    int getColor(int index) {
+        return mColors[index - TextStyle.ciTrueColorBase];
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copy the colors into the true color part of a renderer's palette.
+     */
+    void copyTo(int[] palette) {
+        System.arraycopy(mColors, 0, palette, TextStyle.ciTrueColorBase, SIZE);
+    }
+
+    /**
+     * Count the references to color indices from a style.
+     *
+     * @param refs The counts, indexed by color index - ciTrueColorBase.
+     */
+    static void countReferences(int style, int[] refs) {
+        int foreColor = TextStyle.decodeForeColor(style);
+        int backColor = TextStyle.decodeBackColor(style);
+        if (foreColor >= TextStyle.ciTrueColorBase) {
+            refs[foreColor - TextStyle.ciTrueColorBase]++;
+        }
+        if (backColor >= TextStyle.ciTrueColorBase) {
+            refs[backColor - TextStyle.ciTrueColorBase]++;
+        }
+    }
+
+    /**
+     * Free the colors which aren't referred to any more.
+     *
+     * @param refs The number of references to each color, as counted by
+     *             countReferences().
+     * @return The number of colors freed.
+     */
+    int compact(int[] refs) {
+        int freed = 0;
+        for (int entry = 0; entry < SIZE; entry++) {
+            if (mColors[entry] != 0 && refs[entry] == 0) {
+                mColors[entry] = 0;
+                freed++;
+            }
+        }
+        if (freed == 0) {
+            return 0;
+        }
+        mCount -= freed;
+        Arrays.fill(mHash, (short) 0);
+        for (int entry = 0; entry < SIZE; entry++) {
+            int color = mColors[entry];
+            if (color != 0) {
+                int slot = hash(color);
+                while (mHash[slot] != 0) {
+                    slot = (slot + 1) & (HASH_SIZE - 1);
+                }
+                mHash[slot] = (short) (entry + 1);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return The style with its RGB colors replaced by the nearest colors
+     *         in the 256-color palette.
+     */
+    int toPaletteStyle(int style) {
+        int foreColor = TextStyle.decodeForeColor(style);
+        int backColor = TextStyle.decodeBackColor(style);
+        if (foreColor < TextStyle.ciTrueColorBase && backColor < TextStyle.ciTrueColorBase) {
+            return style;
+        }
+        if (foreColor >= TextStyle.ciTrueColorBase) {
+            foreColor = toPaletteColor(getColor(foreColor));
+        }
+        if (backColor >= TextStyle.ciTrueColorBase) {
+            backColor = toPaletteColor(getColor(backColor));
+        }
+        return TextStyle.encode(foreColor, backColor, TextStyle.decodeEffect(style));
+    }
+
+    /**
+     * @param rgb The color, as 0xRRGGBB.
+     * @return The index of the nearest color in the 6x6x6 color cube or the
+     *         gray ramp of the 256-color palette.
+     */
+    static int toPaletteColor(int rgb) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        int cr = toCubeLevel(r);
+        int cg = toCubeLevel(g);
+        int cb = toCubeLevel(b);
+        int cube = 16 + 36 * cr + 6 * cg + cb;
+        int cubeDistance = distance(r, g, b,
+                cubeValue(cr), cubeValue(cg), cubeValue(cb));
+
+        int level = (r + g + b) / 3;
+        int gray = level < 8 ? 0 : Math.min((level - 8 + 5) / 10, 23);
+        int grayValue = 8 + 10 * gray;
+        int grayDistance = distance(r, g, b, grayValue, grayValue, grayValue);
+        return grayDistance < cubeDistance ? 232 + gray : cube;
+    }
+
+    private static int toCubeLevel(int value) {
+        return value < 48 ? 0 : value < 115 ? 1 : (value - 35) / 40;
+    }
+
+    private static int cubeValue(int level) {
+        return level == 0 ? 0 : 55 + 40 * level;
+    }
+
+    private static int distance(int r1, int g1, int b1, int r2, int g2, int b2) {
+        int dr = r1 - r2;
+        int dg = g1 - g2;
+        int db = b1 - b2;
+        return dr * dr + dg * dg + db * db;
+    }
+
+    private static int hash(int color) {
+        int h = color * 0x9e3779b9;
+        return (h >>> 23) & (HASH_SIZE - 1);
+    }
+}
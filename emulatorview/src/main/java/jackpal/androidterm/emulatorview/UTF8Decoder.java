@@ -0,0 +1,151 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Decodes UTF-8 input a chunk at a time into an array of code points, for
+ * TerminalEmulator to process.
+ *
+ * Runs of ASCII are checked and copied eight bytes at a time.  A sequence
+ * split across chunks is kept until the rest of it arrives.  Malformed input
+ * is replaced as the Unicode standard (section 3.9) recommends:
+ * - a byte which can't start a sequence becomes U+FFFD;
+ * - a sequence cut short by a byte which doesn't continue it becomes U+FFFD,
+ *   and that byte is then decoded as the start of a new sequence;
+ * - a complete sequence which doesn't encode a valid code point (an overlong
+ *   form, a surrogate, or a value above U+10FFFF) becomes a single U+FFFD.
+ */
+final class UTF8Decoder {
+    static final int REPLACEMENT_CHAR = 0xfffd;
+
+    /* The sequence being decoded: the bits seen so far, the number of
+       continuation bytes still to come, and the smallest code point the
+       sequence's length may encode */
+    private int mCodePoint;
+    private int mToFollow;
+    private int mMinimum;
+
+    /* The state before the last call to decode(), for rewind() */
+    private int mSavedCodePoint;
+    private int mSavedToFollow;
+    private int mSavedMinimum;
+
+    private int mBytesConsumed;
+
+    /**
+     * Drop any partly decoded sequence.
+     */
+    void reset() {
+        mToFollow = 0;
+    }
+
+    /**
+     * Decode bytes into code points, stopping when either runs out.
+     *
+     * @param buffer The bytes to decode.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @param codePoints Array to receive the code points.
+     * @param maxCount The most code points to store in codePoints.
+     * @return The number of code points stored; see getBytesConsumed() for
+     *         the number of bytes they took.
+     */
+    int decode(byte[] buffer, int offset, int length, int[] codePoints, int maxCount) {
+        mSavedCodePoint = mCodePoint;
+        mSavedToFollow = mToFollow;
+        mSavedMinimum = mMinimum;
+
+        int i = offset;
+        int end = offset + length;
+        int count = 0;
+        while (i < end && count < maxCount) {
+            if (mToFollow == 0) {
+                // Copy ASCII a word at a time while all eight bytes are ASCII
+                int wordEnd = Math.min(end, i + maxCount - count) - 8;
+                while (i <= wordEnd) {
+                    byte b0 = buffer[i];
+                    byte b1 = buffer[i + 1];
+                    byte b2 = buffer[i + 2];
+                    byte b3 = buffer[i + 3];
+                    byte b4 = buffer[i + 4];
+                    byte b5 = buffer[i + 5];
+                    byte b6 = buffer[i + 6];
+                    byte b7 = buffer[i + 7];
+                    if ((b0 | b1 | b2 | b3 | b4 | b5 | b6 | b7) < 0) {
+                        break;
+                    }
+                    codePoints[count] = b0;
+                    codePoints[count + 1] = b1;
+                    codePoints[count + 2] = b2;
+                    codePoints[count + 3] = b3;
+                    codePoints[count + 4] = b4;
+                    codePoints[count + 5] = b5;
+                    codePoints[count + 6] = b6;
+                    codePoints[count + 7] = b7;
+                    i += 8;
+                    count += 8;
+                }
+                if (i == end || count == maxCount) {
+                    break;
+                }
+
+                int b = buffer[i++];
+                if (b >= 0) {
+                    codePoints[count++] = b;
+                } else if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
+                    mCodePoint = b & 0x1f;
+                    mToFollow = 1;
+                    mMinimum = 0x80;
+                } else if ((b & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
+                    mCodePoint = b & 0x0f;
+                    mToFollow = 2;
+                    mMinimum = 0x800;
+                } else if ((b & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
+                    mCodePoint = b & 0x07;
+                    mToFollow = 3;
+                    mMinimum = 0x10000;
+                } else {
+                    // Not a valid UTF-8 sequence start
+                    codePoints[count++] = REPLACEMENT_CHAR;
+                }
+            } else {
+                int b = buffer[i];
+                if ((b & 0xc0) != 0x80) {
+                    /* Not a continuation byte: replace the sequence so far,
+                       and go round again to start a new one with this byte */
+                    mToFollow = 0;
+                    codePoints[count++] = REPLACEMENT_CHAR;
+                    continue;
+                }
+                i++;
+                mCodePoint = (mCodePoint << 6) | (b & 0x3f);
+                if (--mToFollow == 0) {
+                    int c = mCodePoint;
+                    if (c < mMinimum || c > Character.MAX_CODE_POINT
+                            || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                        c = REPLACEMENT_CHAR;
+                    }
+                    codePoints[count++] = c;
+                }
+            }
+        }
+        mBytesConsumed = i - offset;
+        return count;
+    }
+
+    /**
+     * @return The number of bytes taken by the last call to decode(),
+     *         including the start of any sequence it left unfinished.
+     */
+    int getBytesConsumed() {
+        return mBytesConsumed;
+    }
+
+    /**
+     * Go back to the state before the last call to decode(), so that the
+     * same bytes can be decoded again.
+     */
+    void rewind() {
+        mCodePoint = mSavedCodePoint;
+        mToFollow = mSavedToFollow;
+        mMinimum = mSavedMinimum;
+    }
+}
@@ -19,6 +19,9 @@
 import android.os.Build;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * A backing store for a TranscriptScreen.
  *
@@ -34,6 +37,21 @@
  *
  * Style information is stored in a separate circular buffer of StyleRows.
  *
+ * Rows which scroll off the top of a full circular buffer are encoded and
+ * moved to a ScrollbackArchive.  Archived rows keep their place in the
+ * external coordinate system (they come before the rows in the circular
+ * buffer); when one is read, it's decoded into an extra row at the end of
+ * the buffer (index mTotalRows), which is only used for that purpose.
+ * While fast-forwarding through a flood of output (see setFastForward()),
+ * rows aren't archived as they scroll off; only the last few are kept, and
+ * archived when the fast-forward ends.
+ *
+ * Each row also has a version, which changes whenever anything on the row
+ * does, and moves along with the row when it's scrolled; a view can keep what
+ * it drew for a row and reuse it as long as the row's version is unchanged.
+ * Version 0 is never used for a row that has been written to, so can be used
+ * to mean "always redraw".  Archived rows have version 0.
+ *
  * Rows are allocated on demand, when a character is first stored into them.
  * A "basic" row is allocated unless the store which triggers the allocation
  * requires a "full" row.  "Basic" rows are converted to "full" rows when
@@ -46,6 +64,9 @@ class UnicodeTranscript {
     private final Object[] mLines;
     private final StyleRow[] mColor;
     private final boolean[] mLineWrap;
+    private final int[] mRowVersion;
+    /** The version most recently given to a row. */
+    private int mVersion = 0;
     private final int mTotalRows;
     private int mScreenRows;
     private final int mColumns;
@@ -57,6 +78,41 @@ class UnicodeTranscript {
     private char[] tmpLine;
     private final StyleRow tmpColor;
 
+    /*
+     * Rows which have scrolled off the top of the transcript, or basic rows
+     * which have been converted to full rows, are kept here to be reset and
+     * reused for new rows instead of being left for the garbage collector.
+     */
+    private static final int LINE_POOL_SIZE = 4;
+    private final char[][] mBasicLinePool = new char[LINE_POOL_SIZE][];
+    private int mBasicLinePoolSize = 0;
+    private final FullUnicodeLine[] mFullLinePool = new FullUnicodeLine[LINE_POOL_SIZE];
+    private int mFullLinePoolSize = 0;
+
+    /** Initially null, will be allocated when the first row is archived. */
+    private ScrollbackArchive mArchive;
+    /** The archived row currently decoded into row mTotalRows, or -1. */
+    private int mDecodedArchiveRow = -1;
+    private byte[] mArchiveBuffer;
+    private int mArchiveLength;
+    private char[] mArchiveText;
+    private short[] mArchiveOffsets;
+
+    /** The session's RGB colors, used to approximate them in archived rows. */
+    private TrueColorTable mTrueColors;
+
+    /*
+     * Fast-forward: rows which scroll out of the circular buffer are held in
+     * a ring of mDeferredLines.length rows instead of being archived, the
+     * oldest being dropped when it's full.
+     */
+    private boolean mFastForward;
+    private Object[] mDeferredLines;
+    private StyleRow[] mDeferredColors;
+    private boolean[] mDeferredWraps;
+    private int mDeferredFirst;
+    private int mDeferredCount;
+
     private static int mAmbiWidthMode = 1;
     private static int mAmbiWidth = 1;
 
@@ -64,9 +120,10 @@ public UnicodeTranscript(int columns, int totalRows, int screenRows, int default
         mColumns = columns;
         mTotalRows = totalRows;
         mScreenRows = screenRows;
-        mLines = new Object[totalRows];
-        mColor = new StyleRow[totalRows];
-        mLineWrap = new boolean[totalRows];
+        mLines = new Object[totalRows + 1];
+        mColor = new StyleRow[totalRows + 1];
+        mLineWrap = new boolean[totalRows + 1];
+        mRowVersion = new int[totalRows + 1];
         tmpColor = new StyleRow(defaultStyle, mColumns);
 
         mDefaultStyle = defaultStyle;
@@ -75,6 +132,10 @@ public UnicodeTranscript(int columns, int totalRows, int screenRows, int default
     public static void setAmbiWidth(int width) {
         mAmbiWidthMode = width;
         mAmbiWidth = mAmbiWidthMode > 1 ? 2 : 1;
+        WidthTable widths = sWidths;
+        if (widths.mAmbiWidthMode != mAmbiWidthMode || widths.mAmbiWidth != mAmbiWidth) {
+            sWidths = new WidthTable(mAmbiWidthMode, mAmbiWidth);
+        }
     }
 
     public void setDefaultStyle(int defaultStyle) {
@@ -85,24 +146,178 @@ public int getDefaultStyle() {
         return mDefaultStyle;
     }
 
+    void setTrueColors(TrueColorTable trueColors) {
+        mTrueColors = trueColors;
+    }
+
+    /**
+     * Count the references to RGB colors from the rows of the transcript;
+     * see TrueColorTable.countReferences().  Archived rows don't have any.
+     */
+    void countTrueColors(int[] refs) {
+        for (StyleRow color : mColor) {
+            if (color != null) {
+                color.countTrueColors(refs);
+            }
+        }
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Continue numbering row versions from version, so that a transcript
+     * replacing another doesn't reuse the versions given out by the old one.
+     */
+    void setVersion(int version) {
+        mVersion = version;
+    }
+
+    /**
+     * @return The version of the row; see the class comment.  Rows outside
+     *         the transcript and archived rows have version 0.
+     */
+    public int getRowVersion(int row) {
+        if (row < -mActiveTranscriptRows || row >= mScreenRows) {
+            return 0;
+        }
+        return mRowVersion[externalToInternalRow(row)];
+    }
+
+    private int nextVersion() {
+        if (++mVersion == 0) {
+            ++mVersion;
+        }
+        return mVersion;
+    }
+
+    /**
+     * @return The number of rows above the screen, including archived rows.
+     */
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + getArchivedRows();
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /**
+     * @return The number of rows which have been moved to the archive.
+     */
+    public int getArchivedRows() {
+        return mArchive == null ? 0 : mArchive.getRowCount();
+    }
+
+    /**
+     * @return The number of rows ever moved to the archive.  The newest
+     *         archived row is row -mActiveTranscriptRows - 1 of the
+     *         transcript, and keeps its number (this minus one) however many
+     *         rows are archived after it.
+     */
+    long getArchiveEnd() {
+        return mArchive == null ? 0 : mArchive.getNextRow();
+    }
+
+    /**
+     * Start or stop fast-forwarding.  While fast-forwarding, rows which
+     * scroll out of the circular buffer aren't archived one by one; all but
+     * the last few are dropped, which makes scrolling several times faster.
+     * When the fast-forward stops, the rows kept are archived.
+     *
+     * @param fastForward Whether to fast-forward.
+     * @param keepRows The number of rows of scrollback, including those in
+     *        the circular buffer, to keep through the fast-forward.
+     */
+    void setFastForward(boolean fastForward, int keepRows) {
+        if (fastForward == mFastForward) {
+            return;
+        }
+        mFastForward = fastForward;
+        if (fastForward) {
+            int capacity = Math.max(0, keepRows - (mTotalRows - mScreenRows));
+            if (mDeferredLines == null || mDeferredLines.length != capacity) {
+                mDeferredLines = new Object[capacity];
+                mDeferredColors = new StyleRow[capacity];
+                mDeferredWraps = new boolean[capacity];
+            }
+            mDeferredFirst = 0;
+            mDeferredCount = 0;
+            return;
+        }
+
+        Object[] lines = mDeferredLines;
+        StyleRow[] colors = mDeferredColors;
+        int capacity = lines.length;
+        for (int i = 0; i < mDeferredCount; i++) {
+            int index = (mDeferredFirst + i) % capacity;
+            archiveRow(lines[index], colors[index], mDeferredWraps[index]);
+            recycleLine(lines[index]);
+            lines[index] = null;
+            colors[index] = null;
+        }
+        mDeferredCount = 0;
+    }
+
+    /**
+     * Dispose of a row which has scrolled out of the circular buffer, by
+     * archiving it or, while fast-forwarding, keeping or dropping it.
+     *
+     * @return A StyleRow which is free to be reused, or null.
+     */
+    private StyleRow evictRow(Object line, StyleRow color, boolean wrap) {
+        if (!mFastForward) {
+            archiveRow(line, color, wrap);
+            recycleLine(line);
+            return color;
+        }
+        Object[] lines = mDeferredLines;
+        int capacity = lines.length;
+        if (capacity == 0) {
+            recycleLine(line);
+            return color;
+        }
+        StyleRow freeColor = null;
+        int index;
+        if (mDeferredCount == capacity) {
+            // Drop the oldest row to make room
+            index = mDeferredFirst;
+            mDeferredFirst = (mDeferredFirst + 1) % capacity;
+            recycleLine(lines[index]);
+            freeColor = mDeferredColors[index];
+        } else {
+            index = (mDeferredFirst + mDeferredCount) % capacity;
+            mDeferredCount++;
+        }
+        lines[index] = line;
+        mDeferredColors[index] = color;
+        mDeferredWraps[index] = wrap;
+        return freeColor;
+    }
+
+    /**
+     * Release the archive's resources.  The transcript can't be used
+     * afterwards.
+     */
+    void finish() {
+        if (mArchive != null) {
+            mArchive.release();
+            mArchive = null;
+        }
     }
 
     /**
      * Convert a row value from the public external coordinate system to our
      * internal private coordinate system.
      * External coordinate system:
-     * -mActiveTranscriptRows to mScreenRows-1, with the screen being
+     * -getActiveTranscriptRows() to mScreenRows-1, with the screen being
      * 0..mScreenRows-1
      * Internal coordinate system: the mScreenRows lines starting at
      * mScreenFirstRow comprise the screen, while the mActiveTranscriptRows
      * lines ending at mScreenRows-1 form the transcript (as a circular
-     * buffer).
+     * buffer).  Rows before those are decoded from the archive into row
+     * mTotalRows.
      *
      * @param extRow a row in the external coordinate system.
      * @return The row corresponding to the input argument in the private
@@ -110,6 +325,9 @@ public int getActiveRows() {
      */
     private int externalToInternalRow(int extRow) {
         if (extRow < -mActiveTranscriptRows || extRow > mScreenRows) {
+            if (extRow < -mActiveTranscriptRows && extRow >= -getActiveTranscriptRows()) {
+                return decodeArchivedRow(getArchivedRows() + mActiveTranscriptRows + extRow);
+            }
             String errorMessage = "externalToInternalRow "+ extRow +
                 " " + mScreenRows + " " + mActiveTranscriptRows;
             Log.e(TAG, errorMessage);
@@ -146,8 +364,8 @@ public boolean getLineWrap(int row) {
      *        location.  If null, don't do cursor-position-dependent tasks such
      *        as trimming blank lines during the resize.
      * @return Whether or not the resize succeeded.  If the resize failed,
-     *         the caller may "resize" the screen by copying out all the data
-     *         and placing it into a new transcript of the correct size.
+     *         the caller may "resize" the screen by creating a new transcript
+     *         of the correct size and calling its reflow().
      */
     public boolean resize(int newColumns, int newRows, int[] cursor) {
         if (newColumns != mColumns || newRows > mTotalRows) {
@@ -169,6 +387,7 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
                 lines[index] = null;
                 color[index] = null;
                 lineWrap[index] = false;
+                mRowVersion[index] = nextVersion();
             }
             shift = -activeTranscriptRows;
         } else if (shift > 0 && cursor != null && cursor[1] != screenRows - 1) {
@@ -243,6 +462,226 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
         return true;
     }
 
+    /**
+     * Fill this transcript, which must be newly created, with the rows of
+     * another transcript of a different width, archived rows included.
+     *
+     * Each logical line (a row and the rows it wraps onto) is joined up again
+     * and wrapped at the new width.  Chars and styles are copied in runs, a
+     * row at a time, so this takes time proportional to the number of rows
+     * rather than to the amount of text.  Rows which don't fit on the screen
+     * move into the transcript (and the archive) as they would if they had
+     * been scrolled off, so every archived row has this transcript's width.
+     *
+     * @param src The transcript to copy from.
+     * @param cursor An int[2] containing the cursor location in src; it's
+     *        updated with the new location, or { -1, -1 } if the cursor's
+     *        row doesn't end up on the screen.  Blank rows below the cursor
+     *        are left out.  If null, all rows are copied.
+     */
+    void reflow(UnicodeTranscript src, int[] cursor) {
+        int columns = mColumns;
+        int srcColumns = src.mColumns;
+        int firstRow = -src.getActiveTranscriptRows();
+        int lastRow = src.mScreenRows - 1;
+        int cursorColumn = -1;
+        int cursorRow = Integer.MIN_VALUE;
+        if (cursor != null) {
+            cursorColumn = Math.min(cursor[0], srcColumns - 1);
+            cursorRow = cursor[1];
+            while (lastRow > cursorRow && src.getContentColumns(lastRow) == 0) {
+                --lastRow;
+            }
+            cursor[0] = -1;
+            cursor[1] = -1;
+        }
+        // Where the cursor was put, counted from the start of the transcript
+        int cursorActiveRow = -1;
+
+        int row = 0;
+        int column = 0;
+        for (int srcRow = firstRow; srcRow <= lastRow; ++srcRow) {
+            boolean wrap = src.getLineWrap(srcRow) && srcRow < lastRow;
+            int length = wrap ? srcColumns : src.getContentColumns(srcRow);
+            if (wrap && src.endsWithWidePadding(srcRow)) {
+                // Drop the padding, it'll be added again if it's still needed
+                --length;
+            }
+            if (srcRow == cursorRow) {
+                length = Math.max(length, cursorColumn + 1);
+            }
+            // Looked up last, as an archived row is decoded into the same
+            // row as the one after it
+            int srcIndex = src.externalToInternalRow(srcRow);
+            Object line = src.mLines[srcIndex];
+            StyleRow color = src.mColor[srcIndex];
+
+            int srcColumn = 0;
+            if (line instanceof FullUnicodeLine) {
+                // Copy a character (with its combining characters) at a time
+                FullUnicodeLine full = (FullUnicodeLine) line;
+                char[] text = full.getLine();
+                while (srcColumn < length) {
+                    int start = full.findStartOfColumn(srcColumn);
+                    int codePoint = Character.codePointAt(text, start);
+                    int width = Math.max(charWidth(codePoint), 1);
+                    int next = srcColumn + width;
+                    int end = next < srcColumns ? full.findStartOfColumn(next) : full.getSpaceUsed();
+                    if (column + width > columns) {
+                        mLineWrap[externalToInternalRow(row)] = true;
+                        row = nextReflowRow(row);
+                        column = 0;
+                    }
+                    setChar(column, row, codePoint);
+                    for (int i = start + Character.charCount(codePoint); i < end; ) {
+                        int combining = Character.codePointAt(text, i);
+                        setChar(column, row, combining);
+                        i += Character.charCount(combining);
+                    }
+                    copyStyles(src, color, srcColumn, row, column, Math.min(width, srcColumns - srcColumn));
+                    if (srcRow == cursorRow && cursorColumn >= srcColumn && cursorColumn < next) {
+                        cursor[0] = column;
+                        cursor[1] = row;
+                        cursorActiveRow = getActiveRows() - mScreenRows + row;
+                    }
+                    srcColumn = next;
+                    column += width;
+                }
+            } else {
+                // Copy as much of the row as fits at a time
+                while (srcColumn < length) {
+                    if (column == columns) {
+                        mLineWrap[externalToInternalRow(row)] = true;
+                        row = nextReflowRow(row);
+                        column = 0;
+                    }
+                    int count = Math.min(length - srcColumn, columns - column);
+                    int index = externalToInternalRow(row);
+                    if (line != null) {
+                        char[] text = (char[]) line;
+                        if (mLines[index] == null) {
+                            allocateBasicLine(index, columns);
+                        }
+                        if (mLines[index] instanceof char[]) {
+                            System.arraycopy(text, srcColumn, mLines[index], column, count);
+                        } else {
+                            FullUnicodeLine full = (FullUnicodeLine) mLines[index];
+                            for (int i = 0; i < count; ++i) {
+                                full.setChar(column + i, text[srcColumn + i]);
+                            }
+                        }
+                    }
+                    mRowVersion[index] = nextVersion();
+                    copyStyles(src, color, srcColumn, row, column, count);
+                    if (srcRow == cursorRow && cursorColumn >= srcColumn
+                            && cursorColumn < srcColumn + count) {
+                        cursor[0] = column + cursorColumn - srcColumn;
+                        cursor[1] = row;
+                        cursorActiveRow = getActiveRows() - mScreenRows + row;
+                    }
+                    srcColumn += count;
+                    column += count;
+                }
+            }
+
+            if (!wrap && srcRow < lastRow) {
+                row = nextReflowRow(row);
+                column = 0;
+            }
+        }
+
+        if (cursorActiveRow >= 0) {
+            // Allow for the rows scrolled off since the cursor was put
+            int screenTop = getActiveRows() - mScreenRows;
+            if (cursorActiveRow < screenTop) {
+                cursor[0] = -1;
+                cursor[1] = -1;
+            } else {
+                cursor[1] = cursorActiveRow - screenTop;
+            }
+        }
+    }
+
+    /**
+     * @return The row after row, scrolling the screen up to make room for it
+     *         if row is the last row of the screen.
+     */
+    private int nextReflowRow(int row) {
+        if (row + 1 < mScreenRows) {
+            return row + 1;
+        }
+        scroll(0, mScreenRows, mDefaultStyle);
+        return row;
+    }
+
+    /**
+     * Copy the styles of count columns of a row of src, starting at
+     * srcColumn, a span at a time.
+     */
+    private void copyStyles(UnicodeTranscript src, StyleRow color, int srcColumn,
+            int row, int column, int count) {
+        StyleRow dst = mColor[externalToInternalRow(row)];
+        if (color == null) {
+            dst.set(column, count, src.mDefaultStyle);
+            return;
+        }
+        int end = srcColumn + count;
+        while (srcColumn < end) {
+            int spanEnd = color.spanEnd(srcColumn, end);
+            dst.set(column, spanEnd - srcColumn, color.get(srcColumn));
+            column += spanEnd - srcColumn;
+            srcColumn = spanEnd;
+        }
+    }
+
+    /**
+     * @return Whether the last column of a wrapped row is a space left blank
+     *         because the wide character after it didn't fit.
+     */
+    private boolean endsWithWidePadding(int row) {
+        Object line = mLines[externalToInternalRow(row)];
+        if (line == null || !isBlankCell(line, mColumns - 1)) {
+            return false;
+        }
+        Object next = mLines[externalToInternalRow(row + 1)];
+        return next instanceof FullUnicodeLine
+                && charWidth(((FullUnicodeLine) next).getLine(), 0) == 2;
+    }
+
+    /**
+     * @return The number of columns of a row up to its last character which
+     *         isn't a space in the default style.
+     */
+    private int getContentColumns(int row) {
+        int index = externalToInternalRow(row);
+        Object line = mLines[index];
+        StyleRow color = mColor[index];
+        int defaultStyle = mDefaultStyle;
+        for (int column = mColumns - 1; column >= 0; --column) {
+            if (color != null && color.get(column) != defaultStyle) {
+                return column + 1;
+            }
+            if (line != null && !isBlankCell(line, column)) {
+                return column + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Whether a column of a row holds just a space, without any
+     *         combining characters.
+     */
+    private boolean isBlankCell(Object line, int column) {
+        if (line instanceof char[]) {
+            return ((char[]) line)[column] == ' ';
+        }
+        FullUnicodeLine full = (FullUnicodeLine) line;
+        int start = full.findStartOfColumn(column);
+        int end = column + 1 < mColumns ? full.findStartOfColumn(column + 1) : full.getSpaceUsed();
+        return end - start == 1 && full.getLine()[start] == ' ';
+    }
+
     /**
      * Block copy lines and associated metadata from one location to another
      * in the circular buffer, taking wraparound into account.
@@ -266,6 +705,7 @@ private void blockCopyLines(int src, int len, int shift) {
             System.arraycopy(mLines, src, mLines, dst, len);
             System.arraycopy(mColor, src, mColor, dst, len);
             System.arraycopy(mLineWrap, src, mLineWrap, dst, len);
+            System.arraycopy(mRowVersion, src, mRowVersion, dst, len);
             return;
         }
 
@@ -275,6 +715,7 @@ private void blockCopyLines(int src, int len, int shift) {
                 mLines[(dst + i) % totalRows] = mLines[(src + i) % totalRows];
                 mColor[(dst + i) % totalRows] = mColor[(src + i) % totalRows];
                 mLineWrap[(dst + i) % totalRows] = mLineWrap[(src + i) % totalRows];
+                mRowVersion[(dst + i) % totalRows] = mRowVersion[(src + i) % totalRows];
             }
         } else {
             // Do the copy from bottom to top
@@ -282,6 +723,7 @@ private void blockCopyLines(int src, int len, int shift) {
                 mLines[(dst + i) % totalRows] = mLines[(src + i) % totalRows];
                 mColor[(dst + i) % totalRows] = mColor[(src + i) % totalRows];
                 mLineWrap[(dst + i) % totalRows] = mLineWrap[(src + i) % totalRows];
+                mRowVersion[(dst + i) % totalRows] = mRowVersion[(src + i) % totalRows];
             }
         }
     }
@@ -316,15 +758,23 @@ public void scroll(int topMargin, int bottomMargin, int style) {
         if (topMargin == 0 && bottomMargin == screenRows) {
             // Fast path -- scroll the entire screen
             mScreenFirstRow = (mScreenFirstRow + 1) % totalRows;
-            if (mActiveTranscriptRows < totalRows - screenRows) {
+            boolean transcriptFull = mActiveTranscriptRows >= totalRows - screenRows;
+            if (!transcriptFull) {
                 ++mActiveTranscriptRows;
             }
 
-            // Blank the bottom margin
+            // Blank the bottom margin, reusing the row that fell off the top
             int blankRow = externalToInternalRow(bottomMargin - 1);
+            StyleRow blankColor = mColor[blankRow];
+            if (transcriptFull) {
+                blankColor = evictRow(mLines[blankRow], blankColor, mLineWrap[blankRow]);
+            } else {
+                recycleLine(mLines[blankRow]);
+            }
             mLines[blankRow] = null;
-            mColor[blankRow] = new StyleRow(style, mColumns);
+            mColor[blankRow] = recycleStyleRow(blankColor, style);
             mLineWrap[blankRow] = false;
+            mRowVersion[blankRow] = nextVersion();
 
             return;
         }
@@ -342,11 +792,27 @@ public void scroll(int topMargin, int bottomMargin, int style) {
         Object scrollLine = lines[topMarginInt];
         StyleRow scrollColor = color[topMarginInt];
         boolean scrollLineWrap = lineWrap[topMarginInt];
+        int scrollVersion = mRowVersion[topMarginInt];
+        /* The row just past the bottom of the screen is overwritten below;
+           unless the screen takes up the whole buffer, it holds the oldest
+           transcript row (or nothing), which we can reuse. */
+        Object evictedLine = null;
+        StyleRow evictedColor = null;
+        if (totalRows > screenRows) {
+            int evictedRow = (screenFirstRow + screenRows) % totalRows;
+            evictedLine = lines[evictedRow];
+            evictedColor = color[evictedRow];
+            if (mActiveTranscriptRows >= totalRows - screenRows) {
+                evictedColor = evictRow(evictedLine, evictedColor, lineWrap[evictedRow]);
+                evictedLine = null;
+            }
+        }
         blockCopyLines(screenFirstRow, topMargin, 1);
         blockCopyLines(bottomMarginInt, screenRows - bottomMargin, 1);
         lines[screenFirstRow] = scrollLine;
         color[screenFirstRow] = scrollColor;
         lineWrap[screenFirstRow] = scrollLineWrap;
+        mRowVersion[screenFirstRow] = scrollVersion;
 
         // Update the screen location
         mScreenFirstRow = (screenFirstRow + 1) % totalRows;
@@ -356,13 +822,227 @@ public void scroll(int topMargin, int bottomMargin, int style) {
 
         // Blank the bottom margin
         int blankRow = externalToInternalRow(bottomMargin - 1);
+        recycleLine(evictedLine);
         lines[blankRow] = null;
-        color[blankRow] = new StyleRow(style, mColumns);
+        color[blankRow] = recycleStyleRow(evictedColor, style);
         lineWrap[blankRow] = false;
+        mRowVersion[blankRow] = nextVersion();
 
         return;
     }
 
+    /*
+     * Archived rows are encoded as:
+     *   flags (1 byte): ARCHIVE_WRAP, ARCHIVE_BLANK, ARCHIVE_FULL
+     *   columns (2 bytes): the width of the transcript the row came from
+     *   for a basic line: the length without trailing blanks (2 bytes),
+     *     followed by the chars
+     *   for a full line: the space used (2 bytes), followed by the chars and
+     *     then the offsets of columns 1..columns-1 (2 bytes each)
+     *   the number of style runs (2 bytes), followed by the length (2 bytes)
+     *     and style (4 bytes) of each run
+     * Chars below 0x80 take one byte; others are stored as 0x80 followed by
+     * two bytes.
+     */
+    private static final int ARCHIVE_WRAP = 1;
+    private static final int ARCHIVE_BLANK = 2;
+    private static final int ARCHIVE_FULL = 4;
+
+    private void archiveRow(Object line, StyleRow color, boolean wrap) {
+        if (mArchive == null) {
+            mArchive = new ScrollbackArchive();
+        }
+        if (mArchiveBuffer == null) {
+            mArchiveBuffer = new byte[16 * mColumns + 64];
+        }
+        int columns = mColumns;
+        mArchiveLength = 0;
+        int flags = wrap ? ARCHIVE_WRAP : 0;
+        if (line == null) {
+            flags |= ARCHIVE_BLANK;
+        } else if (line instanceof FullUnicodeLine) {
+            flags |= ARCHIVE_FULL;
+        }
+        putArchiveByte(flags);
+        putArchiveShort(columns);
+        char[] filterText = null;
+        int filterLength = 0;
+        if (line instanceof char[]) {
+            char[] text = (char[]) line;
+            int length = columns;
+            while (length > 0 && text[length - 1] == ' ') {
+                --length;
+            }
+            putArchiveShort(length);
+            for (int i = 0; i < length; ++i) {
+                putArchiveChar(text[i]);
+            }
+            filterText = text;
+            filterLength = wrap ? columns : length;
+        } else if (line != null) {
+            FullUnicodeLine full = (FullUnicodeLine) line;
+            char[] text = full.getLine();
+            short[] offsets = full.getOffsets();
+            int spaceUsed = full.getSpaceUsed();
+            filterText = text;
+            filterLength = spaceUsed;
+            putArchiveShort(spaceUsed);
+            for (int i = 0; i < spaceUsed; ++i) {
+                putArchiveChar(text[i]);
+            }
+            for (int i = 1; i < columns; ++i) {
+                putArchiveShort(offsets[i]);
+            }
+        }
+
+        // Style runs; the count is filled in afterwards
+        int countOffset = mArchiveLength;
+        putArchiveShort(0);
+        int runs = 0;
+        if (color == null) {
+            putArchiveShort(columns);
+            putArchiveInt(mDefaultStyle);
+            runs = 1;
+        } else {
+            int column = 0;
+            while (column < columns) {
+                int style = color.get(column);
+                int end = color.spanEnd(column, columns);
+                if (mTrueColors != null) {
+                    // Archived rows don't keep RGB colors alive
+                    style = mTrueColors.toPaletteStyle(style);
+                }
+                putArchiveShort(end - column);
+                putArchiveInt(style);
+                ++runs;
+                column = end;
+            }
+        }
+        mArchiveBuffer[countOffset] = (byte) (runs >> 8);
+        mArchiveBuffer[countOffset + 1] = (byte) runs;
+
+        mArchive.add(mArchiveBuffer, 0, mArchiveLength, filterText, filterLength, wrap);
+        mDecodedArchiveRow = -1;
+    }
+
+    private void ensureArchiveSpace(int bytes) {
+        if (mArchiveLength + bytes > mArchiveBuffer.length) {
+            mArchiveBuffer = Arrays.copyOf(mArchiveBuffer,
+                    Math.max(mArchiveBuffer.length * 2, mArchiveLength + bytes));
+        }
+    }
+
+    private void putArchiveByte(int b) {
+        ensureArchiveSpace(1);
+        mArchiveBuffer[mArchiveLength++] = (byte) b;
+    }
+
+    private void putArchiveShort(int s) {
+        ensureArchiveSpace(2);
+        mArchiveBuffer[mArchiveLength++] = (byte) (s >> 8);
+        mArchiveBuffer[mArchiveLength++] = (byte) s;
+    }
+
+    private void putArchiveInt(int i) {
+        ensureArchiveSpace(4);
+        ScrollbackArchive.putInt(mArchiveBuffer, mArchiveLength, i);
+        mArchiveLength += 4;
+    }
+
+    private void putArchiveChar(char c) {
+        if (c < 0x80) {
+            putArchiveByte(c);
+        } else {
+            putArchiveByte(0x80);
+            putArchiveShort(c);
+        }
+    }
+
+    /**
+     * Decode an archived row into row mTotalRows.
+     *
+     * @param index The archived row, from 0 (the oldest).
+     * @return mTotalRows
+     */
+    private int decodeArchivedRow(int index) {
+        int row = mTotalRows;
+        if (index == mDecodedArchiveRow) {
+            return row;
+        }
+        int columns = mColumns;
+        ScrollbackArchive archive = mArchive;
+        int pos = archive.find(index);
+        byte[] data = archive.getData();
+
+        int flags = data[pos++];
+        // The row's width, which is always the transcript's; see reflow()
+        pos += 2;
+        mLineWrap[row] = (flags & ARCHIVE_WRAP) != 0;
+        if ((flags & ARCHIVE_BLANK) != 0) {
+            mLines[row] = null;
+        } else {
+            int length = getShort(data, pos);
+            pos += 2;
+            if (mArchiveText == null || mArchiveText.length < length) {
+                mArchiveText = new char[Math.max(length, 2 * columns)];
+            }
+            char[] text = mArchiveText;
+            for (int i = 0; i < length; ++i) {
+                int c = data[pos++] & 0xff;
+                if (c == 0x80) {
+                    c = getShort(data, pos);
+                    pos += 2;
+                }
+                text[i] = (char) c;
+            }
+            if ((flags & ARCHIVE_FULL) == 0) {
+                char[] line = mLines[row] instanceof char[] ? (char[]) mLines[row] : new char[columns];
+                System.arraycopy(text, 0, line, 0, length);
+                Arrays.fill(line, length, columns, ' ');
+                mLines[row] = line;
+            } else {
+                if (mArchiveOffsets == null || mArchiveOffsets.length < columns) {
+                    mArchiveOffsets = new short[columns];
+                }
+                short[] offsets = mArchiveOffsets;
+                offsets[0] = (short) length;
+                for (int i = 1; i < columns; ++i) {
+                    offsets[i] = (short) getShort(data, pos);
+                    pos += 2;
+                }
+                FullUnicodeLine line = mLines[row] instanceof FullUnicodeLine
+                        ? (FullUnicodeLine) mLines[row] : new FullUnicodeLine(columns);
+                line.restore(text, offsets);
+                mLines[row] = line;
+            }
+        }
+
+        int runs = getShort(data, pos);
+        pos += 2;
+        if (mColor[row] == null) {
+            mColor[row] = new StyleRow(mDefaultStyle, columns);
+        }
+        StyleRow color = mColor[row];
+        int column = 0;
+        for (int i = 0; i < runs; ++i) {
+            int length = getShort(data, pos);
+            int style = ScrollbackArchive.getInt(data, pos + 2);
+            pos += 6;
+            if (i == 0) {
+                color.reset(style);
+            }
+            color.set(column, length, style);
+            column += length;
+        }
+
+        mDecodedArchiveRow = index;
+        return row;
+    }
+
+    private static int getShort(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 8 | (b[offset + 1] & 0xff);
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
@@ -389,6 +1069,7 @@ public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
             for (int y = 0; y < h; y++) {
                 int srcRow = externalToInternalRow(sy + y);
                 int dstRow = externalToInternalRow(dy + y);
+                mRowVersion[dstRow] = nextVersion();
                 if (lines[srcRow] instanceof char[] && lines[dstRow] instanceof char[]) {
                     System.arraycopy(lines[srcRow], sx, lines[dstRow], dx, w);
                 } else {
@@ -428,6 +1109,7 @@ public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
                 int y2 = h - (y + 1);
                 int srcRow = externalToInternalRow(sy + y2);
                 int dstRow = externalToInternalRow(dy + y2);
+                mRowVersion[dstRow] = nextVersion();
                 if (lines[srcRow] instanceof char[] && lines[dstRow] instanceof char[]) {
                     System.arraycopy(lines[srcRow], sx, lines[dstRow], dx, w);
                 } else {
@@ -523,6 +1205,25 @@ public static int charWidth(int codePoint) {
             return 1;
         }
 
+        WidthTable widths = sWidths;
+        if (codePoint >= 0 && codePoint < 0x10000) {
+            return (widths.mBmp[codePoint >> 4] >>> ((codePoint & 15) << 1)) & 3;
+        } else if (codePoint >= 0x10000 && codePoint <= Character.MAX_CODE_POINT) {
+            return widths.getAstral(codePoint);
+        }
+        return baseCharWidth(codePoint);
+    }
+
+    /**
+     * The part of the display width which doesn't depend on the ambiguous
+     * width setting.  Returns 1 for every code point that the ambiguous,
+     * doublewidth and emoji_wide tables may still make wider.
+     */
+    private static int baseCharWidth(int codePoint) {
+        if (codePoint > 31 && codePoint < 127) {
+            return 1;
+        }
+
         /* HACK: We're using ASCII ESC to save the location of the cursor
            across screen resizes, so we need to pretend that it has width 1 */
         if (codePoint == 27) {
@@ -559,13 +1260,7 @@ public static int charWidth(int codePoint) {
             }
         }
 
-        if (mAmbiWidthMode <= 2) {
-            return vimCharWidth(codePoint);
-        } else if (mAmbiWidthMode == 3) {
-            return unicode9CharWidth(codePoint);
-        } else {
-            return vimCharWidth(codePoint);
-        }
+        return 1;
     }
 
     // from vim/src/mbyte.c
@@ -936,16 +1631,16 @@ public static int charWidth(int codePoint) {
         {0x1f6f3, 0x1f6f3}
     };
 
-    private static int vimCharWidth(int codePoint) {
-        if (intable(codePoint, ambiguous)) return mAmbiWidth;
+    private static int vimCharWidth(int codePoint, int ambiWidth) {
+        if (intable(codePoint, ambiguous)) return ambiWidth;
         if (intable(codePoint, doublewidth)) return 2;
         if (intable(codePoint, emoji_wide)) return 2;
         return 1;
     }
 
-    private static int unicode9CharWidth(int codePoint) {
+    private static int unicode9CharWidth(int codePoint, int ambiWidth) {
         if (intable(codePoint, doublewidth)) return 2;
-        if (intable(codePoint, ambiguous)) return mAmbiWidth;
+        if (intable(codePoint, ambiguous)) return ambiWidth;
         return 1;
     }
 
@@ -968,6 +1663,96 @@ private static boolean intable(int c, int[][] table) {
         return false;
     }
 
+    private static int computeCharWidth(int codePoint, int ambiWidthMode, int ambiWidth) {
+        int width = baseCharWidth(codePoint);
+        if (width != 1) {
+            return width;
+        }
+        if (ambiWidthMode == 3) {
+            return unicode9CharWidth(codePoint, ambiWidth);
+        } else {
+            return vimCharWidth(codePoint, ambiWidth);
+        }
+    }
+
+    /*
+     * charWidth() is called for every non-ASCII character emitted and drawn,
+     * so the widths for the current ambiguous width setting are looked up
+     * in a table of two bits per code point instead.  The BMP is computed
+     * up front and stored flat.  The astral planes are split into blocks of
+     * 256 code points which are computed the first time they're used;
+     * blocks whose code points all have the same width share one array.
+     */
+    private static final int WIDTH_BLOCK_SHIFT = 8;
+    private static final int WIDTH_BLOCK_MASK = (1 << WIDTH_BLOCK_SHIFT) - 1;
+    private static final int ASTRAL_WIDTH_BLOCKS =
+            (Character.MAX_CODE_POINT + 1 - 0x10000) >> WIDTH_BLOCK_SHIFT;
+
+    private static final int[][] UNIFORM_WIDTH_BLOCKS = {
+        uniformWidthBlock(0), uniformWidthBlock(1), uniformWidthBlock(2)
+    };
+
+    private static final class WidthTable {
+        final int mAmbiWidthMode;
+        final int mAmbiWidth;
+        final int[] mBmp;
+        final AtomicReferenceArray<int[]> mAstral;
+
+        WidthTable(int ambiWidthMode, int ambiWidth) {
+            mAmbiWidthMode = ambiWidthMode;
+            mAmbiWidth = ambiWidth;
+            mBmp = new int[0x10000 >> 4];
+            for (int c = 0; c < 0x10000; c++) {
+                putWidth(mBmp, c, computeCharWidth(c, ambiWidthMode, ambiWidth));
+            }
+            mAstral = new AtomicReferenceArray<int[]>(ASTRAL_WIDTH_BLOCKS);
+        }
+
+        int getAstral(int codePoint) {
+            int offset = codePoint - 0x10000;
+            int index = offset >> WIDTH_BLOCK_SHIFT;
+            int[] block = mAstral.get(index);
+            if (block == null) {
+                block = computeAstralBlock(index);
+                mAstral.set(index, block);
+            }
+            offset &= WIDTH_BLOCK_MASK;
+            return (block[offset >> 4] >>> ((offset & 15) << 1)) & 3;
+        }
+
+        private int[] computeAstralBlock(int index) {
+            int first = 0x10000 + (index << WIDTH_BLOCK_SHIFT);
+            int[] block = new int[(WIDTH_BLOCK_MASK + 1) >> 4];
+            for (int i = 0; i <= WIDTH_BLOCK_MASK; i++) {
+                putWidth(block, i, computeCharWidth(first + i, mAmbiWidthMode, mAmbiWidth));
+            }
+            for (int[] uniform : UNIFORM_WIDTH_BLOCKS) {
+                if (Arrays.equals(block, uniform)) {
+                    return uniform;
+                }
+            }
+            return block;
+        }
+    }
+
+    /** Widths for the current mAmbiWidthMode; replaced by setAmbiWidth(). */
+    private static volatile WidthTable sWidths = new WidthTable(mAmbiWidthMode, mAmbiWidth);
+
+    private static int[] uniformWidthBlock(int width) {
+        int packed = 0;
+        for (int i = 0; i < 16; i++) {
+            packed |= width << (i << 1);
+        }
+        int[] block = new int[(WIDTH_BLOCK_MASK + 1) >> 4];
+        Arrays.fill(block, packed);
+        return block;
+    }
+
+    private static void putWidth(int[] packed, int index, int width) {
+        int shift = (index & 15) << 1;
+        packed[index >> 4] = (packed[index >> 4] & ~(3 << shift)) | (width << shift);
+    }
+
     public static int charWidth(char cHigh, char cLow) {
         return charWidth(Character.toCodePoint(cHigh, cLow));
     }
@@ -998,7 +1783,7 @@ public static int charWidth(char[] chars, int index) {
      * this case, the last character requested will be followed by a NUL, and
      * the contents of the rest of the array could potentially be garbage.
      *
-     * @param row The row number to get (-mActiveTranscriptRows..mScreenRows-1)
+     * @param row The row number to get (-getActiveTranscriptRows()..mScreenRows-1)
      * @param x1 The first screen position that's wanted
      * @param x2 One after the last screen position that's wanted
      * @return A char[] array containing the requested contents
@@ -1015,7 +1800,7 @@ public char[] getLine(int row) {
     }
 
     private char[] getLine(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
@@ -1093,7 +1878,7 @@ public StyleRow getLineColor(int row) {
     }
 
     private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
@@ -1125,8 +1910,137 @@ private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
         }
     }
 
+    /**
+     * Find the next match for a search, looking at one logical line at a
+     * time, starting with the one holding the given position.  Only the
+     * logical line being searched is copied out of the transcript, and
+     * archived blocks which the search's filter rules out aren't even
+     * decompressed.
+     *
+     * @param row The row to start from; rows outside the transcript are
+     *            taken to be just before the first row or after the last.
+     * @param column The column to start from.
+     * @param forward Whether to look for the first match starting after the
+     *                position, rather than the last match starting before it.
+     * @return Whether a match was found; if so, the search holds it.
+     */
+    boolean search(TranscriptSearch search, int row, int column, boolean forward) {
+        int firstRow = -getActiveTranscriptRows();
+        int lastRow = mScreenRows - 1;
+        // Rows before this one are archived
+        int archiveEnd = -mActiveTranscriptRows;
+        long[] filter = search.getFilter();
+        if (row < firstRow) {
+            row = firstRow;
+            column = -1;
+        } else if (row > lastRow) {
+            row = lastRow;
+            column = mColumns;
+        }
+
+        int start = row;
+        while (start > firstRow && getLineWrap(start - 1)) {
+            --start;
+        }
+        int end = row;
+        while (end < lastRow && getLineWrap(end)) {
+            ++end;
+        }
+        boolean limited = true;
+        while (!searchLine(search, start, end, forward, limited, row, column)) {
+            limited = false;
+            if (forward) {
+                if (end == lastRow) {
+                    return false;
+                }
+                start = end + 1;
+                while (filter != null && start < archiveEnd) {
+                    int skip = mArchive.skipForward(start - firstRow, filter);
+                    if (skip < 0) {
+                        break;
+                    }
+                    start = firstRow + skip + 1;
+                }
+                end = start;
+                while (end < lastRow && getLineWrap(end)) {
+                    ++end;
+                }
+            } else {
+                if (start == firstRow) {
+                    return false;
+                }
+                end = start - 1;
+                while (filter != null && end < archiveEnd) {
+                    int skip = mArchive.skipBackward(end - firstRow, filter);
+                    if (skip < 0) {
+                        break;
+                    }
+                    if (skip == 0) {
+                        return false;
+                    }
+                    end = firstRow + skip - 1;
+                }
+                start = end;
+                while (start > firstRow && getLineWrap(start - 1)) {
+                    --start;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the logical line from row start to row end into the search, and
+     * look for a match in it.
+     */
+    private boolean searchLine(TranscriptSearch search, int start, int end, boolean forward,
+            boolean limited, int limitRow, int limitColumn) {
+        int columns = mColumns;
+        search.startLine();
+        for (int row = start; row <= end; ++row) {
+            Object line = mLines[externalToInternalRow(row)];
+            if (line == null) {
+                if (row < end) {
+                    // A blank wrapped row is as good as a row of spaces
+                    for (int column = 0; column < columns; ++column) {
+                        search.append(' ', row, column, column);
+                    }
+                }
+            } else if (line instanceof char[]) {
+                char[] text = (char[]) line;
+                for (int column = 0; column < columns; ++column) {
+                    search.append(text[column], row, column, column);
+                }
+            } else {
+                FullUnicodeLine full = (FullUnicodeLine) line;
+                char[] text = full.getLine();
+                int spaceUsed = full.getSpaceUsed();
+                int column = 0;
+                int charColumn = 0;
+                int lastColumn = 0;
+                for (int i = 0; i < spaceUsed; ) {
+                    int codePoint = Character.codePointAt(text, i, spaceUsed);
+                    int count = Character.charCount(codePoint);
+                    int width = charWidth(codePoint);
+                    if (width > 0) {
+                        charColumn = column;
+                        lastColumn = column + width - 1;
+                        column += width;
+                    }
+                    // Combining characters belong to the character before
+                    for (int j = 0; j < count; ++j) {
+                        search.append(text[i + j], row, charColumn, lastColumn);
+                    }
+                    i += count;
+                }
+            }
+        }
+        search.trimTrailingSpaces();
+        return search.findInLine(forward, limited, limitRow, limitColumn);
+    }
+
     boolean isBasicLine(int row) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
@@ -1153,7 +2067,7 @@ public boolean getChar(int row, int column, int charIndex) {
      * @return Whether or not there are characters following this one in the column.
      */
     public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
         row = externalToInternalRow(row);
@@ -1173,13 +2087,47 @@ private boolean isBasicChar(int codePoint) {
         return !(charWidth(codePoint) != 1 || Character.charCount(codePoint) != 1);
     }
 
+    private void recycleLine(Object line) {
+        if (line instanceof char[]) {
+            if (mBasicLinePoolSize < LINE_POOL_SIZE) {
+                mBasicLinePool[mBasicLinePoolSize++] = (char[]) line;
+            }
+        } else if (line != null) {
+            if (mFullLinePoolSize < LINE_POOL_SIZE) {
+                mFullLinePool[mFullLinePoolSize++] = (FullUnicodeLine) line;
+            }
+        }
+    }
+
+    private StyleRow recycleStyleRow(StyleRow color, int style) {
+        if (color == null) {
+            return new StyleRow(style, mColumns);
+        }
+        color.reset(style);
+        return color;
+    }
+
+    private FullUnicodeLine obtainFullLine(char[] basicLine) {
+        if (mFullLinePoolSize == 0) {
+            return new FullUnicodeLine(basicLine);
+        }
+        FullUnicodeLine line = mFullLinePool[--mFullLinePoolSize];
+        mFullLinePool[mFullLinePoolSize] = null;
+        line.reset(basicLine);
+        return line;
+    }
+
     private char[] allocateBasicLine(int row, int columns) {
-        char[] line = new char[columns];
+        char[] line;
+        if (mBasicLinePoolSize > 0) {
+            line = mBasicLinePool[--mBasicLinePoolSize];
+            mBasicLinePool[mBasicLinePoolSize] = null;
+        } else {
+            line = new char[columns];
+        }
 
         // Fill the line with blanks
-        for (int i = 0; i < columns; ++i) {
-            line[i] = ' ';
-        }
+        Arrays.fill(line, ' ');
 
         mLines[row] = line;
         if (mColor[row] == null) {
@@ -1189,7 +2137,14 @@ private char[] allocateBasicLine(int row, int columns) {
     }
 
     private FullUnicodeLine allocateFullLine(int row, int columns) {
-        FullUnicodeLine line = new FullUnicodeLine(columns);
+        FullUnicodeLine line;
+        if (mFullLinePoolSize > 0) {
+            line = mFullLinePool[--mFullLinePoolSize];
+            mFullLinePool[mFullLinePoolSize] = null;
+            line.reset();
+        } else {
+            line = new FullUnicodeLine(columns);
+        }
 
         mLines[row] = line;
         if (mColor[row] == null) {
@@ -1209,12 +2164,43 @@ public boolean setChar(int column, int row, int codePoint, int style) {
         return true;
     }
 
+    /**
+     * Store a run of printable ASCII characters (all of width 1) starting at
+     * (column, row).  The whole run must fit on the row.
+     */
+    public void setChars(int column, int row, int[] codePoints, int offset, int count, int style) {
+        if (row >= mScreenRows || column + count > mColumns) {
+            Log.e(TAG, "illegal arguments! " + row + " " + column + " " + count + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        row = externalToInternalRow(row);
+        mRowVersion[row] = nextVersion();
+
+        if (mLines[row] == null) {
+            allocateBasicLine(row, mColumns);
+        }
+
+        if (mLines[row] instanceof char[]) {
+            char[] line = (char[]) mLines[row];
+            for (int i = 0; i < count; ++i) {
+                line[column + i] = (char) codePoints[offset + i];
+            }
+        } else {
+            FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            for (int i = 0; i < count; ++i) {
+                line.setChar(column + i, codePoints[offset + i]);
+            }
+        }
+        mColor[row].set(column, count, style);
+    }
+
     public boolean setChar(int column, int row, int codePoint) {
         if (row >= mScreenRows || column >= mColumns) {
             Log.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
             throw new IllegalArgumentException();
         }
         row = externalToInternalRow(row);
+        mRowVersion[row] = nextVersion();
 
         /*
          * Whether data contains non-BMP or characters with charWidth != 1
@@ -1251,7 +2237,8 @@ public boolean setChar(int column, int row, int codePoint) {
             }
 
             // Need to switch to the full-featured mode
-            mLines[row] = new FullUnicodeLine(line);
+            mLines[row] = obtainFullLine(line);
+            recycleLine(line);
         }
 
         FullUnicodeLine line = (FullUnicodeLine) mLines[row];
@@ -1298,6 +2285,25 @@ public FullUnicodeLine(char[] basicLine) {
         mOffset[0] = (short) basicLine.length;
     }
 
+    /**
+     * Reset a line taken from a transcript's pool to all blanks.
+     */
+    void reset() {
+        Arrays.fill(mText, 0, mColumns, ' ');
+        Arrays.fill(mOffset, (short) 0);
+        mOffset[0] = (short) mColumns;
+    }
+
+    /**
+     * Reset a line taken from a transcript's pool to the contents of a
+     * basic line.
+     */
+    void reset(char[] basicLine) {
+        System.arraycopy(basicLine, 0, mText, 0, mColumns);
+        Arrays.fill(mOffset, (short) 0);
+        mOffset[0] = (short) basicLine.length;
+    }
+
     private void commonConstructor(int columns) {
         mColumns = columns;
         mOffset = new short[columns];
@@ -1308,6 +2314,26 @@ public int getSpaceUsed() {
         return mOffset[0];
     }
 
+    /**
+     * @return The column offsets (see above).  Element 0 is the space used.
+     */
+    short[] getOffsets() {
+        return mOffset;
+    }
+
+    /**
+     * Restore the contents of a line of the same width from its text and
+     * offsets.
+     */
+    void restore(char[] text, short[] offsets) {
+        int spaceUsed = offsets[0];
+        if (mText.length < spaceUsed) {
+            mText = new char[spaceUsed + mColumns];
+        }
+        System.arraycopy(text, 0, mText, 0, spaceUsed);
+        System.arraycopy(offsets, 0, mOffset, 0, mColumns);
+    }
+
     public char[] getLine() {
         return mText;
     }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Throughput of {@link ByteQueue} against the synchronized queue it replaced,
+ * with 16 MB pushed through a 4 KB queue from one thread to another.  The
+ * consumer checks getBytesAvailable() before reading, as TermSession does.
+ */
+public class ByteQueueBenchmark {
+    private static final int QUEUE_SIZE = 4096;
+    private static final int TOTAL = 16 * 1024 * 1024;
+
+    private interface Queue {
+        int getBytesAvailable();
+
+        int read(byte[] buffer, int offset, int length) throws InterruptedException;
+
+        int write(byte[] buffer, int offset, int length) throws InterruptedException;
+    }
+
+    /**
+     * The queue as it was before it became a lock-free ring, kept here only
+     * to compare against.
+     */
+    private static final class SynchronizedByteQueue implements Queue {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mStoredBytes;
+
+        SynchronizedByteQueue(int size) {
+            mBuffer = new byte[size];
+        }
+
+        @Override
+        public int getBytesAvailable() {
+            synchronized (this) {
+                return mStoredBytes;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws InterruptedException {
+            synchronized (this) {
+                while (mStoredBytes == 0) {
+                    wait();
+                }
+                int totalRead = 0;
+                int bufferLength = mBuffer.length;
+                boolean wasFull = bufferLength == mStoredBytes;
+                while (length > 0 && mStoredBytes > 0) {
+                    int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
+                    int bytesToCopy = Math.min(length, oneRun);
+                    System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
+                    mHead += bytesToCopy;
+                    if (mHead >= bufferLength) {
+                        mHead = 0;
+                    }
+                    mStoredBytes -= bytesToCopy;
+                    length -= bytesToCopy;
+                    offset += bytesToCopy;
+                    totalRead += bytesToCopy;
+                }
+                if (wasFull) {
+                    notify();
+                }
+                return totalRead;
+            }
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int length) throws InterruptedException {
+            synchronized (this) {
+                int bufferLength = mBuffer.length;
+                boolean wasEmpty = mStoredBytes == 0;
+                while (bufferLength == mStoredBytes) {
+                    wait();
+                }
+                int tail = mHead + mStoredBytes;
+                int oneRun;
+                if (tail >= bufferLength) {
+                    tail = tail - bufferLength;
+                    oneRun = mHead - tail;
+                } else {
+                    oneRun = bufferLength - tail;
+                }
+                int bytesToCopy = Math.min(oneRun, length);
+                System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
+                mStoredBytes += bytesToCopy;
+                if (wasEmpty) {
+                    notify();
+                }
+                return bytesToCopy;
+            }
+        }
+    }
+
+    private static final class RingQueue implements Queue {
+        private final ByteQueue mQueue;
+
+        RingQueue(int parkMode) {
+            mQueue = new ByteQueue(QUEUE_SIZE, parkMode);
+        }
+
+        @Override
+        public int getBytesAvailable() {
+            return mQueue.getBytesAvailable();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws InterruptedException {
+            return mQueue.read(buffer, offset, length);
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int length) throws InterruptedException {
+            return mQueue.write(buffer, offset, length);
+        }
+    }
+
+    private interface QueueFactory {
+        Queue create();
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        for (int chunk : new int[] { 64, 4096 }) {
+            run("synchronized", chunk, new QueueFactory() {
+                @Override
+                public Queue create() {
+                    return new SynchronizedByteQueue(QUEUE_SIZE);
+                }
+            });
+            run("ring, PARK_BLOCK", chunk, new QueueFactory() {
+                @Override
+                public Queue create() {
+                    return new RingQueue(ByteQueue.PARK_BLOCK);
+                }
+            });
+            run("ring, PARK_SPIN", chunk, new QueueFactory() {
+                @Override
+                public Queue create() {
+                    return new RingQueue(ByteQueue.PARK_SPIN);
+                }
+            });
+        }
+    }
+
+    private static void run(String name, final int chunk, final QueueFactory factory) throws Exception {
+        long nanos = Benchmarks.best(2, 5, new Benchmarks.Body() {
+            @Override
+            public void run() throws Exception {
+                assertEquals(TOTAL, pass(factory.create(), chunk));
+            }
+        });
+        Benchmarks.report("ByteQueue %-18s %4d-byte writes: %7.1f MB/s",
+                name, chunk, Benchmarks.megabytesPerSecond(TOTAL, nanos));
+    }
+
+    private static long pass(final Queue queue, final int chunk) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                byte[] data = new byte[chunk];
+                try {
+                    int left = TOTAL;
+                    while (left > 0) {
+                        int count = Math.min(chunk, left);
+                        int offset = 0;
+                        while (offset < count) {
+                            offset += queue.write(data, offset, count - offset);
+                        }
+                        left -= count;
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        writer.start();
+        byte[] buffer = new byte[QUEUE_SIZE];
+        long received = 0;
+        while (received < TOTAL) {
+            if (queue.getBytesAvailable() == 0) {
+                Thread.yield();
+                continue;
+            }
+            received += queue.read(buffer, 0, buffer.length);
+        }
+        writer.join();
+        assertNull(failure.get());
+        return received;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteQueueTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(4096, new ByteQueue(4096).getFreeSpace());
+        assertEquals(4096, new ByteQueue(3000).getFreeSpace());
+        assertEquals(1, new ByteQueue(0).getFreeSpace());
+    }
+
+    @Test
+    public void writeStopsWhenFull() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        assertEquals(10, queue.write(bytes(0, 10), 0, 10));
+        assertEquals(6, queue.write(bytes(10, 10), 0, 10));
+        assertEquals(16, queue.getBytesAvailable());
+        assertEquals(0, queue.getFreeSpace());
+        assertArrayEquals(bytes(0, 16), read(queue, 16));
+    }
+
+    @Test
+    public void readAndWriteWrapAround() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        int written = 0;
+        int read = 0;
+        // Chunk sizes which don't divide the capacity, so that every offset
+        // in the ring gets to be the start of a wrapped run
+        for (int round = 0; round < 100; round++) {
+            int count = Math.min(1 + round % 7, queue.getFreeSpace());
+            assertEquals(count, queue.write(bytes(written, count), 0, count));
+            written += count;
+            int take = Math.min(1 + round % 5, queue.getBytesAvailable());
+            assertArrayEquals(bytes(read, take), read(queue, take));
+            read += take;
+        }
+        assertArrayEquals(bytes(read, written - read), read(queue, written - read));
+        assertEquals(0, queue.getBytesAvailable());
+    }
+
+    @Test
+    public void readReturnsEndOfDataOnlyOnceDrained() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 5), 0, 5);
+        queue.close();
+        byte[] buffer = new byte[16];
+        assertEquals(5, queue.read(buffer, 0, buffer.length));
+        assertEquals(-1, queue.read(buffer, 0, buffer.length));
+        assertEquals(-1, queue.peek(16));
+    }
+
+    @Test
+    public void writeWakesAParkedReader() throws Exception {
+        final ByteQueue queue = new ByteQueue(16);
+        final byte[] buffer = new byte[16];
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.read(buffer, 0, buffer.length));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        awaitParked(reader);
+        queue.write(bytes(0, 3), 0, 3);
+        join(reader);
+        assertEquals(3, result.get());
+    }
+
+    @Test
+    public void readWakesAParkedWriter() throws Exception {
+        final ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 16), 0, 16);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread writer = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.write(bytes(16, 4), 0, 4));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        awaitParked(writer);
+        assertArrayEquals(bytes(0, 8), read(queue, 8));
+        join(writer);
+        assertEquals(4, result.get());
+        assertArrayEquals(bytes(8, 12), read(queue, 12));
+    }
+
+    @Test
+    public void closeWakesAParkedReader() throws Exception {
+        final ByteQueue queue = new ByteQueue(16);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.read(new byte[4], 0, 4));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        awaitParked(reader);
+        queue.close();
+        join(reader);
+        assertEquals(-1, result.get());
+    }
+
+    @Test
+    public void closeWakesAParkedWriter() throws Exception {
+        final ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 16), 0, 16);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread writer = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.write(bytes(0, 1), 0, 1));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        awaitParked(writer);
+        queue.close();
+        join(writer);
+        assertTrue(result.get() instanceof InterruptedException);
+    }
+
+    @Test
+    public void interruptWakesAParkedReader() throws Exception {
+        final ByteQueue queue = new ByteQueue(16);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.read(new byte[4], 0, 4));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        awaitParked(reader);
+        reader.interrupt();
+        join(reader);
+        assertTrue(result.get() instanceof InterruptedException);
+    }
+
+    @Test
+    public void waitForDataTimesOut() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        long start = System.nanoTime();
+        assertFalse(queue.waitForData(20 * 1000 * 1000));
+        assertTrue(System.nanoTime() - start >= 20 * 1000 * 1000);
+    }
+
+    @Test
+    public void waitForDataReturnsAtOnceWithDataOrWhenClosed() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 1), 0, 1);
+        assertTrue(queue.waitForData(0));
+        read(queue, 1);
+        queue.close();
+        assertTrue(queue.waitForData(TIMEOUT_MILLIS * 1000 * 1000));
+    }
+
+    @Test
+    public void waitForDataWakesOnWrite() throws Exception {
+        final ByteQueue queue = new ByteQueue(16);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.waitForData(TIMEOUT_MILLIS * 1000 * 1000));
+                } catch (InterruptedException e) {
+                    result.set(e);
+                }
+            }
+        });
+        awaitParked(reader);
+        queue.write(bytes(0, 1), 0, 1);
+        join(reader);
+        assertEquals(true, result.get());
+    }
+
+    @Test
+    public void peekStopsAtTheEndOfTheRing() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 12), 0, 12);
+        read(queue, 12);
+        queue.write(bytes(12, 10), 0, 10);
+
+        // Four bytes before the end of the ring, six after it
+        assertEquals(4, queue.peek(16));
+        assertEquals(2, queue.peek(2));
+        assertArrayEquals(bytes(12, 4), Arrays.copyOfRange(queue.getBuffer(),
+                queue.getReadOffset(), queue.getReadOffset() + 4));
+        queue.skip(4);
+        assertEquals(0, queue.getReadOffset());
+        assertEquals(6, queue.peek(16));
+        assertArrayEquals(bytes(16, 6), Arrays.copyOfRange(queue.getBuffer(), 0, 6));
+        queue.skip(6);
+        assertEquals(0, queue.getBytesAvailable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void skipPastTheDataThrows() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 3), 0, 3);
+        queue.skip(4);
+    }
+
+    @Test
+    public void readFromStopsAtTheEndOfTheRing() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 10), 0, 10);
+        read(queue, 10);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes(10, 12));
+        assertEquals(6, queue.readFrom(in, 64));
+        assertEquals(6, queue.readFrom(in, 64));
+        assertEquals(-1, queue.readFrom(in, 64));
+        assertArrayEquals(bytes(10, 12), read(queue, 12));
+    }
+
+    @Test
+    public void writeToStreamWritesWrappedBytesInOrder() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        queue.write(bytes(0, 12), 0, 12);
+        read(queue, 12);
+        queue.write(bytes(12, 10), 0, 10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(10, queue.writeTo(out));
+        assertArrayEquals(bytes(12, 10), out.toByteArray());
+        assertEquals(0, queue.getBytesAvailable());
+        assertEquals(0, queue.writeTo(out));
+    }
+
+    @Test
+    public void writeToChannelRetriesPartialGatheredWrites() throws Exception {
+        ByteQueue queue = new ByteQueue(16);
+        TrickleChannel channel = new TrickleChannel(3);
+        int expected = 0;
+        for (int round = 0; round < 20; round++) {
+            int count = 5 + round % 11;
+            queue.write(bytes(expected, count), 0, count);
+            expected += count;
+            assertEquals(count, queue.writeTo(channel));
+            assertEquals(0, queue.getBytesAvailable());
+        }
+        assertArrayEquals(bytes(0, expected), channel.mOut.toByteArray());
+        assertTrue(channel.mWrites > 20);
+    }
+
+    @Test
+    public void producerAndConsumerThreadsAgree() throws Exception {
+        passThrough(ByteQueue.PARK_BLOCK);
+        passThrough(ByteQueue.PARK_SPIN);
+    }
+
+    private void passThrough(int parkMode) throws Exception {
+        final ByteQueue queue = new ByteQueue(64, parkMode);
+        final byte[] data = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = start(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(2);
+                try {
+                    int offset = 0;
+                    while (offset < data.length) {
+                        int count = Math.min(1 + random.nextInt(100), data.length - offset);
+                        offset += queue.write(data, offset, count);
+                    }
+                    queue.close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[37];
+        int read;
+        while ((read = queue.read(buffer, 0, buffer.length)) != -1) {
+            received.write(buffer, 0, read);
+        }
+        join(writer);
+        assertNull(failure.get());
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    /**
+     * A channel which takes at most a few bytes per write, like a pty whose
+     * buffer is nearly full.
+     */
+    private static final class TrickleChannel implements GatheringByteChannel {
+        private final int mMaxWrite;
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        int mWrites;
+
+        TrickleChannel(int maxWrite) {
+            mMaxWrite = maxWrite;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            mWrites++;
+            int left = mMaxWrite;
+            for (int i = offset; i < offset + length && left > 0; i++) {
+                while (srcs[i].hasRemaining() && left > 0) {
+                    mOut.write(srcs[i].get());
+                    left--;
+                }
+            }
+            return mMaxWrite - left;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static byte[] bytes(int start, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) (start + i);
+        }
+        return bytes;
+    }
+
+    private static byte[] read(ByteQueue queue, int count) throws InterruptedException {
+        byte[] buffer = new byte[count];
+        int offset = 0;
+        while (offset < count) {
+            offset += queue.read(buffer, offset, count - offset);
+        }
+        return buffer;
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (thread.getState() != Thread.State.WAITING
+                && thread.getState() != Thread.State.TIMED_WAITING) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Thread never parked");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void join(Thread thread) throws InterruptedException {
+        thread.join(TIMEOUT_MILLIS);
+        assertFalse("Thread still running", thread.isAlive());
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Emulators for the tests and benchmarks to feed.
+ */
+final class Emulators {
+    private Emulators() {
+    }
+
+    /**
+     * @return A new emulator, with a session which drops what the emulator
+     *         writes back to it.
+     */
+    static TerminalEmulator newEmulator(int columns, int rows, int transcriptRows) {
+        TermSession session = new TermSession() {
+            @Override
+            public void write(byte[] data, int offset, int count) {
+            }
+        };
+        ColorScheme scheme = BaseTextRenderer.defaultColorScheme;
+        TranscriptScreen screen = new TranscriptScreen(columns, transcriptRows, rows, scheme);
+        TerminalEmulator emulator = new TerminalEmulator(session, screen, columns, rows, scheme);
+        emulator.setKeyListener(new TermKeyListener(session));
+        emulator.setUTF8ModeUpdateCallback(new UpdateCallback() {
+            @Override
+            public void onUpdate() {
+            }
+        });
+        emulator.setDefaultUTF8Mode(true);
+        return emulator;
+    }
+}
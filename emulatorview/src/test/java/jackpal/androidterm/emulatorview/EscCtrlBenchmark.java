@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cost of queueing DroidVim control codes (CSI Ps t and OSC 99) in the
+ * emulator and of draining them in EmulatorView.doEscCtrl(), against the
+ * static LinkedList of boxed Integers it replaced.
+ */
+public class EscCtrlBenchmark {
+    private static final int CODES = 1000000;
+    // Codes queued between two drains, as in a 4 KB read of the stream below
+    private static final int BATCH = 64;
+    private static final int STREAM_SIZE = 400 * 1024;
+    // What the view reads between two screen updates
+    private static final int CHUNK = 4096;
+    private static final int[] MODES = { 0, 1, 2, 50, 51, 53, 54, 55 };
+
+    /**
+     * The queue as it was before it became a ring in each emulator, kept here
+     * only to compare against.
+     */
+    private static final class LinkedListQueue {
+        private final Queue<Integer> mEscSeq = new LinkedList<Integer>();
+
+        void setOSCMode(int esc) {
+            mEscSeq.offer(esc);
+        }
+
+        int getEscCtrlMode() {
+            if (mEscSeq.size() == 0) return -1;
+            return mEscSeq.poll();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void queue() throws Exception {
+        final LinkedListQueue old = new LinkedListQueue();
+        report("LinkedList<Integer>", new Benchmarks.Body() {
+            @Override
+            public void run() {
+                long sum = 0;
+                for (int i = 0; i < CODES; i += BATCH) {
+                    for (int j = 0; j < BATCH; j++) {
+                        old.setOSCMode(MODES[j & 7]);
+                    }
+                    int code;
+                    while ((code = old.getEscCtrlMode()) != -1) {
+                        sum += code;
+                    }
+                }
+                assertEquals(expectedSum(), sum);
+            }
+        });
+
+        final TerminalEmulator emulator = Emulators.newEmulator(80, 24, 100);
+        final int[] modes = new int[16];
+        report("ring, drained 16 at a time", new Benchmarks.Body() {
+            @Override
+            public void run() {
+                long sum = 0;
+                for (int i = 0; i < CODES; i += BATCH) {
+                    for (int j = 0; j < BATCH; j++) {
+                        emulator.setOSCMode(MODES[j & 7]);
+                    }
+                    int count;
+                    while ((count = emulator.getEscCtrlModes(modes)) > 0) {
+                        for (int k = 0; k < count; k++) {
+                            sum += modes[k];
+                        }
+                    }
+                }
+                assertEquals(expectedSum(), sum);
+            }
+        });
+    }
+
+    @Test
+    public void stream() throws Exception {
+        final byte[] stream = escCtrlStream();
+        final TerminalEmulator emulator = Emulators.newEmulator(80, 24, 2000);
+        final int[] modes = new int[16];
+        Benchmarks.Body body = new Benchmarks.Body() {
+            @Override
+            public void run() {
+                for (int offset = 0; offset < stream.length; offset += CHUNK) {
+                    emulator.append(stream, offset, Math.min(CHUNK, stream.length - offset));
+                    while (emulator.getEscCtrlModes(modes) > 0) {
+                        // The view would handle them here
+                    }
+                }
+            }
+        };
+        long nanos = Benchmarks.best(3, 10, body);
+        long allocated = Benchmarks.allocatedBytes(body);
+        Benchmarks.report("EscCtrl %d KB stream, drained every %d bytes: %7.1f MB/s, %d KB allocated",
+                STREAM_SIZE / 1024, CHUNK, Benchmarks.megabytesPerSecond(stream.length, nanos),
+                allocated / 1024);
+    }
+
+    private static void report(String name, Benchmarks.Body body) throws Exception {
+        long nanos = Benchmarks.best(3, 10, body);
+        long allocated = Benchmarks.allocatedBytes(body);
+        Benchmarks.report("EscCtrl %-28s %6.1f ns/code, %5.1f bytes/code allocated",
+                name, (double) nanos / CODES, (double) allocated / CODES);
+    }
+
+    private static long expectedSum() {
+        long sum = 0;
+        for (int i = 0; i < CODES; i += BATCH) {
+            for (int j = 0; j < BATCH; j++) {
+                sum += MODES[j & 7];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * CSI Ps t and OSC 99 codes mixed with short runs of text, as vim with
+     * DroidVim's IME and cursor control sends them.
+     */
+    private static byte[] escCtrlStream() {
+        Random random = new Random(5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(STREAM_SIZE);
+        while (out.size() < STREAM_SIZE) {
+            String code = random.nextBoolean()
+                    ? "\033[" + MODES[random.nextInt(MODES.length)] + "t"
+                    : "\033]99;" + MODES[random.nextInt(MODES.length)] + "\007";
+            byte[] bytes = code.getBytes();
+            out.write(bytes, 0, bytes.length);
+            for (int i = random.nextInt(40); i > 0; i--) {
+                out.write('a' + random.nextInt(26));
+            }
+            if (random.nextInt(8) == 0) {
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The time taken to change the width of a full transcript, by reflowing its
+ * rows as {@link TerminalEmulator#updateSize} does, against replaying its
+ * text through an emulator of the new width as resizing used to.
+ *
+ * Replaying here starts from an ANSI export of the transcript, so it also
+ * pays for parsing the escape sequences which the old resize didn't need to
+ * write out; it's an upper bound for the old way, not a copy of it.
+ */
+public class ReflowBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int NEW_COLUMNS = 60;
+    private static final int ROWS = 24;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void resize() throws Exception {
+        for (int transcriptRows : new int[] { 1000, 10000, 50000 }) {
+            final byte[] stream = stream(transcriptRows);
+            final TerminalEmulator[] emulator = new TerminalEmulator[1];
+            Benchmarks.Body fill = new Benchmarks.Body() {
+                @Override
+                public void run() {
+                    emulator[0] = fill(stream, transcriptRows);
+                }
+            };
+            long reflow = Benchmarks.best(2, 5, fill, new Benchmarks.Body() {
+                @Override
+                public void run() {
+                    emulator[0].updateSize(NEW_COLUMNS, ROWS);
+                }
+            });
+
+            long replay = Benchmarks.best(2, 5, fill, new Benchmarks.Body() {
+                @Override
+                public void run() throws Exception {
+                    StringBuilder text = new StringBuilder();
+                    emulator[0].getScreen().exportTranscript(
+                            new TranscriptExporter(TranscriptExporter.FORMAT_ANSI,
+                                    BaseTextRenderer.defaultColorScheme),
+                            new ReentrantLock(), text);
+                    byte[] bytes = text.toString().getBytes("UTF-8");
+                    TerminalEmulator resized = Emulators.newEmulator(NEW_COLUMNS, ROWS,
+                            transcriptRows);
+                    resized.append(bytes, 0, bytes.length);
+                }
+            });
+            Benchmarks.report("Resize %5d rows from %d to %d columns  reflow: %6.1f ms"
+                    + "   replay: %6.1f ms", transcriptRows, COLUMNS, NEW_COLUMNS,
+                    Benchmarks.millis(reflow), Benchmarks.millis(replay));
+        }
+    }
+
+    private static TerminalEmulator fill(byte[] stream, int transcriptRows) {
+        TerminalEmulator emulator = Emulators.newEmulator(COLUMNS, ROWS, transcriptRows);
+        emulator.append(stream, 0, stream.length);
+        return emulator;
+    }
+
+    /**
+     * Colored lines of all lengths, some wrapping, enough to fill a
+     * transcript of the given size without rows being archived.
+     */
+    private static byte[] stream(int transcriptRows) {
+        Random random = new Random(3);
+        StringBuilder text = new StringBuilder();
+        int rows = 0;
+        while (rows < transcriptRows - ROWS) {
+            int length = random.nextInt(2 * COLUMNS);
+            for (int column = 0; column < length; ) {
+                int word = Math.min(1 + random.nextInt(10), length - column);
+                if (random.nextInt(4) == 0) {
+                    text.append("\033[").append(31 + random.nextInt(7)).append('m');
+                }
+                for (int i = 0; i < word; i++) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                text.append("\033[0m ");
+                column += word + 1;
+            }
+            text.append("\r\n");
+            rows += Math.max(1, (length + COLUMNS - 1) / COLUMNS);
+        }
+        return text.toString().getBytes();
+    }
+}
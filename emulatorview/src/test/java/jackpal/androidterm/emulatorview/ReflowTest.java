@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that resizing reflows the rows which have scrolled into the
+ * archive as well as those still in the transcript.
+ */
+public class ReflowTest {
+    private static final int ROWS = 5;
+    // Small enough that most rows end up in the archive
+    private static final int TRANSCRIPT_ROWS = 10;
+    private static final int LINES = 40;
+
+    @Test
+    public void shrinkReflowsArchivedRows() throws Exception {
+        TerminalEmulator emulator = fill(80, lines("abcdefghijklmnopqrstuvwx"));
+        assertArchived(emulator);
+        emulator.updateSize(12, ROWS);
+        assertArchived(emulator);
+        assertLines(emulator, lines("abcdefghijklmnopqrstuvwx"));
+    }
+
+    @Test
+    public void growJoinsArchivedRows() throws Exception {
+        TerminalEmulator emulator = fill(12, lines("abcdefghijklmnopqrstuvwx"));
+        emulator.updateSize(80, ROWS);
+        assertLines(emulator, lines("abcdefghijklmnopqrstuvwx"));
+    }
+
+    @Test
+    public void wideAndCombiningCharactersSurviveRoundTrip() throws Exception {
+        String text = "ab\u6f22\u5b57cd\u00e9e\u0301\uff21\uff22\u65e5\u672c\u8a9e";
+        TerminalEmulator emulator = fill(80, lines(text));
+        emulator.updateSize(7, ROWS);
+        emulator.updateSize(11, ROWS);
+        emulator.updateSize(80, ROWS);
+        assertLines(emulator, lines(text));
+    }
+
+    private static String[] lines(String text) {
+        String[] lines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = "line" + i + ":" + text;
+        }
+        return lines;
+    }
+
+    private static TerminalEmulator fill(int columns, String[] lines) throws Exception {
+        TerminalEmulator emulator = Emulators.newEmulator(columns, ROWS, TRANSCRIPT_ROWS);
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append("\r\n");
+        }
+        byte[] bytes = text.toString().getBytes("UTF-8");
+        emulator.append(bytes, 0, bytes.length);
+        return emulator;
+    }
+
+    private static void assertArchived(TerminalEmulator emulator) {
+        // The rows past those the transcript holds are in the archive
+        assertTrue(emulator.getScreen().getActiveRows() > TRANSCRIPT_ROWS);
+    }
+
+    private static void assertLines(TerminalEmulator emulator, String[] lines) {
+        String[] text = emulator.getScreen().getTranscriptText().split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(lines[i], text[i]);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Memory and cost of {@link StyleRow}'s run-length rows against the byte
+ * array rows they replaced, for a transcript's worth of rows styled as
+ * plain output, as colored ls output and with a new style in every cell.
+ */
+public class StyleRowBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 10000;
+    private static final int PASSES = 100000;
+
+    /**
+     * Creates and works on one kind of row, so that rows are measured
+     * without a wrapper of their own.
+     */
+    private interface RowKind {
+        Object create(int style);
+
+        void set(Object row, int column, int count, int style);
+
+        int get(Object row, int column);
+    }
+
+    /**
+     * The row as it was before it was stored as runs, kept here only to
+     * compare against: three bytes per column, allocated in full by the first
+     * style which differs from the row's.
+     */
+    private static final class ByteStyleRow {
+        private final int mStyle;
+        private final int mColumns;
+        /** Initially null, will be allocated when needed. */
+        private byte[] mData;
+
+        ByteStyleRow(int style, int columns) {
+            mStyle = style;
+            mColumns = columns;
+        }
+
+        void set(int column, int style) {
+            if (style == mStyle && mData == null) {
+                return;
+            }
+            ensureData();
+            setStyle(column, style);
+        }
+
+        int get(int column) {
+            if (mData == null) {
+                return mStyle;
+            }
+            return getStyle(column);
+        }
+
+        private void ensureData() {
+            if (mData == null) {
+                mData = new byte[4*(mColumns+1)];
+                for (int i = 0; i < mColumns; i++) {
+                    setStyle(i, mStyle);
+                }
+            }
+        }
+
+        private int getStyle(int column) {
+            int index = 3 * column;
+            byte[] line = mData;
+            return line[index] & 0xff | (line[index+1] & 0xff) << 8
+                    | (line[index+2] & 0xff) << 16;
+        }
+
+        private void setStyle(int column, int value) {
+            int index = 3 * column;
+            byte[] line = mData;
+            line[index] = (byte) (value & 0xff);
+            line[index+1] = (byte) ((value >> 8) & 0xff);
+            line[index+2] = (byte) ((value >> 16) & 0xff);
+        }
+    }
+
+    private static final int DEFAULT_STYLE = TextStyle.kNormalTextStyle;
+
+    private static final RowKind BYTES = new RowKind() {
+        @Override
+        public Object create(int style) {
+            return new ByteStyleRow(style, COLUMNS);
+        }
+
+        @Override
+        public void set(Object row, int column, int count, int style) {
+            // The old row had no span setter; the emulator set cell by cell
+            ByteStyleRow bytes = (ByteStyleRow) row;
+            for (int end = column + count; column < end; column++) {
+                bytes.set(column, style);
+            }
+        }
+
+        @Override
+        public int get(Object row, int column) {
+            return ((ByteStyleRow) row).get(column);
+        }
+
+        @Override
+        public String toString() {
+            return "byte[]";
+        }
+    };
+
+    private static final RowKind RUNS = new RowKind() {
+        @Override
+        public Object create(int style) {
+            return new StyleRow(style, COLUMNS);
+        }
+
+        @Override
+        public void set(Object row, int column, int count, int style) {
+            ((StyleRow) row).set(column, count, style);
+        }
+
+        @Override
+        public int get(Object row, int column) {
+            return ((StyleRow) row).get(column);
+        }
+
+        @Override
+        public String toString() {
+            return "runs";
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void memory() throws Exception {
+        for (String kind : new String[] { "plain", "ls", "every cell" }) {
+            long bytes = memory(BYTES, kind);
+            long runs = memory(RUNS, kind);
+            Benchmarks.report("StyleRow %d rows of %-10s  byte[]: %5d KB   runs: %5d KB",
+                    ROWS, kind, bytes / 1024, runs / 1024);
+        }
+    }
+
+    @Test
+    public void cellCost() throws Exception {
+        for (final RowKind kind : new RowKind[] { BYTES, RUNS }) {
+            final Object[] rows = fill(kind, "ls");
+            final int[] sum = new int[1];
+            long get = Benchmarks.best(3, 10, new Benchmarks.Body() {
+                @Override
+                public void run() {
+                    for (Object row : rows) {
+                        for (int column = 0; column < COLUMNS; column++) {
+                            sum[0] += kind.get(row, column);
+                        }
+                    }
+                }
+            });
+            final Object solid = kind.create(DEFAULT_STYLE);
+            long same = Benchmarks.best(3, 10, new Benchmarks.Body() {
+                @Override
+                public void run() {
+                    for (int pass = 0; pass < PASSES; pass++) {
+                        for (int column = 0; column < COLUMNS; column++) {
+                            kind.set(solid, column, 1, DEFAULT_STYLE);
+                        }
+                    }
+                }
+            });
+            final Object split = kind.create(DEFAULT_STYLE);
+            final int style = TextStyle.encode(1, TextStyle.ciBackground, 0);
+            long splitting = Benchmarks.best(3, 10, new Benchmarks.Body() {
+                @Override
+                public void run() {
+                    for (int pass = 0; pass < PASSES; pass++) {
+                        // A colored word written cell by cell in the middle
+                        // of a row, then the row cleared cell by cell
+                        for (int column = 30; column < 38; column++) {
+                            kind.set(split, column, 1, style);
+                        }
+                        for (int column = 0; column < COLUMNS; column++) {
+                            kind.set(split, column, 1, DEFAULT_STYLE);
+                        }
+                    }
+                }
+            });
+            Benchmarks.report("StyleRow %-6s get: %5.2f ns/cell   same style set: %5.2f ns/cell"
+                    + "   word then clear: %6.1f ns/row", kind,
+                    (double) get / ((long) ROWS * COLUMNS),
+                    (double) same / ((long) PASSES * COLUMNS), (double) splitting / PASSES);
+            assertEquals(sum[0], sum[0]);
+        }
+    }
+
+    @Test
+    public void emulator() throws Exception {
+        final byte[] stream = lsStream();
+        Benchmarks.Body body = new Benchmarks.Body() {
+            @Override
+            public void run() {
+                TerminalEmulator emulator = Emulators.newEmulator(COLUMNS, 24, ROWS);
+                emulator.append(stream, 0, stream.length);
+            }
+        };
+        long nanos = Benchmarks.best(3, 10, body);
+        long allocated = Benchmarks.allocatedBytes(body);
+        Benchmarks.report("StyleRow colored ls stream, %d KB: %6.1f ms, %d KB allocated",
+                stream.length / 1024, Benchmarks.millis(nanos), allocated / 1024);
+    }
+
+    private static long memory(RowKind kind, String style) throws Exception {
+        long before = Benchmarks.usedMemory();
+        Object[] rows = fill(kind, style);
+        long after = Benchmarks.usedMemory();
+        assertEquals(ROWS, rows.length);
+        return after - before;
+    }
+
+    /**
+     * @param style "plain" for rows in the default style, "ls" for colored
+     *        names between spaces, anything else for a new style in every cell.
+     */
+    private static Object[] fill(RowKind kind, String style) {
+        Random random = new Random(7);
+        Object[] rows = new Object[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            Object row = kind.create(DEFAULT_STYLE);
+            switch (style) {
+            case "plain":
+                kind.set(row, 0, COLUMNS, DEFAULT_STYLE);
+                break;
+            case "ls":
+                // Names padded to the column width; plain files aren't colored
+                for (int column = 0; column < COLUMNS; ) {
+                    int width = Math.min(16, COLUMNS - column);
+                    int length = Math.min(4 + random.nextInt(10), width);
+                    int color = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(6);
+                    kind.set(row, column, length, color == 0 ? DEFAULT_STYLE
+                            : TextStyle.encode(color, TextStyle.ciBackground, TextStyle.fxBold));
+                    kind.set(row, column + length, width - length, DEFAULT_STYLE);
+                    column += width;
+                }
+                break;
+            default:
+                for (int column = 0; column < COLUMNS; column++) {
+                    kind.set(row, column, 1,
+                            TextStyle.encode(random.nextInt(256), TextStyle.ciBackground, 0));
+                }
+                break;
+            }
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * Colored names as ls --color writes them, a few to a line.
+     */
+    private static byte[] lsStream() {
+        Random random = new Random(11);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int line = 0; line < 20000; line++) {
+            StringBuilder text = new StringBuilder();
+            for (int name = random.nextInt(6); name >= 0; name--) {
+                text.append("\033[0").append(random.nextBoolean() ? ";1" : "")
+                        .append(";3").append(1 + random.nextInt(6)).append('m');
+                for (int i = 4 + random.nextInt(10); i > 0; i--) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                text.append("\033[0m  ");
+            }
+            text.append("\r\n");
+            byte[] bytes = text.toString().getBytes();
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that TerminalEmulator's table-driven escape parser does what the
+ * switch-based parser before it did.  Each stream is generated from a fixed
+ * seed and run through an emulator; the resulting screen, transcript,
+ * colors, cursor, title, replies and DroidVim control codes are hashed and
+ * compared with the hash the switch-based parser gave for the same stream.
+ * Every stream is also fed in chunks of several sizes, so that sequences are
+ * split at every kind of place, and has to come out the same each time.
+ * <p>
+ * The expected hashes were recorded with the parser as it was before the
+ * transition table.  A deliberate change to what the emulator does with one
+ * of these streams means recording them again.
+ */
+public class TerminalEmulatorParityTest {
+    // Enough rows that no stream scrolls anything out of the transcript
+    private static final int TRANSCRIPT_ROWS = 5000;
+
+    // Chunk sizes to feed each stream in; 0 is random sizes
+    private static final int[] CHUNKS = { 1, 7, 0, 256 };
+
+    private static final String[] STREAMS = { "csi", "esc", "osc", "droidvim", "utf8", "garbage",
+            "zerowidth" };
+
+    private static final int[][] SIZES = { { 80, 24 }, { 37, 11 } };
+
+    // Hashes from the switch-based parser, in the order of STREAMS x SIZES
+    private static final String[] EXPECTED = {
+            "6f8ffe0fba089d504007b7aa7aa86617",
+            "b4d41651cf3261776b44059f88f2f444",
+            "ff6375ddc110123a077eb0e82432d2db",
+            "cb630ab2b6ff7cf75a29db09798adc46",
+            "31ac6d08a615646114c13ef79a38d84f",
+            "ec2b5f5acbdddeaa3b2eb486e9a28b80",
+            "1e677dd2b4ae2af7581b6ccb7fa8925a",
+            "aaa692dd89b15e7d51269e4922cef52f",
+            "4c84f778b782172221f31f81d8e900c7",
+            "4d87cf0ead65b0a4e85b00f4165f51d4",
+            "97a856c27c6c9b2b1dcd005d5b2ec072",
+            "321847de9628c9d671cadaf9ec7f87ca",
+            "cba8f493997f99d34fec1c729b0c6ddd",
+            "ca44462eec460bed861e2d035425b046",
+    };
+
+    @Test
+    public void tableParserMatchesSwitchParser() throws Exception {
+        int i = 0;
+        for (String name : STREAMS) {
+            byte[] stream = generate(name);
+            for (int[] size : SIZES) {
+                String where = name + " at " + size[0] + "x" + size[1];
+                String expected = EXPECTED[i++];
+                for (int chunk : CHUNKS) {
+                    assertEquals(where + " in chunks of " + (chunk == 0 ? "random size" : chunk),
+                            expected, digest(stream, size[0], size[1], chunk));
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a stream through a new emulator and hash what comes out.
+     */
+    static String digest(byte[] stream, int columns, int rows, int chunk) throws Exception {
+        final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        TermSession session = new TermSession() {
+            @Override
+            public void write(byte[] data, int offset, int count) {
+                replies.write(data, offset, count);
+            }
+        };
+        ColorScheme scheme = BaseTextRenderer.defaultColorScheme;
+        TranscriptScreen screen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, scheme);
+        TerminalEmulator emulator = new TerminalEmulator(session, screen, columns, rows, scheme);
+        emulator.setKeyListener(new TermKeyListener(session));
+        emulator.setUTF8ModeUpdateCallback(new UpdateCallback() {
+            @Override
+            public void onUpdate() {
+            }
+        });
+        emulator.setDefaultUTF8Mode(true);
+
+        StringBuilder out = new StringBuilder();
+        Random random = new Random(chunk);
+        for (int offset = 0; offset < stream.length; ) {
+            int length = chunk != 0 ? chunk : 1 + random.nextInt(97);
+            length = Math.min(length, stream.length - offset);
+            emulator.append(stream, offset, length);
+            offset += length;
+            int code;
+            while ((code = emulator.getEscCtrlMode()) != -1) {
+                out.append(" esc").append(code);
+            }
+        }
+
+        GrowableIntArray colors = new GrowableIntArray(1024);
+        out.append('\n').append(screen.getTranscriptText(colors)).append("\ncolors");
+        for (int i = 0; i < colors.length(); i++) {
+            out.append(' ').append(Integer.toHexString(colors.at(i)));
+        }
+        out.append("\ncursor ").append(emulator.getCursorRow()).append(',').append(emulator.getCursorCol());
+        out.append("\nkeypad ").append(emulator.getKeypadApplicationMode());
+        out.append(" mouse ").append(emulator.getMouseTrackingMode());
+        out.append("\ntitle ").append(session.getTitle());
+        out.append("\nreplies ").append(new String(replies.toByteArray(), "ISO-8859-1"));
+        return md5(out.toString());
+    }
+
+    static byte[] generate(String name) throws UnsupportedEncodingException {
+        Random random = new Random(name.hashCode());
+        StringBuilder out = new StringBuilder();
+        switch (name) {
+        case "csi":
+            for (int i = 0; i < 4000; i++) {
+                appendCsi(out, random);
+                appendText(out, random);
+            }
+            break;
+        case "esc":
+            for (int i = 0; i < 4000; i++) {
+                out.append(pick(random, "\0337", "\0338", "\033D", "\033E", "\033M", "\033(0",
+                        "\033(B", "\033)0", "\033)B", "\016", "\017", "\033#8", "\033=", "\033>",
+                        "\033%G", "\033%@", "\033c", "\033H", "\033Z", "\033 ", "\033\033", "\033["));
+                appendText(out, random);
+            }
+            break;
+        case "osc":
+            for (int i = 0; i < 3000; i++) {
+                String title = randomText(random, random.nextInt(40));
+                out.append(pick(random, "\033]0;", "\033]1;", "\033]2;", "\033]4;", "\033]52;c;",
+                        "\033]999;", "\033]", "\033]x;"))
+                        .append(title)
+                        .append(pick(random, "\007", "\033\\", "\030", "\033[m", "\n"));
+                appendText(out, random);
+            }
+            break;
+        case "droidvim":
+            for (int i = 0; i < 5000; i++) {
+                out.append("\033[").append(pick(random, "0", "1", "2", "50", "51", "53", "54",
+                        "55", "99")).append('t');
+                if (random.nextInt(3) == 0) {
+                    out.append("\033]99;").append(random.nextInt(100)).append('\007');
+                }
+                appendText(out, random);
+            }
+            break;
+        case "utf8":
+            for (int i = 0; i < 3000; i++) {
+                out.append(randomText(random, random.nextInt(60)));
+                out.append(pick(random, "\u65e5\u672c\u8a9e", "\ud55c\uad6d\uc5b4",
+                        "\ud83d\ude00\ud83d\udc4d", "\u00e9", "\u2500\u2502\u250c\u2510",
+                        "\r\n", "\t", "\033[1;31m\u6f22\u5b57\033[m", "\uff21\uff22"));
+            }
+            break;
+        case "zerowidth":
+            // Combining characters after a character in the last column,
+            // which are given the column past the end of the row
+            for (int i = 0; i < 3000; i++) {
+                out.append(pick(random, "", "", "\033[m", "\033[1;31m", "\033[44m", "\033[7m"));
+                out.append(randomText(random, random.nextInt(30)));
+                if (random.nextInt(3) == 0) {
+                    out.append("\033[998G\u6f22");
+                } else {
+                    out.append("\033[999G").append((char) ('a' + random.nextInt(26)));
+                }
+                out.append(pick(random, "\u0301", "\u0308\u0323", "\u20dd", "e\u0301"));
+                out.append(pick(random, "\r\n", "\r\n", "\033[K\r\n", "\033[2K", "\033[m\r\n", ""));
+            }
+            break;
+        case "garbage": {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            String[] pieces = { "\033", "\033[", "\033]", "\033(0", "\033)B", "\016", "\017",
+                    "\033[?", "\033#8", "\033%G", "\033[>", "\033[99t", "\033]99;51\007", ";" };
+            for (int i = 0; i < 60000; i++) {
+                int r = random.nextInt(100);
+                if (r < 5) {
+                    byte[] piece = pick(random, pieces).getBytes("UTF-8");
+                    bytes.write(piece, 0, piece.length);
+                } else if (r < 30) {
+                    bytes.write(random.nextInt(256));
+                } else if (r < 40) {
+                    bytes.write('0' + random.nextInt(10));
+                } else {
+                    bytes.write(0x20 + random.nextInt(0x5f));
+                }
+            }
+            return bytes.toByteArray();
+        }
+        default:
+            throw new IllegalArgumentException(name);
+        }
+        return out.toString().getBytes("UTF-8");
+    }
+
+    private static void appendCsi(StringBuilder out, Random random) {
+        out.append("\033[");
+        switch (random.nextInt(6)) {
+        case 0:
+            out.append(pick(random, "?1", "?3", "?5", "?6", "?7", "?25", "?47", "?1047", "?1049",
+                    "?1000", "?1002", "4", "20", "?69"))
+                    .append(pick(random, "h", "l", "r", "s"));
+            return;
+        case 1: {
+            // SGR, 256 colors included, but not 24-bit ones
+            int count = 1 + random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    out.append(';');
+                }
+                int r = random.nextInt(10);
+                if (r == 0) {
+                    out.append(pick(random, "38;5;", "48;5;")).append(random.nextInt(256));
+                } else {
+                    out.append(pick(random, "0", "1", "2", "4", "5", "7", "8", "22", "24", "27",
+                            "30", "33", "37", "39", "41", "47", "49", "90", "97", "100", "107", ""));
+                }
+            }
+            out.append('m');
+            return;
+        }
+        case 2:
+            out.append(pick(random, "5n", "6n", "c", ">c", "s", "u", "r", "!p"));
+            return;
+        default:
+            int params = random.nextInt(3);
+            for (int i = 0; i < params; i++) {
+                if (i > 0) {
+                    out.append(';');
+                }
+                out.append(random.nextInt(random.nextInt(10) == 0 ? 300 : 30));
+            }
+            out.append(pick(random, "A", "B", "C", "D", "E", "F", "G", "H", "f", "d", "J", "K",
+                    "X", "@", "P", "L", "M", "S", "T", "r", "g", "I", "Z", "b", "`", "$", "y"));
+        }
+    }
+
+    private static void appendText(StringBuilder out, Random random) {
+        out.append(randomText(random, random.nextInt(20)));
+        if (random.nextInt(4) == 0) {
+            out.append(pick(random, "\r\n", "\r", "\n", "\b", "\t", "\007", "\013", "\014"));
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) (0x20 + random.nextInt(0x5f)));
+        }
+        return text.toString();
+    }
+
+    private static String pick(Random random, String... choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    private static String md5(String text) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        byte[] hash = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
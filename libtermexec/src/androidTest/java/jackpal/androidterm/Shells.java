@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shells on ptys for the instrumented tests to talk to.
+ */
+final class Shells {
+    static final String SHELL = "/system/bin/sh";
+
+    private Shells() {
+    }
+
+    static ParcelFileDescriptor openPty() throws IOException {
+        return ParcelFileDescriptor.open(new File("/dev/ptmx"), ParcelFileDescriptor.MODE_READ_WRITE);
+    }
+
+    /**
+     * Start an interactive shell on a pty, with the prompt "$ ".
+     *
+     * @return The pid of the shell.
+     */
+    static int startShell(ParcelFileDescriptor pty) throws IOException {
+        return TermExec.createSubprocess(pty, SHELL, new String[] { "-sh", "-i" },
+                new String[] { "PATH=" + System.getenv("PATH"), "PS1=$ ", "ENV=" });
+    }
+}
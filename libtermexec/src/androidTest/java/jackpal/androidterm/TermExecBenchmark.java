@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time taken to start an interactive shell on a pty with {@link
+ * TermExec#createSubprocess}, and until its first prompt can be read, in an
+ * app with a small heap and in one with a large touched heap and many open
+ * descriptors, which is what used to make starting a session slow.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TermExecBenchmark {
+    private static final int WARMUPS = 10;
+    private static final int RUNS = 100;
+    // Descriptors held open by the busy app, all to be closed in the child
+    private static final int OPEN_FDS = 300;
+    private static final long MAX_BALLAST = 256 * 1024 * 1024;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled(InstrumentationRegistry.getArguments().getString("benchmark"));
+    }
+
+    @Test
+    public void idleApp() throws Exception {
+        measure("idle app");
+    }
+
+    @Test
+    public void busyApp() throws Exception {
+        // Touch every page, so that fork() would have had them all to copy
+        long size = Math.min(MAX_BALLAST, Runtime.getRuntime().maxMemory() / 2);
+        List<byte[]> ballast = new ArrayList<>();
+        for (long allocated = 0; allocated < size; allocated += 1024 * 1024) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < block.length; i += 4096) {
+                block[i] = 1;
+            }
+            ballast.add(block);
+        }
+        List<FileInputStream> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < OPEN_FDS; i++) {
+                files.add(new FileInputStream("/dev/null"));
+            }
+            measure(String.format("%d MB heap, %d fds", ballast.size(), OPEN_FDS));
+        } finally {
+            for (FileInputStream file : files) {
+                file.close();
+            }
+        }
+    }
+
+    private static void measure(String name) throws Exception {
+        long[] spawn = new long[RUNS];
+        long[] prompt = new long[RUNS];
+        byte[] buffer = new byte[256];
+        for (int run = -WARMUPS; run < RUNS; run++) {
+            ParcelFileDescriptor pty = Shells.openPty();
+            try {
+                long start = System.nanoTime();
+                int pid = Shells.startShell(pty);
+                long started = System.nanoTime();
+                FileInputStream in = new FileInputStream(pty.getFileDescriptor());
+                StringBuilder output = new StringBuilder();
+                while (output.lastIndexOf("$ ") < 0 && output.lastIndexOf("# ") < 0) {
+                    int read = in.read(buffer);
+                    if (read <= 0) {
+                        throw new IOException("The shell exited before its prompt: " + output);
+                    }
+                    output.append(new String(buffer, 0, read, "UTF-8"));
+                }
+                long prompted = System.nanoTime();
+                if (run >= 0) {
+                    spawn[run] = started - start;
+                    prompt[run] = prompted - start;
+                }
+                TermExec.sendSignal(pid, 9);
+                TermExec.waitFor(pid);
+            } finally {
+                pty.close();
+            }
+        }
+        Benchmarks.report("TermExec %-20s  spawn median %.2f ms, p90 %.2f ms"
+                + "   first prompt median %.2f ms, p90 %.2f ms", name,
+                Benchmarks.millis(Benchmarks.percentile(spawn, 50)),
+                Benchmarks.millis(Benchmarks.percentile(spawn, 90)),
+                Benchmarks.millis(Benchmarks.percentile(prompt, 50)),
+                Benchmarks.millis(Benchmarks.percentile(prompt, 90)));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import jackpal.androidterm.benchmark.Benchmarks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Threads and memory taken by N idle shell sessions when each has a reader
+ * thread and a process watcher thread of its own, against when all of them
+ * are polled by the {@link TermReactor} and reaped by the {@link
+ * ChildReaper}.  The emulator and writer threads every session has either
+ * way belong to TermSession and aren't started here.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TermReactorBenchmark {
+    private static final int[] SESSIONS = { 1, 10, 50 };
+    private static final long TIMEOUT_MILLIS = 30000;
+    private static final int NO_EXIT = Integer.MIN_VALUE;
+
+    /**
+     * A shell on a pty whose output is collected, and whose exit status is
+     * noticed, either by threads of its own or by the reactor.
+     */
+    private static final class Session implements TermReactor.Client, ChildReaper.ExitListener {
+        final ParcelFileDescriptor mPty;
+        final int mPid;
+        final FileInputStream mIn;
+        final FileOutputStream mOut;
+        final StringBuffer mOutput = new StringBuffer();
+        final byte[] mBuffer = new byte[4096];
+        volatile int mExitStatus = NO_EXIT;
+        TermReactor.Key mKey;
+
+        Session(boolean polled) throws IOException {
+            mPty = Shells.openPty();
+            mPid = Shells.startShell(mPty);
+            mIn = new FileInputStream(mPty.getFileDescriptor());
+            mOut = new FileOutputStream(mPty.getFileDescriptor());
+            if (polled) {
+                mKey = TermReactor.getInstance().register(mPty.getFd(), this);
+                assertTrue("Cannot poll the pty", mKey != null);
+            } else {
+                startReader();
+            }
+            ChildReaper reaper = ChildReaper.getInstance();
+            if (!polled || reaper == null || !reaper.watch(mPid) || !reaper.subscribe(mPid, this)) {
+                Thread watcher = new Thread() {
+                    @Override
+                    public void run() {
+                        mExitStatus = TermExec.waitFor(mPid);
+                    }
+                };
+                watcher.setName("Process watcher");
+                watcher.start();
+            }
+        }
+
+        void startReader() {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    while (read()) {
+                    }
+                }
+            };
+            reader.setName("Input reader");
+            reader.start();
+        }
+
+        /**
+         * @return false once the pty has hung up.
+         */
+        boolean read() {
+            try {
+                int read = mIn.read(mBuffer);
+                if (read > 0) {
+                    mOutput.append(new String(mBuffer, 0, read, "UTF-8"));
+                    return true;
+                }
+            } catch (IOException e) {
+                // The shell has exited
+            }
+            return false;
+        }
+
+        @Override
+        public void onReadable(TermReactor.Key key) {
+            if (!read()) {
+                key.cancel();
+            }
+        }
+
+        @Override
+        public void onReactorStopped(TermReactor.Key key) {
+            startReader();
+        }
+
+        @Override
+        public void onChildExit(ChildReaper.ExitInfo info) {
+            mExitStatus = info.getExitStatus();
+        }
+
+        void type(String text) throws IOException {
+            mOut.write(text.getBytes("UTF-8"));
+        }
+
+        void close() throws IOException {
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            mPty.close();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled(InstrumentationRegistry.getArguments().getString("benchmark"));
+    }
+
+    @Test
+    public void idleSessions() throws Exception {
+        for (int count : SESSIONS) {
+            long[] own = run(false, count);
+            long[] polled = run(true, count);
+            Benchmarks.report("TermReactor %2d sessions  threads added: %3d own / %3d polled"
+                    + "   RSS added: %6d / %6d KB", count, own[0], polled[0], own[1], polled[1]);
+        }
+    }
+
+    /**
+     * Start and stop count sessions.
+     *
+     * @return The threads, and the RSS in kB, added by the sessions while
+     *         they were idle.
+     */
+    private static long[] run(boolean polled, int count) throws Exception {
+        // Load the classes, and start the reactor, before measuring
+        Session warmup = new Session(polled);
+        warmup.type("exit\r");
+        awaitExit(warmup);
+        warmup.close();
+
+        Benchmarks.settle();
+        long threads0 = Benchmarks.status("Threads");
+        long rss0 = Benchmarks.status("VmRSS");
+
+        List<Session> sessions = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                sessions.add(new Session(polled));
+            }
+            for (int i = 0; i < count; i++) {
+                // The shell works out the number, so the echoed command doesn't match
+                sessions.get(i).type("echo ok$((" + i + "+1000))\r");
+            }
+            for (int i = 0; i < count; i++) {
+                awaitOutput(sessions.get(i), "ok" + (i + 1000));
+            }
+
+            Benchmarks.settle();
+            long[] added = {
+                Benchmarks.status("Threads") - threads0,
+                Benchmarks.status("VmRSS") - rss0,
+            };
+
+            for (Session session : sessions) {
+                session.type("exit 3\r");
+            }
+            for (Session session : sessions) {
+                awaitExit(session);
+                assertEquals(3, session.mExitStatus);
+            }
+            return added;
+        } finally {
+            for (Session session : sessions) {
+                session.close();
+            }
+        }
+    }
+
+    private static void awaitOutput(Session session, String text) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (session.mOutput.indexOf(text) < 0) {
+            assertTrue("No " + text + " from the shell", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitExit(Session session) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (session.mExitStatus == NO_EXIT) {
+            assertTrue("The shell didn't exit", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Reaps the processes started for terminal sessions, all from the {@link
+ * TermReactor}'s thread, instead of a thread per process blocked in
+ * {@link TermExec#waitFor}.  Whoever starts a process has it {@link #watch
+ * watched}; whoever wants to hear of its exit {@link #subscribe subscribes}
+ * to it and gets its exit status, CPU time, peak memory and run time.
+ * <p>
+ * Only watched processes are reaped, each by its own pid, so that the
+ * children of {@link java.lang.Process} are left for it to wait for.  The
+ * exit is noticed through a pidfd where apps may open one (Android 12 on,
+ * and a 5.3 or later kernel), and otherwise through a SIGCHLD handler, which
+ * wakes the reactor through a pipe.  If the reactor stops, each process
+ * still running is waited for by a thread of its own instead.
+ */
+public final class ChildReaper {
+    private static final String TAG = "ChildReaper";
+
+    /**
+     * How a watched process ended, and what it used.
+     */
+    public static final class ExitInfo {
+        private final int mPid;
+        private final int mExitStatus;
+        private final int mTermSignal;
+        private final long mUserTimeMicros;
+        private final long mSystemTimeMicros;
+        private final long mMaxRssKb;
+        private final long mWallTimeMillis;
+
+        private ExitInfo(int pid, long[] result, long wallTimeMillis) {
+            mPid = pid;
+            mExitStatus = (int) result[0];
+            mTermSignal = (int) result[1];
+            mUserTimeMicros = result[2];
+            mSystemTimeMicros = result[3];
+            mMaxRssKb = result[4];
+            mWallTimeMillis = wallTimeMillis;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        /**
+         * @return The exit status, or -1 if the process was killed by a
+         *         signal or its status was lost.
+         */
+        public int getExitStatus() {
+            return mExitStatus;
+        }
+
+        /**
+         * @return The signal which killed the process, or 0.
+         */
+        public int getTermSignal() {
+            return mTermSignal;
+        }
+
+        /**
+         * @return User CPU time of the process and of the descendants it
+         *         waited for, in microseconds.
+         */
+        public long getUserTimeMicros() {
+            return mUserTimeMicros;
+        }
+
+        /**
+         * @return System CPU time of the process and of the descendants it
+         *         waited for, in microseconds.
+         */
+        public long getSystemTimeMicros() {
+            return mSystemTimeMicros;
+        }
+
+        /**
+         * @return The largest resident set size of the process or of any
+         *         descendant it waited for, in kilobytes.
+         */
+        public long getMaxRssKb() {
+            return mMaxRssKb;
+        }
+
+        /**
+         * @return How long the process was watched for, in milliseconds.
+         */
+        public long getWallTimeMillis() {
+            return mWallTimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "pid " + mPid + (mTermSignal != 0 ? " signal " + mTermSignal : " status " + mExitStatus)
+                    + ", cpu " + (mUserTimeMicros + mSystemTimeMicros) / 1000 + " ms"
+                    + ", max rss " + mMaxRssKb + " KB, wall " + mWallTimeMillis + " ms";
+        }
+    }
+
+    /**
+     * Receives the exit of a process subscribed to with {@link #subscribe}.
+     */
+    public interface ExitListener {
+        /**
+         * Called once the process has exited and been reaped, on the
+         * reactor thread, or on the subscriber's thread if it already had.
+         */
+        void onChildExit(ExitInfo info);
+    }
+
+    private static final class Child {
+        final int mPid;
+        final long mStartTime;
+        final ArrayList<ExitListener> mListeners = new ArrayList<>();
+        TermReactor.Key mPidFdKey;
+        int mPidFd = -1;
+        ExitInfo mExitInfo;
+        // Drop the child once it has been reaped
+        boolean mForgotten;
+
+        Child(int pid, long startTime) {
+            mPid = pid;
+            mStartTime = startTime;
+        }
+    }
+
+    private static ChildReaper sInstance;
+    private static boolean sUnavailable;
+
+    private final TermReactor mReactor;
+    private final HashMap<Integer, Child> mChildren = new HashMap<>();
+    private TermReactor.Key mSigchldKey;
+    private final long[] mResult = new long[5];
+    // Whether the reactor has stopped, see reactorStopped()
+    private boolean mStopped;
+
+    private ChildReaper(TermReactor reactor) {
+        mReactor = reactor;
+    }
+
+    /**
+     * @return The reaper, or null if there is no {@link TermReactor} to run
+     *         it on.
+     */
+    public static synchronized ChildReaper getInstance() {
+        if (sInstance == null && !sUnavailable) {
+            TermReactor reactor = TermReactor.getInstance();
+            if (reactor != null) {
+                sInstance = new ChildReaper(reactor);
+            } else {
+                sUnavailable = true;
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Start watching a child process, which should be done as soon as it
+     * has been started.  The child is reaped when it exits.
+     *
+     * @return false if the child can't be watched, in which case the caller
+     *         has to wait for it itself.
+     */
+    public boolean watch(int pid) {
+        Child child = new Child(pid, SystemClock.elapsedRealtime());
+        synchronized (this) {
+            if (mStopped) {
+                return false;
+            }
+            Child old = mChildren.get(pid);
+            if (old != null && old.mExitInfo == null) {
+                return true;
+            }
+            if (Build.VERSION.SDK_INT >= 31) {
+                // Earlier seccomp filters kill apps calling pidfd_open
+                watchPidFd(child);
+            }
+            if (child.mPidFdKey == null && !watchSigchld()) {
+                return false;
+            }
+            mChildren.put(pid, child);
+            // It may have exited before there was anything to notice it
+            reap(child);
+        }
+        notifyExit(child);
+        return true;
+    }
+
+    /**
+     * Have a listener called when a watched child exits, or right away if it
+     * already has.
+     *
+     * @return false if the child isn't watched.
+     */
+    public boolean subscribe(int pid, ExitListener listener) {
+        ExitInfo info;
+        synchronized (this) {
+            Child child = mChildren.get(pid);
+            if (child == null) {
+                return false;
+            }
+            info = child.mExitInfo;
+            if (info == null) {
+                child.mListeners.add(listener);
+                return true;
+            }
+        }
+        listener.onChildExit(info);
+        return true;
+    }
+
+    public synchronized void unsubscribe(int pid, ExitListener listener) {
+        Child child = mChildren.get(pid);
+        if (child != null) {
+            child.mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return How a watched child ended, or null if it's still running or
+     *         isn't watched.
+     */
+    public synchronized ExitInfo getExitInfo(int pid) {
+        Child child = mChildren.get(pid);
+        return child != null ? child.mExitInfo : null;
+    }
+
+    /**
+     * Drop a watched child and its listeners.  A child which is still
+     * running goes on being watched, so that it's reaped when it exits.
+     */
+    public synchronized void forget(int pid) {
+        Child child = mChildren.get(pid);
+        if (child == null) {
+            return;
+        }
+        child.mListeners.clear();
+        if (child.mExitInfo != null) {
+            mChildren.remove(pid);
+        } else {
+            child.mForgotten = true;
+        }
+    }
+
+    private void watchPidFd(final Child child) {
+        int fd = openPidFd(child.mPid);
+        if (fd < 0) {
+            return;
+        }
+        TermReactor.Key key = mReactor.register(fd, new TermReactor.Client() {
+            @Override
+            public void onReadable(TermReactor.Key key) {
+                synchronized (ChildReaper.this) {
+                    reap(child);
+                }
+                notifyExit(child);
+            }
+
+            @Override
+            public void onReactorStopped(TermReactor.Key key) {
+                reactorStopped();
+            }
+        });
+        if (key == null) {
+            closeFd(fd);
+            return;
+        }
+        child.mPidFd = fd;
+        child.mPidFdKey = key;
+    }
+
+    private boolean watchSigchld() {
+        if (mSigchldKey != null) {
+            return true;
+        }
+        final int fd;
+        try {
+            fd = installSigchldPipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot catch SIGCHLD: " + e.getMessage());
+            return false;
+        }
+        mSigchldKey = mReactor.register(fd, new TermReactor.Client() {
+            @Override
+            public void onReadable(TermReactor.Key key) {
+                drainPipe(fd);
+                ArrayList<Child> reaped = new ArrayList<>();
+                synchronized (ChildReaper.this) {
+                    // reap() drops forgotten children from mChildren
+                    for (Child child : new ArrayList<>(mChildren.values())) {
+                        if (child.mExitInfo == null && reap(child)) {
+                            reaped.add(child);
+                        }
+                    }
+                }
+                for (Child child : reaped) {
+                    notifyExit(child);
+                }
+            }
+
+            @Override
+            public void onReactorStopped(TermReactor.Key key) {
+                reactorStopped();
+            }
+        });
+        return mSigchldKey != null;
+    }
+
+    /**
+     * Reap the child if it has exited.  Must be called with the lock held;
+     * call notifyExit() after letting go of it.
+     *
+     * @return Whether the child was reaped just now.
+     */
+    private boolean reap(Child child) {
+        if (child.mExitInfo != null) {
+            return false;
+        }
+        int reaped = reap(child.mPid, mResult, false);
+        if (reaped == 0) {
+            return false;
+        }
+        setExited(child, reaped, mResult);
+        return true;
+    }
+
+    /**
+     * Record how a child ended.  Must be called with the lock held.
+     *
+     * @param reaped What reap() returned for it: 1, or -errno.
+     */
+    private void setExited(Child child, int reaped, long[] result) {
+        if (reaped < 0) {
+            // Someone else has reaped it
+            Log.w(TAG, "Cannot reap " + child.mPid + ": errno " + -reaped);
+            result[0] = -1;
+            result[1] = 0;
+            result[2] = result[3] = result[4] = 0;
+        }
+        child.mExitInfo = new ExitInfo(child.mPid, result,
+                SystemClock.elapsedRealtime() - child.mStartTime);
+        if (child.mForgotten) {
+            mChildren.remove(child.mPid);
+        }
+    }
+
+    /**
+     * Stop watching the pidfd of a child which has been reaped, and call and
+     * drop its listeners.  Must be called without the lock held, as the
+     * pidfd's key may be waiting for it (see TermReactor.Key.cancel()).
+     */
+    private void notifyExit(Child child) {
+        TermReactor.Key key;
+        ExitListener[] listeners;
+        synchronized (this) {
+            if (child.mExitInfo == null) {
+                return;
+            }
+            key = child.mPidFdKey;
+            child.mPidFdKey = null;
+            listeners = child.mListeners.toArray(new ExitListener[0]);
+            child.mListeners.clear();
+        }
+        if (key != null) {
+            key.cancel();
+            closeFd(child.mPidFd);
+        }
+        for (ExitListener listener : listeners) {
+            listener.onChildExit(child.mExitInfo);
+        }
+    }
+
+    /**
+     * Wait for the children still running with threads of their own, once
+     * the reactor has stopped; called for each of the reaper's keys.
+     */
+    private void reactorStopped() {
+        synchronized (ChildReaper.class) {
+            sInstance = null;
+            sUnavailable = true;
+        }
+        ArrayList<Child> running = new ArrayList<>();
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            for (Child child : mChildren.values()) {
+                if (child.mExitInfo == null) {
+                    running.add(child);
+                }
+            }
+        }
+        Log.w(TAG, "Reactor stopped, waiting for " + running.size() + " children with threads");
+        for (final Child child : running) {
+            Thread watcher = new Thread() {
+                @Override
+                public void run() {
+                    long[] result = new long[5];
+                    int reaped = reap(child.mPid, result, true);
+                    synchronized (ChildReaper.this) {
+                        if (child.mExitInfo == null) {
+                            setExited(child, reaped, result);
+                        }
+                    }
+                    notifyExit(child);
+                }
+            };
+            watcher.setName("Process watcher");
+            watcher.start();
+        }
+    }
+
+    private static native int openPidFd(int pid);
+
+    private static native void closeFd(int fd);
+
+    private static native int installSigchldPipe() throws IOException;
+
+    private static native void drainPipe(int fd);
+
+    private static native int reap(int pid, long[] result, boolean wait);
+}
@@ -101,10 +101,12 @@ static int createSubprocess(ParcelFileDescriptor masterFd, String cmd, String[]
         final int integerFd;
 
         integerFd = FdHelperHoneycomb.getFd(masterFd);
-        return createSubprocessInternal(cmd, args, envVars, integerFd);
+        // Earlier seccomp filters kill apps calling close_range
+        return createSubprocessInternal(cmd, args, envVars, integerFd, Build.VERSION.SDK_INT >= 34);
     }
 
-    private static native int createSubprocessInternal(String cmd, String[] args, String[] envVars, int masterFd);
+    private static native int createSubprocessInternal(String cmd, String[] args, String[] envVars, int masterFd,
+                                                       boolean useCloseRange);
 }
 
 // prevents runtime errors on old API versions with ruthless verifier
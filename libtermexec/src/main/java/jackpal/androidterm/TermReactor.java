@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * A single thread which waits, with epoll, for input on the pty masters of
+ * all terminal sessions, and for their processes to exit (see {@link
+ * ChildReaper}).  It takes the place of the input reader thread and the
+ * process watcher thread every session would otherwise have, so that idle
+ * sessions don't cost two threads each.
+ * <p>
+ * The reactor only tells a {@link Client} that its descriptor is ready; the
+ * client reads from it itself, on the reactor thread, and must not block
+ * anywhere else, or it holds up every other session.  A client which can't
+ * take any more input for now pauses its {@link Key} until it can.
+ * <p>
+ * If waiting fails, the reactor stops for good: every client still
+ * registered is told to watch its descriptor some other way, and
+ * {@link #getInstance} returns null from then on.
+ */
+public final class TermReactor {
+    static {
+        System.loadLibrary("jackpal-termexec2");
+    }
+
+    private static final String TAG = "TermReactor";
+
+    // Most ready descriptors handled per wait
+    private static final int MAX_EVENTS = 64;
+
+    /**
+     * Receives the readiness of a descriptor registered with
+     * {@link #register}.
+     */
+    public interface Client {
+        /**
+         * Called on the reactor thread when the descriptor can be read
+         * without blocking, or has hung up.  The descriptor is watched
+         * level-triggered, so whatever isn't read now is reported again.
+         *
+         * @param key The key the descriptor was registered with.
+         */
+        void onReadable(Key key);
+
+        /**
+         * Called on the reactor thread if the reactor stops after an error.
+         * The descriptor is no longer watched, and the key is cancelled.
+         *
+         * @param key The key the descriptor was registered with.
+         */
+        void onReactorStopped(Key key);
+    }
+
+    /**
+     * A descriptor registered with the reactor.
+     */
+    public final class Key {
+        private final long mId;
+        private final int mFd;
+        private final Client mClient;
+
+        // Watched while <= 0; a resume() may come before its pause()
+        private int mPauses;
+        private boolean mCancelled;
+
+        private Key(long id, int fd, Client client) {
+            mId = id;
+            mFd = fd;
+            mClient = client;
+        }
+
+        /**
+         * Stop reporting the descriptor until {@link #resume}.  Every pause()
+         * must be matched by one resume(), which may be called before it, on
+         * another thread.
+         */
+        public void pause() {
+            synchronized (TermReactor.this) {
+                if (++mPauses == 1 && !mCancelled) {
+                    checkResult(removeFd(mEpollFd, mFd), "pause");
+                }
+            }
+        }
+
+        /**
+         * Go on reporting the descriptor after {@link #pause}.
+         */
+        public void resume() {
+            synchronized (TermReactor.this) {
+                if (--mPauses == 0 && !mCancelled) {
+                    checkResult(addFd(mEpollFd, mFd, mId), "resume");
+                }
+            }
+        }
+
+        /**
+         * Stop watching the descriptor for good.  Must be called before it is
+         * closed; once it returns, the client isn't being called for the
+         * descriptor and won't be again.  Off the reactor thread, this waits
+         * for a call in progress to return, so it mustn't be called holding
+         * a lock which the client's onReadable() takes.
+         */
+        public void cancel() {
+            synchronized (TermReactor.this) {
+                if (!mCancelled) {
+                    mCancelled = true;
+                    mKeys.remove(mId);
+                    if (mPauses <= 0) {
+                        checkResult(removeFd(mEpollFd, mFd), "cancel");
+                    }
+                }
+                boolean interrupted = false;
+                while (mDispatching == this && Thread.currentThread() != mThread) {
+                    try {
+                        TermReactor.this.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static TermReactor sInstance;
+    private static boolean sUnavailable;
+
+    private final int mEpollFd;
+    private final Thread mThread;
+    private final HashMap<Long, Key> mKeys = new HashMap<>();
+    private long mNextId = 1;
+    // The key whose client is being called, see Key.cancel()
+    private Key mDispatching;
+    private boolean mStopped;
+
+    private TermReactor(int epollFd) {
+        mEpollFd = epollFd;
+        mThread = new Thread() {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        mThread.setName(TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Get the reactor, starting it the first time.
+     *
+     * @return The reactor, or null if it couldn't be started.
+     */
+    public static synchronized TermReactor getInstance() {
+        if (sInstance == null && !sUnavailable) {
+            try {
+                sInstance = new TermReactor(createEpoll());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start the reactor: " + e.getMessage());
+                sUnavailable = true;
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Watch a descriptor for input.
+     *
+     * @return The key to pause, resume or cancel the watch with, or null if
+     *         the descriptor can't be watched.
+     */
+    public synchronized Key register(int fd, Client client) {
+        if (mStopped) {
+            return null;
+        }
+        Key key = new Key(mNextId++, fd, client);
+        int result = addFd(mEpollFd, fd, key.mId);
+        if (result != 0) {
+            Log.e(TAG, "Cannot watch fd " + fd + ": errno " + -result);
+            return null;
+        }
+        mKeys.put(key.mId, key);
+        return key;
+    }
+
+    private void loop() {
+        long[] ready = new long[MAX_EVENTS];
+        while (true) {
+            int count;
+            try {
+                count = waitEvents(mEpollFd, ready);
+            } catch (IOException e) {
+                Log.e(TAG, "Reactor stopped: " + e.getMessage());
+                stop();
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                dispatch(ready[i]);
+            }
+        }
+    }
+
+    private void dispatch(long id) {
+        Key key;
+        synchronized (this) {
+            key = mKeys.get(id);
+            if (key == null || key.mPauses > 0) {
+                // Cancelled, or paused, after this wait had reported it
+                return;
+            }
+            // Until this is cleared, a cancel() waits before letting the
+            // descriptor be closed (and its number be reused)
+            mDispatching = key;
+        }
+        try {
+            key.mClient.onReadable(key);
+        } finally {
+            synchronized (this) {
+                mDispatching = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Give up on the reactor: cancel every key and have its client take
+     * over watching its descriptor.
+     */
+    private void stop() {
+        synchronized (TermReactor.class) {
+            sInstance = null;
+            sUnavailable = true;
+        }
+        Key[] keys;
+        synchronized (this) {
+            mStopped = true;
+            keys = mKeys.values().toArray(new Key[0]);
+            mKeys.clear();
+            for (Key key : keys) {
+                key.mCancelled = true;
+            }
+        }
+        for (Key key : keys) {
+            key.mClient.onReactorStopped(key);
+        }
+    }
+
+    private static void checkResult(int result, String what) {
+        if (result != 0) {
+            Log.e(TAG, what + " failed: errno " + -result);
+        }
+    }
+
+    private static native int createEpoll() throws IOException;
+
+    private static native int addFd(int epollFd, int fd, long key);
+
+    private static native int removeFd(int epollFd, int fd);
+
+    private static native int waitEvents(int epollFd, long[] keys) throws IOException;
+}
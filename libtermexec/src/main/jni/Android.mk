@@ -7,6 +7,8 @@ SRC_PATH = $(LOCAL_PATH)/process
 LOCAL_C_INCLUDES += $(SRC_PATH)
 LOCAL_SRC_FILES := \
     $(SRC_PATH)/process.cpp \
+    $(SRC_PATH)/reactor.cpp \
+    $(SRC_PATH)/reaper.cpp \
 
 LOCAL_LDLIBS := -llog -lc
 
@@ -18,10 +18,11 @@
 
 #include <sys/types.h>
 #include <sys/ioctl.h>
+#include <sys/syscall.h>
 #include <sys/wait.h>
-#include <dirent.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
@@ -70,7 +71,7 @@ static int throwOutOfMemoryError(JNIEnv *env, const char *message)
     return env->ThrowNew(exClass, message);
 }
 
-static int throwIOException(JNIEnv *env, int errnum, const char *message)
+int throwIOException(JNIEnv *env, int errnum, const char *message)
 {
     __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "%s errno %s(%d)",
         message, strerror(errno), errno);
@@ -88,36 +89,153 @@ static int throwIOException(JNIEnv *env, int errnum, const char *message)
     return env->ThrowNew(exClass, message);
 }
 
-static void closeNonstandardFileDescriptors() {
-    // Android uses shared memory to communicate between processes. The file descriptor is passed
-    // to child processes using the environment variable ANDROID_PROPERTY_WORKSPACE, which is of
-    // the form "properties_fd,sizeOfSharedMemory"
-    int properties_fd = -1;
-    char* properties_fd_string = getenv("ANDROID_PROPERTY_WORKSPACE");
-    if (properties_fd_string != NULL) {
-        properties_fd = atoi(properties_fd_string);
+extern char **environ;
+
+#ifndef __NR_close_range
+// The same on every architecture
+#define __NR_close_range 436
+#endif
+
+/*
+ * The kernel's struct sigaction and sigset_t, the same on every
+ * architecture Android runs on.  The vfork()ed child makes these calls
+ * directly: through libc they would go through ART's signal chain, which
+ * keeps its state in memory the child shares with us.
+ */
+struct kernel_sigaction {
+    void *handler;
+    unsigned long flags;
+    void *restorer;
+    // Two words, not a uint64_t, which 32-bit ABIs would align to 8
+    uint32_t mask[2];
+};
+
+static void resetSignalHandlers() {
+    for (int sig = 1; sig <= 64; sig++) {
+        struct kernel_sigaction action;
+        if (syscall(__NR_rt_sigaction, sig, NULL, &action, sizeof(uint64_t)) != 0
+                || action.handler == (void *) SIG_IGN || action.handler == (void *) SIG_DFL) {
+            continue;
+        }
+        memset(&action, 0, sizeof(action));
+        action.handler = (void *) SIG_DFL;
+        syscall(__NR_rt_sigaction, sig, &action, NULL, sizeof(uint64_t));
     }
-    DIR *dir = opendir("/proc/self/fd");
-    if(dir != NULL) {
-        int dir_fd = dirfd(dir);
+}
 
-        while(true) {
-            struct dirent *entry = readdir(dir);
-            if(entry == NULL) {
-                break;
+struct linux_dirent64 {
+    uint64_t d_ino;
+    int64_t d_off;
+    unsigned short d_reclen;
+    unsigned char d_type;
+    char d_name[];
+};
+
+/*
+ * Close every descriptor above stderr except keepFd.  Runs in the vfork()ed
+ * child, so it may only make system calls: no malloc(), hence getdents64
+ * rather than opendir(), and no close(), whose fdsan checks may write to
+ * our memory.
+ */
+static void closeNonstandardFileDescriptors(int keepFd, bool useCloseRange) {
+    if (useCloseRange) {
+        bool closed = true;
+        if (keepFd > STDERR_FILENO) {
+            // Nothing lies between stderr and keepFd when it is 3, and
+            // close_range() says EINVAL to an empty range
+            if (keepFd - 1 >= STDERR_FILENO + 1) {
+                closed = syscall(__NR_close_range, STDERR_FILENO + 1, keepFd - 1, 0) == 0;
             }
+            closed = closed && syscall(__NR_close_range, keepFd + 1, ~0U, 0) == 0;
+        } else {
+            closed = syscall(__NR_close_range, STDERR_FILENO + 1, ~0U, 0) == 0;
+        }
+        if (closed) {
+            return;
+        }
+    }
 
-            int fd = atoi(entry->d_name);
-            if(fd > STDERR_FILENO && fd != dir_fd && fd != properties_fd) {
-                close(fd);
+    int dirFd = open("/proc/self/fd", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (dirFd < 0) {
+        return;
+    }
+    char buf[1024];
+    while (true) {
+        int count = (int) syscall(__NR_getdents64, dirFd, buf, sizeof(buf));
+        if (count <= 0) {
+            break;
+        }
+        for (int offset = 0; offset < count; ) {
+            struct linux_dirent64 *entry = (struct linux_dirent64 *) (buf + offset);
+            offset += entry->d_reclen;
+
+            int fd = 0;
+            const char *c = entry->d_name;
+            if (*c < '0' || *c > '9') {
+                // "." and ".."
+                continue;
+            }
+            for (; *c >= '0' && *c <= '9'; c++) {
+                fd = fd * 10 + (*c - '0');
+            }
+            if (fd > STDERR_FILENO && fd != dirFd && fd != keepFd) {
+                syscall(__NR_close, fd);
             }
         }
+    }
+    syscall(__NR_close, dirFd);
+}
 
-        closedir(dir);
+/*
+ * Build the environment for the child: ours, with the variables in vars
+ * ("NAME=value") added or replacing ones of the same name, as putenv()
+ * would.  Empty strings in vars are skipped.  Only the array is allocated;
+ * free() it when done.
+ */
+static char **mergeEnvironment(char *const vars[]) {
+    size_t count = 0;
+    while (environ && environ[count]) {
+        count++;
+    }
+    size_t extra = 0;
+    while (vars && vars[extra]) {
+        extra++;
+    }
+    char **envp = (char **) malloc((count + extra + 1) * sizeof(char *));
+    if (!envp) {
+        return NULL;
     }
+    memcpy(envp, environ, count * sizeof(char *));
+    for (size_t i = 0; i < extra; i++) {
+        const char *equals = strchr(vars[i], '=');
+        if (!equals) {
+            continue;
+        }
+        size_t nameLength = equals - vars[i] + 1;
+        size_t j;
+        for (j = 0; j < count; j++) {
+            if (strncmp(envp[j], vars[i], nameLength) == 0) {
+                break;
+            }
+        }
+        envp[j] = vars[i];
+        if (j == count) {
+            count++;
+        }
+    }
+    envp[count] = NULL;
+    return envp;
 }
 
-static int create_subprocess(JNIEnv *env, const char *cmd, char *const argv[], char *const envp[], int masterFd)
+/*
+ * Start cmd on the pty whose master is masterFd.  The child is started
+ * with vfork(), so that a big app process doesn't have its page tables
+ * copied only to have them thrown away by the exec; everything the child
+ * needs is therefore prepared beforehand, and the child only makes system
+ * calls until it execs.
+ */
+static int create_subprocess(JNIEnv *env, const char *cmd, char *const argv[], char *const vars[],
+    int masterFd, bool useCloseRange)
 {
     // same size as Android 1.6 libc/unistd/ptsname_r.c
     char devname[64];
@@ -141,19 +259,38 @@ static int create_subprocess(JNIEnv *env, const char *cmd, char *const argv[], c
         return -1;
     }
 
-    pid = fork();
-    if(pid < 0) {
-        throwIOException(env, errno, "fork failed");
+    // Android uses shared memory to communicate between processes. The file descriptor is passed
+    // to child processes using the environment variable ANDROID_PROPERTY_WORKSPACE, which is of
+    // the form "properties_fd,sizeOfSharedMemory"
+    int properties_fd = -1;
+    char* properties_fd_string = getenv("ANDROID_PROPERTY_WORKSPACE");
+    if (properties_fd_string != NULL) {
+        properties_fd = atoi(properties_fd_string);
+    }
+
+    char **envp = mergeEnvironment(vars);
+    if (!envp) {
+        throwOutOfMemoryError(env, "Couldn't allocate envp array");
         return -1;
     }
 
+    // No signal handler may run in the child while it shares our memory
+    uint64_t allSignals = ~(uint64_t) 0;
+    uint64_t oldMask = 0;
+    syscall(__NR_rt_sigprocmask, SIG_SETMASK, &allSignals, &oldMask, sizeof(uint64_t));
+
+    pid = vfork();
     if(pid == 0){
+        // The child has its own dispositions; put back the defaults before
+        // unblocking signals, keeping ignored signals ignored, as exec would
+        resetSignalHandlers();
+
         int pts;
 
         setsid();
 
         pts = open(devname, O_RDWR);
-        if(pts < 0) exit(-1);
+        if(pts < 0) _exit(-1);
 
         ioctl(pts, TIOCSCTTY, 0);
 
@@ -161,19 +298,21 @@ static int create_subprocess(JNIEnv *env, const char *cmd, char *const argv[], c
         dup2(pts, 1);
         dup2(pts, 2);
 
-        closeNonstandardFileDescriptors();
+        closeNonstandardFileDescriptors(properties_fd, useCloseRange);
 
-        if (envp) {
-            for (; *envp; ++envp) {
-                putenv(*envp);
-            }
-        }
+        syscall(__NR_rt_sigprocmask, SIG_SETMASK, &oldMask, NULL, sizeof(uint64_t));
+        execve(cmd, argv, envp);
+        _exit(-1);
+    }
 
-        execv(cmd, argv);
-        exit(-1);
-    } else {
-        return (int) pid;
+    int errnum = errno;
+    syscall(__NR_rt_sigprocmask, SIG_SETMASK, &oldMask, NULL, sizeof(uint64_t));
+    free(envp);
+    if(pid < 0) {
+        throwIOException(env, errnum, "vfork failed");
+        return -1;
     }
+    return (int) pid;
 }
 
 extern "C" {
@@ -195,7 +334,7 @@ JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_waitFor(JNIEnv *env, jc
 }
 
 JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_createSubprocessInternal(JNIEnv *env, jclass clazz,
-    jstring cmd, jobjectArray args, jobjectArray envVars, jint masterFd)
+    jstring cmd, jobjectArray args, jobjectArray envVars, jint masterFd, jboolean useCloseRange)
 {
     const jchar* str = cmd ? env->GetStringCritical(cmd, 0) : 0;
     String8 cmd_8;
@@ -249,7 +388,7 @@ JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_createSubprocessInterna
         envp[size] = NULL;
     }
 
-    int ptm = create_subprocess(env, cmd_8.string(), argv, envp, masterFd);
+    int ptm = create_subprocess(env, cmd_8.string(), argv, envp, masterFd, useCloseRange);
 
     if (argv) {
         for (char **tmp = argv; *tmp; ++tmp) {
@@ -23,12 +23,41 @@
 
 #define LOG_TAG "jackpal-termexec"
 
+int throwIOException(JNIEnv *env, int errnum, const char *message);
+
 extern "C" {
 JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_createSubprocessInternal
-      (JNIEnv *, jclass, jstring, jobjectArray, jobjectArray, jint);
+      (JNIEnv *, jclass, jstring, jobjectArray, jobjectArray, jint, jboolean);
 
     JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermExec_waitFor
       (JNIEnv *, jclass, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_createEpoll
+      (JNIEnv *, jclass);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_addFd
+      (JNIEnv *, jclass, jint, jint, jlong);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_removeFd
+      (JNIEnv *, jclass, jint, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_waitEvents
+      (JNIEnv *, jclass, jint, jlongArray);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_ChildReaper_openPidFd
+      (JNIEnv *, jclass, jint);
+
+    JNIEXPORT void JNICALL Java_jackpal_androidterm_ChildReaper_closeFd
+      (JNIEnv *, jclass, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_ChildReaper_installSigchldPipe
+      (JNIEnv *, jclass);
+
+    JNIEXPORT void JNICALL Java_jackpal_androidterm_ChildReaper_drainPipe
+      (JNIEnv *, jclass, jint);
+
+    JNIEXPORT jint JNICALL Java_jackpal_androidterm_ChildReaper_reap
+      (JNIEnv *, jclass, jint, jlongArray, jboolean);
 }
 
 #endif	/* !defined(_JACKPAL_PROCESS_H) */
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * The epoll set behind TermReactor.  One thread, the reactor's, waits in
+ * waitEvents() for any of the registered descriptors (pty masters, and
+ * ChildReaper's pidfds or SIGCHLD pipe) to become readable and gets back
+ * the keys they were registered with; the reading itself is done in Java,
+ * by the sessions the keys belong to.
+ */
+
+#include "process.h"
+
+#include <sys/epoll.h>
+#include <errno.h>
+#include <string.h>
+
+#define MAX_EVENTS 64
+
+extern "C" {
+
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_createEpoll(JNIEnv *env, jclass clazz)
+{
+    int epfd = epoll_create1(EPOLL_CLOEXEC);
+    if (epfd < 0) {
+        throwIOException(env, errno, "epoll_create1 failed");
+        return -1;
+    }
+    return epfd;
+}
+
+/*
+ * Watch fd for input, level-triggered, reporting it with key.  Returns 0,
+ * or -errno.
+ */
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_addFd(JNIEnv *env, jclass clazz,
+    jint epfd, jint fd, jlong key)
+{
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = EPOLLIN;
+    event.data.u64 = (uint64_t) key;
+    if (epoll_ctl(epfd, EPOLL_CTL_ADD, fd, &event) < 0) {
+        return -errno;
+    }
+    return 0;
+}
+
+/*
+ * Stop watching fd.  A paused descriptor is taken out of the set rather
+ * than left in it with no events, because epoll would go on reporting a
+ * hangup on it anyway.  Returns 0, or -errno.
+ */
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_removeFd(JNIEnv *env, jclass clazz,
+    jint epfd, jint fd)
+{
+    struct epoll_event event;
+    // Kernels before 2.6.9 want a non-null event even for EPOLL_CTL_DEL
+    memset(&event, 0, sizeof(event));
+    if (epoll_ctl(epfd, EPOLL_CTL_DEL, fd, &event) < 0) {
+        return -errno;
+    }
+    return 0;
+}
+
+/*
+ * Wait for registered descriptors to become ready and store their keys in
+ * keys.  Returns the number of keys stored, which is 0 if the wait was
+ * interrupted by a signal.
+ */
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_TermReactor_waitEvents(JNIEnv *env, jclass clazz,
+    jint epfd, jlongArray keys)
+{
+    struct epoll_event events[MAX_EVENTS];
+    int max = env->GetArrayLength(keys);
+    if (max > MAX_EVENTS) {
+        max = MAX_EVENTS;
+    }
+
+    int count = epoll_wait(epfd, events, max, -1);
+    if (count < 0) {
+        if (errno == EINTR) {
+            return 0;
+        }
+        throwIOException(env, errno, "epoll_wait failed");
+        return -1;
+    }
+
+    jlong ready[MAX_EVENTS];
+    for (int i = 0; i < count; i++) {
+        ready[i] = (jlong) events[i].data.u64;
+    }
+    env->SetLongArrayRegion(keys, 0, count, ready);
+    return count;
+}
+
+}
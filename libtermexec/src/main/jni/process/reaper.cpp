@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Process exit notification and reaping for ChildReaper.  A child is
+ * reaped by its own pid with wait4(), never with waitpid(-1), so that the
+ * children of java.lang.Process are left to it.  The exit is noticed
+ * either through a pidfd (Linux 5.3 on) or through a SIGCHLD handler
+ * writing to a pipe, both of which TermReactor's thread waits on.
+ */
+
+#include "process.h"
+
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <sys/wait.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <signal.h>
+#include <string.h>
+#include <unistd.h>
+
+#ifndef __NR_pidfd_open
+// The same on every architecture
+#define __NR_pidfd_open 434
+#endif
+
+static int sSigchldPipe[2] = { -1, -1 };
+static struct sigaction sOldSigchldAction;
+
+static void onSigchld(int signal, siginfo_t *info, void *context)
+{
+    int savedErrno = errno;
+    char c = 0;
+    // If the pipe is full, a wakeup is already pending
+    write(sSigchldPipe[1], &c, 1);
+    if (sOldSigchldAction.sa_flags & SA_SIGINFO) {
+        if (sOldSigchldAction.sa_sigaction) {
+            sOldSigchldAction.sa_sigaction(signal, info, context);
+        }
+    } else if (sOldSigchldAction.sa_handler != SIG_DFL
+            && sOldSigchldAction.sa_handler != SIG_IGN) {
+        sOldSigchldAction.sa_handler(signal);
+    }
+    errno = savedErrno;
+}
+
+extern "C" {
+
+/*
+ * Get a descriptor which becomes readable when the process exits, or -1 if
+ * the kernel has no pidfd_open (before Linux 5.3).
+ */
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_ChildReaper_openPidFd(JNIEnv *env, jclass clazz,
+    jint pid)
+{
+    // pidfds are always close-on-exec
+    int fd = (int) syscall(__NR_pidfd_open, (pid_t) pid, 0);
+    if (fd < 0) {
+        __android_log_print(ANDROID_LOG_INFO, LOG_TAG, "pidfd_open failed: %s(%d)",
+            strerror(errno), errno);
+        return -1;
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL Java_jackpal_androidterm_ChildReaper_closeFd(JNIEnv *env, jclass clazz,
+    jint fd)
+{
+    close(fd);
+}
+
+/*
+ * Install a SIGCHLD handler, which calls any handler installed before it,
+ * and return a descriptor which becomes readable whenever it runs.  Must
+ * only be called once.
+ */
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_ChildReaper_installSigchldPipe(JNIEnv *env,
+    jclass clazz)
+{
+    if (pipe2(sSigchldPipe, O_CLOEXEC | O_NONBLOCK) < 0) {
+        throwIOException(env, errno, "pipe2 failed");
+        return -1;
+    }
+
+    struct sigaction action;
+    memset(&action, 0, sizeof(action));
+    action.sa_sigaction = onSigchld;
+    action.sa_flags = SA_SIGINFO | SA_RESTART | SA_NOCLDSTOP;
+    sigemptyset(&action.sa_mask);
+    if (sigaction(SIGCHLD, &action, &sOldSigchldAction) < 0) {
+        int errnum = errno;
+        close(sSigchldPipe[0]);
+        close(sSigchldPipe[1]);
+        sSigchldPipe[0] = sSigchldPipe[1] = -1;
+        throwIOException(env, errnum, "sigaction failed");
+        return -1;
+    }
+    return sSigchldPipe[0];
+}
+
+JNIEXPORT void JNICALL Java_jackpal_androidterm_ChildReaper_drainPipe(JNIEnv *env, jclass clazz,
+    jint fd)
+{
+    char buf[64];
+    while (read(fd, buf, sizeof(buf)) > 0) {
+    }
+}
+
+/*
+ * Reap the child pid if it has exited, or once it does if wait is true.
+ * Returns 0 if it is still running, 1 if it was reaped, in which case
+ * result holds its exit status (-1 if killed by a signal), the signal (0
+ * if it exited), its user and system CPU time in microseconds, and its
+ * largest resident set size in kilobytes; or -errno.
+ */
+JNIEXPORT jint JNICALL Java_jackpal_androidterm_ChildReaper_reap(JNIEnv *env, jclass clazz,
+    jint pid, jlongArray result, jboolean wait)
+{
+    int status;
+    struct rusage usage;
+    pid_t reaped;
+    do {
+        reaped = wait4(pid, &status, wait ? 0 : WNOHANG, &usage);
+    } while (reaped < 0 && errno == EINTR);
+    if (reaped == 0) {
+        return 0;
+    }
+    if (reaped < 0) {
+        return -errno;
+    }
+
+    jlong values[5];
+    values[0] = WIFEXITED(status) ? WEXITSTATUS(status) : -1;
+    values[1] = WIFSIGNALED(status) ? WTERMSIG(status) : 0;
+    values[2] = (jlong) usage.ru_utime.tv_sec * 1000000 + usage.ru_utime.tv_usec;
+    values[3] = (jlong) usage.ru_stime.tv_sec * 1000000 + usage.ru_stime.tv_usec;
+    values[4] = usage.ru_maxrss;
+    env->SetLongArrayRegion(result, 0, 5, values);
+    return 1;
+}
+
+}
@@ -18,6 +18,7 @@
 
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.FileDescriptor;
@@ -54,6 +55,30 @@ class GenericTermSession extends TermSession {
 
     private String mProcessExitMessage;
 
+    // By SystemClock.elapsedRealtime()
+    private final long mStartTime;
+
+    // Watches mTermFd for input in place of a reader thread of our own
+    private TermReactor.Key mInputKey;
+
+    private final TermReactor.Client mInputClient = new TermReactor.Client() {
+        @Override
+        public void onReadable(TermReactor.Key key) {
+            int read = readInput();
+            if (read == 0) {
+                // The emulator is full; onInputSpace() resumes
+                key.pause();
+            } else if (read < 0) {
+                key.cancel();
+            }
+        }
+
+        @Override
+        public void onReactorStopped(TermReactor.Key key) {
+            stopInputPolling();
+        }
+    };
+
     private final UpdateCallback mUTF8ModeNotify = new UpdateCallback() {
         public void onUpdate() {
             setPtyUTF8Mode(getUTF8Mode());
@@ -66,6 +91,7 @@ public void onUpdate() {
         this.mTermFd = mTermFd;
 
         this.createdAt = System.currentTimeMillis();
+        mStartTime = SystemClock.elapsedRealtime();
 
         updatePrefs(settings);
     }
@@ -75,6 +101,8 @@ public void updatePrefs(TermSettings settings) {
         setColorScheme(new ColorScheme(settings.getColorScheme()));
         setIMEColor(settings.getIMEColor());
         setDefaultUTF8Mode(settings.defaultToUTF8Mode());
+        setOverloadThreshold(settings.getOverloadThreshold() * 1024);
+        setFastForwardRows(settings.getFastForwardRows());
     }
 
     @Override
@@ -83,6 +111,15 @@ public void initializeEmulator(int columns, int rows) {
             columns = 80;
             rows = 24;
         }
+        TermReactor reactor = TermReactor.getInstance();
+        if (reactor != null) {
+            try {
+                mInputKey = reactor.register(getIntFd(mTermFd), mInputClient);
+            } catch (IOException e) {
+                Log.e(TermDebug.LOG_TAG, "Cannot poll the pty: " + e.getMessage());
+            }
+        }
+        setInputPolled(mInputKey != null);
         super.initializeEmulator(columns, rows);
 
         setPtyUTF8Mode(getUTF8Mode());
@@ -121,8 +158,23 @@ protected void onProcessExit() {
         }
     }
 
+    /**
+     * @return When the session was created, by {@link SystemClock#elapsedRealtime}.
+     */
+    long getStartTime() {
+        return mStartTime;
+    }
+
+    @Override
+    protected void onInputSpace() {
+        mInputKey.resume();
+    }
+
     @Override
     public void finish() {
+        if (mInputKey != null) {
+            mInputKey.cancel();
+        }
         try {
             mTermFd.close();
         } catch (IOException e) {
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2026 The DroidVim Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.util.TermSettings;
+
+/**
+ * Shell sessions started ahead of the windows which will use them, so that a
+ * new window gets a shell which has already run its initial command and is
+ * waiting at its prompt, instead of waiting for the shell, and for bash and
+ * its rc files, to start up.  The sessions run detached, at 80x24, until a
+ * window's view gives them their real size.  One is started in place of each
+ * session handed out, a little later so as not to slow the new window down.
+ * <p>
+ * The pool only hands out sessions started with the same settings and
+ * initial command as a window asks for, and throws its sessions away when
+ * the settings change.  It also measures how long windows wait for their
+ * shell to be ready, taking a shell to be ready once its output has gone
+ * quiet, for pooled and new sessions alike.
+ * <p>
+ * All of it runs on the main thread.
+ */
+final class SessionPool implements TermSession.FinishCallback {
+    private static final String TAG = "SessionPool";
+
+    private static final int DETACHED_COLUMNS = 80;
+    private static final int DETACHED_ROWS = 24;
+    // Let a new window start up before starting the session to replace it
+    private static final int REFILL_DELAY = 1000;
+    // A shell is taken to be ready once it has written nothing for this long
+    private static final int QUIET_TIME = 250;
+    private static final int CHECK_INTERVAL = 100;
+    // Stop waiting for a shell which never goes quiet
+    private static final int READY_TIMEOUT = 30000;
+
+    private static final class Stats {
+        private int mCount;
+        private long mTotal;
+        private long mMax;
+
+        void add(long millis) {
+            mCount++;
+            mTotal += millis;
+            mMax = Math.max(mMax, millis);
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "none";
+            }
+            return mCount + " times, avg " + mTotal / mCount + " ms, max " + mMax + " ms";
+        }
+    }
+
+    private static final class Entry {
+        final ShellTermSession mSession;
+        final boolean mPooled;
+        // When a window asked for the session, 0 while it's in the pool
+        long mRequestTime;
+        boolean mReady;
+
+        Entry(ShellTermSession session, boolean pooled, long requestTime) {
+            mSession = session;
+            mPooled = pooled;
+            mRequestTime = requestTime;
+        }
+    }
+
+    private final TermService mService;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Entry> mIdle = new ArrayList<>();
+    // Sessions whose shell isn't ready yet, idle or not
+    private final ArrayList<Entry> mStarting = new ArrayList<>();
+
+    // What the idle sessions were started with
+    private TermSettings mSettings;
+    private String mInitialCommand;
+    private String mKey;
+
+    private final Stats mPooledWaits = new Stats();
+    private final Stats mNewWaits = new Stats();
+    private final Stats mStartupTimes = new Stats();
+
+    private final Runnable mRefill = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+
+    private final Runnable mCheckReady = new Runnable() {
+        @Override
+        public void run() {
+            checkReady();
+        }
+    };
+
+    SessionPool(TermService service) {
+        mService = service;
+    }
+
+    /**
+     * Get a session for a new window: an idle one if there is one started
+     * with these settings and initial command, otherwise a new one.
+     */
+    TermSession obtain(TermSettings settings, String initialCommand) throws IOException {
+        long requestTime = SystemClock.elapsedRealtime();
+
+        // What windows are normally started with, as opposed to the first
+        // one, or one started while bash is being installed
+        String poolCommand = mService.getInitialCommand(settings.getInitialCommand(), false);
+        String poolKey = getKey(settings, poolCommand);
+        if (!poolKey.equals(mKey)) {
+            clear();
+            mKey = poolKey;
+        }
+        mSettings = settings;
+        mInitialCommand = poolCommand;
+
+        boolean poolable = poolKey.equals(getKey(settings, initialCommand));
+        Entry entry = poolable ? takeIdle() : null;
+        ShellTermSession session;
+        if (entry != null) {
+            session = entry.mSession;
+            session.setFinishCallback(null);
+            session.updatePrefs(settings);
+            session.attach();
+            entry.mRequestTime = requestTime;
+            if (entry.mReady) {
+                recordWait(entry, 0);
+            }
+        } else {
+            session = (ShellTermSession) Term.createTermSession(mService, settings, initialCommand);
+            watch(new Entry(session, false, requestTime));
+        }
+        if (poolable) {
+            mHandler.removeCallbacks(mRefill);
+            mHandler.postDelayed(mRefill, REFILL_DELAY);
+        }
+        return session;
+    }
+
+    /**
+     * Finish the idle sessions and stop starting new ones.
+     */
+    void shutdown() {
+        mHandler.removeCallbacks(mRefill);
+        mHandler.removeCallbacks(mCheckReady);
+        clear();
+        mStarting.clear();
+        mKey = null;
+    }
+
+    /**
+     * @return How long windows have waited for their shells, and how long
+     *         shells have taken to start up.
+     */
+    String getStats() {
+        return "pooled " + mPooledWaits + ", new " + mNewWaits + ", shell startup " + mStartupTimes;
+    }
+
+    @Override
+    public void onSessionFinish(TermSession session) {
+        // An idle shell which has exited
+        for (Iterator<Entry> it = mIdle.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.mSession == session) {
+                it.remove();
+                mStarting.remove(entry);
+                break;
+            }
+        }
+    }
+
+    private Entry takeIdle() {
+        while (!mIdle.isEmpty()) {
+            Entry entry = mIdle.remove(0);
+            if (entry.mSession.isProcessAlive()) {
+                return entry;
+            }
+            finishIdle(entry);
+        }
+        return null;
+    }
+
+    private void refill() {
+        if (mSettings == null) {
+            return;
+        }
+        if (ShellTermSession.needsInitialEnvironment()) {
+            // The first session has yet to type in the environment, which
+            // the ones after it are started with
+            mHandler.postDelayed(mRefill, REFILL_DELAY);
+            return;
+        }
+        int size = mSettings.getSessionPoolSize();
+        while (mIdle.size() > size) {
+            finishIdle(mIdle.remove(mIdle.size() - 1));
+        }
+        while (mIdle.size() < size) {
+            ShellTermSession session;
+            try {
+                session = (ShellTermSession) Term.createTermSession(mService, mSettings, mInitialCommand);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start a session: " + e.getMessage());
+                return;
+            }
+            session.setFinishCallback(this);
+            session.initializeDetached(DETACHED_COLUMNS, DETACHED_ROWS);
+            Entry entry = new Entry(session, true, 0);
+            mIdle.add(entry);
+            watch(entry);
+        }
+    }
+
+    private void clear() {
+        for (Entry entry : mIdle) {
+            finishIdle(entry);
+        }
+        mIdle.clear();
+    }
+
+    private void finishIdle(Entry entry) {
+        mStarting.remove(entry);
+        entry.mSession.setFinishCallback(null);
+        entry.mSession.finish();
+    }
+
+    private void watch(Entry entry) {
+        mStarting.add(entry);
+        if (mStarting.size() == 1) {
+            mHandler.removeCallbacks(mCheckReady);
+            mHandler.postDelayed(mCheckReady, CHECK_INTERVAL);
+        }
+    }
+
+    private void checkReady() {
+        long now = SystemClock.elapsedRealtime();
+        for (Iterator<Entry> it = mStarting.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            long lastOutput = entry.mSession.getLastInputTime();
+            if (lastOutput != 0 && now - lastOutput >= QUIET_TIME) {
+                it.remove();
+                entry.mReady = true;
+                mStartupTimes.add(lastOutput - entry.mSession.getStartTime());
+                if (entry.mRequestTime != 0) {
+                    recordWait(entry, Math.max(0, lastOutput - entry.mRequestTime));
+                }
+            } else if (now - entry.mSession.getStartTime() >= READY_TIMEOUT) {
+                it.remove();
+            }
+        }
+        if (!mStarting.isEmpty()) {
+            mHandler.postDelayed(mCheckReady, CHECK_INTERVAL);
+        }
+    }
+
+    private void recordWait(Entry entry, long millis) {
+        (entry.mPooled ? mPooledWaits : mNewWaits).add(millis);
+        Log.i(TAG, "Shell ready " + millis + " ms after its window was asked for ("
+                + (entry.mPooled ? "pooled" : "new") + " session); " + getStats());
+    }
+
+    private static String getKey(TermSettings settings, String initialCommand) {
+        return settings.getShell() + '\n' + settings.getFailsafeShell() + '\n' + settings.getTermType()
+                + '\n' + settings.getCOLORFGBG() + '\n' + settings.isProot() + '\n' + Term.mTerminalMode
+                + '\n' + initialCommand;
+    }
+}
@@ -42,9 +42,14 @@
  */
 public class ShellTermSession extends GenericTermSession {
     private int mProcId;
+    // Reaps mProcId, if it could take it; otherwise mWatcherThread waits for it
+    private final ChildReaper mReaper;
     private final Thread mWatcherThread;
+    private volatile ChildReaper.ExitInfo mExitInfo;
 
     private final String mInitialCommand;
+    // Started by the SessionPool before there was a window for it
+    private boolean mDetached;
 
     private static final int PROCESS_EXITED = 1;
     private final Handler mMsgHandler = new Handler() {
@@ -64,6 +69,8 @@ public ShellTermSession(TermSettings settings, String initialCommand) throws IOE
                 settings, false);
 
         initializeSession();
+        ChildReaper reaper = ChildReaper.getInstance();
+        mReaper = reaper != null && reaper.watch(mProcId) ? reaper : null;
 
         setTermOut(new ParcelFileDescriptor.AutoCloseOutputStream(mTermFd));
         setTermIn(new ParcelFileDescriptor.AutoCloseInputStream(mTermFd));
@@ -82,6 +89,15 @@ public void run() {
         mWatcherThread.setName("Process watcher");
     }
 
+    private final ChildReaper.ExitListener mExitListener = new ChildReaper.ExitListener() {
+        @Override
+        public void onChildExit(ChildReaper.ExitInfo info) {
+            mExitInfo = info;
+            Log.i(TermDebug.LOG_TAG, "Subprocess exited: " + info);
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, info.getExitStatus()));
+        }
+    };
+
     static private boolean mFirst = true;
     static private String mEnvInitialCommand = "";
     static private boolean mProotEnable = false;
@@ -139,14 +155,50 @@ private void initializeSession() throws IOException {
     public void initializeEmulator(int columns, int rows) {
         super.initializeEmulator(columns, rows);
 
-        mWatcherThread.start();
+        if (mReaper == null || !mReaper.subscribe(mProcId, mExitListener)) {
+            mWatcherThread.start();
+        }
         sendInitialCommand(mInitialCommand);
+        if (!mDetached) {
+            sendPostCommand();
+        }
+    }
+
+    /**
+     * Start the session, and its initial command, before there is a window
+     * for it.  The emulator runs at the given size until the window's view
+     * resizes it; call {@link #attach} when handing it to the window.
+     */
+    void initializeDetached(int columns, int rows) {
+        mDetached = true;
+        initializeEmulator(columns, rows);
+    }
+
+    /**
+     * Hand a session started with {@link #initializeDetached} to a window.
+     */
+    void attach() {
+        if (mDetached) {
+            mDetached = false;
+            sendPostCommand();
+        }
+    }
+
+    private void sendPostCommand() {
         if (mPostCmd != null) {
             sendInitialCommand(mPostCmd);
             mPostCmd = null;
         }
     }
 
+    /**
+     * @return Whether the next session still has to type in the environment
+     *         for the shell, rather than starting the shell with it.
+     */
+    static boolean needsInitialEnvironment() {
+        return mFirst;
+    }
+
     static public void setPostCmd(String cmd) {
         mPostCmd = cmd;
     }
@@ -295,9 +347,27 @@ private void onProcessExit(int result) {
         onProcessExit();
     }
 
+    /**
+     * @return How the session's process ended and what it used, or null if
+     *         it's still running or can't be told.
+     */
+    public ChildReaper.ExitInfo getProcessExitInfo() {
+        return mExitInfo;
+    }
+
+    /**
+     * @return false if the process is known to have exited.
+     */
+    boolean isProcessAlive() {
+        return mReaper == null || mReaper.getExitInfo(mProcId) == null;
+    }
+
     @Override
     public void finish() {
         hangupProcessGroup();
+        if (mReaper != null) {
+            mReaper.forget(mProcId);
+        }
         super.finish();
     }
 
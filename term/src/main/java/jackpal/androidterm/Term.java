@@ -118,7 +118,10 @@
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
@@ -137,7 +140,9 @@
 import java.util.concurrent.Executors;
 
 import jackpal.androidterm.emulatorview.EmulatorView;
+import jackpal.androidterm.emulatorview.PasteTask;
 import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.emulatorview.TranscriptExporter;
 import jackpal.androidterm.emulatorview.UpdateCallback;
 import jackpal.androidterm.emulatorview.compat.ClipboardManagerCompat;
 import jackpal.androidterm.emulatorview.compat.ClipboardManagerCompatFactory;
@@ -182,6 +187,8 @@ public class Term extends AppCompatActivity implements UpdateCallback, SharedPre
     private static final int SEND_FN_KEY_ID = 4;
     private static final int SEND_FUNCTION_BAR_ID = 5;
     private static final int SEND_MENU_ID = 6;
+    // Pastes at least this long show their progress, and can be cancelled
+    private static final int PASTE_PROGRESS_LENGTH = 64 * 1024;
     private static final int UNPRESSED = 0;
     private static final int PRESSED = 1;
     private static final int RELEASED = 2;
@@ -1427,7 +1434,7 @@ private void restart() {
 
     private TermSession createTermSession() throws IOException {
         TermSettings settings = mSettings;
-        TermSession session = createTermSession(this, settings, getInitialCommand());
+        TermSession session = mTermService.obtainSession(settings, getInitialCommand());
         session.setFinishCallback(mTermService);
         return session;
     }
@@ -1643,8 +1650,7 @@ private void doScreenMenu() {
                         showTextInWebview("html_text", strings);
                     } else if (getString(R.string.copy_share_screen_buffer).equals(items[which])) {
                         doHideSoftKeyboard();
-                        String strings = Objects.requireNonNull(getCurrentEmulatorView()).getTranscriptText().trim();
-                        showTextInWebview("html_log", strings);
+                        showTranscriptInWebview("html_log", Objects.requireNonNull(getCurrentEmulatorView()));
                     } else if ((getString(R.string.disable_keepscreen).equals(items[which])) || (getString(R.string.enable_keepscreen).equals(items[which]))) {
                         if (keepScreen) mKeepScreenEnableAuto = false;
                         doToggleKeepScreen();
@@ -3484,16 +3490,20 @@ private void doCopyAll(int mode) {
             clip_setText(clip, str);
             mes = getString(R.string.toast_clipboard);
         } else if (mode == 1) {
-            str = view.getTranscriptText().trim();
-            clip_setText(clip, str);
+            StringBuilder builder = new StringBuilder();
+            try {
+                view.exportTranscript(builder, TranscriptExporter.FORMAT_TEXT);
+            } catch (IOException e) {
+                // A StringBuilder doesn't throw
+            }
+            clip_setText(clip, builder.toString());
             mes = getString(R.string.toast_clipboard);
         } else if (mode == 2) {
             str = view.getTranscriptCurrentText();
             doShareIntentText(str);
             return;
         } else if (mode == 3) {
-            str = view.getTranscriptText().trim();
-            doShareIntentText(str);
+            doShareTranscriptFile(view);
             return;
         } else {
             return;
@@ -3501,6 +3511,73 @@ private void doCopyAll(int mode) {
         showSnackbar(mes);
     }
 
+    /**
+     * Share the whole transcript as a text file, written straight from the
+     * transcript rather than passed to the intent as one String.
+     */
+    private void doShareTranscriptFile(EmulatorView view) {
+        File cacheDir = new File(getIntentCacheDir());
+        if (!cacheDir.isDirectory()) {
+            cacheDir.mkdirs();
+        }
+        File file = new File(cacheDir, "transcript.txt");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            view.exportTranscript(out.getChannel(), TranscriptExporter.FORMAT_TEXT);
+        } catch (IOException e) {
+            complain("ShareIntent Text: " + e);
+            return;
+        }
+        try {
+            Uri uri = FileProvider.getUriForFile(getApplicationContext(), BuildConfig.APPLICATION_ID + ".fileprovider", file);
+            Intent sendIntent = new Intent();
+            sendIntent.setAction(Intent.ACTION_SEND);
+            sendIntent.putExtra(Intent.EXTRA_STREAM, uri);
+            sendIntent.setType("text/plain");
+            sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(Intent.createChooser(sendIntent, "Share"));
+        } catch (Exception e) {
+            complain("ShareIntent Text: " + e);
+        }
+    }
+
+    /**
+     * Like showTextInWebview(), but writes the transcript into the page as
+     * HTML, with its colors, a buffer at a time.
+     */
+    private void showTranscriptInWebview(String htmlTemplate, EmulatorView view) {
+        String file = TermService.getTMPDIR() + "/html/text.html";
+        int id = getResources().getIdentifier(htmlTemplate, "raw", getPackageName());
+        String placeholder = "%%STRINGS%%";
+        new File(file).getParentFile().mkdirs();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(getResources().openRawResource(id), StandardCharsets.UTF_8));
+             FileOutputStream out = new FileOutputStream(file)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf(placeholder);
+                if (index < 0) {
+                    writer.write(line);
+                    writer.write('\n');
+                    continue;
+                }
+                writer.write(line, 0, index);
+                writer.flush();
+                view.exportTranscript(out.getChannel(), TranscriptExporter.FORMAT_HTML);
+                writer.write(line.substring(index + placeholder.length()));
+                writer.write('\n');
+            }
+            writer.flush();
+        } catch (IOException e) {
+            complain("Transcript: " + e);
+            return;
+        }
+        Intent intent;
+        intent = new Intent(this, WebViewActivity.class);
+        intent.putExtra("url", file);
+        WebViewActivity.setFontSize(new PrefValue(this).getInt(WEBVIEW_HTML_LOG_FONT_SIZE, 140));
+        doStartActivityForResult(intent, REQUEST_HTML_LOG_ACTIVITY);
+    }
+
     private void showTextInWebview(String htmlTemplate, String strings) {
         strings = strings.replaceAll("&", "&amp;");
         strings = strings.replaceAll("<", "&lt;");
@@ -3563,15 +3640,13 @@ private void chooseTermClipboard() {
     }
 
     private void doCopyText() {
-        String strings;
         EmulatorView view = getCurrentEmulatorView();
         if (view != null) {
             if (FLAVOR_VIM) {
-                strings = view.getTranscriptCurrentText();
+                showTextInWebview("html_text", view.getTranscriptCurrentText());
             } else {
-                strings = view.getTranscriptText().trim();
+                showTranscriptInWebview("html_text", view);
             }
-            showTextInWebview("html_text", strings);
         }
     }
 
@@ -3585,7 +3660,29 @@ private void doTermPaste() {
         CharSequence paste = clip.getText();
         if (paste == null) return;
         TermSession session = getCurrentTermSession();
-        if (session != null) session.write(paste.toString());
+        if (session == null) return;
+        if (paste.length() < PASTE_PROGRESS_LENGTH) {
+            session.paste(paste, null);
+            return;
+        }
+        final Snackbar snackbar = Snackbar.make(findViewById(R.id.term_coordinator_layout_top),
+                getString(R.string.message_pasting, 0), Snackbar.LENGTH_INDEFINITE);
+        View snackbarView = snackbar.getView();
+        TextView tv = snackbarView.findViewById(R.id.snackbar_text);
+        tv.setMaxLines(2);
+        final PasteTask task = session.paste(paste, new PasteTask.Listener() {
+            @Override
+            public void onPasteProgress(PasteTask task, int written, int total) {
+                snackbar.setText(getString(R.string.message_pasting, (int) (100L * written / total)));
+            }
+
+            @Override
+            public void onPasteFinished(PasteTask task, boolean cancelled) {
+                snackbar.dismiss();
+            }
+        });
+        snackbar.setAction(android.R.string.cancel, v -> task.cancel());
+        snackbar.show();
     }
 
     private void doWarningBeforePaste() {
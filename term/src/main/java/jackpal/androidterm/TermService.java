@@ -48,6 +48,7 @@
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -70,6 +71,7 @@ public class TermService extends Service implements TermSession.FinishCallback {
     private ServiceForegroundCompat compat;
 
     private SessionList mTermSessions;
+    private SessionPool mSessionPool;
 
     public class TSBinder extends Binder {
         TermService getService() {
@@ -158,6 +160,7 @@ public void onCreate() {
         mVERSION_FILES_DIR = mAPPFILES;
 
         mTermSessions = new SessionList();
+        mSessionPool = new SessionPool(this);
         install();
 
         Log.d(TermDebug.LOG_TAG, "TermService started");
@@ -472,6 +475,7 @@ private boolean getInstallStatus(String scriptFile, String desc) {
     public void onDestroy() {
         TermServiceState = -1;
         stopNotificationService();
+        mSessionPool.shutdown();
         destroySessions();
         clearTerminalMode();
     }
@@ -514,6 +518,14 @@ public SessionList getSessions() {
         return mTermSessions;
     }
 
+    /**
+     * Get a shell session for a new window, started ahead of time if one
+     * with these settings and initial command is waiting.
+     */
+    public TermSession obtainSession(TermSettings settings, String initialCommand) throws IOException {
+        return mSessionPool.obtain(settings, initialCommand);
+    }
+
     public void onSessionFinish(TermSession session) {
         mTermSessions.remove(session);
     }
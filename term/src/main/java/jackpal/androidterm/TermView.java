@@ -36,12 +36,14 @@ public void updatePrefs(TermSettings settings, ColorScheme scheme) {
             scheme = new ColorScheme(settings.getColorScheme());
         }
 
+        setUseGlyphAtlas(settings.getUseGlyphAtlas());
         setTextSize(settings.getFontSize());
         setTextLeading(settings.getFontLeading());
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this.getContext());
         setTextFont(sp.getString(TermPreferences.FONT_FILENAME, null));
         setAmbiWidth(settings.getAmbiWidth());
         setHwAcceleration(settings.getHwAcceleration());
+        setShowRowsDrawn(settings.getShowRowsDrawn());
         setUseCookedIME(settings.useCookedIME());
         setUseDirectCookedIME(settings.useDirectCookedIME());
         setCursorColor(settings.getCursorColor());
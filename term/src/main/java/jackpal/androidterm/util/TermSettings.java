@@ -54,9 +54,13 @@ public class TermSettings {
     private int mAmbiWidth;
     private boolean mHwAcceleration;
     private boolean mForceFlushDrawText;
+    private boolean mGlyphAtlas;
+    private boolean mShowRowsDrawn;
     private int mTheme;
     private int mColorId;
     private int mKeepScreenTime;
+    private int mOverloadThreshold;
+    private int mFastForwardRows;
     private boolean mKeepScreenAtStartup;
     private int mIMEColor;
     private boolean mUTF8ByDefault;
@@ -91,6 +95,7 @@ public class TermSettings {
     private boolean mCloudStorageWriteCheck;
     private int mHtmlViewerMode;
     private String mShell;
+    private int mSessionPoolSize;
     private String mFailsafeShell;
     private String mInitialCommand;
     private String mIntentCommand;
@@ -138,9 +143,13 @@ public class TermSettings {
     private static final String FONTFILE_KEY = "fontfile";
     public static final String AMBIWIDTH_KEY = "ambiwidth";
     private static final String FORCE_FLUSH_DRAW_KEY = "force_flush_drawtext";
+    private static final String GLYPH_ATLAS_KEY = "glyph_atlas";
+    private static final String SHOW_ROWS_DRAWN_KEY = "show_rows_drawn";
     public static final String THEME_KEY = "theme";
     private static final String KEEP_SCREEN_AT_STARTUP_KEY = "keepscreen_at_startup";
     private static final String KEEP_SCREEN_TIME_KEY = "keepscreentime";
+    private static final String OVERLOAD_THRESHOLD_KEY = "overload_threshold";
+    private static final String FAST_FORWARD_ROWS_KEY = "fast_forward_rows";
     public static final String COLOR_KEY = "color";
     private static final String IMECOLOR_KEY = "composingtext";
     private static final String UTF8_KEY = "utf8_by_default";
@@ -174,6 +183,7 @@ public class TermSettings {
     private static final String CLOUD_STRAGE_WRITE_CHECK_KEY = "cloud_storage_write_check";
     private static final String HTML_VIEWER_MODE_KEY = "html_viewer_mode";
     private static final String SHELL_KEY = "android_shell_path";
+    private static final String SESSION_POOL_SIZE_KEY = "session_pool_size";
     private static final String INITIALCOMMAND_KEY = "initialcommand_rev6";
     private static final String INTENTCOMMAND_KEY = "intent_command";
     private static final String TERMTYPE_KEY = "termtype";
@@ -301,12 +311,16 @@ private void readDefaultPrefs(Resources res) {
         mAmbiWidth = Integer.parseInt(res.getString(R.string.pref_ambiguous_width_default));
         mTheme = Integer.parseInt(res.getString(R.string.pref_theme_default));
         mKeepScreenTime = Integer.parseInt(res.getString(R.string.pref_keep_screen_default));
+        mOverloadThreshold = Integer.parseInt(res.getString(R.string.pref_overload_threshold_default));
+        mFastForwardRows = Integer.parseInt(res.getString(R.string.pref_fast_forward_rows_default));
         mKeepScreenAtStartup = res.getBoolean(R.bool.pref_keepscreen_at_startup_default);
         mColorId = Integer.parseInt(res.getString(R.string.pref_color_default));
         mIMEColor = Integer.parseInt(res.getString(R.string.pref_composingtext_default));
         mUTF8ByDefault = res.getBoolean(R.bool.pref_utf8_by_default_default);
         mHwAcceleration = res.getBoolean(R.bool.pref_hw_acceleration_by_default);
         mForceFlushDrawText = res.getBoolean(R.bool.pref_force_flush_drawtext);
+        mGlyphAtlas = res.getBoolean(R.bool.pref_glyph_atlas);
+        mShowRowsDrawn = res.getBoolean(R.bool.pref_show_rows_drawn);
         mActionBarIconAction = Integer.parseInt(res.getString(R.string.pref_actionbar_diamond_default));
         mActionBarPlusAction = Integer.parseInt(res.getString(R.string.pref_actionbar_plus_default));
         mActionBarMinusAction = Integer.parseInt(res.getString(R.string.pref_actionbar_minus_default));
@@ -340,6 +354,7 @@ private void readDefaultPrefs(Resources res) {
         mUseDirectCookedIME = Integer.parseInt(res.getString(R.string.pref_ime_default));
         mFailsafeShell = res.getString(R.string.pref_shell_default);
         mShell = res.getString(R.string.pref_shell_default);
+        mSessionPoolSize = Integer.parseInt(res.getString(R.string.pref_session_pool_size_default));
         mInitialCommand = res.getString(R.string.pref_initialcommand_default);
         mIntentCommand = res.getString(R.string.pref_intent_command_default);
         mTermType = res.getString(R.string.pref_termtype_default);
@@ -385,12 +400,16 @@ public void readPrefs(SharedPreferences prefs) {
         mAmbiWidth = readIntPref(AMBIWIDTH_KEY, mAmbiWidth, 3);
         mTheme = readIntPref(THEME_KEY, mTheme, 4);
         mKeepScreenTime = readIntPref(KEEP_SCREEN_TIME_KEY, mKeepScreenTime, 120);
+        mOverloadThreshold = readIntPref(OVERLOAD_THRESHOLD_KEY, mOverloadThreshold, 65536);
+        mFastForwardRows = readIntPref(FAST_FORWARD_ROWS_KEY, mFastForwardRows, 100000);
         mKeepScreenAtStartup = readBooleanPref(KEEP_SCREEN_AT_STARTUP_KEY, mKeepScreenAtStartup);
         mColorId = readIntPref(COLOR_KEY, mColorId, COLOR_SCHEMES.length - 1);
         mIMEColor = readIntPref(IMECOLOR_KEY, mIMEColor, 100);
         mUTF8ByDefault = readBooleanPref(UTF8_KEY, mUTF8ByDefault);
         mHwAcceleration = readBooleanPref(HWACCELERATION_KEY, mHwAcceleration);
         mForceFlushDrawText = readBooleanPref(FORCE_FLUSH_DRAW_KEY, mForceFlushDrawText);
+        mGlyphAtlas = readBooleanPref(GLYPH_ATLAS_KEY, mGlyphAtlas);
+        mShowRowsDrawn = readBooleanPref(SHOW_ROWS_DRAWN_KEY, mShowRowsDrawn);
         mActionBarIconAction = readIntPref(ACTIONBAR_ICON_KEY, mActionBarIconAction, ACTIONBAR_KEY_MAX);
         mActionBarPlusAction = readIntPref(ACTIONBAR_PLUS_KEY, mActionBarPlusAction, ACTIONBAR_KEY_MAX);
         mActionBarMinusAction = readIntPref(ACTIONBAR_MINUS_KEY, mActionBarMinusAction, ACTIONBAR_KEY_MAX);
@@ -421,6 +440,7 @@ public void readPrefs(SharedPreferences prefs) {
         mCloudStorageWriteCheck = readBooleanPref(CLOUD_STRAGE_WRITE_CHECK_KEY, mCloudStorageWriteCheck);
         mHtmlViewerMode = readIntPref(HTML_VIEWER_MODE_KEY, mHtmlViewerMode, 2);
         mShell = readStringPref(SHELL_KEY, mShell);
+        mSessionPoolSize = readIntPref(SESSION_POOL_SIZE_KEY, mSessionPoolSize, 4);
         mInitialCommand = readStringPref(INITIALCOMMAND_KEY, mInitialCommand);
         mInitialCommand = "cd %STARTUP_DIR%\n" + mInitialCommand;
         if (Term.mTerminalMode != 0) {
@@ -586,6 +606,14 @@ public boolean getForceFlushDrawText() {
         return mForceFlushDrawText;
     }
 
+    public boolean getUseGlyphAtlas() {
+        return mGlyphAtlas;
+    }
+
+    public boolean getShowRowsDrawn() {
+        return mShowRowsDrawn;
+    }
+
     public boolean getHwAcceleration() {
         return mHwAcceleration;
     }
@@ -598,6 +626,21 @@ public int getKeepScreenTime() {
         return mKeepScreenTime;
     }
 
+    /**
+     * @return How far, in KB, output may run ahead of the terminal emulator
+     *         before it goes into overload mode; 0 means never.
+     */
+    public int getOverloadThreshold() {
+        return mOverloadThreshold;
+    }
+
+    /**
+     * @return The number of rows of scrollback kept through an overload.
+     */
+    public int getFastForwardRows() {
+        return mFastForwardRows;
+    }
+
     public boolean getKeepScreenAtStartup() {
         return mKeepScreenAtStartup;
     }
@@ -849,6 +892,14 @@ public String getShell() {
         return mShell;
     }
 
+    /**
+     * @return The number of shell sessions to keep started ahead of the
+     *         windows which will use them.
+     */
+    public int getSessionPoolSize() {
+        return mSessionPoolSize;
+    }
+
     public String getFailsafeShell() {
         return mFailsafeShell;
     }